@@ -0,0 +1,248 @@
+package com.example.sparkyaisystem.benchmark;
+
+import com.azure.ai.inference.ChatCompletionsClient;
+import com.azure.ai.inference.ChatCompletionsClientBuilder;
+import com.azure.core.credential.AzureKeyCredential;
+import com.azure.core.http.HttpClient;
+import com.azure.core.http.HttpHeaderName;
+import com.azure.core.http.HttpHeaders;
+import com.azure.core.http.HttpRequest;
+import com.azure.core.http.HttpResponse;
+import com.example.sparkyaisystem.SparkyAiSystemApplication;
+import com.example.sparkyaisystem.model.entity.*;
+import com.example.sparkyaisystem.repository.*;
+import com.example.sparkyaisystem.security.AuthenticatedUser;
+import com.example.sparkyaisystem.service.ConsumptionRollupService;
+import com.example.sparkyaisystem.service.ContentStore;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.springframework.boot.builder.SpringApplicationBuilder;
+import org.springframework.context.ConfigurableApplicationContext;
+import org.springframework.context.support.GenericApplicationContext;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * The application booted against an in-memory H2 database (PostgreSQL mode), with the
+ * GitHub Models endpoint replaced by an HTTP client that answers instantly. The real SDK
+ * client still serializes the request and parses the canned response.
+ * <p>
+ * On top of the default seed data, adds one company with access to one model, a user with an
+ * effectively unlimited quota, and a second user with {@link #HISTORY_SIZE} past requests.
+ */
+@State(Scope.Benchmark)
+public class ApplicationState {
+
+    public static final int HISTORY_SIZE = 100;
+
+    private static final String COMPLETION_JSON = """
+            {"id":"bench","created":1700000000,"model":"gpt-4o",
+             "choices":[{"index":0,"finish_reason":"stop",
+                         "message":{"role":"assistant","content":"Your order ships within two business days."}}],
+             "usage":{"prompt_tokens":60,"completion_tokens":12,"total_tokens":72}}
+            """;
+
+    public ConfigurableApplicationContext context;
+    public AIModel model;
+    public AuthenticatedUser user;
+    public AuthenticatedUser historyUser;
+
+    @Setup(Level.Trial)
+    public void start() {
+        String contentStorePath;
+        try {
+            contentStorePath = Files.createTempDirectory("benchmark-content").toString();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        ChatCompletionsClient stubClient = new ChatCompletionsClientBuilder()
+                .credential(new AzureKeyCredential("benchmark"))
+                .endpoint("https://models.invalid/inference")
+                .httpClient(new CannedHttpClient(COMPLETION_JSON))
+                .buildClient();
+
+        context = new SpringApplicationBuilder(SparkyAiSystemApplication.class)
+                .initializers(ctx -> ((GenericApplicationContext) ctx).registerBean("stubChatCompletionsClient",
+                        ChatCompletionsClient.class, () -> stubClient, bd -> bd.setPrimary(true)))
+                // Command line arguments take precedence over application.properties
+                .run(
+                        "--spring.main.web-application-type=none",
+                        "--spring.datasource.url=jdbc:h2:mem:benchmark;MODE=PostgreSQL;DATABASE_TO_LOWER=TRUE;DB_CLOSE_DELAY=-1",
+                        "--spring.datasource.username=sa",
+                        "--spring.datasource.password=",
+                        "--spring.jpa.show-sql=false",
+                        "--spring.jpa.properties.hibernate.format_sql=false",
+                        "--jwt.secret=benchmark-secret-key-with-at-least-256-bits-of-entropy",
+                        "--jwt.expiration=3600000",
+                        "--GITHUB_API_KEY=benchmark",
+                        "--content-store.path=" + contentStorePath,
+                        "--logging.level.root=WARN");
+
+        seed();
+    }
+
+    @TearDown(Level.Trial)
+    public void stop() {
+        context.close();
+    }
+
+    public <T> T bean(Class<T> type) {
+        return context.getBean(type);
+    }
+
+    private void seed() {
+        Company company = new Company();
+        company.setName("BenchCorp");
+        company.setRuc("20000000001");
+        company.setAffiliationDate(LocalDateTime.now());
+        company.setActive(true);
+        company = bean(CompanyRepository.class).save(company);
+
+        model = new AIModel();
+        model.setName("benchmark-gpt-4o");
+        model.setProvider("OpenAI");
+        model.setType("multimodal");
+        model.setActive(true);
+        model = bean(AIModelRepository.class).save(model);
+
+        Restriction restriction = new Restriction();
+        restriction.setCompany(company);
+        restriction.setModel(model);
+        restriction.setMaxRequestsPerWindow(Integer.MAX_VALUE);
+        restriction.setMaxTokensPerWindow(Integer.MAX_VALUE);
+        restriction.setWindowType("daily");
+        bean(RestrictionRepository.class).save(restriction);
+
+        User benchUser = saveUser(company, "bench@benchcorp.com");
+        User historyOwner = saveUser(company, "history@benchcorp.com");
+        user = authenticated(benchUser);
+        historyUser = authenticated(historyOwner);
+
+        ContentStore contentStore = bean(ContentStore.class);
+        ContentStore.Ref response = contentStore.put("Your order ships within two business days.");
+        List<Request> history = new ArrayList<>();
+        for (int i = 0; i < HISTORY_SIZE; i++) {
+            Request request = new Request();
+            request.setUser(historyOwner);
+            request.setModel(model);
+            ContentStore.Ref query = contentStore.put("Where is my order #" + i + "?");
+            request.setQueryRef(query.key());
+            request.setQuerySize(query.size());
+            request.setResponseRef(response.key());
+            request.setResponseSize(response.size());
+            request.setSuccessful(true);
+            request.setTokensConsumed(72);
+            request.setResponseTime(LocalDateTime.now());
+            history.add(request);
+        }
+        bean(RequestRepository.class).saveAll(history);
+        bean(ConsumptionRollupService.class).record(history);
+    }
+
+    private User saveUser(Company company, String email) {
+        User user = new User();
+        user.setFirstName("Bench");
+        user.setLastName("User");
+        user.setEmail(email);
+        user.setPassword("unused");
+        user.setRole(Role.ROLE_USER);
+        user.setCompany(company);
+        user = bean(UserRepository.class).save(user);
+
+        LocalDateTime now = LocalDateTime.now();
+        Limit limit = new Limit();
+        limit.setUser(user);
+        limit.setModel(model);
+        limit.setMaxRequestsPerWindow(Integer.MAX_VALUE);
+        limit.setMaxTokensPerWindow(Integer.MAX_VALUE);
+        limit.setWindowType("daily");
+        limit.setWindowStartTime(now);
+        limit.setWindowEndTime(now.plusDays(1));
+        bean(LimitRepository.class).save(limit);
+        return user;
+    }
+
+    private static AuthenticatedUser authenticated(User user) {
+        return new AuthenticatedUser(user.getId(), user.getEmail(), user.getCompany().getId(), true,
+                List.of(user.getRole().name()));
+    }
+
+    /**
+     * Answers every request with the same JSON body, without network I/O.
+     */
+    private static class CannedHttpClient implements HttpClient {
+
+        private final byte[] body;
+
+        CannedHttpClient(String body) {
+            this.body = body.getBytes(StandardCharsets.UTF_8);
+        }
+
+        @Override
+        public Mono<HttpResponse> send(HttpRequest request) {
+            return Mono.just(new CannedResponse(request, body));
+        }
+    }
+
+    private static class CannedResponse extends HttpResponse {
+
+        private static final HttpHeaders HEADERS = new HttpHeaders()
+                .set(HttpHeaderName.CONTENT_TYPE, "application/json");
+
+        private final byte[] body;
+
+        CannedResponse(HttpRequest request, byte[] body) {
+            super(request);
+            this.body = body;
+        }
+
+        @Override
+        public int getStatusCode() {
+            return 200;
+        }
+
+        @Override
+        @Deprecated
+        public String getHeaderValue(String name) {
+            return HEADERS.getValue(HttpHeaderName.fromString(name));
+        }
+
+        @Override
+        public HttpHeaders getHeaders() {
+            return HEADERS;
+        }
+
+        @Override
+        public Flux<ByteBuffer> getBody() {
+            return Flux.just(ByteBuffer.wrap(body));
+        }
+
+        @Override
+        public Mono<byte[]> getBodyAsByteArray() {
+            return Mono.just(body);
+        }
+
+        @Override
+        public Mono<String> getBodyAsString() {
+            return Mono.just(new String(body, StandardCharsets.UTF_8));
+        }
+
+        @Override
+        public Mono<String> getBodyAsString(Charset charset) {
+            return Mono.just(new String(body, charset));
+        }
+    }
+}
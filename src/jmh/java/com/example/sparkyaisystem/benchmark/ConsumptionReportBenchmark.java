@@ -0,0 +1,137 @@
+package com.example.sparkyaisystem.benchmark;
+
+import com.example.sparkyaisystem.model.dto.company.CompanyConsumptionResponse;
+import com.example.sparkyaisystem.model.entity.AIModel;
+import com.example.sparkyaisystem.model.entity.Company;
+import com.example.sparkyaisystem.model.entity.Request;
+import com.example.sparkyaisystem.model.entity.User;
+import com.example.sparkyaisystem.repository.CompanyRepository;
+import com.example.sparkyaisystem.repository.RequestRepository;
+import com.example.sparkyaisystem.repository.UserRepository;
+import com.example.sparkyaisystem.service.CompanyService;
+import com.example.sparkyaisystem.service.ConsumptionRollupService;
+import com.example.sparkyaisystem.service.ContentStore;
+import org.openjdk.jmh.annotations.*;
+import org.springframework.jdbc.core.JdbcTemplate;
+
+import java.sql.Timestamp;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Company consumption report over {@code requests} synthetic requests spread across 90 days,
+ * see {@link ApplicationState}.
+ * <ul>
+ *   <li>{@code rollupReport}, {@code rollupReportLastWeek}: the report as served, summed from the
+ *       hourly and daily rollups</li>
+ *   <li>{@code entityScan}: the previous implementation, loading every Request entity of the company
+ *       and summing per model in Java</li>
+ * </ul>
+ * Run with {@code -prof gc} to compare the heap allocated per report (gc.alloc.rate.norm).
+ * The embedded database holds the rows on the same heap, hence the larger fork heap. All rows share
+ * one stored query and response, the bodies are not part of what is measured.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2, time = 5)
+@Measurement(iterations = 3, time = 5)
+@Fork(value = 1, jvmArgsAppend = "-Xmx4g")
+@State(Scope.Benchmark)
+public class ConsumptionReportBenchmark {
+
+    private static final int CHUNK_SIZE = 10_000;
+    // Above any id the request sequence hands out during the run
+    private static final long FIRST_ID = 1_000_000_000L;
+    private static final String INSERT_SQL = "insert into requests (id, user_id, model_id, query_ref, query_size, "
+            + "response_ref, response_size, successful, tokens_consumed, request_time, response_time) "
+            + "values (?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?)";
+
+    @Param({"1000000"})
+    public int requests;
+
+    private CompanyService companyService;
+    private RequestRepository requestRepository;
+    private Company company;
+    private LocalDateTime now;
+
+    @Setup
+    public void setUp(ApplicationState app) {
+        companyService = app.bean(CompanyService.class);
+        requestRepository = app.bean(RequestRepository.class);
+        company = app.bean(CompanyRepository.class).findById(app.historyUser.companyId()).orElseThrow();
+        User owner = app.bean(UserRepository.class).findById(app.historyUser.id()).orElseThrow();
+        now = LocalDateTime.now();
+
+        JdbcTemplate jdbcTemplate = app.bean(JdbcTemplate.class);
+        ConsumptionRollupService rollupService = app.bean(ConsumptionRollupService.class);
+        ContentStore contentStore = app.bean(ContentStore.class);
+        ContentStore.Ref query = contentStore.put("Where is my order? I ordered running shoes last Tuesday and the "
+                + "tracking page still says 'label created'. Can you tell me when it will ship?");
+        ContentStore.Ref response = contentStore.put("Your order ships within two business days. You will receive an "
+                + "email with the carrier tracking number as soon as the label is scanned.");
+        long ninetyDaysMs = TimeUnit.DAYS.toMillis(90);
+        List<Request> chunk = new ArrayList<>(CHUNK_SIZE);
+        for (int i = 0; i < requests; i++) {
+            Request request = new Request();
+            request.setId(FIRST_ID + i);
+            request.setUser(owner);
+            request.setModel(app.model);
+            request.setQueryRef(query.key());
+            request.setQuerySize(query.size());
+            request.setResponseRef(response.key());
+            request.setResponseSize(response.size());
+            request.setSuccessful(true);
+            request.setTokensConsumed(72);
+            request.setRequestTime(now.minusNanos(TimeUnit.MILLISECONDS.toNanos(i * (ninetyDaysMs / requests))));
+            request.setResponseTime(request.getRequestTime().plusNanos(TimeUnit.MILLISECONDS.toNanos(800)));
+            chunk.add(request);
+            if (chunk.size() == CHUNK_SIZE || i == requests - 1) {
+                insert(jdbcTemplate, chunk);
+                rollupService.record(chunk);
+                chunk.clear();
+            }
+        }
+    }
+
+    private static void insert(JdbcTemplate jdbcTemplate, List<Request> chunk) {
+        jdbcTemplate.batchUpdate(INSERT_SQL, chunk, chunk.size(), (ps, request) -> {
+            ps.setLong(1, request.getId());
+            ps.setLong(2, request.getUser().getId());
+            ps.setLong(3, request.getModel().getId());
+            ps.setString(4, request.getQueryRef());
+            ps.setInt(5, request.getQuerySize());
+            ps.setString(6, request.getResponseRef());
+            ps.setInt(7, request.getResponseSize());
+            ps.setBoolean(8, request.isSuccessful());
+            ps.setInt(9, request.getTokensConsumed());
+            ps.setTimestamp(10, Timestamp.valueOf(request.getRequestTime()));
+            ps.setTimestamp(11, Timestamp.valueOf(request.getResponseTime()));
+        });
+    }
+
+    @Benchmark
+    public CompanyConsumptionResponse rollupReport() {
+        return companyService.getCompanyConsumption(company.getId(), null, null);
+    }
+
+    @Benchmark
+    public CompanyConsumptionResponse rollupReportLastWeek() {
+        return companyService.getCompanyConsumption(company.getId(), now.minusDays(7), now);
+    }
+
+    @Benchmark
+    public Map<Long, long[]> entityScan() {
+        Map<Long, long[]> totals = new HashMap<>();
+        for (Request request : requestRepository.findByCompany(company)) {
+            AIModel model = request.getModel();
+            long[] sums = totals.computeIfAbsent(model.getId(), id -> new long[2]);
+            sums[0]++;
+            sums[1] += request.getTokensConsumed();
+        }
+        return totals;
+    }
+}
@@ -0,0 +1,44 @@
+package com.example.sparkyaisystem.benchmark;
+
+import com.example.sparkyaisystem.model.entity.AIModel;
+import com.example.sparkyaisystem.service.GitHubModelsService;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Token estimation as done before every chat and completion request, including the
+ * model-to-tokenizer resolution. Prompt sizes span a one-line question to a pasted document.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class EstimateTokenCountBenchmark {
+
+    private static final String SENTENCE = "Can you tell me when my order will ship and which carrier will deliver it? ";
+
+    @Param({"1", "20", "400"})
+    public int sentences;
+
+    private GitHubModelsService gitHubModelsService;
+    private AIModel model;
+    private String text;
+
+    @Setup
+    public void setUp() {
+        gitHubModelsService = new GitHubModelsService();
+        model = new AIModel();
+        model.setName("DeepSeek-V3-0324");
+        model.setProvider("DeepSeek");
+        text = SENTENCE.repeat(sentences);
+        gitHubModelsService.estimateTokenCount(model, text);
+    }
+
+    @Benchmark
+    public int estimateTokenCount() {
+        return gitHubModelsService.estimateTokenCount(model, text);
+    }
+}
@@ -0,0 +1,61 @@
+package com.example.sparkyaisystem.benchmark;
+
+import com.example.sparkyaisystem.security.JwtPrincipal;
+import com.example.sparkyaisystem.security.JwtTokenProvider;
+import org.openjdk.jmh.annotations.*;
+import org.springframework.security.core.Authentication;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cost of the token checks done on every authenticated request.
+ * {@code authenticatedRequest} is what JwtTokenFilter does; controllers read the claims from
+ * the principal. With {@code verifiedCache=false} every call verifies the signature, as for
+ * a token seen for the first time.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class JwtTokenProviderBenchmark {
+
+    @Param({"true", "false"})
+    public boolean verifiedCache;
+
+    private JwtTokenProvider jwtTokenProvider;
+    private String token;
+
+    @Setup
+    public void setUp() {
+        jwtTokenProvider = new JwtTokenProvider();
+        ReflectionTestUtils.setField(jwtTokenProvider, "secretKey", "benchmark-secret-key-with-at-least-256-bits-of-entropy");
+        ReflectionTestUtils.setField(jwtTokenProvider, "validityInMilliseconds", 3_600_000L);
+        ReflectionTestUtils.setField(jwtTokenProvider, "verifiedCacheMaxEntries", verifiedCache ? 10_000L : 0L);
+        ReflectionTestUtils.setField(jwtTokenProvider, "verifiedCacheTtlSeconds", 300L);
+        ReflectionTestUtils.invokeMethod(jwtTokenProvider, "init");
+        token = jwtTokenProvider.createToken("bench@benchcorp.com", List.of("ROLE_USER"), 42L, 7L);
+    }
+
+    @Benchmark
+    public boolean validateToken() {
+        return jwtTokenProvider.validateToken(token);
+    }
+
+    @Benchmark
+    public Authentication getAuthentication() {
+        return jwtTokenProvider.getAuthentication(token);
+    }
+
+    @Benchmark
+    public Authentication authenticatedRequest() {
+        JwtPrincipal principal = jwtTokenProvider.verify(token);
+        if (principal == null) {
+            throw new IllegalStateException("Benchmark token rejected");
+        }
+        return jwtTokenProvider.getAuthentication(principal);
+    }
+}
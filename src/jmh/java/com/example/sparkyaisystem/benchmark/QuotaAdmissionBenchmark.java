@@ -0,0 +1,71 @@
+package com.example.sparkyaisystem.benchmark;
+
+import com.example.sparkyaisystem.model.entity.AIModel;
+import com.example.sparkyaisystem.model.entity.Limit;
+import com.example.sparkyaisystem.model.entity.User;
+import com.example.sparkyaisystem.repository.LimitRepository;
+import com.example.sparkyaisystem.service.CompanyQuotas;
+import com.example.sparkyaisystem.service.QuotaEngine;
+import com.example.sparkyaisystem.service.QuotaLeases;
+import org.mockito.Mockito;
+import org.openjdk.jmh.annotations.*;
+
+import java.time.LocalDateTime;
+import java.util.Optional;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cost of admitting one request per limit type, in memory with no database behind the engine.
+ * {@code daily} is the CAS on the slot counters alone; the rate based types add their rate window.
+ * Limits are high enough that nothing is rejected; with {@code threads} above one all threads
+ * admit against the same limit.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class QuotaAdmissionBenchmark {
+
+    @Param({"daily", "sliding_second", "token_bucket_second"})
+    public String windowType;
+
+    private QuotaEngine quotaEngine;
+    private AIModel model;
+
+    @Setup
+    public void setUp() {
+        User user = new User();
+        user.setId(1L);
+        model = new AIModel();
+        model.setId(1L);
+        model.setName("benchmark-model");
+
+        Limit limit = new Limit();
+        limit.setId(1L);
+        limit.setUser(user);
+        limit.setModel(model);
+        limit.setMaxRequestsPerWindow(Integer.MAX_VALUE);
+        limit.setMaxTokensPerWindow(Integer.MAX_VALUE);
+        limit.setWindowType(windowType);
+        limit.setWindowStartTime(LocalDateTime.now());
+        limit.setWindowEndTime(LocalDateTime.now().plusDays(1));
+
+        LimitRepository limitRepository = Mockito.mock(LimitRepository.class);
+        Mockito.when(limitRepository.findByUserIdAndModelId(1L, 1L)).thenReturn(Optional.of(limit));
+        QuotaLeases leases = new QuotaLeases(null);
+        quotaEngine = new QuotaEngine(limitRepository, null, new CompanyQuotas(null, null, leases), leases);
+    }
+
+    @Benchmark
+    public QuotaEngine.QuotaSnapshot tryAcquire() {
+        return quotaEngine.tryAcquire(1L, model, 1);
+    }
+
+    @Benchmark
+    @Threads(4)
+    public QuotaEngine.QuotaSnapshot tryAcquireContended() {
+        return quotaEngine.tryAcquire(1L, model, 1);
+    }
+}
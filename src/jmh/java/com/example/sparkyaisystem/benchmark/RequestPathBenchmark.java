@@ -0,0 +1,78 @@
+package com.example.sparkyaisystem.benchmark;
+
+import com.example.sparkyaisystem.model.dto.request.AIResponse;
+import com.example.sparkyaisystem.model.dto.request.ChatRequest;
+import com.example.sparkyaisystem.model.dto.request.RequestHistoryPage;
+import com.example.sparkyaisystem.service.AIModelService;
+import com.example.sparkyaisystem.service.LimitService;
+import com.example.sparkyaisystem.service.QuotaEngine;
+import com.example.sparkyaisystem.service.RequestService;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The blocking request path against the embedded database, see {@link ApplicationState}.
+ * <ul>
+ *   <li>{@code isModelAvailable}: the model access check, answered by the availability index</li>
+ *   <li>{@code checkAndUpdateLimit}: quota admission, with the periodic flush to the limits table</li>
+ *   <li>{@code processChatRequest}: a full uncached chat request with an instant upstream</li>
+ *   <li>{@code requestHistory}: a {@value ApplicationState#HISTORY_SIZE}-row page of request history,
+ *       read as a keyset-paginated projection</li>
+ * </ul>
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class RequestPathBenchmark {
+
+    private AIModelService aiModelService;
+    private LimitService limitService;
+    private RequestService requestService;
+    private ChatRequest chatRequest;
+
+    @Setup
+    public void setUp(ApplicationState app) {
+        aiModelService = app.bean(AIModelService.class);
+        limitService = app.bean(LimitService.class);
+        requestService = app.bean(RequestService.class);
+
+        chatRequest = new ChatRequest();
+        chatRequest.setModelId(app.model.getId());
+        chatRequest.setSystemPrompt("You are a support assistant for an e-commerce company.");
+        chatRequest.setMessage("Hi, I ordered running shoes last Tuesday and the tracking page still says "
+                + "'label created'. Can you tell me when it will ship?");
+        // Measure the upstream round trip, not the response cache
+        chatRequest.setCacheable(false);
+
+        // Check the stub is actually answering, so failures are not measured as requests
+        AIResponse probe = requestService.processChatRequest(app.user, chatRequest);
+        if (!probe.isSuccessful()) {
+            throw new IllegalStateException("Stub upstream did not answer: " + probe.getErrorMessage());
+        }
+    }
+
+    @Benchmark
+    public boolean isModelAvailable(ApplicationState app) {
+        return aiModelService.isModelAvailableForUser(app.user, app.model);
+    }
+
+    @Benchmark
+    public QuotaEngine.QuotaSnapshot checkAndUpdateLimit(ApplicationState app) {
+        return limitService.checkAndUpdateLimit(app.user, app.model, 72);
+    }
+
+    @Benchmark
+    public AIResponse processChatRequest(ApplicationState app) {
+        return requestService.processChatRequest(app.user, chatRequest);
+    }
+
+    @Benchmark
+    public RequestHistoryPage requestHistory(ApplicationState app) {
+        return requestService.getUserRequestHistory(app.historyUser, null, ApplicationState.HISTORY_SIZE,
+                RequestService.HistoryFilter.ALL);
+    }
+}
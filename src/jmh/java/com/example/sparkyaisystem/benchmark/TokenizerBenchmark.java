@@ -0,0 +1,79 @@
+package com.example.sparkyaisystem.benchmark;
+
+import com.example.sparkyaisystem.service.Tokenizer;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Tokens/sec of the local tokenizer on realistic prompts.
+ * The "tokens" secondary result is the tokenizer throughput; the primary score is prompts/sec.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class TokenizerBenchmark {
+
+    private static final String FAQ_PROMPT = "You are a support assistant for an e-commerce company. "
+            + "Classify the following customer message into one of: billing, shipping, returns, account, other. "
+            + "Answer with the category only.\n\nMessage: Hi, I ordered a pair of running shoes last Tuesday "
+            + "(order #48213) and the tracking page still says 'label created'. Can you tell me when it will ship?";
+
+    private static final String CODE_PROMPT = "Explain what this Java method does and suggest one improvement:\n\n"
+            + "public int estimateTokenCount(String text) {\n"
+            + "    int baseEstimate = text.length() / 4 + 1;\n"
+            + "    int variance = Math.max(1, baseEstimate / 10);\n"
+            + "    return baseEstimate + random.nextInt(variance * 2) - variance;\n"
+            + "}\n";
+
+    private static final String SPANISH_PROMPT = "Resume el siguiente informe trimestral en tres puntos clave: "
+            + "las ventas crecieron un 12% respecto al trimestre anterior, impulsadas por la región andina, "
+            + "mientras que los costes logísticos aumentaron un 4% debido al encarecimiento del combustible.";
+
+    private static final String JAPANESE_PROMPT = "次の文章を英語に翻訳してください。明日の会議は午後三時から第二会議室で行います。"
+            + "資料は事前に共有フォルダにアップロードしておいてください。";
+
+    @Param({"GPT_4O", "LLAMA", "DEEPSEEK"})
+    public Tokenizer.Family family;
+
+    @Param({"faq", "code", "spanish", "japanese"})
+    public String prompt;
+
+    private String text;
+
+    @Setup
+    public void setUp() {
+        text = switch (prompt) {
+            case "faq" -> FAQ_PROMPT;
+            case "code" -> CODE_PROMPT;
+            case "spanish" -> SPANISH_PROMPT;
+            default -> JAPANESE_PROMPT;
+        };
+        // Load the vocabulary outside the measurement
+        Tokenizer.countTokens(family, text);
+    }
+
+    @State(Scope.Thread)
+    @AuxCounters(AuxCounters.Type.OPERATIONS)
+    public static class TokenCounter {
+        public long tokens;
+    }
+
+    @Benchmark
+    public int countTokens(TokenCounter counter) {
+        int count = Tokenizer.countTokens(family, text);
+        counter.tokens += count;
+        return count;
+    }
+
+    @Benchmark
+    public void encode(TokenCounter counter, Blackhole blackhole) {
+        int[] tokens = Tokenizer.encode(family, text);
+        counter.tokens += tokens.length;
+        blackhole.consume(tokens);
+    }
+}
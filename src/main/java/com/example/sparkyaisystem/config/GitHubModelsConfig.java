@@ -1,14 +1,22 @@
 package com.example.sparkyaisystem.config;
 
+import com.azure.ai.inference.ChatCompletionsAsyncClient;
 import com.azure.ai.inference.ChatCompletionsClient;
 import com.azure.ai.inference.ChatCompletionsClientBuilder;
 import com.azure.core.credential.AzureKeyCredential;
+import com.azure.core.http.policy.FixedDelayOptions;
+import com.azure.core.http.policy.RetryOptions;
 import org.springframework.beans.factory.annotation.Value;
 import org.springframework.context.annotation.Bean;
 import org.springframework.context.annotation.Configuration;
 
+import java.time.Duration;
+
 @Configuration
 public class GitHubModelsConfig {
+
+    // Retries are made by UpstreamResilience, which also counts the failures towards the model's breaker
+    private static final RetryOptions NO_RETRIES = new RetryOptions(new FixedDelayOptions(0, Duration.ZERO));
     
     @Value("${GITHUB_API_KEY}")
     private String githubToken;
@@ -21,6 +29,16 @@ public class GitHubModelsConfig {
         return new ChatCompletionsClientBuilder()
                 .credential(new AzureKeyCredential(githubToken))
                 .endpoint(endpoint)
+                .retryOptions(NO_RETRIES)
                 .buildClient();
     }
+
+    @Bean
+    public ChatCompletionsAsyncClient chatCompletionsAsyncClient() {
+        return new ChatCompletionsClientBuilder()
+                .credential(new AzureKeyCredential(githubToken))
+                .endpoint(endpoint)
+                .retryOptions(NO_RETRIES)
+                .buildAsyncClient();
+    }
 }
\ No newline at end of file
@@ -0,0 +1,39 @@
+package com.example.sparkyaisystem.config;
+
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.thread.Threading;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.core.env.Environment;
+import org.springframework.core.task.SimpleAsyncTaskExecutor;
+import reactor.core.scheduler.Scheduler;
+import reactor.core.scheduler.Schedulers;
+
+@Configuration
+public class SchedulerConfig {
+
+    /**
+     * Scheduler for the blocking JPA calls made by the reactive AI pipeline.
+     * It is sized to the connection pool, so extra work waits in its queue instead of
+     * holding threads that would only block on a connection.
+     */
+    @Bean(destroyMethod = "dispose")
+    public Scheduler jdbcScheduler(@Value("${spring.datasource.hikari.maximum-pool-size:10}") int poolSize,
+                                   @Value("${reactive.jdbc-queue-capacity:100000}") int queueCapacity) {
+        return Schedulers.newBoundedElastic(poolSize, queueCapacity, "jdbc");
+    }
+
+    /**
+     * Executor the blocking AI upstream calls run on, so the request thread can give up on them
+     * after the timeout or take a hedged answer. It starts a thread per call, virtual ones when Spring
+     * Boot runs on virtual threads (spring.threads.virtual.enabled on JDK 21+), and adds no cap of its
+     * own: calls are already capped by the request threads and the models' bulkheads.
+     */
+    @Bean
+    public SimpleAsyncTaskExecutor upstreamCallExecutor(Environment environment) {
+        SimpleAsyncTaskExecutor executor = new SimpleAsyncTaskExecutor("upstream-");
+        // Virtual threads cannot be created before JDK 21, where the flag is ignored like Boot does
+        executor.setVirtualThreads(Threading.VIRTUAL.isActive(environment));
+        return executor;
+    }
+}
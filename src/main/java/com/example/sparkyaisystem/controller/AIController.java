@@ -5,21 +5,29 @@ import com.example.sparkyaisystem.model.dto.request.AIResponse;
 import com.example.sparkyaisystem.model.dto.request.ChatRequest;
 import com.example.sparkyaisystem.model.dto.request.CompletionRequest;
 import com.example.sparkyaisystem.model.dto.request.MultimodalRequest;
-import com.example.sparkyaisystem.model.dto.request.RequestResponse;
-import com.example.sparkyaisystem.model.entity.User;
-import com.example.sparkyaisystem.repository.UserRepository;
-import com.example.sparkyaisystem.security.JwtTokenProvider;
+import com.example.sparkyaisystem.model.dto.request.RequestHistoryPage;
+import com.example.sparkyaisystem.security.AuthenticatedUser;
+import com.example.sparkyaisystem.security.JwtPrincipal;
 import com.example.sparkyaisystem.service.AIModelService;
+import com.example.sparkyaisystem.service.AuthenticatedUserService;
 import com.example.sparkyaisystem.service.RequestService;
-import jakarta.servlet.http.HttpServletRequest;
+import com.fasterxml.jackson.databind.ObjectMapper;
 import jakarta.validation.Valid;
 import lombok.AllArgsConstructor;
+import org.springframework.format.annotation.DateTimeFormat;
 import org.springframework.http.MediaType;
 import org.springframework.http.ResponseEntity;
+import org.springframework.http.codec.ServerSentEvent;
 import org.springframework.security.access.prepost.PreAuthorize;
+import org.springframework.security.core.annotation.AuthenticationPrincipal;
 import org.springframework.web.bind.annotation.*;
 import org.springframework.web.multipart.MultipartFile;
+import org.springframework.web.servlet.mvc.method.annotation.StreamingResponseBody;
+import reactor.core.publisher.Flux;
 
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.time.LocalDateTime;
 import java.util.List;
 
 @AllArgsConstructor
@@ -30,55 +38,96 @@ public class AIController {
 
     private final RequestService requestService;
     private final AIModelService aiModelService;
-    private final UserRepository userRepository;
-    private final JwtTokenProvider jwtTokenProvider;
+    private final AuthenticatedUserService authenticatedUserService;
+    private final ObjectMapper objectMapper;
 
-    // Helper method to get user from JWT token
-    private User getUserFromToken(HttpServletRequest request) {
-        String token = jwtTokenProvider.resolveToken(request);
-        Long userId = jwtTokenProvider.getUserId(token);
-        return userRepository.findById(userId)
-                .orElseThrow(() -> new RuntimeException("User not found"));
+    // Helper method to get the caller from the verified JWT claims, without loading the user
+    private AuthenticatedUser getUser(JwtPrincipal principal) {
+        return authenticatedUserService.resolve(principal);
     }
 
     @GetMapping("/models")
-    public ResponseEntity<List<AIModelResponse>> getAvailableModels(HttpServletRequest request) {
-        User user = getUserFromToken(request);
+    public ResponseEntity<List<AIModelResponse>> getAvailableModels(@AuthenticationPrincipal JwtPrincipal principal) {
+        AuthenticatedUser user = getUser(principal);
         List<AIModelResponse> models = aiModelService.getAvailableModelsForUser(user);
-        return ResponseEntity.ok(models);
+        // A matching If-None-Match is answered with 304 Not Modified
+        return ResponseEntity.ok()
+                .eTag(aiModelService.getModelsETag(models))
+                .body(models);
     }
 
     @PostMapping("/chat")
     public ResponseEntity<AIResponse> processChatRequest(
-            HttpServletRequest request,
+            @AuthenticationPrincipal JwtPrincipal principal,
             @Valid @RequestBody ChatRequest chatRequest) {
-        User user = getUserFromToken(request);
+        AuthenticatedUser user = getUser(principal);
         AIResponse response = requestService.processChatRequest(user, chatRequest);
         return ResponseEntity.ok(response);
     }
 
+    @PostMapping(value = "/chat/stream", produces = MediaType.TEXT_EVENT_STREAM_VALUE)
+    public Flux<ServerSentEvent<Object>> streamChatRequest(
+            @AuthenticationPrincipal JwtPrincipal principal,
+            @Valid @RequestBody ChatRequest chatRequest) {
+        AuthenticatedUser user = getUser(principal);
+        return requestService.streamChatRequest(user, chatRequest);
+    }
+
     @PostMapping("/completion")
     public ResponseEntity<AIResponse> processCompletionRequest(
-            HttpServletRequest request,
+            @AuthenticationPrincipal JwtPrincipal principal,
             @Valid @RequestBody CompletionRequest completionRequest) {
-        User user = getUserFromToken(request);
+        AuthenticatedUser user = getUser(principal);
         AIResponse response = requestService.processCompletionRequest(user, completionRequest);
         return ResponseEntity.ok(response);
     }
 
     @PostMapping(value = "/multimodal", consumes = MediaType.MULTIPART_FORM_DATA_VALUE)
     public ResponseEntity<AIResponse> processMultimodalRequest(
-            HttpServletRequest request,
+            @AuthenticationPrincipal JwtPrincipal principal,
             @Valid @ModelAttribute MultimodalRequest multimodalRequest) {
-        User user = getUserFromToken(request);
+        AuthenticatedUser user = getUser(principal);
         AIResponse response = requestService.processMultimodalRequest(user, multimodalRequest);
         return ResponseEntity.ok(response);
     }
 
     @GetMapping("/history")
-    public ResponseEntity<List<RequestResponse>> getRequestHistory(HttpServletRequest request) {
-        User user = getUserFromToken(request);
-        List<RequestResponse> history = requestService.getUserRequestHistory(user);
+    public ResponseEntity<RequestHistoryPage> getRequestHistory(
+            @AuthenticationPrincipal JwtPrincipal principal,
+            @RequestParam(required = false) String cursor,
+            @RequestParam(defaultValue = "" + RequestService.DEFAULT_HISTORY_PAGE_SIZE) int limit,
+            @RequestParam(required = false) @DateTimeFormat(iso = DateTimeFormat.ISO.DATE_TIME) LocalDateTime from,
+            @RequestParam(required = false) @DateTimeFormat(iso = DateTimeFormat.ISO.DATE_TIME) LocalDateTime to,
+            @RequestParam(required = false) Long modelId,
+            @RequestParam(defaultValue = "true") boolean bodies) {
+        AuthenticatedUser user = getUser(principal);
+        RequestHistoryPage history = requestService.getUserRequestHistory(user, cursor, limit,
+                new RequestService.HistoryFilter(from, to, modelId, bodies));
         return ResponseEntity.ok(history);
     }
-}
\ No newline at end of file
+
+    /**
+     * The whole history as newline-delimited JSON, one request per line, streamed from a database cursor.
+     */
+    @GetMapping(value = "/history/export", produces = MediaType.APPLICATION_NDJSON_VALUE)
+    public ResponseEntity<StreamingResponseBody> exportRequestHistory(
+            @AuthenticationPrincipal JwtPrincipal principal,
+            @RequestParam(required = false) @DateTimeFormat(iso = DateTimeFormat.ISO.DATE_TIME) LocalDateTime from,
+            @RequestParam(required = false) @DateTimeFormat(iso = DateTimeFormat.ISO.DATE_TIME) LocalDateTime to,
+            @RequestParam(required = false) Long modelId,
+            @RequestParam(defaultValue = "true") boolean bodies) {
+        AuthenticatedUser user = getUser(principal);
+        RequestService.HistoryFilter filter = new RequestService.HistoryFilter(from, to, modelId, bodies);
+        StreamingResponseBody body = out -> requestService.exportUserRequestHistory(user, filter, row -> {
+            try {
+                out.write(objectMapper.writeValueAsBytes(row));
+                out.write('\n');
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        });
+        return ResponseEntity.ok()
+                .contentType(MediaType.APPLICATION_NDJSON)
+                .body(body);
+    }
+}
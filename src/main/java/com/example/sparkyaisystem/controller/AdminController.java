@@ -6,10 +6,12 @@ import com.example.sparkyaisystem.model.dto.company.CompanyResponse;
 import com.example.sparkyaisystem.model.dto.company.CompanyStatusRequest;
 import com.example.sparkyaisystem.service.CompanyService;
 import jakarta.validation.Valid;
+import org.springframework.format.annotation.DateTimeFormat;
 import org.springframework.http.ResponseEntity;
 import org.springframework.security.access.prepost.PreAuthorize;
 import org.springframework.web.bind.annotation.*;
 
+import java.time.LocalDateTime;
 import java.util.List;
 
 @RestController
@@ -58,8 +60,11 @@ public class AdminController {
     }
 
     @GetMapping("/{id}/consumption")
-    public ResponseEntity<CompanyConsumptionResponse> getCompanyConsumption(@PathVariable Long id) {
-        CompanyConsumptionResponse consumptionResponse = companyService.getCompanyConsumption(id);
+    public ResponseEntity<CompanyConsumptionResponse> getCompanyConsumption(
+            @PathVariable Long id,
+            @RequestParam(required = false) @DateTimeFormat(iso = DateTimeFormat.ISO.DATE_TIME) LocalDateTime from,
+            @RequestParam(required = false) @DateTimeFormat(iso = DateTimeFormat.ISO.DATE_TIME) LocalDateTime to) {
+        CompanyConsumptionResponse consumptionResponse = companyService.getCompanyConsumption(id, from, to);
         return ResponseEntity.ok(consumptionResponse);
     }
 }
\ No newline at end of file
@@ -0,0 +1,46 @@
+package com.example.sparkyaisystem.controller;
+
+import com.example.sparkyaisystem.model.dto.request.AIResponse;
+import com.example.sparkyaisystem.model.dto.request.ChatRequest;
+import com.example.sparkyaisystem.model.dto.request.CompletionRequest;
+import com.example.sparkyaisystem.security.JwtPrincipal;
+import com.example.sparkyaisystem.service.AuthenticatedUserService;
+import com.example.sparkyaisystem.service.ReactiveRequestService;
+import jakarta.validation.Valid;
+import lombok.AllArgsConstructor;
+import org.springframework.http.ResponseEntity;
+import org.springframework.security.access.prepost.PreAuthorize;
+import org.springframework.security.core.annotation.AuthenticationPrincipal;
+import org.springframework.web.bind.annotation.*;
+import reactor.core.publisher.Mono;
+
+/**
+ * Reactive variant of the AI endpoints. The handlers return immediately and the response
+ * is written when the upstream call completes, so the request thread is not held meanwhile.
+ */
+@AllArgsConstructor
+@RestController
+@RequestMapping("/api/ai/reactive")
+@PreAuthorize("hasAnyRole('USER', 'COMPANY_ADMIN', 'SPARKY_ADMIN')")
+public class ReactiveAIController {
+
+    private final ReactiveRequestService reactiveRequestService;
+    private final AuthenticatedUserService authenticatedUserService;
+
+    @PostMapping("/chat")
+    public Mono<ResponseEntity<AIResponse>> processChatRequest(
+            @AuthenticationPrincipal JwtPrincipal principal,
+            @Valid @RequestBody ChatRequest chatRequest) {
+        return reactiveRequestService.processChatRequest(authenticatedUserService.resolve(principal), chatRequest)
+                .map(ResponseEntity::ok);
+    }
+
+    @PostMapping("/completion")
+    public Mono<ResponseEntity<AIResponse>> processCompletionRequest(
+            @AuthenticationPrincipal JwtPrincipal principal,
+            @Valid @RequestBody CompletionRequest completionRequest) {
+        return reactiveRequestService.processCompletionRequest(authenticatedUserService.resolve(principal),
+                        completionRequest)
+                .map(ResponseEntity::ok);
+    }
+}
@@ -0,0 +1,12 @@
+package com.example.sparkyaisystem.exception;
+
+/**
+ * Thrown when a paging cursor sent by the client was not one handed out by the server, e.g. it was
+ * truncated or edited. Answered with 400.
+ */
+public class InvalidCursorException extends RuntimeException {
+
+    public InvalidCursorException(String message) {
+        super(message);
+    }
+}
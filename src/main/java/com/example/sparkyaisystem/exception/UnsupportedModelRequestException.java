@@ -0,0 +1,12 @@
+package com.example.sparkyaisystem.exception;
+
+/**
+ * Thrown when a request asks a model for something it cannot do, e.g. a multimodal request to a
+ * model without image input. Nothing is sent to the AI upstream. Answered with 400.
+ */
+public class UnsupportedModelRequestException extends RuntimeException {
+
+    public UnsupportedModelRequestException(String message) {
+        super(message);
+    }
+}
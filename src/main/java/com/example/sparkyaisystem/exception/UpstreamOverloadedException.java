@@ -0,0 +1,13 @@
+package com.example.sparkyaisystem.exception;
+
+/**
+ * Thrown when a request is shed before reaching the AI upstream because the model's
+ * concurrency limit and queue are full. Answered with 503 and a Retry-After header.
+ */
+public class UpstreamOverloadedException extends UpstreamUnavailableException {
+
+    public UpstreamOverloadedException(String model, long retryAfterSeconds) {
+        super(String.format("Model %s is overloaded, retry in %d seconds", model, retryAfterSeconds),
+                model, retryAfterSeconds);
+    }
+}
@@ -0,0 +1,30 @@
+package com.example.sparkyaisystem.exception;
+
+/**
+ * Thrown when a request is not sent to the AI upstream because the model cannot take it right now,
+ * e.g. its circuit breaker is open after repeated failures. Answered with 503 and a Retry-After header.
+ */
+public class UpstreamUnavailableException extends RuntimeException {
+
+    private final String model;
+    private final long retryAfterSeconds;
+
+    public UpstreamUnavailableException(String model, long retryAfterSeconds) {
+        this(String.format("Model %s is unavailable after repeated failures, retry in %d seconds",
+                model, retryAfterSeconds), model, retryAfterSeconds);
+    }
+
+    protected UpstreamUnavailableException(String message, String model, long retryAfterSeconds) {
+        super(message);
+        this.model = model;
+        this.retryAfterSeconds = retryAfterSeconds;
+    }
+
+    public String getModel() {
+        return model;
+    }
+
+    public long getRetryAfterSeconds() {
+        return retryAfterSeconds;
+    }
+}
@@ -15,8 +15,8 @@ import java.util.Map;
 public class CompanyConsumptionResponse {
     private Long companyId;
     private String companyName;
-    private int totalRequests;
-    private int totalTokensConsumed;
+    private long totalRequests;
+    private long totalTokensConsumed;
     private List<ModelConsumption> modelConsumptions;
     
     @Data
@@ -27,7 +27,8 @@ public class CompanyConsumptionResponse {
         private Long modelId;
         private String modelName;
         private String modelProvider;
-        private int requestsCount;
-        private int tokensConsumed;
+        private long requestsCount;
+        private long tokensConsumed;
+        private Double averageLatencyMs;
     }
 }
\ No newline at end of file
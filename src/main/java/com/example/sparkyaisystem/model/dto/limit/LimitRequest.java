@@ -29,6 +29,7 @@ public class LimitRequest {
     private Integer maxTokensPerWindow;
 
     @NotNull(message = "Window type is required")
-    @Pattern(regexp = "^(daily|weekly|monthly)$", message = "Window type must be daily, weekly, or monthly")
+    @Pattern(regexp = "^(daily|weekly|monthly|(sliding|token_bucket)_(second|minute|hour|day))$",
+            message = "Window type must be daily, weekly, monthly, or sliding_ or token_bucket_ followed by second, minute, hour or day")
     private String windowType;
 }
\ No newline at end of file
@@ -19,6 +19,7 @@ public class AIResponse {
     private String errorMessage;
     private Long processingTimeMs;
     private LimitStatus limitStatus;
+    private boolean cached;
     
     @Data
     @Builder
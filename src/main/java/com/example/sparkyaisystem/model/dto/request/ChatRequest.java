@@ -20,4 +20,7 @@ public class ChatRequest {
     private String message;
     
     private String systemPrompt;
+
+    // Opt in to the response cache for deterministic prompts
+    private Boolean cacheable;
 }
\ No newline at end of file
@@ -22,4 +22,7 @@ public class CompletionRequest {
     private Integer maxTokens;
     
     private Float temperature;
+
+    // Opt in to the response cache; requests with temperature 0 are cacheable by default
+    private Boolean cacheable;
 }
\ No newline at end of file
@@ -0,0 +1,18 @@
+package com.example.sparkyaisystem.model.dto.request;
+
+import lombok.AllArgsConstructor;
+import lombok.Builder;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+import java.util.List;
+
+@Data
+@Builder
+@NoArgsConstructor
+@AllArgsConstructor
+public class RequestHistoryPage {
+    private List<RequestResponse> items;
+    // Pass as 'cursor' to get the next (older) page; null on the last page
+    private String nextCursor;
+}
@@ -21,6 +21,9 @@ public class RequestResponse {
     private String modelType;
     private String query;
     private String response;
+    // Sizes in bytes, also set when the history is listed without bodies
+    private Integer querySize;
+    private Integer responseSize;
     private String errorMessage;
     private boolean successful;
     private int tokensConsumed;
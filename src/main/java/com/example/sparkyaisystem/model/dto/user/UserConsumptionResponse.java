@@ -17,8 +17,8 @@ public class UserConsumptionResponse {
     private String email;
     private Long companyId;
     private String companyName;
-    private int totalRequests;
-    private int totalTokensConsumed;
+    private long totalRequests;
+    private long totalTokensConsumed;
     private List<ModelConsumption> modelConsumptions;
     
     @Data
@@ -29,8 +29,9 @@ public class UserConsumptionResponse {
         private Long modelId;
         private String modelName;
         private String modelProvider;
-        private int requestsCount;
-        private int tokensConsumed;
+        private long requestsCount;
+        private long tokensConsumed;
+        private Double averageLatencyMs;
         private int maxRequestsAllowed;
         private int maxTokensAllowed;
     }
@@ -19,5 +19,5 @@ public class UserResponse {
     private Long companyId;
     private String companyName;
     private int limitsCount;
-    private int requestsCount;
+    private long requestsCount;
 }
\ No newline at end of file
@@ -0,0 +1,57 @@
+package com.example.sparkyaisystem.model.entity;
+
+import jakarta.persistence.*;
+import lombok.AllArgsConstructor;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+import java.time.LocalDateTime;
+
+/**
+ * Requests and tokens of one user on one model within an hour or a day.
+ * Rows are written only by {@code ConsumptionRollupService}, which adds each batch of audit rows
+ * to its buckets; ids are kept as plain columns so the upsert needs no entity loads.
+ */
+@Entity
+@Table(name = "consumption_rollups",
+        uniqueConstraints = @UniqueConstraint(name = "uk_consumption_rollups_bucket",
+                columnNames = {"company_id", "granularity", "bucket_start", "user_id", "model_id"}),
+        indexes = @Index(name = "idx_consumption_rollups_user", columnList = "user_id, granularity, bucket_start"))
+@Data
+@NoArgsConstructor
+@AllArgsConstructor
+public class ConsumptionRollup {
+
+    @Id
+    @GeneratedValue(strategy = GenerationType.IDENTITY)
+    private Long id;
+
+    @Enumerated(EnumType.STRING)
+    @Column(nullable = false, length = 10)
+    private RollupGranularity granularity;
+
+    @Column(nullable = false)
+    private LocalDateTime bucketStart;
+
+    @Column(nullable = false)
+    private Long companyId;
+
+    @Column(nullable = false)
+    private Long userId;
+
+    @Column(nullable = false)
+    private Long modelId;
+
+    @Column(nullable = false)
+    private long requestCount;
+
+    @Column(nullable = false)
+    private long tokensConsumed;
+
+    // Sum of response times in ms, over the latencySamples requests that completed
+    @Column(nullable = false)
+    private long latencyMs;
+
+    @Column(nullable = false)
+    private long latencySamples;
+}
@@ -4,11 +4,15 @@ import jakarta.persistence.*;
 import lombok.AllArgsConstructor;
 import lombok.Data;
 import lombok.NoArgsConstructor;
+import org.hibernate.annotations.DynamicUpdate;
 
 import java.time.LocalDateTime;
 
 @Entity
-@Table(name = "limits")
+// Only changed columns are written, so saving settings does not overwrite counters nodes update directly
+@DynamicUpdate
+// (window_end_time, id) matches the order the reset sweep pages through expired windows in
+@Table(name = "limits", indexes = @Index(name = "idx_limits_window_end_time_id", columnList = "window_end_time, id"))
 @Data
 @NoArgsConstructor
 @AllArgsConstructor
@@ -33,7 +37,7 @@ public class Limit {
     private int maxTokensPerWindow;
 
     @Column(nullable = false)
-    private String windowType; // daily, weekly, monthly
+    private String windowType; // daily, weekly, monthly, or a rate based type, see RateWindow
 
     @Column(nullable = false)
     private int usedRequests;
@@ -41,6 +45,13 @@ public class Limit {
     @Column(nullable = false)
     private int usedTokens;
 
+    // Quota of the current window handed out to gateway nodes and not yet used or given back
+    @Column(nullable = false)
+    private int leasedRequests;
+
+    @Column(nullable = false)
+    private int leasedTokens;
+
     @Column(nullable = false)
     private LocalDateTime windowStartTime;
 
@@ -8,14 +8,16 @@ import lombok.NoArgsConstructor;
 import java.time.LocalDateTime;
 
 @Entity
-@Table(name = "requests")
+@Table(name = "requests", indexes = @Index(name = "idx_requests_user_time", columnList = "user_id, request_time, id"))
 @Data
 @NoArgsConstructor
 @AllArgsConstructor
 public class Request {
 
+    // Pooled sequence ids allow batched inserts; RequestAuditWriter draws from the same sequence
     @Id
-    @GeneratedValue(strategy = GenerationType.IDENTITY)
+    @GeneratedValue(strategy = GenerationType.SEQUENCE, generator = "request_seq")
+    @SequenceGenerator(name = "request_seq", sequenceName = "request_seq", allocationSize = 50)
     private Long id;
 
     @ManyToOne
@@ -26,12 +28,25 @@ public class Request {
     @JoinColumn(name = "model_id", nullable = false)
     private AIModel model;
 
-    @Column(nullable = false, columnDefinition = "TEXT")
+    // Bodies live in the ContentStore; the row keeps their references and sizes in bytes
+    @Transient
     private String query;
 
-    @Column(columnDefinition = "TEXT")
+    @Transient
     private String response;
 
+    @Column(nullable = false, length = 64)
+    private String queryRef;
+
+    @Column(nullable = false)
+    private int querySize;
+
+    @Column(length = 64)
+    private String responseRef;
+
+    @Column
+    private Integer responseSize;
+
     @Column
     private String errorMessage;
 
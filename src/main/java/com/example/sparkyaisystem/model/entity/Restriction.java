@@ -4,10 +4,13 @@ import jakarta.persistence.*;
 import lombok.AllArgsConstructor;
 import lombok.Data;
 import lombok.NoArgsConstructor;
+import org.hibernate.annotations.DynamicUpdate;
 
 import java.time.LocalDateTime;
 
 @Entity
+// Only changed columns are written, so saving settings does not overwrite counters nodes update directly
+@DynamicUpdate
 @Table(name = "restrictions")
 @Data
 @NoArgsConstructor
@@ -35,6 +38,27 @@ public class Restriction {
     @Column(nullable = false)
     private String windowType; // daily, weekly, monthly
 
+    // Usage of the current window: kept by the lease coordinator with quota.backend=leased, flushed by
+    // the owning node otherwise
+    @Column(nullable = false)
+    private int usedRequests;
+
+    @Column(nullable = false)
+    private int usedTokens;
+
+    @Column(nullable = false)
+    private int leasedRequests;
+
+    @Column(nullable = false)
+    private int leasedTokens;
+
+    // Null until the first lease or flush
+    @Column
+    private LocalDateTime windowStartTime;
+
+    @Column
+    private LocalDateTime windowEndTime;
+
     @Column(nullable = false)
     private LocalDateTime createdAt;
 
@@ -0,0 +1,29 @@
+package com.example.sparkyaisystem.model.entity;
+
+import java.time.LocalDateTime;
+import java.time.temporal.ChronoUnit;
+
+public enum RollupGranularity {
+    HOUR(ChronoUnit.HOURS),
+    DAY(ChronoUnit.DAYS);
+
+    private final ChronoUnit unit;
+
+    RollupGranularity(ChronoUnit unit) {
+        this.unit = unit;
+    }
+
+    /**
+     * Start of the bucket containing {@code time}.
+     */
+    public LocalDateTime bucketStart(LocalDateTime time) {
+        return time.truncatedTo(unit);
+    }
+
+    /**
+     * Start of the bucket after the one containing {@code time}.
+     */
+    public LocalDateTime bucketEnd(LocalDateTime time) {
+        return bucketStart(time).plus(1, unit);
+    }
+}
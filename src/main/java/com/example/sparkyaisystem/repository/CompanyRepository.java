@@ -2,6 +2,8 @@ package com.example.sparkyaisystem.repository;
 
 import com.example.sparkyaisystem.model.entity.Company;
 import org.springframework.data.jpa.repository.JpaRepository;
+import org.springframework.data.jpa.repository.Query;
+import org.springframework.data.repository.query.Param;
 import org.springframework.stereotype.Repository;
 
 import java.util.Optional;
@@ -12,4 +14,7 @@ public interface CompanyRepository extends JpaRepository<Company, Long> {
     Optional<Company> findByRuc(String ruc);
     boolean existsByName(String name);
     boolean existsByRuc(String ruc);
+
+    @Query("SELECT c.active FROM Company c WHERE c.id = :id")
+    Optional<Boolean> findActiveById(@Param("id") Long id);
 }
\ No newline at end of file
@@ -0,0 +1,52 @@
+package com.example.sparkyaisystem.repository;
+
+import com.example.sparkyaisystem.model.entity.ConsumptionRollup;
+import org.springframework.data.jpa.repository.JpaRepository;
+import org.springframework.data.jpa.repository.Query;
+import org.springframework.data.repository.query.Param;
+import org.springframework.stereotype.Repository;
+
+import java.time.LocalDateTime;
+import java.util.List;
+
+/**
+ * Range queries read daily buckets in {@code [dayFrom, dayTo)} and hourly buckets for the partial
+ * days on either side, {@code [from, dayFrom)} and {@code [dayTo, to)}.
+ */
+@Repository
+public interface ConsumptionRollupRepository extends JpaRepository<ConsumptionRollup, Long> {
+
+    String IN_RANGE = "((r.granularity = com.example.sparkyaisystem.model.entity.RollupGranularity.DAY " +
+            "AND r.bucketStart >= :dayFrom AND r.bucketStart < :dayTo) " +
+            "OR (r.granularity = com.example.sparkyaisystem.model.entity.RollupGranularity.HOUR " +
+            "AND ((r.bucketStart >= :from AND r.bucketStart < :dayFrom) OR (r.bucketStart >= :dayTo AND r.bucketStart < :to))))";
+
+    @Query("SELECT r.modelId AS modelId, SUM(r.requestCount) AS requestCount, SUM(r.tokensConsumed) AS tokensConsumed, " +
+            "SUM(r.latencyMs) AS latencyMs, SUM(r.latencySamples) AS latencySamples " +
+            "FROM ConsumptionRollup r WHERE r.companyId = :companyId AND " + IN_RANGE + " GROUP BY r.modelId")
+    List<ModelTotals> sumByCompany(@Param("companyId") Long companyId,
+                                   @Param("from") LocalDateTime from, @Param("dayFrom") LocalDateTime dayFrom,
+                                   @Param("dayTo") LocalDateTime dayTo, @Param("to") LocalDateTime to);
+
+    @Query("SELECT r.modelId AS modelId, SUM(r.requestCount) AS requestCount, SUM(r.tokensConsumed) AS tokensConsumed, " +
+            "SUM(r.latencyMs) AS latencyMs, SUM(r.latencySamples) AS latencySamples " +
+            "FROM ConsumptionRollup r WHERE r.userId = :userId AND " + IN_RANGE + " GROUP BY r.modelId")
+    List<ModelTotals> sumByUser(@Param("userId") Long userId,
+                                @Param("from") LocalDateTime from, @Param("dayFrom") LocalDateTime dayFrom,
+                                @Param("dayTo") LocalDateTime dayTo, @Param("to") LocalDateTime to);
+
+    interface ModelTotals {
+        Long getModelId();
+        Long getRequestCount();
+        Long getTokensConsumed();
+        Long getLatencyMs();
+        Long getLatencySamples();
+
+        /**
+         * Mean response time in ms, or null if none of the requests completed.
+         */
+        default Double getAverageLatencyMs() {
+            return getLatencySamples() > 0 ? (double) getLatencyMs() / getLatencySamples() : null;
+        }
+    }
+}
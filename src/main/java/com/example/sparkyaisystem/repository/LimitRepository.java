@@ -3,8 +3,13 @@ package com.example.sparkyaisystem.repository;
 import com.example.sparkyaisystem.model.entity.AIModel;
 import com.example.sparkyaisystem.model.entity.Limit;
 import com.example.sparkyaisystem.model.entity.User;
+import org.springframework.data.domain.Pageable;
 import org.springframework.data.jpa.repository.JpaRepository;
+import org.springframework.data.jpa.repository.Modifying;
+import org.springframework.data.jpa.repository.Query;
+import org.springframework.data.repository.query.Param;
 import org.springframework.stereotype.Repository;
+import org.springframework.transaction.annotation.Transactional;
 
 import java.time.LocalDateTime;
 import java.util.List;
@@ -15,7 +20,52 @@ public interface LimitRepository extends JpaRepository<Limit, Long> {
     List<Limit> findByUser(User user);
     List<Limit> findByModel(AIModel model);
     Optional<Limit> findByUserAndModel(User user, AIModel model);
+    Optional<Limit> findByUserIdAndModelId(Long userId, Long modelId);
     List<Limit> findByUserAndWindowEndTimeBefore(User user, LocalDateTime dateTime);
     List<Limit> findByWindowType(String windowType);
     boolean existsByUserAndModel(User user, AIModel model);
+
+    /**
+     * First chunk of limits whose window ended before {@code now}, in (windowEndTime, id) order.
+     */
+    @Query("SELECT l.id AS id, l.windowType AS windowType, l.windowEndTime AS windowEndTime FROM Limit l " +
+            "WHERE l.windowEndTime < :now ORDER BY l.windowEndTime, l.id")
+    List<ExpiredWindow> findExpiredWindows(@Param("now") LocalDateTime now, Pageable pageable);
+
+    /**
+     * Next chunk of limits whose window ended before {@code now}, after the row at ({@code afterEnd},
+     * {@code afterId}) in (windowEndTime, id) order, so each chunk is a range of the matching index.
+     */
+    @Query("SELECT l.id AS id, l.windowType AS windowType, l.windowEndTime AS windowEndTime FROM Limit l " +
+            "WHERE l.windowEndTime < :now AND (l.windowEndTime > :afterEnd " +
+            "OR (l.windowEndTime = :afterEnd AND l.id > :afterId)) ORDER BY l.windowEndTime, l.id")
+    List<ExpiredWindow> findExpiredWindowsAfter(@Param("now") LocalDateTime now,
+                                                @Param("afterEnd") LocalDateTime afterEnd,
+                                                @Param("afterId") Long afterId, Pageable pageable);
+
+    /**
+     * Starts a new window for the given limits, skipping any that were rolled over in the meantime.
+     * Bulk updates bypass the entity callbacks, so updatedAt is set here.
+     */
+    @Modifying
+    @Transactional
+    @Query("UPDATE Limit l SET l.usedRequests = 0, l.usedTokens = 0, l.leasedRequests = 0, l.leasedTokens = 0, " +
+            "l.windowStartTime = :now, " +
+            "l.windowEndTime = :windowEnd, l.updatedAt = :now WHERE l.id IN :ids AND l.windowEndTime < :now")
+    int resetWindows(@Param("ids") List<Long> ids, @Param("now") LocalDateTime now,
+                     @Param("windowEnd") LocalDateTime windowEnd);
+
+    /**
+     * Distinct window ends in {@code (after, until)}, in order, for seeding the reset scheduler.
+     */
+    @Query("SELECT DISTINCT l.windowEndTime FROM Limit l " +
+            "WHERE l.windowEndTime > :after AND l.windowEndTime < :until ORDER BY l.windowEndTime")
+    List<LocalDateTime> findWindowEndTimes(@Param("after") LocalDateTime after, @Param("until") LocalDateTime until,
+                                           Pageable pageable);
+
+    interface ExpiredWindow {
+        Long getId();
+        String getWindowType();
+        LocalDateTime getWindowEndTime();
+    }
 }
\ No newline at end of file
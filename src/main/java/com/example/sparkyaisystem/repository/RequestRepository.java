@@ -4,17 +4,24 @@ import com.example.sparkyaisystem.model.entity.AIModel;
 import com.example.sparkyaisystem.model.entity.Company;
 import com.example.sparkyaisystem.model.entity.Request;
 import com.example.sparkyaisystem.model.entity.User;
+import jakarta.persistence.QueryHint;
+import org.hibernate.jpa.HibernateHints;
+import org.springframework.data.domain.Pageable;
 import org.springframework.data.jpa.repository.JpaRepository;
 import org.springframework.data.jpa.repository.Query;
+import org.springframework.data.jpa.repository.QueryHints;
 import org.springframework.data.repository.query.Param;
 import org.springframework.stereotype.Repository;
 
 import java.time.LocalDateTime;
 import java.util.List;
+import java.util.stream.Stream;
 
 @Repository
 public interface RequestRepository extends JpaRepository<Request, Long> {
     List<Request> findByUser(User user);
+    List<Request> findByUserId(Long userId);
+    long countByUserId(Long userId);
     List<Request> findByModel(AIModel model);
     List<Request> findByUserAndModel(User user, AIModel model);
     List<Request> findByUserAndRequestTimeBetween(User user, LocalDateTime start, LocalDateTime end);
@@ -46,4 +53,59 @@ public interface RequestRepository extends JpaRepository<Request, Long> {
             @Param("user") User user, 
             @Param("start") LocalDateTime start, 
             @Param("end") LocalDateTime end);
-}
\ No newline at end of file
+
+    /**
+     * Number of requests of each user of the company that has any, without loading the rows.
+     */
+    @Query("SELECT r.user.id AS userId, COUNT(r) AS requestCount FROM Request r " +
+            "WHERE r.user.company = :company GROUP BY r.user.id")
+    List<UserRequestCount> countByUserInCompany(@Param("company") Company company);
+
+    // Newest first, keyset-paginated on (requestTime, id); modelId may be null
+    String HISTORY_FILTER = "WHERE r.user.id = :userId AND r.requestTime >= :from AND r.requestTime < :to " +
+            "AND (:modelId IS NULL OR r.model.id = :modelId) ";
+    String HISTORY_AFTER_CURSOR = "AND (r.requestTime < :beforeTime OR (r.requestTime = :beforeTime AND r.id < :beforeId)) ";
+    String HISTORY_ORDER = "ORDER BY r.requestTime DESC, r.id DESC";
+    // Bodies are only referenced; RequestService loads them from the ContentStore when asked to
+    String HISTORY_COLUMNS = "r.id AS id, r.model.id AS modelId, r.errorMessage AS errorMessage, " +
+            "r.successful AS successful, r.tokensConsumed AS tokensConsumed, r.fileName AS fileName, " +
+            "r.requestTime AS requestTime, r.responseTime AS responseTime, " +
+            "r.queryRef AS queryRef, r.querySize AS querySize, r.responseRef AS responseRef, r.responseSize AS responseSize";
+
+    @Query("SELECT " + HISTORY_COLUMNS + " FROM Request r " + HISTORY_FILTER + HISTORY_AFTER_CURSOR + HISTORY_ORDER)
+    List<HistoryEntry> findHistory(@Param("userId") Long userId, @Param("from") LocalDateTime from,
+                                   @Param("to") LocalDateTime to, @Param("modelId") Long modelId,
+                                   @Param("beforeTime") LocalDateTime beforeTime, @Param("beforeId") Long beforeId,
+                                   Pageable pageable);
+
+    /**
+     * Whole history as a database cursor; must be consumed and closed within a transaction.
+     */
+    @QueryHints(@QueryHint(name = HibernateHints.HINT_FETCH_SIZE, value = "500"))
+    @Query("SELECT " + HISTORY_COLUMNS + " FROM Request r " + HISTORY_FILTER + HISTORY_ORDER)
+    Stream<HistoryEntry> streamHistory(@Param("userId") Long userId, @Param("from") LocalDateTime from,
+                                       @Param("to") LocalDateTime to, @Param("modelId") Long modelId);
+
+    interface UserRequestCount {
+        Long getUserId();
+        Long getRequestCount();
+    }
+
+    /**
+     * A history row, with references to the query and response text instead of the text itself.
+     */
+    interface HistoryEntry {
+        Long getId();
+        Long getModelId();
+        String getErrorMessage();
+        Boolean getSuccessful();
+        Integer getTokensConsumed();
+        String getFileName();
+        LocalDateTime getRequestTime();
+        LocalDateTime getResponseTime();
+        String getQueryRef();
+        Integer getQuerySize();
+        String getResponseRef();
+        Integer getResponseSize();
+    }
+}
@@ -4,6 +4,7 @@ import com.example.sparkyaisystem.model.entity.AIModel;
 import com.example.sparkyaisystem.model.entity.Company;
 import com.example.sparkyaisystem.model.entity.Restriction;
 import org.springframework.data.jpa.repository.JpaRepository;
+import org.springframework.data.jpa.repository.Query;
 import org.springframework.stereotype.Repository;
 
 import java.util.List;
@@ -15,4 +16,13 @@ public interface RestrictionRepository extends JpaRepository<Restriction, Long>
     List<Restriction> findByModel(AIModel model);
     Optional<Restriction> findByCompanyAndModel(Company company, AIModel model);
     boolean existsByCompanyAndModel(Company company, AIModel model);
+    Optional<Restriction> findByCompanyIdAndModelId(Long companyId, Long modelId);
+
+    @Query("SELECT r.company.id AS companyId, r.model.id AS modelId FROM Restriction r")
+    List<CompanyModel> findAllCompanyModels();
+
+    interface CompanyModel {
+        Long getCompanyId();
+        Long getModelId();
+    }
 }
\ No newline at end of file
@@ -4,6 +4,8 @@ import com.example.sparkyaisystem.model.entity.Company;
 import com.example.sparkyaisystem.model.entity.Role;
 import com.example.sparkyaisystem.model.entity.User;
 import org.springframework.data.jpa.repository.JpaRepository;
+import org.springframework.data.jpa.repository.Query;
+import org.springframework.data.repository.query.Param;
 import org.springframework.stereotype.Repository;
 
 import java.util.List;
@@ -16,4 +18,7 @@ public interface UserRepository extends JpaRepository<User, Long> {
     List<User> findByCompany(Company company);
     List<User> findByCompanyAndRole(Company company, Role role);
     Optional<User> findByCompanyAndId(Company company, Long id);
+
+    @Query("SELECT CONCAT(u.firstName, ' ', u.lastName) FROM User u WHERE u.id = :id")
+    Optional<String> findFullNameById(@Param("id") Long id);
 }
\ No newline at end of file
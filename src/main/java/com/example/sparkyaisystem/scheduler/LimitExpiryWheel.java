@@ -0,0 +1,139 @@
+package com.example.sparkyaisystem.scheduler;
+
+import org.springframework.stereotype.Component;
+
+import java.time.Instant;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.util.BitSet;
+
+/**
+ * Hierarchical timing wheel of the instants at which limit windows end, at one-second resolution.
+ * <p>
+ * The wheel stores when something expires, not what: the reset itself is the bulk sweep in
+ * {@code LimitService.resetExpiredLimits}, so limits ending in the same second share one mark.
+ * That keeps memory bounded no matter how many limits there are: 60 second slots, 60 minute
+ * slots of 60 bits, 24 hour slots of 3600 bits and 64 day slots of 86400 bits, under 1 MB when full.
+ * <p>
+ * Registering a window end is O(1). {@link #advance} moves the wheel forward second by second,
+ * cascading the marks of a new day, hour or minute into the finer level below, and reports
+ * whether any mark was passed. Window ends more than {@value #HORIZON_DAYS} days ahead are not kept;
+ * the periodic safety sweep picks those up.
+ */
+@Component
+public class LimitExpiryWheel {
+
+    public static final int HORIZON_DAYS = 63;
+
+    private static final int DAYS = HORIZON_DAYS + 1;
+
+    private static final int MINUTE = 60;
+    private static final int HOUR = 3600;
+    private static final int DAY = 86400;
+
+    private final boolean[] seconds = new boolean[60];
+    private final long[] minutes = new long[60];
+    private final BitSet[] hours = new BitSet[24];
+    private final BitSet[] days = new BitSet[DAYS];
+
+    // Last second processed by advance
+    private long current;
+    private boolean due;
+
+    public LimitExpiryWheel() {
+        this(Instant.now().getEpochSecond());
+    }
+
+    LimitExpiryWheel(long start) {
+        this.current = start;
+    }
+
+    /**
+     * Registers the end of a limit window. Returns false if it is beyond the wheel's horizon.
+     */
+    public boolean register(LocalDateTime windowEndTime) {
+        return register(toEpochSecond(windowEndTime));
+    }
+
+    /**
+     * Moves the wheel to {@code now} and returns whether a registered window end has passed.
+     */
+    public boolean advance(LocalDateTime now) {
+        return advance(now.atZone(ZoneId.systemDefault()).toEpochSecond());
+    }
+
+    synchronized boolean register(long deadline) {
+        if (deadline <= current) {
+            due = true;
+        } else if (deadline / MINUTE == current / MINUTE) {
+            seconds[(int) (deadline % MINUTE)] = true;
+        } else if (deadline / HOUR == current / HOUR) {
+            minutes[(int) (deadline / MINUTE % 60)] |= 1L << (deadline % MINUTE);
+        } else if (deadline / DAY == current / DAY) {
+            slot(hours, (int) (deadline / HOUR % 24), HOUR).set((int) (deadline % HOUR));
+        } else if (deadline / DAY - current / DAY < DAYS) {
+            slot(days, (int) (deadline / DAY % DAYS), DAY).set((int) (deadline % DAY));
+        } else {
+            return false;
+        }
+        return true;
+    }
+
+    synchronized boolean advance(long now) {
+        while (current < now) {
+            current++;
+            if (current % DAY == 0) {
+                cascade(days, (int) (current / DAY % DAYS), current);
+            }
+            if (current % HOUR == 0) {
+                cascade(hours, (int) (current / HOUR % 24), current);
+            }
+            if (current % MINUTE == 0) {
+                long marks = minutes[(int) (current / MINUTE % 60)];
+                minutes[(int) (current / MINUTE % 60)] = 0;
+                for (int second = 0; marks != 0; second++, marks >>>= 1) {
+                    if ((marks & 1) != 0) {
+                        seconds[second] = true;
+                    }
+                }
+            }
+            int second = (int) (current % MINUTE);
+            if (seconds[second]) {
+                seconds[second] = false;
+                due = true;
+            }
+        }
+        boolean fired = due;
+        due = false;
+        return fired;
+    }
+
+    /**
+     * Moves the marks of the slot starting at {@code start} one level down.
+     */
+    private void cascade(BitSet[] level, int index, long start) {
+        BitSet marks = level[index];
+        if (marks == null || marks.isEmpty()) {
+            return;
+        }
+        level[index] = null;
+        for (int offset = marks.nextSetBit(0); offset >= 0; offset = marks.nextSetBit(offset + 1)) {
+            register(start + offset);
+        }
+    }
+
+    private static BitSet slot(BitSet[] level, int index, int span) {
+        if (level[index] == null) {
+            level[index] = new BitSet(span);
+        }
+        return level[index];
+    }
+
+    /**
+     * Window ends are rounded up, so the sweep that fires for a second finds them expired.
+     */
+    private static long toEpochSecond(LocalDateTime time) {
+        long second = time.atZone(ZoneId.systemDefault()).toEpochSecond();
+        return time.getNano() > 0 ? second + 1 : second;
+    }
+}
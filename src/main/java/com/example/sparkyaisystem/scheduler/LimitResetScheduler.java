@@ -2,13 +2,21 @@ package com.example.sparkyaisystem.scheduler;
 
 import com.example.sparkyaisystem.service.LimitService;
 import lombok.extern.slf4j.Slf4j;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.context.event.EventListener;
 import org.springframework.scheduling.annotation.EnableScheduling;
 import org.springframework.scheduling.annotation.Scheduled;
 import org.springframework.stereotype.Component;
 
+import java.time.LocalDateTime;
+
 /**
  * Scheduler for automatically resetting expired user limits.
  * This ensures that user limits are properly reset at the end of their window period.
+ * <p>
+ * Window ends are tracked in a {@link LimitExpiryWheel}, seeded from the limits table at startup
+ * and fed by LimitService and QuotaEngine as windows are created or rolled over. The wheel is
+ * ticked every second and the expired limits are reset as soon as a window end passes.
  */
 @Component
 @EnableScheduling
@@ -16,23 +24,67 @@ import org.springframework.stereotype.Component;
 public class LimitResetScheduler {
 
     private final LimitService limitService;
+    private final LimitExpiryWheel expiryWheel;
 
-    public LimitResetScheduler(LimitService limitService) {
+    public LimitResetScheduler(LimitService limitService, LimitExpiryWheel expiryWheel) {
         this.limitService = limitService;
+        this.expiryWheel = expiryWheel;
+    }
+
+    /**
+     * Registers the window ends already in the database and resets the limits that expired while
+     * the application was down.
+     */
+    @EventListener(ApplicationReadyEvent.class)
+    public void seedExpiryWheel() {
+        try {
+            int registered = limitService.scheduleUpcomingResets();
+            log.info("Scheduled {} upcoming limit window ends", registered);
+        } catch (Exception e) {
+            log.error("Error scheduling upcoming limit resets: {}", e.getMessage(), e);
+        }
+        resetExpiredLimits();
+    }
+
+    /**
+     * Advances the timing wheel and resets the expired limits when a window end has passed.
+     */
+    @Scheduled(fixedRateString = "${limits.reset.tick-ms:1000}")
+    public void tick() {
+        if (expiryWheel.advance(LocalDateTime.now())) {
+            resetExpiredLimits();
+        }
     }
 
     /**
-     * Scheduled task to reset expired limits.
-     * Runs every 15 minutes to check for and reset any limits that have expired.
+     * Safety sweep for windows the wheel does not know about, e.g. limits created by another
+     * instance or ending beyond the wheel's horizon.
      */
-    @Scheduled(fixedRate = 15 * 60 * 1000) // Run every 15 minutes
+    @Scheduled(fixedDelayString = "${limits.reset.safety-sweep-ms:3600000}",
+            initialDelayString = "${limits.reset.safety-sweep-ms:3600000}")
     public void resetExpiredLimits() {
-        log.info("Running scheduled task to reset expired limits");
+        log.debug("Running scheduled task to reset expired limits");
         try {
-            limitService.resetExpiredLimits();
-            log.info("Successfully reset expired limits");
+            int reset = limitService.resetExpiredLimits();
+            log.info("Successfully reset {} expired limits", reset);
         } catch (Exception e) {
             log.error("Error resetting expired limits: {}", e.getMessage(), e);
         }
     }
+
+    /**
+     * Scheduled task to release quota reservations whose upstream call never settled,
+     * e.g. because the request thread died or the call timed out.
+     */
+    @Scheduled(fixedDelayString = "${quota.reservation-reap-interval-ms:30000}")
+    public void releaseExpiredReservations() {
+        try {
+            int released = limitService.releaseExpiredReservations();
+            if (released > 0) {
+                log.info("Released {} expired quota reservations", released);
+            }
+        } catch (Exception e) {
+            log.error("Error releasing expired quota reservations: {}", e.getMessage(), e);
+        }
+    }
 }
\ No newline at end of file
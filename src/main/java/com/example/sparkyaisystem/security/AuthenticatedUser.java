@@ -0,0 +1,20 @@
+package com.example.sparkyaisystem.security;
+
+import java.util.List;
+
+/**
+ * The caller of an AI request, built from the verified JWT claims and the cached status of
+ * the user's company. Request handling uses it instead of loading the {@code User} entity.
+ *
+ * @param companyActive whether the user's company is active; false if the user has no company
+ */
+public record AuthenticatedUser(Long id, String email, Long companyId, boolean companyActive, List<String> roles) {
+
+    public AuthenticatedUser {
+        roles = List.copyOf(roles);
+    }
+
+    public boolean hasCompany() {
+        return companyId != null;
+    }
+}
@@ -0,0 +1,27 @@
+package com.example.sparkyaisystem.security;
+
+import java.security.Principal;
+import java.time.Instant;
+import java.util.List;
+
+/**
+ * Claims of a verified JWT. Set as the authentication principal by {@link JwtTokenFilter},
+ * so controllers get the caller's ids with {@code @AuthenticationPrincipal} instead of
+ * parsing the token again.
+ */
+public record JwtPrincipal(String username, Long userId, Long companyId, List<String> roles, Instant expiresAt)
+        implements Principal {
+
+    public JwtPrincipal {
+        roles = List.copyOf(roles);
+    }
+
+    @Override
+    public String getName() {
+        return username;
+    }
+
+    public boolean isExpired(Instant now) {
+        return !expiresAt.isAfter(now);
+    }
+}
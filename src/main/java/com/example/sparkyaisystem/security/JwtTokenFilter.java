@@ -18,14 +18,22 @@ public class JwtTokenFilter extends OncePerRequestFilter {
         this.jwtTokenProvider = jwtTokenProvider;
     }
 
+    // Streaming responses complete on an async dispatch, which must be authenticated as well
+    @Override
+    protected boolean shouldNotFilterAsyncDispatch() {
+        return false;
+    }
+
     @Override
     protected void doFilterInternal(HttpServletRequest request, HttpServletResponse response, FilterChain filterChain)
             throws ServletException, IOException {
         String token = jwtTokenProvider.resolveToken(request);
         
         try {
-            if (token != null && jwtTokenProvider.validateToken(token)) {
-                Authentication auth = jwtTokenProvider.getAuthentication(token);
+            // The token is verified once here; controllers read its claims from the principal
+            JwtPrincipal principal = token != null ? jwtTokenProvider.verify(token) : null;
+            if (principal != null) {
+                Authentication auth = jwtTokenProvider.getAuthentication(principal);
                 SecurityContextHolder.getContext().setAuthentication(auth);
             }
         } catch (Exception ex) {
@@ -1,5 +1,7 @@
 package com.example.sparkyaisystem.security;
 
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
 import io.jsonwebtoken.*;
 import io.jsonwebtoken.security.Keys;
 import jakarta.annotation.PostConstruct;
@@ -8,10 +10,11 @@ import org.springframework.beans.factory.annotation.Value;
 import org.springframework.security.authentication.UsernamePasswordAuthenticationToken;
 import org.springframework.security.core.Authentication;
 import org.springframework.security.core.authority.SimpleGrantedAuthority;
-import org.springframework.security.core.userdetails.UserDetails;
 import org.springframework.stereotype.Component;
 
 import java.security.Key;
+import java.time.Duration;
+import java.time.Instant;
 import java.util.Base64;
 import java.util.Date;
 import java.util.List;
@@ -26,12 +29,31 @@ public class JwtTokenProvider {
     @Value("${jwt.expiration}")
     private long validityInMilliseconds;
 
+    // Tokens whose signature was already checked; 0 disables the cache
+    @Value("${jwt.verified-cache.max-entries:10000}")
+    private long verifiedCacheMaxEntries;
+
+    @Value("${jwt.verified-cache.ttl-seconds:300}")
+    private long verifiedCacheTtlSeconds;
+
     private Key key;
 
+    private JwtParser parser;
+
+    private Cache<String, JwtPrincipal> verifiedTokens;
+
     @PostConstruct
     protected void init() {
         secretKey = Base64.getEncoder().encodeToString(secretKey.getBytes());
         key = Keys.hmacShaKeyFor(secretKey.getBytes());
+        // Parsers are immutable and thread-safe
+        parser = Jwts.parserBuilder().setSigningKey(key).build();
+        verifiedTokens = verifiedCacheMaxEntries > 0
+                ? Caffeine.newBuilder()
+                        .maximumSize(verifiedCacheMaxEntries)
+                        .expireAfterWrite(Duration.ofSeconds(verifiedCacheTtlSeconds))
+                        .build()
+                : null;
     }
 
     public String createToken(String username, List<String> roles, Long userId, Long companyId) {
@@ -53,29 +75,64 @@ public class JwtTokenProvider {
                 .compact();
     }
 
+    /**
+     * Verifies the token and returns its claims. Recently verified tokens are served from
+     * a cache without checking the signature again; their expiration is still enforced.
+     *
+     * @throws JwtException if the token is invalid or expired
+     */
+    public JwtPrincipal parse(String token) {
+        if (verifiedTokens == null) {
+            return toPrincipal(parser.parseClaimsJws(token).getBody());
+        }
+
+        JwtPrincipal cached = verifiedTokens.getIfPresent(token);
+        if (cached != null) {
+            if (cached.isExpired(Instant.now())) {
+                verifiedTokens.invalidate(token);
+                throw new ExpiredJwtException(null, null, "JWT expired at " + cached.expiresAt());
+            }
+            return cached;
+        }
+
+        JwtPrincipal principal = toPrincipal(parser.parseClaimsJws(token).getBody());
+        verifiedTokens.put(token, principal);
+        return principal;
+    }
+
+    /**
+     * Returns the claims of a valid token, or null if the token is invalid or expired.
+     */
+    public JwtPrincipal verify(String token) {
+        try {
+            return parse(token);
+        } catch (JwtException | IllegalArgumentException e) {
+            return null;
+        }
+    }
+
     public Authentication getAuthentication(String token) {
-        Claims claims = Jwts.parserBuilder().setSigningKey(key).build().parseClaimsJws(token).getBody();
-        
-        List<SimpleGrantedAuthority> authorities = ((List<String>) claims.get("roles")).stream()
+        return getAuthentication(parse(token));
+    }
+
+    public Authentication getAuthentication(JwtPrincipal principal) {
+        List<SimpleGrantedAuthority> authorities = principal.roles().stream()
                 .map(SimpleGrantedAuthority::new)
                 .collect(Collectors.toList());
-        
-        UserDetails userDetails = new org.springframework.security.core.userdetails.User(
-                claims.getSubject(), "", authorities);
-        
-        return new UsernamePasswordAuthenticationToken(userDetails, "", authorities);
+
+        return new UsernamePasswordAuthenticationToken(principal, "", authorities);
     }
 
     public String getUsername(String token) {
-        return Jwts.parserBuilder().setSigningKey(key).build().parseClaimsJws(token).getBody().getSubject();
+        return parse(token).username();
     }
 
     public Long getUserId(String token) {
-        return Jwts.parserBuilder().setSigningKey(key).build().parseClaimsJws(token).getBody().get("userId", Long.class);
+        return parse(token).userId();
     }
 
     public Long getCompanyId(String token) {
-        return Jwts.parserBuilder().setSigningKey(key).build().parseClaimsJws(token).getBody().get("companyId", Long.class);
+        return parse(token).companyId();
     }
 
     public String resolveToken(HttpServletRequest req) {
@@ -87,11 +144,20 @@ public class JwtTokenProvider {
     }
 
     public boolean validateToken(String token) {
-        try {
-            Jws<Claims> claims = Jwts.parserBuilder().setSigningKey(key).build().parseClaimsJws(token);
-            return !claims.getBody().getExpiration().before(new Date());
-        } catch (JwtException | IllegalArgumentException e) {
-            return false;
+        return verify(token) != null;
+    }
+
+    @SuppressWarnings("unchecked")
+    private JwtPrincipal toPrincipal(Claims claims) {
+        Date expiration = claims.getExpiration();
+        if (expiration == null) {
+            throw new MalformedJwtException("JWT has no expiration");
         }
+        return new JwtPrincipal(
+                claims.getSubject(),
+                claims.get("userId", Long.class),
+                claims.get("companyId", Long.class),
+                (List<String>) claims.get("roles"),
+                expiration.toInstant());
     }
-}
\ No newline at end of file
+}
@@ -2,14 +2,16 @@ package com.example.sparkyaisystem.service;
 
 import com.example.sparkyaisystem.model.dto.aimodel.AIModelResponse;
 import com.example.sparkyaisystem.model.entity.AIModel;
-import com.example.sparkyaisystem.model.entity.Company;
-import com.example.sparkyaisystem.model.entity.Restriction;
-import com.example.sparkyaisystem.model.entity.User;
 import com.example.sparkyaisystem.repository.AIModelRepository;
-import com.example.sparkyaisystem.repository.RestrictionRepository;
+import com.example.sparkyaisystem.security.AuthenticatedUser;
+import org.springframework.context.ApplicationEventPublisher;
 import org.springframework.stereotype.Service;
 import org.springframework.transaction.annotation.Transactional;
 
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HexFormat;
 import java.util.List;
 import java.util.stream.Collectors;
 
@@ -17,11 +19,18 @@ import java.util.stream.Collectors;
 public class AIModelService {
 
     private final AIModelRepository aiModelRepository;
-    private final RestrictionRepository restrictionRepository;
+    private final ModelCatalog modelCatalog;
+    private final ModelAvailabilityIndex availabilityIndex;
+    private final ApplicationEventPublisher eventPublisher;
 
-    public AIModelService(AIModelRepository aiModelRepository, RestrictionRepository restrictionRepository) {
+    public AIModelService(AIModelRepository aiModelRepository,
+                          ModelCatalog modelCatalog,
+                          ModelAvailabilityIndex availabilityIndex,
+                          ApplicationEventPublisher eventPublisher) {
         this.aiModelRepository = aiModelRepository;
-        this.restrictionRepository = restrictionRepository;
+        this.modelCatalog = modelCatalog;
+        this.availabilityIndex = availabilityIndex;
+        this.eventPublisher = eventPublisher;
     }
 
     @Transactional
@@ -29,24 +38,26 @@ public class AIModelService {
         if (aiModelRepository.existsByName(model.getName())) {
             throw new RuntimeException("AI Model with this name already exists");
         }
-        
-        return mapToAIModelResponse(aiModelRepository.save(model));
+
+        AIModel saved = aiModelRepository.save(model);
+        eventPublisher.publishEvent(new ModelCatalog.Changed(saved.getId()));
+        return mapToAIModelResponse(saved);
     }
 
     public List<AIModelResponse> getAllModels() {
-        return aiModelRepository.findAll().stream()
+        return modelCatalog.snapshot().models().stream()
                 .map(this::mapToAIModelResponse)
                 .collect(Collectors.toList());
     }
 
     public List<AIModelResponse> getActiveModels() {
-        return aiModelRepository.findByActive(true).stream()
+        return modelCatalog.snapshot().activeModels().stream()
                 .map(this::mapToAIModelResponse)
                 .collect(Collectors.toList());
     }
 
     public AIModelResponse getModelById(Long id) {
-        AIModel model = aiModelRepository.findById(id)
+        AIModel model = modelCatalog.findById(id)
                 .orElseThrow(() -> new RuntimeException("AI Model not found"));
         
         return mapToAIModelResponse(model);
@@ -68,8 +79,10 @@ public class AIModelService {
         model.setType(modelDetails.getType());
         model.setActive(modelDetails.isActive());
         model.setDescription(modelDetails.getDescription());
-        
-        return mapToAIModelResponse(aiModelRepository.save(model));
+
+        AIModel saved = aiModelRepository.save(model);
+        eventPublisher.publishEvent(new ModelCatalog.Changed(id));
+        return mapToAIModelResponse(saved);
     }
 
     @Transactional
@@ -78,27 +91,23 @@ public class AIModelService {
                 .orElseThrow(() -> new RuntimeException("AI Model not found"));
         
         model.setActive(active);
-        
-        return mapToAIModelResponse(aiModelRepository.save(model));
+
+        AIModel saved = aiModelRepository.save(model);
+        eventPublisher.publishEvent(new ModelCatalog.Changed(id));
+        return mapToAIModelResponse(saved);
     }
 
-    public List<AIModelResponse> getAvailableModelsForUser(User user) {
+    public List<AIModelResponse> getAvailableModelsForUser(AuthenticatedUser user) {
         // Get user's company
-        Company company = user.getCompany();
-        if (company == null) {
+        if (!user.hasCompany()) {
             throw new RuntimeException("User does not belong to a company");
         }
-        
-        // Get company restrictions
-        List<Restriction> restrictions = restrictionRepository.findByCompany(company);
-        
-        // Get all active models
-        List<AIModel> activeModels = aiModelRepository.findByActive(true);
-        
-        // Filter models based on company restrictions
-        return activeModels.stream()
-                .filter(model -> restrictions.stream()
-                        .anyMatch(r -> r.getModel().getId().equals(model.getId())))
+        if (!user.companyActive()) {
+            return List.of();
+        }
+
+        // Active models the company has a restriction for
+        return availabilityIndex.availableModels(user.companyId()).stream()
                 .map(model -> {
                     AIModelResponse response = mapToAIModelResponse(model);
                     response.setAvailable(true);
@@ -107,20 +116,41 @@ public class AIModelService {
                 .collect(Collectors.toList());
     }
 
-    public boolean isModelAvailableForUser(User user, AIModel model) {
+    /**
+     * ETag of a model list: a SHA-256 hash of the models as returned, so it is the same on every
+     * node and across restarts, and changes whenever a model or the company's access to it does.
+     */
+    public String getModelsETag(List<AIModelResponse> models) {
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            for (AIModelResponse model : models) {
+                for (Object part : new Object[]{model.getId(), model.getName(), model.getProvider(), model.getType(),
+                        model.isActive(), model.getDescription(), model.isAvailable(), model.getMaxTokensPerRequest()}) {
+                    // Length-prefix each part so different splits of the same text never collide
+                    byte[] bytes = String.valueOf(part).getBytes(StandardCharsets.UTF_8);
+                    digest.update((bytes.length + ":").getBytes(StandardCharsets.UTF_8));
+                    digest.update(bytes);
+                }
+            }
+            return "\"models-" + HexFormat.of().formatHex(digest.digest(), 0, 16) + "\"";
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 not available", e);
+        }
+    }
+
+    public boolean isModelAvailableForUser(AuthenticatedUser user, AIModel model) {
         // Check if model is active
         if (!model.isActive()) {
             return false;
         }
         
-        // Get user's company
-        Company company = user.getCompany();
-        if (company == null) {
+        // Users of inactive companies, or without one, have no access
+        if (!user.hasCompany() || !user.companyActive()) {
             return false;
         }
         
         // Check if company has a restriction for this model
-        return restrictionRepository.existsByCompanyAndModel(company, model);
+        return availabilityIndex.isAvailable(user.companyId(), model.getId());
     }
 
     private AIModelResponse mapToAIModelResponse(AIModel model) {
@@ -0,0 +1,64 @@
+package com.example.sparkyaisystem.service;
+
+import com.example.sparkyaisystem.repository.CompanyRepository;
+import com.example.sparkyaisystem.security.AuthenticatedUser;
+import com.example.sparkyaisystem.security.JwtPrincipal;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import com.github.benmanes.caffeine.cache.LoadingCache;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+import org.springframework.transaction.event.TransactionalEventListener;
+
+import java.time.Duration;
+
+/**
+ * Builds the {@link AuthenticatedUser} of a request from its JWT claims.
+ * The only field not carried by the token, the company's active flag, is read through a small
+ * cache, so in steady state resolving the caller does not touch the database.
+ * Company updates publish a {@link CompanyChanged} event, which evicts the entry after the commit,
+ * so a concurrent reload cannot cache the old status; the TTL bounds staleness for changes made elsewhere.
+ */
+@Service
+@Slf4j
+public class AuthenticatedUserService {
+
+    /**
+     * Published when a company was updated or its status changed.
+     */
+    public record CompanyChanged(Long companyId) {
+    }
+
+    private final LoadingCache<Long, Boolean> companyActive;
+
+    public AuthenticatedUserService(CompanyRepository companyRepository,
+                                    @Value("${auth.company-cache.max-entries:10000}") long maxEntries,
+                                    @Value("${auth.company-cache.ttl-seconds:60}") long ttlSeconds) {
+        this.companyActive = Caffeine.newBuilder()
+                .maximumSize(maxEntries)
+                .expireAfterWrite(Duration.ofSeconds(ttlSeconds))
+                .build(companyId -> {
+                    log.debug("Loading status of company {}", companyId);
+                    return companyRepository.findActiveById(companyId).orElse(false);
+                });
+    }
+
+    public AuthenticatedUser resolve(JwtPrincipal principal) {
+        boolean active = principal.companyId() != null && companyActive.get(principal.companyId());
+        return new AuthenticatedUser(principal.userId(), principal.username(), principal.companyId(), active,
+                principal.roles());
+    }
+
+    @TransactionalEventListener(fallbackExecution = true)
+    public void onCompanyChanged(CompanyChanged event) {
+        log.debug("Company {} changed, dropping its cached status", event.companyId());
+        evictCompany(event.companyId());
+    }
+
+    /**
+     * Drops the cached status of a company after it was changed.
+     */
+    public void evictCompany(Long companyId) {
+        companyActive.invalidate(companyId);
+    }
+}
@@ -0,0 +1,204 @@
+package com.example.sparkyaisystem.service;
+
+import com.example.sparkyaisystem.exception.LimitExceededException;
+import com.example.sparkyaisystem.model.entity.Restriction;
+import lombok.extern.slf4j.Slf4j;
+
+import java.time.LocalDateTime;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Usage of a company's restriction for one model, shared by all its users.
+ * Usage is kept in longs so the sum over many users cannot overflow; every access holds the lock,
+ * which is also held while leasing so admissions wait for the lease instead of racing it.
+ * <p>
+ * With leased quota, as for {@link QuotaSlot}, usage only counts this node's admissions and is
+ * checked against the quota leased so far in the window. Otherwise the bucket owns the restriction's
+ * usage and is written back to it when {@link #changedSinceFlush} reports a change.
+ */
+@Slf4j
+final class CompanyBucket {
+    final ReentrantLock lock = new ReentrantLock();
+    final Long restrictionId;
+    final boolean leased;
+    final String windowType;
+    private final LocalDateTime anchor;
+    private int maxRequests;
+    private int maxTokens;
+    private long usedRequests;
+    private long usedTokens;
+    private LocalDateTime windowStartTime;
+    LocalDateTime windowEndTime;
+    // Leased quota only
+    private long ceilingRequests;
+    private long ceilingTokens;
+    private long othersRequests;
+    private long othersTokens;
+    private long flushedRequests;
+    private long flushedTokens;
+    long leaseRetryAt;
+    // Local quota only: charged since the last flush
+    private boolean dirty;
+
+    CompanyBucket(Restriction restriction, LocalDateTime anchor, LocalDateTime windowStartTime,
+                  long usedRequests, long usedTokens) {
+        this.restrictionId = restriction.getId();
+        this.leased = false;
+        this.windowType = restriction.getWindowType();
+        this.anchor = anchor;
+        this.maxRequests = restriction.getMaxRequestsPerWindow();
+        this.maxTokens = restriction.getMaxTokensPerWindow();
+        this.usedRequests = usedRequests;
+        this.usedTokens = usedTokens;
+        this.windowStartTime = windowStartTime;
+        this.windowEndTime = LimitService.calculateWindowEndTime(windowStartTime, windowType);
+        this.ceilingRequests = maxRequests;
+        this.ceilingTokens = maxTokens;
+    }
+
+    /**
+     * A bucket leasing the restriction, without a window until its first lease.
+     */
+    CompanyBucket(Restriction restriction) {
+        this.restrictionId = restriction.getId();
+        this.leased = true;
+        this.windowType = restriction.getWindowType();
+        this.anchor = restriction.getCreatedAt();
+        this.maxRequests = restriction.getMaxRequestsPerWindow();
+        this.maxTokens = restriction.getMaxTokensPerWindow();
+        this.windowStartTime = LocalDateTime.MIN;
+        this.windowEndTime = LocalDateTime.MIN;
+    }
+
+    void rollWindow(LocalDateTime now) {
+        usedRequests = 0;
+        usedTokens = 0;
+        windowStartTime = LimitService.currentWindowStart(anchor, windowType, now);
+        windowEndTime = LimitService.calculateWindowEndTime(windowStartTime, windowType);
+    }
+
+    boolean fits(int requests, int tokens) {
+        return usedRequests + requests <= ceilingRequests && usedTokens + tokens <= ceilingTokens;
+    }
+
+    void checkAdmits(int requests, int tokens) {
+        if (usedRequests + requests > ceilingRequests) {
+            long total = othersRequests + usedRequests;
+            log.warn("Company request limit exceeded, current: {}, max: {}", total, maxRequests);
+            throw new LimitExceededException("company requests", (int) Math.min(total, Integer.MAX_VALUE),
+                    maxRequests, windowType, windowEndTime);
+        }
+        if (usedTokens + tokens > ceilingTokens) {
+            long total = othersTokens + usedTokens;
+            log.warn("Company token limit exceeded, current: {}, max: {}", total, maxTokens);
+            throw new LimitExceededException("company tokens", (int) Math.min(total, Integer.MAX_VALUE),
+                    maxTokens, windowType, windowEndTime);
+        }
+    }
+
+    void charge(int requests, int tokens) {
+        usedRequests = Math.max(0, usedRequests + requests);
+        usedTokens = Math.max(0, usedTokens + tokens);
+        dirty = true;
+    }
+
+    void resize(Restriction restriction) {
+        lock.lock();
+        try {
+            maxRequests = restriction.getMaxRequestsPerWindow();
+            maxTokens = restriction.getMaxTokensPerWindow();
+            if (!leased) {
+                ceilingRequests = maxRequests;
+                ceilingTokens = maxTokens;
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Adds a lease to the ceiling, or starts over from it if the lease is for a later window.
+     */
+    void apply(QuotaLeaseCoordinator.Lease lease) {
+        if (lease.windowEndTime().equals(windowEndTime)) {
+            ceilingRequests += lease.requests();
+            ceilingTokens += lease.tokens();
+        } else {
+            log.debug("Restriction window has expired, resetting restriction {}", restrictionId);
+            usedRequests = 0;
+            usedTokens = 0;
+            flushedRequests = 0;
+            flushedTokens = 0;
+            ceilingRequests = lease.requests();
+            ceilingTokens = lease.tokens();
+            windowStartTime = lease.windowStartTime();
+            windowEndTime = lease.windowEndTime();
+        }
+        othersRequests = Math.max(0, lease.allocatedRequests() - ceilingRequests);
+        othersTokens = Math.max(0, lease.allocatedTokens() - ceilingTokens);
+    }
+
+    /**
+     * Usage since the last flush, as {@link QuotaSlot#usageSinceFlush}, or null if there is
+     * nothing to commit.
+     */
+    QuotaLeaseCoordinator.Usage usageSinceFlush(boolean giveBack) {
+        lock.lock();
+        try {
+            long leasedRequests = giveBack
+                    ? ceilingRequests - Math.min(flushedRequests, ceilingRequests)
+                    : Math.min(usedRequests, ceilingRequests) - Math.min(flushedRequests, ceilingRequests);
+            long leasedTokens = giveBack
+                    ? ceilingTokens - Math.min(flushedTokens, ceilingTokens)
+                    : Math.min(usedTokens, ceilingTokens) - Math.min(flushedTokens, ceilingTokens);
+            long requests = usedRequests - flushedRequests;
+            long tokens = usedTokens - flushedTokens;
+            if (!leased || (requests == 0 && tokens == 0 && leasedRequests == 0 && leasedTokens == 0)) {
+                return null;
+            }
+            return new QuotaLeaseCoordinator.Usage(restrictionId, windowEndTime, (int) requests, (int) tokens,
+                    (int) leasedRequests, (int) leasedTokens);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    void flushed(QuotaLeaseCoordinator.Usage usage) {
+        lock.lock();
+        try {
+            // A new window started meanwhile has nothing flushed yet
+            if (usage.windowEndTime().equals(windowEndTime)) {
+                flushedRequests += usage.usedRequests();
+                flushedTokens += usage.usedTokens();
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * The usage to write back to the restriction, or null if nothing was charged since the last call.
+     */
+    QuotaEngine.QuotaSnapshot changedSinceFlush() {
+        lock.lock();
+        try {
+            if (!dirty) {
+                return null;
+            }
+            dirty = false;
+            return snapshot();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    QuotaEngine.QuotaSnapshot snapshot() {
+        lock.lock();
+        try {
+            return new QuotaEngine.QuotaSnapshot((int) Math.min(usedRequests, Integer.MAX_VALUE), maxRequests,
+                    (int) Math.min(usedTokens, Integer.MAX_VALUE), maxTokens, windowType, windowStartTime, windowEndTime);
+        } finally {
+            lock.unlock();
+        }
+    }
+}
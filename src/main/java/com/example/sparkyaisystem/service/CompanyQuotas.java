@@ -0,0 +1,203 @@
+package com.example.sparkyaisystem.service;
+
+import com.example.sparkyaisystem.exception.LimitExceededException;
+import com.example.sparkyaisystem.model.entity.Restriction;
+import com.example.sparkyaisystem.repository.ConsumptionRollupRepository;
+import com.example.sparkyaisystem.repository.RestrictionRepository;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.stereotype.Component;
+
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Company buckets behind {@link QuotaEngine}: one per company and model with a {@link Restriction},
+ * capping what all users of the company spend together. A bucket refills at the end of each window of
+ * the restriction's windowType, counted from the restriction's creation. Its usage is flushed to the
+ * restriction with the limits and read back from there when the bucket is loaded in the same window.
+ * Restrictions flushed in no window yet (e.g. changed to another window type) start from the hourly
+ * consumption rollups instead, which lag the audit queue and count the whole hour the window started
+ * in; the bucket may admit up to the queued usage more, or that part hour's usage less, than exact.
+ * <p>
+ * With leased quota the buckets lease their restriction through {@link QuotaLeases}, so the nodes
+ * together stay within it.
+ */
+@Component
+@Slf4j
+public class CompanyQuotas {
+
+    private final RestrictionRepository restrictionRepository;
+    private final ConsumptionRollupService rollupService;
+    private final QuotaLeases leases;
+
+    // Empty for company/model pairs without a restriction, so they are not looked up again
+    private final ConcurrentHashMap<BucketKey, Optional<CompanyBucket>> buckets = new ConcurrentHashMap<>();
+
+    public CompanyQuotas(RestrictionRepository restrictionRepository,
+                         ConsumptionRollupService rollupService,
+                         QuotaLeases leases) {
+        this.restrictionRepository = restrictionRepository;
+        this.rollupService = rollupService;
+        this.leases = leases;
+    }
+
+    /**
+     * The bucket above a user's slot, or null if the user has no company or the company has no
+     * restriction for the model.
+     */
+    CompanyBucket bucket(Long companyId, Long modelId) {
+        if (companyId == null) {
+            return null;
+        }
+        BucketKey key = new BucketKey(companyId, modelId);
+        Optional<CompanyBucket> bucket = buckets.get(key);
+        if (bucket == null) {
+            Optional<CompanyBucket> loaded = restrictionRepository.findByCompanyIdAndModelId(companyId, modelId)
+                    .map(restriction -> load(key, restriction));
+            Optional<CompanyBucket> existing = buckets.putIfAbsent(key, loaded);
+            bucket = existing != null ? existing : loaded;
+        }
+        return bucket.orElse(null);
+    }
+
+    /**
+     * Moves a bucket to the current window. Must hold the bucket's lock.
+     */
+    void rollWindowIfExpired(CompanyBucket bucket, LocalDateTime now) {
+        if (bucket.leased) {
+            leases.rollWindowIfExpired(bucket, now);
+        } else if (now.isAfter(bucket.windowEndTime)) {
+            bucket.rollWindow(now);
+        }
+    }
+
+    /**
+     * Checks that a bucket can admit the given usage, leasing more of the restriction first if it
+     * cannot admit it from what it holds. Must hold the bucket's lock.
+     *
+     * @throws LimitExceededException if the restriction would be exceeded
+     */
+    void checkAdmits(CompanyBucket bucket, int requests, int tokens) {
+        if (bucket.leased) {
+            leases.renew(bucket, requests, tokens);
+        }
+        bucket.checkAdmits(requests, tokens);
+    }
+
+    /**
+     * Returns the live usage of a company's restriction if it is currently held in memory.
+     * With leased quota this node only sees part of the usage, as with {@link QuotaEngine#peek}.
+     */
+    public Optional<QuotaEngine.QuotaSnapshot> peek(Long companyId, Long modelId) {
+        Optional<CompanyBucket> bucket = buckets.get(new BucketKey(companyId, modelId));
+        return bucket == null || leases.enabled() ? Optional.empty() : bucket.map(CompanyBucket::snapshot);
+    }
+
+    /**
+     * Applies new restriction settings to a loaded bucket, keeping its usage while the window type
+     * is unchanged. Otherwise the bucket is dropped and reloaded on the next admission.
+     */
+    void restrictionChanged(Long companyId, Long modelId) {
+        BucketKey key = new BucketKey(companyId, modelId);
+        Optional<CompanyBucket> loaded = buckets.get(key);
+        if (loaded == null) {
+            return;
+        }
+        Optional<Restriction> restriction = restrictionRepository.findByCompanyIdAndModelId(companyId, modelId);
+        if (loaded.isPresent() && restriction.isPresent()
+                && loaded.get().windowType.equalsIgnoreCase(restriction.get().getWindowType())) {
+            loaded.get().resize(restriction.get());
+        } else if (buckets.remove(key, loaded) && leases.enabled() && loaded.isPresent()) {
+            leases.commitCompany(List.of(loaded.get()), true);
+        }
+        log.debug("Restriction of company {} for model {} changed", companyId, modelId);
+    }
+
+    /**
+     * Commits the usage of leased buckets since the last flush, or writes back the usage of the
+     * buckets charged since then.
+     */
+    void flush() {
+        if (leases.enabled()) {
+            leases.commitCompany(loaded(), false);
+            return;
+        }
+
+        Map<Long, QuotaEngine.QuotaSnapshot> pending = new HashMap<>();
+        for (CompanyBucket bucket : loaded()) {
+            QuotaEngine.QuotaSnapshot snapshot = bucket.changedSinceFlush();
+            if (snapshot != null) {
+                pending.put(bucket.restrictionId, snapshot);
+            }
+        }
+        if (pending.isEmpty()) {
+            return;
+        }
+
+        List<Restriction> restrictions = new ArrayList<>();
+        for (Restriction restriction : restrictionRepository.findAllById(pending.keySet())) {
+            QuotaEngine.QuotaSnapshot snapshot = pending.get(restriction.getId());
+            // The window type was changed since the bucket was loaded; the row's reset usage stands
+            if (!restriction.getWindowType().equalsIgnoreCase(snapshot.getWindowType())) {
+                continue;
+            }
+            snapshot.applyTo(restriction);
+            restrictions.add(restriction);
+        }
+        restrictionRepository.saveAll(restrictions);
+        log.debug("Flushed {} company buckets to the restrictions table", restrictions.size());
+    }
+
+    /**
+     * Commits the usage of leased buckets and gives back the rest of their leases.
+     */
+    void shutdown() {
+        if (leases.enabled()) {
+            leases.commitCompany(loaded(), true);
+        }
+    }
+
+    private List<CompanyBucket> loaded() {
+        List<CompanyBucket> loaded = new ArrayList<>();
+        for (Optional<CompanyBucket> bucket : buckets.values()) {
+            bucket.ifPresent(loaded::add);
+        }
+        return loaded;
+    }
+
+    private CompanyBucket load(BucketKey key, Restriction restriction) {
+        if (leases.enabled()) {
+            // Usage is leased from the restriction's shared counters on the first admission
+            return new CompanyBucket(restriction);
+        }
+        LocalDateTime now = LocalDateTime.now();
+        LocalDateTime anchor = restriction.getCreatedAt() != null ? restriction.getCreatedAt() : now;
+        LocalDateTime windowStart = LimitService.currentWindowStart(anchor, restriction.getWindowType(), now);
+
+        if (restriction.getWindowEndTime() != null) {
+            // Flushed before: its usage stands if still in this window, else nothing is used in this one yet
+            boolean current = restriction.getWindowEndTime().isAfter(now);
+            return new CompanyBucket(restriction, anchor, windowStart,
+                    current ? restriction.getUsedRequests() : 0, current ? restriction.getUsedTokens() : 0);
+        }
+        // Rollups are hourly, so this also counts the part of the hour before the window started
+        long requests = 0;
+        long tokens = 0;
+        for (ConsumptionRollupRepository.ModelTotals totals :
+                rollupService.companyTotals(key.companyId(), windowStart, null)) {
+            if (key.modelId().equals(totals.getModelId())) {
+                requests = totals.getRequestCount();
+                tokens = totals.getTokensConsumed();
+            }
+        }
+        return new CompanyBucket(restriction, anchor, windowStart, requests, tokens);
+    }
+
+    private record BucketKey(Long companyId, Long modelId) {
+    }
+}
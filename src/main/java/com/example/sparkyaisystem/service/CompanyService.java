@@ -7,31 +7,36 @@ import com.example.sparkyaisystem.model.dto.company.CompanyStatusRequest;
 import com.example.sparkyaisystem.model.dto.auth.RegisterRequest;
 import com.example.sparkyaisystem.model.entity.AIModel;
 import com.example.sparkyaisystem.model.entity.Company;
-import com.example.sparkyaisystem.model.entity.Request;
 import com.example.sparkyaisystem.model.entity.User;
 import com.example.sparkyaisystem.repository.CompanyRepository;
-import com.example.sparkyaisystem.repository.RequestRepository;
+import com.example.sparkyaisystem.repository.ConsumptionRollupRepository;
+import org.springframework.context.ApplicationEventPublisher;
 import org.springframework.stereotype.Service;
 import org.springframework.transaction.annotation.Transactional;
 
 import java.time.LocalDateTime;
 import java.util.ArrayList;
-import java.util.HashMap;
 import java.util.List;
-import java.util.Map;
+import java.util.Optional;
 import java.util.stream.Collectors;
 
 @Service
 public class CompanyService {
 
     private final CompanyRepository companyRepository;
-    private final RequestRepository requestRepository;
+    private final ConsumptionRollupService rollupService;
+    private final ModelCatalog modelCatalog;
     private final AuthService authService;
+    private final ApplicationEventPublisher eventPublisher;
 
-    public CompanyService(CompanyRepository companyRepository, RequestRepository requestRepository, AuthService authService) {
+    public CompanyService(CompanyRepository companyRepository, ConsumptionRollupService rollupService,
+                          ModelCatalog modelCatalog, AuthService authService,
+                          ApplicationEventPublisher eventPublisher) {
         this.companyRepository = companyRepository;
-        this.requestRepository = requestRepository;
+        this.rollupService = rollupService;
+        this.modelCatalog = modelCatalog;
         this.authService = authService;
+        this.eventPublisher = eventPublisher;
     }
 
     @Transactional
@@ -103,7 +108,9 @@ public class CompanyService {
         company.setRuc(companyRequest.getRuc());
         company.setActive(companyRequest.isActive());
         
-        return mapToCompanyResponse(companyRepository.save(company));
+        Company saved = companyRepository.save(company);
+        eventPublisher.publishEvent(new AuthenticatedUserService.CompanyChanged(id));
+        return mapToCompanyResponse(saved);
     }
 
     @Transactional
@@ -113,40 +120,38 @@ public class CompanyService {
         
         company.setActive(statusRequest.getActive());
         
-        return mapToCompanyResponse(companyRepository.save(company));
+        Company saved = companyRepository.save(company);
+        eventPublisher.publishEvent(new AuthenticatedUserService.CompanyChanged(id));
+        return mapToCompanyResponse(saved);
     }
 
-    public CompanyConsumptionResponse getCompanyConsumption(Long id) {
+    /**
+     * Requests, tokens and mean latency per model between {@code from} and {@code to}, read from the hourly and
+     * daily rollups. Either end may be null; the range is widened to whole hours.
+     */
+    public CompanyConsumptionResponse getCompanyConsumption(Long id, LocalDateTime from, LocalDateTime to) {
         Company company = companyRepository.findById(id)
                 .orElseThrow(() -> new RuntimeException("Company not found"));
-        
-        List<Request> requests = requestRepository.findByCompany(company);
-        
-        int totalRequests = requests.size();
-        int totalTokensConsumed = 0;
-        
-        Map<AIModel, ModelConsumptionData> modelConsumptionMap = new HashMap<>();
-        
-        for (Request request : requests) {
-            totalTokensConsumed += request.getTokensConsumed();
-            
-            AIModel model = request.getModel();
-            ModelConsumptionData consumptionData = modelConsumptionMap.getOrDefault(model, new ModelConsumptionData(model));
-            consumptionData.requestsCount++;
-            consumptionData.tokensConsumed += request.getTokensConsumed();
-            modelConsumptionMap.put(model, consumptionData);
+
+        long totalRequests = 0;
+        long totalTokensConsumed = 0;
+        List<CompanyConsumptionResponse.ModelConsumption> modelConsumptions = new ArrayList<>();
+
+        for (ConsumptionRollupRepository.ModelTotals totals : rollupService.companyTotals(company.getId(), from, to)) {
+            totalRequests += totals.getRequestCount();
+            totalTokensConsumed += totals.getTokensConsumed();
+
+            Optional<AIModel> model = modelCatalog.findById(totals.getModelId());
+            modelConsumptions.add(CompanyConsumptionResponse.ModelConsumption.builder()
+                    .modelId(totals.getModelId())
+                    .modelName(model.map(AIModel::getName).orElse(null))
+                    .modelProvider(model.map(AIModel::getProvider).orElse(null))
+                    .requestsCount(totals.getRequestCount())
+                    .tokensConsumed(totals.getTokensConsumed())
+                    .averageLatencyMs(totals.getAverageLatencyMs())
+                    .build());
         }
-        
-        List<CompanyConsumptionResponse.ModelConsumption> modelConsumptions = modelConsumptionMap.values().stream()
-                .map(data -> CompanyConsumptionResponse.ModelConsumption.builder()
-                        .modelId(data.model.getId())
-                        .modelName(data.model.getName())
-                        .modelProvider(data.model.getProvider())
-                        .requestsCount(data.requestsCount)
-                        .tokensConsumed(data.tokensConsumed)
-                        .build())
-                .collect(Collectors.toList());
-        
+
         return CompanyConsumptionResponse.builder()
                 .companyId(company.getId())
                 .companyName(company.getName())
@@ -173,17 +178,4 @@ public class CompanyService {
                 .updatedAt(company.getUpdatedAt())
                 .build();
     }
-
-    // Helper class for aggregating model consumption data
-    private static class ModelConsumptionData {
-        private final AIModel model;
-        private int requestsCount;
-        private int tokensConsumed;
-
-        public ModelConsumptionData(AIModel model) {
-            this.model = model;
-            this.requestsCount = 0;
-            this.tokensConsumed = 0;
-        }
-    }
-}
\ No newline at end of file
+}
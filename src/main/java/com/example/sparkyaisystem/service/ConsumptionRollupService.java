@@ -0,0 +1,178 @@
+package com.example.sparkyaisystem.service;
+
+import com.example.sparkyaisystem.model.entity.Request;
+import com.example.sparkyaisystem.model.entity.RollupGranularity;
+import com.example.sparkyaisystem.repository.ConsumptionRollupRepository;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.jdbc.core.ConnectionCallback;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.stereotype.Service;
+
+import java.sql.Timestamp;
+import java.time.Duration;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Hourly and daily consumption totals per company, user and model: requests, tokens and response times.
+ * <p>
+ * {@link RequestAuditWriter} hands every batch of audit rows to {@link #record} in the transaction
+ * that inserts them, so the rollups always match the requests table. A batch is first summed in
+ * memory and then added to its buckets with one upsert per bucket; the company is taken from the
+ * users table in the same statement. Users without a company are not rolled up.
+ * <p>
+ * Reports read daily buckets for the whole days of a range and hourly buckets for the partial
+ * days at its ends, so their cost depends on the length of the range, not on the number of requests.
+ */
+@Service
+@Slf4j
+public class ConsumptionRollupService {
+
+    private static final String SOURCE = "SELECT CAST(? AS VARCHAR(10)) AS granularity, CAST(? AS TIMESTAMP) AS bucket_start, "
+            + "u.company_id AS company_id, u.id AS user_id, CAST(? AS BIGINT) AS model_id, "
+            + "CAST(? AS BIGINT) AS request_count, CAST(? AS BIGINT) AS tokens_consumed, "
+            + "CAST(? AS BIGINT) AS latency_ms, CAST(? AS BIGINT) AS latency_samples "
+            + "FROM users u WHERE u.id = ? AND u.company_id IS NOT NULL";
+
+    static final String POSTGRES_UPSERT_SQL = "INSERT INTO consumption_rollups (granularity, bucket_start, company_id, "
+            + "user_id, model_id, request_count, tokens_consumed, latency_ms, latency_samples) " + SOURCE + " "
+            + "ON CONFLICT (company_id, granularity, bucket_start, user_id, model_id) DO UPDATE SET "
+            + "request_count = consumption_rollups.request_count + EXCLUDED.request_count, "
+            + "tokens_consumed = consumption_rollups.tokens_consumed + EXCLUDED.tokens_consumed, "
+            + "latency_ms = consumption_rollups.latency_ms + EXCLUDED.latency_ms, "
+            + "latency_samples = consumption_rollups.latency_samples + EXCLUDED.latency_samples";
+
+    // Standard SQL for other databases (H2 in the benchmarks)
+    static final String MERGE_SQL = "MERGE INTO consumption_rollups t USING (" + SOURCE + ") v "
+            + "ON t.company_id = v.company_id AND t.granularity = v.granularity AND t.bucket_start = v.bucket_start "
+            + "AND t.user_id = v.user_id AND t.model_id = v.model_id "
+            + "WHEN MATCHED THEN UPDATE SET request_count = t.request_count + v.request_count, "
+            + "tokens_consumed = t.tokens_consumed + v.tokens_consumed, "
+            + "latency_ms = t.latency_ms + v.latency_ms, latency_samples = t.latency_samples + v.latency_samples "
+            + "WHEN NOT MATCHED THEN INSERT (granularity, bucket_start, company_id, user_id, model_id, request_count, "
+            + "tokens_consumed, latency_ms, latency_samples) VALUES (v.granularity, v.bucket_start, v.company_id, "
+            + "v.user_id, v.model_id, v.request_count, v.tokens_consumed, v.latency_ms, v.latency_samples)";
+
+    // Stand-ins for an open end of a report range
+    static final LocalDateTime EARLIEST = LocalDateTime.of(1970, 1, 1, 0, 0);
+    static final LocalDateTime LATEST = LocalDateTime.of(9999, 1, 1, 0, 0);
+
+    // Rows are upserted in a fixed order so that concurrent batches lock buckets in the same order
+    private static final Comparator<Bucket> BUCKET_ORDER = Comparator.comparing(Bucket::userId)
+            .thenComparing(Bucket::modelId)
+            .thenComparing(Bucket::granularity)
+            .thenComparing(Bucket::bucketStart);
+
+    record Bucket(RollupGranularity granularity, LocalDateTime bucketStart, Long userId, Long modelId) {
+    }
+
+    /**
+     * Report range resolved to whole hours: daily buckets in {@code [dayFrom, dayTo)},
+     * hourly buckets in {@code [from, dayFrom)} and {@code [dayTo, to)}.
+     */
+    record Range(LocalDateTime from, LocalDateTime dayFrom, LocalDateTime dayTo, LocalDateTime to) {
+
+        /**
+         * The range {@code [from, to)} is widened to whole hours; either end may be null.
+         */
+        static Range of(LocalDateTime from, LocalDateTime to) {
+            if (from != null && to != null && !from.isBefore(to)) {
+                throw new RuntimeException("Start of the range must be before its end");
+            }
+            LocalDateTime start = from == null ? EARLIEST : RollupGranularity.HOUR.bucketStart(from);
+            LocalDateTime end = to == null ? LATEST : ceiling(RollupGranularity.HOUR, to);
+            LocalDateTime dayFrom = ceiling(RollupGranularity.DAY, start);
+            LocalDateTime dayTo = RollupGranularity.DAY.bucketStart(end);
+            if (dayTo.isBefore(dayFrom)) {
+                // Within a single day: hourly buckets only
+                dayFrom = end;
+                dayTo = end;
+            }
+            return new Range(start, dayFrom, dayTo, end);
+        }
+
+        private static LocalDateTime ceiling(RollupGranularity granularity, LocalDateTime time) {
+            LocalDateTime bucketStart = granularity.bucketStart(time);
+            return bucketStart.equals(time) ? time : granularity.bucketEnd(time);
+        }
+    }
+
+    private final JdbcTemplate jdbcTemplate;
+    private final ConsumptionRollupRepository rollupRepository;
+
+    private volatile String upsertSql;
+
+    public ConsumptionRollupService(JdbcTemplate jdbcTemplate, ConsumptionRollupRepository rollupRepository) {
+        this.jdbcTemplate = jdbcTemplate;
+        this.rollupRepository = rollupRepository;
+    }
+
+    /**
+     * Adds the requests to their hourly and daily buckets. Runs in the caller's transaction.
+     */
+    public void record(List<Request> requests) {
+        Map<Bucket, long[]> totals = new TreeMap<>(BUCKET_ORDER);
+        for (Request request : requests) {
+            for (RollupGranularity granularity : RollupGranularity.values()) {
+                Bucket bucket = new Bucket(granularity, granularity.bucketStart(request.getRequestTime()),
+                        request.getUser().getId(), request.getModel().getId());
+                // Requests, tokens, latency in ms, requests with a latency
+                long[] sums = totals.computeIfAbsent(bucket, key -> new long[4]);
+                sums[0]++;
+                sums[1] += request.getTokensConsumed();
+                if (request.getResponseTime() != null) {
+                    sums[2] += Duration.between(request.getRequestTime(), request.getResponseTime()).toMillis();
+                    sums[3]++;
+                }
+            }
+        }
+        if (totals.isEmpty()) {
+            return;
+        }
+
+        List<Map.Entry<Bucket, long[]>> rows = new ArrayList<>(totals.entrySet());
+        jdbcTemplate.batchUpdate(upsertSql(), rows, rows.size(), (ps, row) -> {
+            Bucket bucket = row.getKey();
+            ps.setString(1, bucket.granularity().name());
+            ps.setTimestamp(2, Timestamp.valueOf(bucket.bucketStart()));
+            ps.setLong(3, bucket.modelId());
+            ps.setLong(4, row.getValue()[0]);
+            ps.setLong(5, row.getValue()[1]);
+            ps.setLong(6, row.getValue()[2]);
+            ps.setLong(7, row.getValue()[3]);
+            ps.setLong(8, bucket.userId());
+        });
+        log.debug("Rolled up {} requests into {} buckets", requests.size(), rows.size());
+    }
+
+    /**
+     * Per-model totals of a company between {@code from} and {@code to}; either end may be null.
+     */
+    public List<ConsumptionRollupRepository.ModelTotals> companyTotals(Long companyId, LocalDateTime from, LocalDateTime to) {
+        Range range = Range.of(from, to);
+        return rollupRepository.sumByCompany(companyId, range.from(), range.dayFrom(), range.dayTo(), range.to());
+    }
+
+    /**
+     * Per-model totals of a user between {@code from} and {@code to}; either end may be null.
+     */
+    public List<ConsumptionRollupRepository.ModelTotals> userTotals(Long userId, LocalDateTime from, LocalDateTime to) {
+        Range range = Range.of(from, to);
+        return rollupRepository.sumByUser(userId, range.from(), range.dayFrom(), range.dayTo(), range.to());
+    }
+
+    private String upsertSql() {
+        String sql = upsertSql;
+        if (sql == null) {
+            String product = jdbcTemplate.execute(
+                    (ConnectionCallback<String>) connection -> connection.getMetaData().getDatabaseProductName());
+            sql = "PostgreSQL".equalsIgnoreCase(product) ? POSTGRES_UPSERT_SQL : MERGE_SQL;
+            upsertSql = sql;
+        }
+        return sql;
+    }
+}
@@ -0,0 +1,27 @@
+package com.example.sparkyaisystem.service;
+
+/**
+ * Storage for request queries and responses, kept out of the requests table.
+ * Content is addressed by the SHA-256 of its UTF-8 bytes, so identical bodies are stored once
+ * and storing the same body again is a no-op.
+ */
+public interface ContentStore {
+
+    /**
+     * Stores the content unless it is already present.
+     *
+     * @return the reference to keep on the row and the content size in bytes
+     */
+    Ref put(String content);
+
+    /**
+     * Content stored under a reference returned by {@link #put}.
+     *
+     * @return the content, or {@code null} if this store does not hold it, e.g. because it was written
+     *         by a node that does not share the store
+     */
+    String get(String key);
+
+    record Ref(String key, int size) {
+    }
+}
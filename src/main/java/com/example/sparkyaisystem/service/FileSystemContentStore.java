@@ -0,0 +1,118 @@
+package com.example.sparkyaisystem.service;
+
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HexFormat;
+import java.util.zip.Deflater;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * {@link ContentStore} on the local filesystem. Each body is one deflate-compressed file named
+ * after its hash, under two levels of directories taken from the hash prefix
+ * ({@code ab/cd/abcd...}) so no directory grows too large.
+ * Files are written to a temporary name and moved into place, so a reader never sees a partial
+ * file and concurrent writers of the same body simply replace one identical file with another.
+ * <p>
+ * Every node reads bodies written by the others, so when the application runs on more than one node
+ * {@code content-store.path} must point at storage they all share (e.g. an NFS or EFS mount).
+ */
+@Component
+@Slf4j
+public class FileSystemContentStore implements ContentStore {
+
+    private static final HexFormat HEX = HexFormat.of();
+    private static final int KEY_LENGTH = 64;
+
+    private final Path root;
+    private final int compressionLevel;
+
+    public FileSystemContentStore(@Value("${content-store.path:data/content}") String path,
+                                  @Value("${content-store.compression-level:6}") int compressionLevel) {
+        this.root = Paths.get(path).toAbsolutePath();
+        this.compressionLevel = compressionLevel;
+        log.info("Storing request bodies under {}", root);
+    }
+
+    @Override
+    public Ref put(String content) {
+        byte[] bytes = content.getBytes(StandardCharsets.UTF_8);
+        String key = HEX.formatHex(sha256(bytes));
+        Path file = pathOf(key);
+        if (!Files.exists(file)) {
+            write(file, compress(bytes));
+        }
+        return new Ref(key, bytes.length);
+    }
+
+    @Override
+    public String get(String key) {
+        Path file = pathOf(key);
+        try (InputStream in = new InflaterInputStream(Files.newInputStream(file))) {
+            return new String(in.readAllBytes(), StandardCharsets.UTF_8);
+        } catch (NoSuchFileException e) {
+            log.warn("Content {} is not under {}", key, root);
+            return null;
+        } catch (IOException e) {
+            throw new RuntimeException("Could not read content " + key, e);
+        }
+    }
+
+    Path pathOf(String key) {
+        if (key == null || key.length() != KEY_LENGTH || !key.chars().allMatch(HexFormat::isHexDigit)) {
+            throw new RuntimeException("Invalid content reference: " + key);
+        }
+        return root.resolve(key.substring(0, 2)).resolve(key.substring(2, 4)).resolve(key);
+    }
+
+    private void write(Path file, byte[] compressed) {
+        try {
+            Files.createDirectories(file.getParent());
+            Path temp = Files.createTempFile(file.getParent(), file.getFileName().toString(), ".tmp");
+            try {
+                Files.write(temp, compressed);
+                Files.move(temp, file, StandardCopyOption.ATOMIC_MOVE);
+            } finally {
+                Files.deleteIfExists(temp);
+            }
+        } catch (IOException e) {
+            throw new RuntimeException("Could not store content " + file.getFileName(), e);
+        }
+    }
+
+    private byte[] compress(byte[] bytes) {
+        Deflater deflater = new Deflater(compressionLevel);
+        try {
+            deflater.setInput(bytes);
+            deflater.finish();
+            ByteArrayOutputStream out = new ByteArrayOutputStream(bytes.length / 2 + 16);
+            byte[] buffer = new byte[8192];
+            while (!deflater.finished()) {
+                out.write(buffer, 0, deflater.deflate(buffer));
+            }
+            return out.toByteArray();
+        } finally {
+            deflater.end();
+        }
+    }
+
+    private static byte[] sha256(byte[] bytes) {
+        try {
+            return MessageDigest.getInstance("SHA-256").digest(bytes);
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 is not available", e);
+        }
+    }
+}
@@ -1,19 +1,24 @@
 package com.example.sparkyaisystem.service;
 
+import com.azure.ai.inference.ChatCompletionsAsyncClient;
 import com.azure.ai.inference.ChatCompletionsClient;
 import com.azure.ai.inference.models.*;
 import com.azure.core.util.BinaryData;
+import com.example.sparkyaisystem.exception.UnsupportedModelRequestException;
+import com.example.sparkyaisystem.exception.UpstreamUnavailableException;
 import com.example.sparkyaisystem.model.dto.request.MultimodalRequest;
 import com.example.sparkyaisystem.model.entity.AIModel;
+import lombok.AllArgsConstructor;
+import lombok.Getter;
 import lombok.extern.slf4j.Slf4j;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.beans.factory.annotation.Value;
 import org.springframework.stereotype.Service;
 import org.springframework.web.multipart.MultipartFile;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
 
 import java.io.IOException;
-import java.nio.file.Files;
-import java.nio.file.Path;
 import java.util.*;
 
 /**
@@ -26,6 +31,18 @@ public class GitHubModelsService {
 
     @Autowired
     private ChatCompletionsClient chatCompletionsClient;
+
+    @Autowired
+    private ChatCompletionsAsyncClient chatCompletionsAsyncClient;
+
+    @Autowired
+    private ImageDataUrlEncoder imageDataUrlEncoder;
+
+    @Autowired
+    private UpstreamConcurrencyLimiter concurrencyLimiter;
+
+    @Autowired
+    private UpstreamResilience resilience;
     
     @Value("${github.models.deepseek}")
     private String deepseekModel;
@@ -35,8 +52,6 @@ public class GitHubModelsService {
     
     @Value("${github.models.llama}")
     private String llamaModel;
-    
-    private final Random random = new Random();
 
     /**
      * Process a chat request with the specified model.
@@ -44,45 +59,71 @@ public class GitHubModelsService {
      * @param model The AI model to use
      * @param message The user's message
      * @param systemPrompt Optional system prompt to guide the model
-     * @return The model's response
+     * @return The model's response and token usage
      */
-    public String processChatRequest(AIModel model, String message, String systemPrompt) {
+    public CompletionResult processChatRequest(AIModel model, String message, String systemPrompt) {
         log.info("Processing chat request with model: {}, message length: {}", model.getName(), message.length());
         
-        try {
-            // Determine which GitHub model to use based on provided AIModel
-            String githubModel = mapToGitHubModel(model);
-            
-            // Create chat messages
-            List<ChatRequestMessage> chatMessages = new ArrayList<>();
-            
-            // Add system prompt if provided
-            if (systemPrompt != null && !systemPrompt.isEmpty()) {
-                chatMessages.add(new ChatRequestSystemMessage(systemPrompt));
-            } else {
-                chatMessages.add(new ChatRequestSystemMessage("You are a helpful assistant."));
-            }
-            
-            // Add user message
-            chatMessages.add(new ChatRequestUserMessage(message));
-            
-            // Create chat completion options
-            ChatCompletionsOptions options = new ChatCompletionsOptions(chatMessages);
-            options.setModel(githubModel);
-            
-            // Make API call to GitHub Models
-            log.debug("Sending request to GitHub Models SDK with model: {}", githubModel);
-            ChatCompletions completions = chatCompletionsClient.complete(options);
-            
-            // Extract and return the response
-            String response = completions.getChoice().getMessage().getContent();
-            log.info("Successfully received response from GitHub Models SDK");
-            
-            return response;
-        } catch (Exception e) {
-            log.error("Error processing chat request with GitHub Models SDK: {}", e.getMessage(), e);
-            return "Error processing request: " + e.getMessage();
-        }
+        ChatCompletionsOptions options = buildChatOptions(model, message, systemPrompt);
+
+        // Make API call to GitHub Models; errors propagate so the caller refunds the quota and audits a failure
+        log.debug("Sending request to GitHub Models SDK with model: {}", options.getModel());
+        ChatCompletions completions = complete(options);
+
+        // Extract and return the response
+        String response = completions.getChoice().getMessage().getContent();
+        log.info("Successfully received response from GitHub Models SDK");
+
+        return new CompletionResult(response, totalTokens(completions));
+    }
+
+    /**
+     * Non-blocking variant of {@link #processChatRequest}. The call completes on the async
+     * client's I/O threads.
+     *
+     * @param model The AI model to use
+     * @param message The user's message
+     * @param systemPrompt Optional system prompt to guide the model
+     * @return The model's response and token usage
+     */
+    public Mono<CompletionResult> processChatRequestAsync(AIModel model, String message, String systemPrompt) {
+        log.info("Processing async chat request with model: {}, message length: {}", model.getName(), message.length());
+
+        return Mono.defer(() -> completeAsync(buildChatOptions(model, message, systemPrompt)))
+                .map(completions -> new CompletionResult(completions.getChoice().getMessage().getContent(),
+                        totalTokens(completions)));
+    }
+
+    /**
+     * Stream a chat request with the specified model.
+     * The returned Flux is driven by the async client's I/O threads, so no request thread
+     * is held while tokens are generated.
+     *
+     * @param model The AI model to use
+     * @param message The user's message
+     * @param systemPrompt Optional system prompt to guide the model
+     * @return Content deltas as they arrive; the usage is set on the chunk that reports it
+     */
+    public Flux<CompletionResult> streamChatRequest(AIModel model, String message, String systemPrompt) {
+        log.info("Streaming chat request with model: {}, message length: {}", model.getName(), message.length());
+
+        ChatCompletionsOptions options = buildChatOptions(model, message, systemPrompt);
+        log.debug("Sending streaming request to GitHub Models SDK with model: {}", options.getModel());
+
+        // The stream's duration depends on the answer's length, so it is not a latency sample
+        return resilience.stream(options.getModel(), () -> Flux.using(
+                        () -> concurrencyLimiter.tryAcquireAsync(options.getModel()).skipLatency(),
+                        permit -> chatCompletionsAsyncClient.completeStream(options),
+                        UpstreamConcurrencyLimiter.Permit::close))
+                .map(update -> {
+                    String delta = null;
+                    if (update.getChoices() != null && !update.getChoices().isEmpty()
+                            && update.getChoice().getDelta() != null) {
+                        delta = update.getChoice().getDelta().getContent();
+                    }
+                    Integer totalTokens = update.getUsage() != null ? update.getUsage().getTotalTokens() : null;
+                    return new CompletionResult(delta, totalTokens);
+                });
     }
 
     /**
@@ -92,46 +133,40 @@ public class GitHubModelsService {
      * @param prompt The prompt for text completion
      * @param maxTokens Maximum tokens to generate
      * @param temperature Controls randomness (0-1)
-     * @return The model's response
+     * @return The model's response and token usage
      */
-    public String processCompletionRequest(AIModel model, String prompt, Integer maxTokens, Float temperature) {
+    public CompletionResult processCompletionRequest(AIModel model, String prompt, Integer maxTokens, Float temperature) {
         log.info("Processing completion request with model: {}, prompt length: {}", model.getName(), prompt.length());
         
-        try {
-            // For completion requests, we'll use the chat API with just the user message
-            String githubModel = mapToGitHubModel(model);
-            
-            // Create chat messages (for completion, we just send the prompt as a user message)
-            List<ChatRequestMessage> chatMessages = new ArrayList<>();
-            chatMessages.add(new ChatRequestUserMessage(prompt));
-            
-            // Create chat completion options
-            ChatCompletionsOptions options = new ChatCompletionsOptions(chatMessages);
-            options.setModel(githubModel);
-            
-            // Set max tokens if provided
-            if (maxTokens != null) {
-                options.setMaxTokens(maxTokens);
-            }
-            
-            // Set temperature if provided
-            if (temperature != null) {
-                options.setTemperature(Double.valueOf(temperature));
-            }
-            
-            // Make API call to GitHub Models
-            log.debug("Sending completion request to GitHub Models SDK with model: {}", githubModel);
-            ChatCompletions completions = chatCompletionsClient.complete(options);
-            
-            // Extract and return the response
-            String response = completions.getChoice().getMessage().getContent();
-            log.info("Successfully received completion response from GitHub Models SDK");
-            
-            return response;
-        } catch (Exception e) {
-            log.error("Error processing completion request with GitHub Models SDK: {}", e.getMessage(), e);
-            return "Error processing completion request: " + e.getMessage();
-        }
+        ChatCompletionsOptions options = buildCompletionOptions(model, prompt, maxTokens, temperature);
+
+        // Make API call to GitHub Models; errors propagate so the caller refunds the quota and audits a failure
+        log.debug("Sending completion request to GitHub Models SDK with model: {}", options.getModel());
+        ChatCompletions completions = complete(options);
+
+        // Extract and return the response
+        String response = completions.getChoice().getMessage().getContent();
+        log.info("Successfully received completion response from GitHub Models SDK");
+
+        return new CompletionResult(response, totalTokens(completions));
+    }
+
+    /**
+     * Non-blocking variant of {@link #processCompletionRequest}.
+     *
+     * @param model The AI model to use
+     * @param prompt The prompt for text completion
+     * @param maxTokens Maximum tokens to generate
+     * @param temperature Controls randomness (0-1)
+     * @return The model's response and token usage
+     */
+    public Mono<CompletionResult> processCompletionRequestAsync(AIModel model, String prompt,
+                                                                Integer maxTokens, Float temperature) {
+        log.info("Processing async completion request with model: {}, prompt length: {}", model.getName(), prompt.length());
+
+        return Mono.defer(() -> completeAsync(buildCompletionOptions(model, prompt, maxTokens, temperature)))
+                .map(completions -> new CompletionResult(completions.getChoice().getMessage().getContent(),
+                        totalTokens(completions)));
     }
 
     /**
@@ -140,10 +175,11 @@ public class GitHubModelsService {
      * @param model The AI model to use
      * @param message The user's message
      * @param imageFile The image file
-     * @return The model's response
+     * @return The model's response and token usage
      * @throws IOException If there's an error processing the image
+     * @throws UnsupportedModelRequestException If the model does not take images
      */
-    public String processMultimodalRequest(AIModel model,
+    public CompletionResult processMultimodalRequest(AIModel model,
                                            String message,  MultipartFile imageFile) throws IOException {
 
 
@@ -154,53 +190,140 @@ public class GitHubModelsService {
 
         if (!"OpenAI".equalsIgnoreCase(model.getProvider())
                 || !"gpt-4o".equalsIgnoreCase(model.getName())) {
-            return "Multimodal requests are currently only supported for OpenAI gpt-4o model";
+            throw new UnsupportedModelRequestException("Multimodal requests are currently only supported for OpenAI gpt-4o model");
         }
 
-        // 1) Persist the uploaded image to a temp file
-        byte[] imageBytes = imageFile.getBytes();
-        Path tmp = Files.createTempFile("upload-", ".jpg");
-        Files.write(tmp, imageBytes);
+        // 1) Encode the upload as a data URL, held against the in-flight image budget until the call returns
+        try (ImageDataUrlEncoder.DataUrl image = imageDataUrlEncoder.encode(imageFile)) {
 
-        // 2) Build the chat content
-        List<ChatMessageContentItem> contentItems = List.of(
-                new ChatMessageTextContentItem(message),
-                new ChatMessageImageContentItem(tmp, getImageType(imageFile))
-        );
-        List<ChatRequestMessage> chatMessages = List.of(
-                new ChatRequestSystemMessage("You are a helpful assistant that can analyze images."),
-                new ChatRequestUserMessage(BinaryData.fromObject(contentItems))
-        );
+            // 2) Build the chat content
+            List<ChatMessageContentItem> contentItems = List.of(
+                    new ChatMessageTextContentItem(message),
+                    new ChatMessageImageContentItem(new ChatMessageImageUrl(image.url()))
+            );
+            List<ChatRequestMessage> chatMessages = List.of(
+                    new ChatRequestSystemMessage("You are a helpful assistant that can analyze images."),
+                    new ChatRequestUserMessage(BinaryData.fromObject(contentItems))
+            );
 
-        // 3) Dispatch to your vision-enabled GPT-4o deployment
-        ChatCompletionsOptions opts = new ChatCompletionsOptions(chatMessages)
-                .setModel(openaiModel);
-        log.debug("Sending multimodal request to Azure OpenAI deployment: {}", openaiModel);
+            // 3) Dispatch to your vision-enabled GPT-4o deployment
+            ChatCompletionsOptions opts = new ChatCompletionsOptions(chatMessages)
+                    .setModel(openaiModel);
+            log.debug("Sending multimodal request to Azure OpenAI deployment: {}", openaiModel);
 
-        ChatCompletions resp = chatCompletionsClient.complete(opts);
-        String answer = resp.getChoices().get(0).getMessage().getContent();
-        log.info("Successfully received multimodal response");
+            ChatCompletions resp = complete(opts);
+            String answer = resp.getChoices().get(0).getMessage().getContent();
+            log.info("Successfully received multimodal response");
 
-        return answer;
+            return new CompletionResult(answer, totalTokens(resp));
+        }
     }
 
 
     /**
      * Estimate the number of tokens that will be consumed by a request.
      *
+     * @param model The AI model the text is sent to, which selects the tokenizer vocabulary
+     * @param text The input text
+     * @return Estimated token count
+     */
+    public int estimateTokenCount(AIModel model, String text) {
+        return Tokenizer.countTokens(Tokenizer.Family.of(mapToGitHubModel(model)), text);
+    }
+
+    /**
+     * Estimate the number of tokens in a text when the model is not known, using the GPT-4o vocabulary.
+     *
      * @param text The input text
      * @return Estimated token count
      */
     public int estimateTokenCount(String text) {
-        // A simple estimation: roughly 4 characters per token
-        int baseEstimate = text.length() / 4 + 1;
-        
-        // Add some randomness to make it more realistic
-        int variance = Math.max(1, baseEstimate / 10);
-        return baseEstimate + random.nextInt(variance * 2) - variance;
+        return Tokenizer.countTokens(Tokenizer.Family.GPT_4O, text);
     }
 
     // Helper methods
+
+    /**
+     * Blocking upstream call with retries, breaker and hedging. Each attempt holds a slot of the
+     * model's bulkhead while it runs; hedges do not wait for one.
+     *
+     * @throws UpstreamUnavailableException if no slot frees up in time or the model's breaker is open
+     */
+    private ChatCompletions complete(ChatCompletionsOptions options) {
+        String model = options.getModel();
+        return resilience.call(model, hedge -> {
+            try (UpstreamConcurrencyLimiter.Permit permit = hedge
+                    ? concurrencyLimiter.tryAcquire(model) : concurrencyLimiter.acquire(model)) {
+                return chatCompletionsClient.complete(options);
+            }
+        });
+    }
+
+    /**
+     * Non-blocking upstream call. It holds no thread while it runs, so it takes a slot of the model's
+     * async bulkhead rather than one sized for blocking callers; beyond that it is shed at once.
+     */
+    private Mono<ChatCompletions> completeAsync(ChatCompletionsOptions options) {
+        return resilience.execute(options.getModel(), hedge -> Mono.using(
+                () -> concurrencyLimiter.tryAcquireAsync(options.getModel()),
+                permit -> chatCompletionsAsyncClient.complete(options),
+                UpstreamConcurrencyLimiter.Permit::close));
+    }
+
+    private ChatCompletionsOptions buildChatOptions(AIModel model, String message, String systemPrompt) {
+        // Determine which GitHub model to use based on provided AIModel
+        String githubModel = mapToGitHubModel(model);
+
+        // Create chat messages
+        List<ChatRequestMessage> chatMessages = new ArrayList<>();
+
+        // Add system prompt if provided
+        if (systemPrompt != null && !systemPrompt.isEmpty()) {
+            chatMessages.add(new ChatRequestSystemMessage(systemPrompt));
+        } else {
+            chatMessages.add(new ChatRequestSystemMessage("You are a helpful assistant."));
+        }
+
+        // Add user message
+        chatMessages.add(new ChatRequestUserMessage(message));
+
+        // Create chat completion options
+        ChatCompletionsOptions options = new ChatCompletionsOptions(chatMessages);
+        options.setModel(githubModel);
+        return options;
+    }
+
+    private ChatCompletionsOptions buildCompletionOptions(AIModel model, String prompt, Integer maxTokens, Float temperature) {
+        // For completion requests, we'll use the chat API with just the user message
+        String githubModel = mapToGitHubModel(model);
+
+        // Create chat messages (for completion, we just send the prompt as a user message)
+        List<ChatRequestMessage> chatMessages = new ArrayList<>();
+        chatMessages.add(new ChatRequestUserMessage(prompt));
+
+        // Create chat completion options
+        ChatCompletionsOptions options = new ChatCompletionsOptions(chatMessages);
+        options.setModel(githubModel);
+
+        // Set max tokens if provided
+        if (maxTokens != null) {
+            options.setMaxTokens(maxTokens);
+        }
+
+        // Set temperature if provided
+        if (temperature != null) {
+            options.setTemperature(Double.valueOf(temperature));
+        }
+        return options;
+    }
+
+    /**
+     * Total tokens reported by the upstream, or null if the response carries no usage.
+     */
+    private Integer totalTokens(ChatCompletions completions) {
+        CompletionsUsage usage = completions.getUsage();
+        return usage != null ? usage.getTotalTokens() : null;
+    }
     
     /**
      * Maps our internal AIModel to the appropriate GitHub Models SDK model identifier.
@@ -227,14 +350,6 @@ public class GitHubModelsService {
         }
     }
     
-    private String getImageType(MultipartFile imageFile) {
-        String contentType = imageFile.getContentType();
-        if (contentType != null && contentType.startsWith("image/")) {
-            return contentType.substring(6); // Return image type (jpeg, png, etc.)
-        }
-        return "jpeg"; // Default to jpeg if content type is not available
-    }
-
     private void validateImageFile(MultipartFile file) throws IOException {
         // Check if file is empty
         if (file.isEmpty()) {
@@ -252,4 +367,14 @@ public class GitHubModelsService {
             throw new IOException("File must be an image");
         }
     }
+
+    /**
+     * Text returned by the model together with the token usage reported by the upstream.
+     */
+    @Getter
+    @AllArgsConstructor
+    public static class CompletionResult {
+        private final String content;
+        private final Integer totalTokens; // null when the upstream did not report usage
+    }
 }
\ No newline at end of file
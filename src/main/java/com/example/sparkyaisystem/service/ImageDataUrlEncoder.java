@@ -0,0 +1,151 @@
+package com.example.sparkyaisystem.service;
+
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+import org.springframework.web.multipart.MultipartFile;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Base64;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Turns uploaded images into base64 data URLs for the inference API, without temp files.
+ * The upload is base64-encoded straight from its input stream into one array of exactly the
+ * data URL's length, so it is never copied to the heap in raw form or grown along the way.
+ * <p>
+ * Data URLs in flight are bounded: each holds its length in bytes from a shared budget until it
+ * is closed, that is until the upstream call that carries it has returned. When the budget is
+ * spent, requests wait up to {@code multimodal.image-wait-ms} and are then turned away.
+ */
+@Component
+@Slf4j
+public class ImageDataUrlEncoder {
+
+    private final Semaphore budget;
+    private final int maxInFlightBytes;
+    private final long waitMs;
+
+    public ImageDataUrlEncoder(MeterRegistry meterRegistry,
+                               @Value("${multimodal.max-in-flight-image-bytes:67108864}") int maxInFlightBytes,
+                               @Value("${multimodal.image-wait-ms:2000}") long waitMs) {
+        this.budget = new Semaphore(maxInFlightBytes, true);
+        this.maxInFlightBytes = maxInFlightBytes;
+        this.waitMs = waitMs;
+
+        Gauge.builder("multimodal.images.in_flight_bytes", budget, b -> maxInFlightBytes - b.availablePermits())
+                .description("Bytes of image data URLs held for upstream calls")
+                .register(meterRegistry);
+    }
+
+    /**
+     * Encodes the image as a {@code data:<content type>;base64,} URL. The caller must close the
+     * result once the URL is no longer needed.
+     *
+     * @throws IOException if the upload cannot be read or the in-flight budget stays exhausted
+     */
+    public DataUrl encode(MultipartFile image) throws IOException {
+        String prefix = "data:" + image.getContentType() + ";base64,";
+        long length = prefix.length() + 4 * ((image.getSize() + 2) / 3);
+        if (length > maxInFlightBytes) {
+            throw new IOException("Image file is too large to process");
+        }
+        acquire((int) length);
+
+        try {
+            byte[] url = new byte[(int) length];
+            ArrayOutputStream target = new ArrayOutputStream(url, prefix.getBytes(StandardCharsets.US_ASCII));
+            try (InputStream in = image.getInputStream(); OutputStream out = Base64.getEncoder().wrap(target)) {
+                in.transferTo(out);
+            }
+            if (target.position != url.length) {
+                throw new IOException("Image upload is shorter than its declared size");
+            }
+            return new DataUrl(new String(url, StandardCharsets.US_ASCII), (int) length);
+        } catch (IOException | RuntimeException e) {
+            budget.release((int) length);
+            throw e;
+        }
+    }
+
+    public int inFlightBytes() {
+        return maxInFlightBytes - budget.availablePermits();
+    }
+
+    private void acquire(int length) throws IOException {
+        try {
+            if (budget.tryAcquire(length, waitMs, TimeUnit.MILLISECONDS)) {
+                return;
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        log.warn("Rejecting image of {} bytes: {} bytes of images already in flight", length, inFlightBytes());
+        throw new IOException("Too many images are being processed, try again later");
+    }
+
+    /**
+     * An encoded image; closing it returns its bytes to the in-flight budget.
+     */
+    public final class DataUrl implements AutoCloseable {
+
+        private final String url;
+        private final int length;
+        private boolean closed;
+
+        private DataUrl(String url, int length) {
+            this.url = url;
+            this.length = length;
+        }
+
+        public String url() {
+            return url;
+        }
+
+        @Override
+        public void close() {
+            if (!closed) {
+                closed = true;
+                budget.release(length);
+            }
+        }
+    }
+
+    /**
+     * Fills a preallocated array, failing instead of growing if the upload is longer than declared.
+     */
+    private static final class ArrayOutputStream extends OutputStream {
+
+        private final byte[] target;
+        private int position;
+
+        ArrayOutputStream(byte[] target, byte[] prefix) {
+            this.target = target;
+            System.arraycopy(prefix, 0, target, 0, prefix.length);
+            this.position = prefix.length;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            if (position == target.length) {
+                throw new IOException("Image upload is larger than its declared size");
+            }
+            target[position++] = (byte) b;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            if (len > target.length - position) {
+                throw new IOException("Image upload is larger than its declared size");
+            }
+            System.arraycopy(b, off, target, position, len);
+            position += len;
+        }
+    }
+}
@@ -0,0 +1,143 @@
+package com.example.sparkyaisystem.service;
+
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.stereotype.Component;
+
+import java.sql.Timestamp;
+import java.time.LocalDateTime;
+import java.util.List;
+
+/**
+ * {@link QuotaLeaseCoordinator} on the limits and restrictions tables. Leases are granted with a conditional
+ * UPDATE that only succeeds while used plus leased stays within the maximum, so nodes racing for
+ * the same limit cannot over-allocate it; a node that loses the race reads the row again and retries.
+ */
+@Component
+@Slf4j
+public class JdbcQuotaLeaseCoordinator implements QuotaLeaseCoordinator {
+
+    static final String ROLL_SQL = "update limits set used_requests = 0, used_tokens = 0, leased_requests = 0, "
+            + "leased_tokens = 0, window_start_time = ?, window_end_time = ? where id = ? and window_end_time < ?";
+    static final String SELECT_SQL = "select max_requests_per_window, max_tokens_per_window, used_requests, used_tokens, "
+            + "leased_requests, leased_tokens, window_start_time, window_end_time from limits where id = ?";
+    static final String GRANT_SQL = "update limits set leased_requests = leased_requests + ?, "
+            + "leased_tokens = leased_tokens + ? where id = ? and window_end_time = ? "
+            + "and cast(used_requests as bigint) + leased_requests + ? <= max_requests_per_window "
+            + "and cast(used_tokens as bigint) + leased_tokens + ? <= max_tokens_per_window";
+    static final String COMMIT_SQL = "update limits set used_requests = used_requests + ?, used_tokens = used_tokens + ?, "
+            + "leased_requests = greatest(0, leased_requests - ?), leased_tokens = greatest(0, leased_tokens - ?) "
+            + "where id = ? and window_end_time = ?";
+    // Restriction windows follow the restriction's creation, so the new window is computed from the row
+    static final String COMPANY_WINDOW_SQL = "select window_type, created_at, window_end_time from restrictions where id = ?";
+    static final String COMPANY_ROLL_SQL = "update restrictions set used_requests = 0, used_tokens = 0, leased_requests = 0, "
+            + "leased_tokens = 0, window_start_time = ?, window_end_time = ? where id = ? "
+            + "and (window_end_time is null or window_end_time < ?)";
+    static final String COMPANY_SELECT_SQL = "select max_requests_per_window, max_tokens_per_window, used_requests, "
+            + "used_tokens, leased_requests, leased_tokens, window_start_time, window_end_time from restrictions where id = ?";
+    static final String COMPANY_GRANT_SQL = "update restrictions set leased_requests = leased_requests + ?, "
+            + "leased_tokens = leased_tokens + ? where id = ? and window_end_time = ? "
+            + "and cast(used_requests as bigint) + leased_requests + ? <= max_requests_per_window "
+            + "and cast(used_tokens as bigint) + leased_tokens + ? <= max_tokens_per_window";
+    static final String COMPANY_COMMIT_SQL = "update restrictions set used_requests = used_requests + ?, "
+            + "used_tokens = used_tokens + ?, leased_requests = greatest(0, leased_requests - ?), "
+            + "leased_tokens = greatest(0, leased_tokens - ?) where id = ? and window_end_time = ?";
+    private static final int MAX_ATTEMPTS = 5;
+
+    private final JdbcTemplate jdbcTemplate;
+
+    public JdbcQuotaLeaseCoordinator(JdbcTemplate jdbcTemplate) {
+        this.jdbcTemplate = jdbcTemplate;
+    }
+
+    @Override
+    public Lease acquire(Long limitId, String windowType, int requests, int tokens) {
+        LocalDateTime now = LocalDateTime.now();
+        jdbcTemplate.update(ROLL_SQL, Timestamp.valueOf(now),
+                Timestamp.valueOf(LimitService.calculateWindowEndTime(now, windowType)), limitId, Timestamp.valueOf(now));
+        return grant(SELECT_SQL, GRANT_SQL, "Limit", limitId, requests, tokens);
+    }
+
+    @Override
+    public void commit(List<Usage> usage) {
+        commit(COMMIT_SQL, usage);
+    }
+
+    @Override
+    public Lease acquireCompany(Long restrictionId, int requests, int tokens) {
+        LocalDateTime now = LocalDateTime.now();
+        Window window = jdbcTemplate.query(COMPANY_WINDOW_SQL, rs -> rs.next() ? new Window(rs.getString(1),
+                rs.getTimestamp(2).toLocalDateTime(),
+                rs.getTimestamp(3) != null ? rs.getTimestamp(3).toLocalDateTime() : null) : null, restrictionId);
+        if (window == null) {
+            throw new RuntimeException("Restriction not found");
+        }
+        if (window.endTime() == null || now.isAfter(window.endTime())) {
+            LocalDateTime windowStart = LimitService.currentWindowStart(window.createdAt(), window.type(), now);
+            jdbcTemplate.update(COMPANY_ROLL_SQL, Timestamp.valueOf(windowStart),
+                    Timestamp.valueOf(LimitService.calculateWindowEndTime(windowStart, window.type())), restrictionId,
+                    Timestamp.valueOf(now));
+        }
+        return grant(COMPANY_SELECT_SQL, COMPANY_GRANT_SQL, "Restriction", restrictionId, requests, tokens);
+    }
+
+    @Override
+    public void commitCompany(List<Usage> usage) {
+        commit(COMPANY_COMMIT_SQL, usage);
+    }
+
+    /**
+     * Leases what is left of the row's current window, up to the given amounts.
+     */
+    private Lease grant(String selectSql, String grantSql, String kind, Long id, int requests, int tokens) {
+        for (int attempt = 1; ; attempt++) {
+            Row row = jdbcTemplate.query(selectSql, rs -> rs.next() ? new Row(
+                    rs.getInt(1), rs.getInt(2), rs.getInt(3) + rs.getInt(5), rs.getInt(4) + rs.getInt(6),
+                    rs.getTimestamp(7).toLocalDateTime(), rs.getTimestamp(8).toLocalDateTime()) : null, id);
+            if (row == null) {
+                throw new RuntimeException(kind + " not found");
+            }
+
+            int grantedRequests = Math.max(0, Math.min(requests, row.maxRequests() - row.allocatedRequests()));
+            int grantedTokens = Math.max(0, Math.min(tokens, row.maxTokens() - row.allocatedTokens()));
+            if (grantedRequests == 0 && grantedTokens == 0) {
+                return row.lease(0, 0);
+            }
+            int updated = jdbcTemplate.update(grantSql, grantedRequests, grantedTokens, id,
+                    Timestamp.valueOf(row.windowEndTime()), grantedRequests, grantedTokens);
+            if (updated == 1) {
+                return row.lease(grantedRequests, grantedTokens);
+            }
+            if (attempt == MAX_ATTEMPTS) {
+                log.warn("Gave up leasing quota of {} {} after {} attempts", kind.toLowerCase(), id, attempt);
+                return row.lease(0, 0);
+            }
+        }
+    }
+
+    private void commit(String commitSql, List<Usage> usage) {
+        if (usage.isEmpty()) {
+            return;
+        }
+        jdbcTemplate.batchUpdate(commitSql, usage, usage.size(), (ps, u) -> {
+            ps.setInt(1, u.usedRequests());
+            ps.setInt(2, u.usedTokens());
+            ps.setInt(3, u.leasedRequests());
+            ps.setInt(4, u.leasedTokens());
+            ps.setLong(5, u.id());
+            ps.setTimestamp(6, Timestamp.valueOf(u.windowEndTime()));
+        });
+    }
+
+    private record Window(String type, LocalDateTime createdAt, LocalDateTime endTime) {
+    }
+
+    private record Row(int maxRequests, int maxTokens, int allocatedRequests, int allocatedTokens,
+                       LocalDateTime windowStartTime, LocalDateTime windowEndTime) {
+
+        Lease lease(int requests, int tokens) {
+            return new Lease(requests, tokens, allocatedRequests + requests, allocatedTokens + tokens,
+                    windowStartTime, windowEndTime);
+        }
+    }
+}
@@ -1,6 +1,5 @@
 package com.example.sparkyaisystem.service;
 
-import com.example.sparkyaisystem.exception.LimitExceededException;
 import com.example.sparkyaisystem.model.dto.limit.LimitRequest;
 import com.example.sparkyaisystem.model.dto.limit.LimitResponse;
 import com.example.sparkyaisystem.model.entity.AIModel;
@@ -13,12 +12,24 @@ import com.example.sparkyaisystem.repository.CompanyRepository;
 import com.example.sparkyaisystem.repository.LimitRepository;
 import com.example.sparkyaisystem.repository.RestrictionRepository;
 import com.example.sparkyaisystem.repository.UserRepository;
+import com.example.sparkyaisystem.scheduler.LimitExpiryWheel;
+import com.example.sparkyaisystem.security.AuthenticatedUser;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
 import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.ApplicationEventPublisher;
+import org.springframework.data.domain.PageRequest;
 import org.springframework.stereotype.Service;
 import org.springframework.transaction.annotation.Transactional;
 
+import java.time.Duration;
 import java.time.LocalDateTime;
+import java.time.temporal.ChronoUnit;
 import java.util.List;
+import java.util.Map;
+import java.util.Optional;
 import java.util.stream.Collectors;
 
 @Service
@@ -30,17 +41,36 @@ public class LimitService {
     private final AIModelRepository aiModelRepository;
     private final CompanyRepository companyRepository;
     private final RestrictionRepository restrictionRepository;
+    private final QuotaEngine quotaEngine;
+    private final LimitExpiryWheel expiryWheel;
+    private final ApplicationEventPublisher eventPublisher;
+    private final Counter limitsReset;
+    private final Counter resetChunks;
+    private final Timer resetSweeps;
+
+    @Value("${limits.reset.chunk-size:1000}")
+    private int resetChunkSize = 1000;
 
     public LimitService(LimitRepository limitRepository,
                         UserRepository userRepository,
                         AIModelRepository aiModelRepository,
                         CompanyRepository companyRepository,
-                        RestrictionRepository restrictionRepository) {
+                        RestrictionRepository restrictionRepository,
+                        QuotaEngine quotaEngine,
+                        LimitExpiryWheel expiryWheel,
+                        ApplicationEventPublisher eventPublisher,
+                        MeterRegistry meterRegistry) {
         this.limitRepository = limitRepository;
         this.userRepository = userRepository;
         this.aiModelRepository = aiModelRepository;
         this.companyRepository = companyRepository;
         this.restrictionRepository = restrictionRepository;
+        this.quotaEngine = quotaEngine;
+        this.expiryWheel = expiryWheel;
+        this.eventPublisher = eventPublisher;
+        this.limitsReset = meterRegistry.counter("limits.reset.rows");
+        this.resetChunks = meterRegistry.counter("limits.reset.chunks");
+        this.resetSweeps = meterRegistry.timer("limits.reset.sweep");
     }
 
     @Transactional
@@ -88,7 +118,9 @@ public class LimitService {
 
         user.addLimit(limit);
 
-        return mapToLimitResponse(limitRepository.save(limit));
+        Limit saved = limitRepository.save(limit);
+        expiryWheel.register(saved.getWindowEndTime());
+        return mapToLimitResponse(saved);
     }
 
     public List<LimitResponse> getLimitsByUser(Long companyId, Long userId) {
@@ -155,6 +187,9 @@ public class LimitService {
             throw new RuntimeException("User token limit cannot exceed company restriction");
         }
 
+        // The cached slot takes the new settings once they are committed; until then it admits under the old ones
+        eventPublisher.publishEvent(new QuotaEngine.LimitChanged(limit.getUser().getId(), limit.getModel().getId()));
+
         // Update limit
         limit.setUser(user);
         limit.setModel(model);
@@ -171,9 +206,13 @@ public class LimitService {
             // Reset usage counters
             limit.setUsedRequests(0);
             limit.setUsedTokens(0);
+            limit.setLeasedRequests(0);
+            limit.setLeasedTokens(0);
         }
 
-        return mapToLimitResponse(limitRepository.save(limit));
+        Limit saved = limitRepository.save(limit);
+        expiryWheel.register(saved.getWindowEndTime());
+        return mapToLimitResponse(saved);
     }
 
     @Transactional
@@ -190,81 +229,142 @@ public class LimitService {
         }
 
         User user = limit.getUser();
+        eventPublisher.publishEvent(new QuotaEngine.LimitChanged(user.getId(), limit.getModel().getId()));
         user.removeLimit(limit);
         limitRepository.delete(limit);
     }
 
-    @Transactional
-    public void resetExpiredLimits() {
-        LocalDateTime now = LocalDateTime.now();
-        List<Limit> expiredLimits = limitRepository.findAll().stream()
-                .filter(limit -> limit.getWindowEndTime().isBefore(now))
-                .collect(Collectors.toList());
+    /**
+     * Starts a new window for every limit whose window has ended, walking the expired rows in
+     * (window end, id) order in chunks of {@code limits.reset.chunk-size}. Each chunk is reset with one bulk
+     * UPDATE per window type, committed on its own, so the sweep never holds many rows in memory
+     * or one long transaction.
+     * <p>
+     * Limits in use are rolled over lazily by {@link QuotaEngine} and flushed with their new
+     * window, so they are no longer expired here; the sweep resets the ones nobody has used since.
+     *
+     * @return the number of limits reset
+     */
+    public int resetExpiredLimits() {
+        return resetSweeps.record(() -> {
+            LocalDateTime now = LocalDateTime.now();
+            int reset = 0;
+            LimitRepository.ExpiredWindow last = null;
+            while (true) {
+                PageRequest page = PageRequest.of(0, resetChunkSize);
+                // Keyed on the last row seen rather than offset: reset rows leave the range, skipped ones stay
+                List<LimitRepository.ExpiredWindow> chunk = last == null
+                        ? limitRepository.findExpiredWindows(now, page)
+                        : limitRepository.findExpiredWindowsAfter(now, last.getWindowEndTime(), last.getId(), page);
+                if (chunk.isEmpty()) {
+                    break;
+                }
+
+                Map<String, List<Long>> idsByWindowType = chunk.stream().collect(Collectors.groupingBy(
+                        LimitRepository.ExpiredWindow::getWindowType,
+                        Collectors.mapping(LimitRepository.ExpiredWindow::getId, Collectors.toList())));
+                for (Map.Entry<String, List<Long>> entry : idsByWindowType.entrySet()) {
+                    reset += resetWindows(entry.getValue(), now, entry.getKey());
+                }
+
+                last = chunk.get(chunk.size() - 1);
+                resetChunks.increment();
+                log.debug("Reset expired limits up to window end {} ({} so far)", last.getWindowEndTime(), reset);
+                if (chunk.size() < resetChunkSize) {
+                    break;
+                }
+            }
+            return reset;
+        });
+    }
 
-        for (Limit limit : expiredLimits) {
-            limit.setUsedRequests(0);
-            limit.setUsedTokens(0);
-            limit.setWindowStartTime(now);
-            limit.setWindowEndTime(calculateWindowEndTime(now, limit.getWindowType()));
-            limitRepository.save(limit);
+    private int resetWindows(List<Long> ids, LocalDateTime now, String windowType) {
+        LocalDateTime windowEnd;
+        try {
+            windowEnd = calculateWindowEndTime(now, windowType);
+        } catch (IllegalArgumentException e) {
+            // Leave the rows alone rather than failing the whole sweep
+            log.error("Skipping {} expired limits: {}", ids.size(), e.getMessage());
+            return 0;
         }
+        int updated = limitRepository.resetWindows(ids, now, windowEnd);
+        limitsReset.increment(updated);
+        if (updated > 0) {
+            expiryWheel.register(windowEnd);
+        }
+        return updated;
     }
 
-    @Transactional
-    public void checkAndUpdateLimit(User user, AIModel model, int tokensToConsume) {
-        log.debug("Checking limit for user: {}, model: {}, tokens: {}", user.getEmail(), model.getName(), tokensToConsume);
+    /**
+     * Registers the window ends of all limits with the reset scheduler's timing wheel, walking
+     * the distinct end times in order so only one chunk is in memory at a time.
+     *
+     * @return the number of distinct window ends registered
+     */
+    public int scheduleUpcomingResets() {
+        LocalDateTime after = LocalDateTime.now();
+        LocalDateTime until = after.plusDays(LimitExpiryWheel.HORIZON_DAYS);
+        int registered = 0;
+        while (true) {
+            List<LocalDateTime> chunk = limitRepository.findWindowEndTimes(after, until,
+                    PageRequest.of(0, resetChunkSize));
+            chunk.forEach(expiryWheel::register);
+            registered += chunk.size();
+            if (chunk.size() < resetChunkSize) {
+                return registered;
+            }
+            after = chunk.get(chunk.size() - 1);
+        }
+    }
 
-        Limit limit = limitRepository.findByUserAndModel(user, model)
-                .orElseThrow(() -> new RuntimeException("User does not have a limit for this model"));
+    public QuotaEngine.QuotaSnapshot checkAndUpdateLimit(AuthenticatedUser user, AIModel model, int tokensToConsume) {
+        log.debug("Checking limit for user: {}, model: {}, tokens: {}", user.email(), model.getName(), tokensToConsume);
 
-        // Check if window has expired
-        LocalDateTime now = LocalDateTime.now();
-        if (now.isAfter(limit.getWindowEndTime())) {
-            log.debug("Limit window has expired, resetting limit for user: {}, model: {}", user.getEmail(), model.getName());
-            // Reset limit
-            limit.setUsedRequests(0);
-            limit.setUsedTokens(0);
-            limit.setWindowStartTime(now);
-            limit.setWindowEndTime(calculateWindowEndTime(now, limit.getWindowType()));
-        }
+        // Admission is decided in memory; usage is written back to the limits table by QuotaEngine.flush()
+        QuotaEngine.QuotaSnapshot snapshot = quotaEngine.tryAcquire(user.id(), model, tokensToConsume);
 
-        // Check if requests limit would be exceeded
-        if (limit.getUsedRequests() + 1 > limit.getMaxRequestsPerWindow()) {
-            log.warn("Request limit exceeded for user: {}, model: {}, current: {}, max: {}", 
-                    user.getEmail(), model.getName(), limit.getUsedRequests(), limit.getMaxRequestsPerWindow());
-
-            throw new LimitExceededException(
-                    "requests", 
-                    limit.getUsedRequests(), 
-                    limit.getMaxRequestsPerWindow(),
-                    limit.getWindowType(),
-                    limit.getWindowEndTime()
-            );
-        }
+        log.debug("Limit updated for user: {}, model: {}, new requests: {}, new tokens: {}",
+                user.email(), model.getName(), snapshot.getUsedRequests(), snapshot.getUsedTokens());
+        return snapshot;
+    }
 
-        // Check if tokens limit would be exceeded
-        if (limit.getUsedTokens() + tokensToConsume > limit.getMaxTokensPerWindow()) {
-            log.warn("Token limit exceeded for user: {}, model: {}, current: {}, max: {}", 
-                    user.getEmail(), model.getName(), limit.getUsedTokens(), limit.getMaxTokensPerWindow());
-
-            throw new LimitExceededException(
-                    "tokens", 
-                    limit.getUsedTokens(), 
-                    limit.getMaxTokensPerWindow(),
-                    limit.getWindowType(),
-                    limit.getWindowEndTime()
-            );
-        }
+    /**
+     * Admits one request and reserves the estimated tokens for an upstream call.
+     * The reservation must be settled with the actual usage or released if the call fails.
+     */
+    public QuotaEngine.Reservation reserve(AuthenticatedUser user, AIModel model, int estimatedTokens) {
+        log.debug("Reserving limit for user: {}, model: {}, tokens: {}", user.email(), model.getName(), estimatedTokens);
+        return quotaEngine.reserve(user.id(), model, estimatedTokens);
+    }
+
+    public QuotaEngine.QuotaSnapshot settle(QuotaEngine.Reservation reservation, int actualTokens) {
+        log.debug("Settling reservation {} with {} tokens (estimated {})",
+                reservation.getId(), actualTokens, reservation.getEstimatedTokens());
+        return quotaEngine.settle(reservation, actualTokens);
+    }
+
+    /**
+     * Charges tokens produced while a response is still being generated.
+     *
+     * @throws com.example.sparkyaisystem.exception.LimitExceededException if the token limit would be exceeded
+     */
+    public QuotaEngine.QuotaSnapshot extend(QuotaEngine.Reservation reservation, int tokens) {
+        return quotaEngine.extend(reservation, tokens);
+    }
 
-        // Update limit usage
-        limit.setUsedRequests(limit.getUsedRequests() + 1);
-        limit.setUsedTokens(limit.getUsedTokens() + tokensToConsume);
-        limitRepository.save(limit);
+    public void release(QuotaEngine.Reservation reservation) {
+        log.debug("Releasing reservation {} ({} tokens)", reservation.getId(), reservation.getEstimatedTokens());
+        quotaEngine.release(reservation);
+    }
 
-        log.debug("Limit updated for user: {}, model: {}, new requests: {}, new tokens: {}", 
-                user.getEmail(), model.getName(), limit.getUsedRequests(), limit.getUsedTokens());
+    public int releaseExpiredReservations() {
+        return quotaEngine.releaseExpiredReservations();
     }
 
+    /**
+     * End of a window starting at {@code startTime}. For the rate based types, see {@link RateWindow},
+     * the window is one period and only counts the usage shown in the limits table.
+     */
     public static LocalDateTime calculateWindowEndTime(LocalDateTime startTime, String windowType) {
         switch (windowType.toLowerCase()) {
             case "daily":
@@ -274,11 +374,35 @@ public class LimitService {
             case "monthly":
                 return startTime.plusMonths(1);
             default:
-                throw new IllegalArgumentException("Invalid window type: " + windowType);
+                Duration period = RateWindow.periodOf(windowType);
+                if (period == null) {
+                    throw new IllegalArgumentException("Invalid window type: " + windowType);
+                }
+                return startTime.plus(period);
         }
     }
 
+    /**
+     * Start of the window of the given type that contains {@code now}, for windows repeating back to
+     * back from {@code anchor}.
+     */
+    public static LocalDateTime currentWindowStart(LocalDateTime anchor, String windowType, LocalDateTime now) {
+        ChronoUnit unit = switch (windowType.toLowerCase()) {
+            case "daily" -> ChronoUnit.DAYS;
+            case "weekly" -> ChronoUnit.WEEKS;
+            case "monthly" -> ChronoUnit.MONTHS;
+            default -> throw new IllegalArgumentException("Invalid window type: " + windowType);
+        };
+        if (now.isBefore(anchor)) {
+            return anchor;
+        }
+        return anchor.plus(unit.between(anchor, now), unit);
+    }
+
     private LimitResponse mapToLimitResponse(Limit limit) {
+        // Prefer live counters from the quota engine over possibly not-yet-flushed row values
+        Optional<QuotaEngine.QuotaSnapshot> live = quotaEngine.peek(limit.getUser().getId(), limit.getModel().getId());
+
         return LimitResponse.builder()
                 .id(limit.getId())
                 .userId(limit.getUser().getId())
@@ -290,11 +414,11 @@ public class LimitService {
                 .modelType(limit.getModel().getType())
                 .maxRequestsPerWindow(limit.getMaxRequestsPerWindow())
                 .maxTokensPerWindow(limit.getMaxTokensPerWindow())
-                .usedRequests(limit.getUsedRequests())
-                .usedTokens(limit.getUsedTokens())
+                .usedRequests(live.map(QuotaEngine.QuotaSnapshot::getUsedRequests).orElse(limit.getUsedRequests()))
+                .usedTokens(live.map(QuotaEngine.QuotaSnapshot::getUsedTokens).orElse(limit.getUsedTokens()))
                 .windowType(limit.getWindowType())
-                .windowStartTime(limit.getWindowStartTime())
-                .windowEndTime(limit.getWindowEndTime())
+                .windowStartTime(live.map(QuotaEngine.QuotaSnapshot::getWindowStartTime).orElse(limit.getWindowStartTime()))
+                .windowEndTime(live.map(QuotaEngine.QuotaSnapshot::getWindowEndTime).orElse(limit.getWindowEndTime()))
                 .createdAt(limit.getCreatedAt())
                 .updatedAt(limit.getUpdatedAt())
                 .build();
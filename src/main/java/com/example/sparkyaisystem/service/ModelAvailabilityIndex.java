@@ -0,0 +1,126 @@
+package com.example.sparkyaisystem.service;
+
+import com.example.sparkyaisystem.model.entity.AIModel;
+import com.example.sparkyaisystem.repository.RestrictionRepository;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.event.TransactionalEventListener;
+
+import java.time.Duration;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * In-memory view of which models each company may use: per company, a bitset of the model ids
+ * it has a restriction for, combined with the active flags of the {@link ModelCatalog}.
+ * Availability checks are then a map and a bit lookup instead of a restriction query per request.
+ * <p>
+ * The index is loaded on first use and dropped whenever {@link RestrictionService} publishes a
+ * {@link Changed} event. Events are handled after the publishing transaction commits, so the
+ * reload sees the new rows. The TTL bounds staleness for changes made by other instances or
+ * directly in the database.
+ */
+@Component
+@Slf4j
+public class ModelAvailabilityIndex {
+
+    /**
+     * Published when a restriction was created, deleted or moved to another model.
+     * The ids are informational; the whole index is reloaded.
+     */
+    public record Changed(Long companyId, Long modelId) {
+    }
+
+    private record Snapshot(Map<Long, BitSet> modelsByCompany, long loadedAtNanos) {
+    }
+
+    private final ModelCatalog modelCatalog;
+    private final RestrictionRepository restrictionRepository;
+    private final long ttlNanos;
+
+    // Bumped on every invalidation, so a load that raced with a change is not kept
+    private final AtomicLong generation = new AtomicLong();
+    // Held across the restriction query, where a monitor would pin a virtual thread to its carrier
+    private final ReentrantLock loadLock = new ReentrantLock();
+    private volatile Snapshot snapshot;
+
+    public ModelAvailabilityIndex(ModelCatalog modelCatalog,
+                                  RestrictionRepository restrictionRepository,
+                                  @Value("${models.availability-index.ttl-seconds:300}") long ttlSeconds) {
+        this.modelCatalog = modelCatalog;
+        this.restrictionRepository = restrictionRepository;
+        this.ttlNanos = Duration.ofSeconds(ttlSeconds).toNanos();
+    }
+
+    public boolean isAvailable(Long companyId, Long modelId) {
+        BitSet models = current().modelsByCompany().get(companyId);
+        return models != null && models.get(bit(modelId))
+                && modelCatalog.findById(modelId).map(AIModel::isActive).orElse(false);
+    }
+
+    /**
+     * Active models the company has a restriction for, in catalog order.
+     */
+    public List<AIModel> availableModels(Long companyId) {
+        BitSet models = current().modelsByCompany().get(companyId);
+        if (models == null) {
+            return List.of();
+        }
+        return modelCatalog.snapshot().activeModels().stream()
+                .filter(model -> models.get(bit(model.getId())))
+                .toList();
+    }
+
+    @TransactionalEventListener(fallbackExecution = true)
+    public void onChanged(Changed event) {
+        log.debug("Availability changed for company {} / model {}, dropping index",
+                event.companyId(), event.modelId());
+        invalidate();
+    }
+
+    public void invalidate() {
+        generation.incrementAndGet();
+        snapshot = null;
+    }
+
+    private Snapshot current() {
+        Snapshot current = snapshot;
+        if (current != null && System.nanoTime() - current.loadedAtNanos() < ttlNanos) {
+            return current;
+        }
+        loadLock.lock();
+        try {
+            current = snapshot;
+            if (current != null && System.nanoTime() - current.loadedAtNanos() < ttlNanos) {
+                return current;
+            }
+            long loadingGeneration = generation.get();
+            current = load();
+            if (generation.get() == loadingGeneration) {
+                snapshot = current;
+            }
+            return current;
+        } finally {
+            loadLock.unlock();
+        }
+    }
+
+    private Snapshot load() {
+        Map<Long, BitSet> modelsByCompany = new HashMap<>();
+        for (RestrictionRepository.CompanyModel pair : restrictionRepository.findAllCompanyModels()) {
+            modelsByCompany.computeIfAbsent(pair.getCompanyId(), id -> new BitSet()).set(bit(pair.getModelId()));
+        }
+
+        log.debug("Loaded availability index for {} companies", modelsByCompany.size());
+        return new Snapshot(modelsByCompany, System.nanoTime());
+    }
+
+    private static int bit(Long modelId) {
+        return Math.toIntExact(modelId);
+    }
+}
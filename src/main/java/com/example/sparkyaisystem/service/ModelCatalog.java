@@ -0,0 +1,116 @@
+package com.example.sparkyaisystem.service;
+
+import com.example.sparkyaisystem.model.entity.AIModel;
+import com.example.sparkyaisystem.repository.AIModelRepository;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.domain.Sort;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.event.TransactionalEventListener;
+
+import java.time.Duration;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Immutable snapshot of the AI model table, so resolving the model of a request does not hit the
+ * database. The catalog changes rarely: {@link AIModelService} publishes a {@link Changed} event
+ * on create, update and toggle, and after the commit the catalog is reloaded and swapped in.
+ * <p>
+ * Every snapshot carries a version that only increases when the catalog content changes.
+ * The refresh interval picks up changes made by other instances or directly in the database.
+ * <p>
+ * The models of a snapshot are shared between threads and must be treated as read-only.
+ */
+@Component
+@Slf4j
+public class ModelCatalog {
+
+    /**
+     * Published when a model was created or changed.
+     */
+    public record Changed(Long modelId) {
+    }
+
+    public record Snapshot(long version, List<AIModel> models, List<AIModel> activeModels,
+                           Map<Long, AIModel> byId, long loadedAtNanos) {
+
+        public Optional<AIModel> findById(Long id) {
+            return Optional.ofNullable(byId.get(id));
+        }
+    }
+
+    private final AIModelRepository aiModelRepository;
+    private final long refreshNanos;
+
+    // Not a monitor: a virtual thread that blocks on JDBC inside synchronized pins its carrier thread
+    private final ReentrantLock refreshLock = new ReentrantLock();
+    private volatile Snapshot snapshot;
+
+    public ModelCatalog(AIModelRepository aiModelRepository,
+                        @Value("${models.catalog.refresh-seconds:300}") long refreshSeconds) {
+        this.aiModelRepository = aiModelRepository;
+        this.refreshNanos = Duration.ofSeconds(refreshSeconds).toNanos();
+    }
+
+    public Snapshot snapshot() {
+        Snapshot current = snapshot;
+        if (isFresh(current)) {
+            return current;
+        }
+        return refresh(false);
+    }
+
+    public Optional<AIModel> findById(Long id) {
+        return snapshot().findById(id);
+    }
+
+    public long version() {
+        return snapshot().version();
+    }
+
+    @TransactionalEventListener(fallbackExecution = true)
+    public void onChanged(Changed event) {
+        log.debug("Model {} changed, reloading catalog", event.modelId());
+        refresh(true);
+    }
+
+    private boolean isFresh(Snapshot current) {
+        return current != null && System.nanoTime() - current.loadedAtNanos() < refreshNanos;
+    }
+
+    /**
+     * Loads the model table and swaps it in. Callers that find a stale snapshot wait for a single load.
+     */
+    private Snapshot refresh(boolean force) {
+        refreshLock.lock();
+        try {
+            Snapshot previous = snapshot;
+            if (!force && isFresh(previous)) {
+                return previous;
+            }
+            List<AIModel> models = aiModelRepository.findAll(Sort.by("id"));
+
+            Snapshot loaded;
+            if (previous != null && previous.models().equals(models)) {
+                // Same content, keep the version
+                loaded = new Snapshot(previous.version(), previous.models(), previous.activeModels(), previous.byId(),
+                        System.nanoTime());
+            } else {
+                Map<Long, AIModel> byId = new HashMap<>();
+                models.forEach(model -> byId.put(model.getId(), model));
+                long version = previous == null ? 1 : previous.version() + 1;
+                loaded = new Snapshot(version, List.copyOf(models),
+                        models.stream().filter(AIModel::isActive).toList(), Map.copyOf(byId), System.nanoTime());
+                log.info("Loaded model catalog version {} ({} models)", version, models.size());
+            }
+            snapshot = loaded;
+            return loaded;
+        } finally {
+            refreshLock.unlock();
+        }
+    }
+}
@@ -0,0 +1,564 @@
+package com.example.sparkyaisystem.service;
+
+import com.example.sparkyaisystem.exception.LimitExceededException;
+import com.example.sparkyaisystem.model.entity.AIModel;
+import com.example.sparkyaisystem.model.entity.Limit;
+import com.example.sparkyaisystem.model.entity.Restriction;
+import com.example.sparkyaisystem.repository.LimitRepository;
+import com.example.sparkyaisystem.scheduler.LimitExpiryWheel;
+import jakarta.annotation.PreDestroy;
+import lombok.AccessLevel;
+import lombok.AllArgsConstructor;
+import lombok.Getter;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Service;
+import org.springframework.transaction.annotation.Transactional;
+import org.springframework.transaction.event.TransactionalEventListener;
+
+import java.time.LocalDateTime;
+import java.time.temporal.ChronoUnit;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * In-memory quota engine for user/model limits.
+ * Usage counters live in lock-free slots keyed by (userId, modelId), so the admission
+ * decision on the hot path is a single CAS instead of a database read-modify-write.
+ * Slots touched since the last flush are written back to the limits table in batches.
+ * <p>
+ * Callers that only know the real token usage after the upstream call completes use
+ * {@link #reserve}, then {@link #settle} with the actual usage or {@link #release} on failure.
+ * Reservations that are neither settled nor released within the TTL are released by
+ * {@link #releaseExpiredReservations()}.
+ * <p>
+ * Above the user slots sits a bucket per company and model with a restriction, kept by
+ * {@link CompanyQuotas}; an admission is charged to both levels or to neither.
+ * <p>
+ * With {@code quota.backend=leased}, for several gateway nodes sharing the limits table, a slot no
+ * longer owns its limit: it admits against slices of the limit leased through {@link QuotaLeases}.
+ * Flushes commit the usage instead of overwriting the counters. The coordinator never leases beyond
+ * a limit, so only settle corrections above the estimate can overshoot it, and at most one slice per
+ * node is left unused when the limit runs out. Company buckets lease their restriction the same way.
+ * <p>
+ * Limits of the rate based types ({@link RateWindow}) are admitted by their rate window first; the
+ * slot counters then only track the usage of the period for the limits table. In leased mode the
+ * rate is enforced per node, within the quota leased per period.
+ */
+@Service
+@Slf4j
+public class QuotaEngine {
+
+    private final LimitRepository limitRepository;
+    private final LimitExpiryWheel expiryWheel;
+    private final CompanyQuotas companyQuotas;
+    private final QuotaLeases leases;
+
+    private final ConcurrentHashMap<SlotKey, QuotaSlot> slots = new ConcurrentHashMap<>();
+    private final Set<SlotKey> dirtyKeys = ConcurrentHashMap.newKeySet();
+    private final ConcurrentHashMap<String, Reservation> reservations = new ConcurrentHashMap<>();
+
+    @Value("${quota.reservation-ttl-ms:300000}")
+    private long reservationTtlMs = 300_000;
+
+    public QuotaEngine(LimitRepository limitRepository,
+                       LimitExpiryWheel expiryWheel,
+                       CompanyQuotas companyQuotas,
+                       QuotaLeases leases) {
+        this.limitRepository = limitRepository;
+        this.expiryWheel = expiryWheel;
+        this.companyQuotas = companyQuotas;
+        this.leases = leases;
+    }
+
+    /**
+     * Event published after a company restriction is created, changed or deleted.
+     */
+    public record RestrictionChanged(Long companyId, Long modelId) {
+    }
+
+    /**
+     * Event published after a user's limit for a model is changed or deleted.
+     */
+    public record LimitChanged(Long userId, Long modelId) {
+    }
+
+    /**
+     * Atomically admits one request consuming the given number of tokens, against both the
+     * user's limit and the company's restriction.
+     *
+     * @return the usage snapshot of the user's limit right after admission
+     * @throws LimitExceededException if a request or token limit of either level would be exceeded
+     */
+    public QuotaSnapshot tryAcquire(Long userId, AIModel model, int tokensToConsume) {
+        return admit(userId, model, tokensToConsume).snapshot();
+    }
+
+    private Admission admit(Long userId, AIModel model, int tokensToConsume) {
+        SlotKey key = new SlotKey(userId, model.getId());
+        QuotaSlot slot = getOrLoadSlot(key);
+        LocalDateTime now = LocalDateTime.now();
+
+        rollWindowIfExpired(slot, now);
+
+        CompanyBucket bucket = companyQuotas.bucket(slot.companyId, model.getId());
+        if (bucket == null) {
+            return new Admission(acquire(key, slot, model, tokensToConsume), null, null);
+        }
+        // Company usage only changes under the bucket's lock, so it cannot move between the check
+        // and charging both levels: either both are charged or neither
+        bucket.lock.lock();
+        try {
+            companyQuotas.rollWindowIfExpired(bucket, now);
+            companyQuotas.checkAdmits(bucket, 1, tokensToConsume);
+            QuotaSnapshot snapshot = acquire(key, slot, model, tokensToConsume);
+            bucket.charge(1, tokensToConsume);
+            return new Admission(snapshot, bucket, bucket.windowEndTime);
+        } finally {
+            bucket.lock.unlock();
+        }
+    }
+
+    private QuotaSnapshot acquire(SlotKey key, QuotaSlot slot, AIModel model, int tokensToConsume) {
+        checkRate(slot, 1, tokensToConsume);
+        try {
+            return acquireCounters(key, slot, model, tokensToConsume);
+        } catch (LimitExceededException e) {
+            if (slot.rate != null) {
+                slot.rate.adjust(System.nanoTime(), -1, -tokensToConsume);
+            }
+            throw e;
+        }
+    }
+
+    private void checkRate(QuotaSlot slot, int requests, int tokens) {
+        if (slot.rate == null) {
+            return;
+        }
+        RateWindow.Rejection rejection = slot.rate.tryAcquire(System.nanoTime(), requests, tokens);
+        if (rejection != null) {
+            log.warn("Rate limit exceeded for limit: {}, {}: {}, max: {}", slot.limitId,
+                    rejection.limitType(), rejection.current(), rejection.max());
+            throw new LimitExceededException(rejection.limitType(), rejection.current(), rejection.max(),
+                    slot.windowType, LocalDateTime.now().plusNanos(rejection.waitNanos()));
+        }
+    }
+
+    private QuotaSnapshot acquireCounters(SlotKey key, QuotaSlot slot, AIModel model, int tokensToConsume) {
+        while (true) {
+            long current = slot.state.get();
+            long ceiling = slot.ceiling;
+            int usedRequests = QuotaSlot.requestsOf(current);
+            int usedTokens = QuotaSlot.tokensOf(current);
+            boolean requestsLeft = usedRequests + 1 <= QuotaSlot.requestsOf(ceiling);
+            boolean tokensLeft = (long) usedTokens + tokensToConsume <= QuotaSlot.tokensOf(ceiling);
+
+            if (!(requestsLeft && tokensLeft) && leases.renew(slot, 1, tokensToConsume)) {
+                continue;
+            }
+            if (!requestsLeft) {
+                int total = QuotaSlot.requestsOf(slot.others) + usedRequests;
+                log.warn("Request limit exceeded for user: {}, model: {}, current: {}, max: {}",
+                        key.userId(), model.getName(), total, slot.maxRequests);
+                throw new LimitExceededException("requests", total, slot.maxRequests,
+                        slot.windowType, slot.windowEndTime);
+            }
+            if (!tokensLeft) {
+                int total = QuotaSlot.tokensOf(slot.others) + usedTokens;
+                log.warn("Token limit exceeded for user: {}, model: {}, current: {}, max: {}",
+                        key.userId(), model.getName(), total, slot.maxTokens);
+                throw new LimitExceededException("tokens", total, slot.maxTokens,
+                        slot.windowType, slot.windowEndTime);
+            }
+
+            long updated = QuotaSlot.pack(usedRequests + 1, usedTokens + tokensToConsume);
+            if (slot.state.compareAndSet(current, updated)) {
+                dirtyKeys.add(key);
+                leases.renewIfLow(slot, updated);
+                return slot.snapshot(updated);
+            }
+        }
+    }
+
+    /**
+     * Admits one request and holds the estimated tokens until the call is settled or released.
+     *
+     * @throws LimitExceededException if either the request or the token limit would be exceeded
+     */
+    public Reservation reserve(Long userId, AIModel model, int estimatedTokens) {
+        Admission admission = admit(userId, model, estimatedTokens);
+        Reservation reservation = new Reservation(UUID.randomUUID().toString(), userId, model.getId(),
+                estimatedTokens, admission.snapshot(), LocalDateTime.now().plus(reservationTtlMs, ChronoUnit.MILLIS));
+        reservation.companyBucket = admission.bucket();
+        reservation.companyWindowEndTime = admission.companyWindowEndTime();
+        reservations.put(reservation.getId(), reservation);
+        return reservation;
+    }
+
+    /**
+     * Replaces the estimated charge of a reservation with the actual token usage.
+     * If the reservation already expired and was released, the request is charged again in full.
+     */
+    public QuotaSnapshot settle(Reservation reservation, int actualTokens) {
+        boolean pending = reservations.remove(reservation.getId()) != null;
+        int requestsDelta = pending ? 0 : 1;
+        int tokensDelta = pending ? actualTokens - reservation.getChargedTokens() : actualTokens;
+        return adjust(reservation, requestsDelta, tokensDelta);
+    }
+
+    /**
+     * Charges additional tokens to a pending reservation, e.g. while a response is streamed.
+     *
+     * @throws LimitExceededException if the extra tokens would exceed the user's or the company's token limit
+     */
+    public QuotaSnapshot extend(Reservation reservation, int tokens) {
+        QuotaSlot slot = slots.get(new SlotKey(reservation.getUserId(), reservation.getModelId()));
+        if (slot == null || !reservations.containsKey(reservation.getId())
+                || !slot.windowEndTime.equals(reservation.getSnapshot().getWindowEndTime())) {
+            return reservation.getSnapshot();
+        }
+
+        CompanyBucket bucket = reservation.companyBucket;
+        if (bucket == null) {
+            return extend(reservation, slot, tokens);
+        }
+        bucket.lock.lock();
+        try {
+            if (!bucket.windowEndTime.equals(reservation.companyWindowEndTime)) {
+                return extend(reservation, slot, tokens);
+            }
+            companyQuotas.checkAdmits(bucket, 0, tokens);
+            QuotaSnapshot snapshot = extend(reservation, slot, tokens);
+            bucket.charge(0, tokens);
+            return snapshot;
+        } finally {
+            bucket.lock.unlock();
+        }
+    }
+
+    private QuotaSnapshot extend(Reservation reservation, QuotaSlot slot, int tokens) {
+        checkRate(slot, 0, tokens);
+        try {
+            return extendCounters(reservation, slot, tokens);
+        } catch (LimitExceededException e) {
+            if (slot.rate != null) {
+                slot.rate.adjust(System.nanoTime(), 0, -tokens);
+            }
+            throw e;
+        }
+    }
+
+    private QuotaSnapshot extendCounters(Reservation reservation, QuotaSlot slot, int tokens) {
+        while (true) {
+            long current = slot.state.get();
+            int usedTokens = QuotaSlot.tokensOf(current);
+            if ((long) usedTokens + tokens > QuotaSlot.tokensOf(slot.ceiling)) {
+                if (leases.renew(slot, 0, tokens)) {
+                    continue;
+                }
+                throw new LimitExceededException("tokens", QuotaSlot.tokensOf(slot.others) + usedTokens, slot.maxTokens,
+                        slot.windowType, slot.windowEndTime);
+            }
+            long updated = QuotaSlot.pack(QuotaSlot.requestsOf(current), usedTokens + tokens);
+            if (slot.state.compareAndSet(current, updated)) {
+                reservation.chargedTokens.addAndGet(tokens);
+                dirtyKeys.add(new SlotKey(reservation.getUserId(), reservation.getModelId()));
+                leases.renewIfLow(slot, updated);
+                return slot.snapshot(updated);
+            }
+        }
+    }
+
+    /**
+     * Refunds the request and the tokens held by a reservation.
+     */
+    public void release(Reservation reservation) {
+        if (reservations.remove(reservation.getId()) != null) {
+            adjust(reservation, -1, -reservation.getChargedTokens());
+        }
+    }
+
+    /**
+     * Releases every reservation whose TTL has elapsed.
+     *
+     * @return the number of reservations released
+     */
+    public int releaseExpiredReservations() {
+        LocalDateTime now = LocalDateTime.now();
+        int released = 0;
+        for (Reservation reservation : reservations.values()) {
+            if (reservation.getExpiresAt().isBefore(now) && reservations.remove(reservation.getId()) != null) {
+                adjust(reservation, -1, -reservation.getChargedTokens());
+                released++;
+            }
+        }
+        return released;
+    }
+
+    public int pendingReservations() {
+        return reservations.size();
+    }
+
+    /**
+     * Applies new restriction settings to the loaded company bucket, see {@link CompanyQuotas}.
+     */
+    @TransactionalEventListener(fallbackExecution = true)
+    public void onRestrictionChanged(RestrictionChanged event) {
+        companyQuotas.restrictionChanged(event.companyId(), event.modelId());
+    }
+
+    /**
+     * Applies new limit settings to a loaded slot once they are committed, keeping its usage while
+     * the window type is unchanged. Otherwise the slot is dropped and reloaded on the next admission.
+     */
+    @TransactionalEventListener(fallbackExecution = true)
+    public void onLimitChanged(LimitChanged event) {
+        QuotaSlot slot = slots.get(new SlotKey(event.userId(), event.modelId()));
+        if (slot == null) {
+            return;
+        }
+        Optional<Limit> limit = limitRepository.findByUserIdAndModelId(event.userId(), event.modelId());
+        if (limit.isPresent() && limit.get().getId().equals(slot.limitId)
+                && limit.get().getWindowType().equalsIgnoreCase(slot.windowType)) {
+            slot.resize(limit.get(), leases.enabled());
+        } else {
+            evict(event.userId(), event.modelId());
+        }
+        log.debug("Limit of user {} for model {} changed", event.userId(), event.modelId());
+    }
+
+    /**
+     * Returns the live usage for a user/model pair if it is currently held in memory.
+     * With leased quota this node only sees part of the usage, so the limits table is the better source.
+     */
+    public Optional<QuotaSnapshot> peek(Long userId, Long modelId) {
+        QuotaSlot slot = slots.get(new SlotKey(userId, modelId));
+        return slot == null || leases.enabled() ? Optional.empty() : Optional.of(slot.snapshot(slot.state.get()));
+    }
+
+    /**
+     * Drops the in-memory slot for a user/model pair so the next admission reloads it
+     * from the limits table. Returns the last known usage so callers can carry it over.
+     * With leased quota the usage is committed and the unused lease given back instead.
+     */
+    public Optional<QuotaSnapshot> evict(Long userId, Long modelId) {
+        SlotKey key = new SlotKey(userId, modelId);
+        dirtyKeys.remove(key);
+        QuotaSlot slot = slots.remove(key);
+        if (slot == null) {
+            return Optional.empty();
+        }
+        if (leases.enabled()) {
+            leases.commit(List.of(slot), true);
+            return Optional.empty();
+        }
+        return Optional.of(slot.snapshot(slot.state.get()));
+    }
+
+    /**
+     * Writes the counters of every slot modified since the last flush back to the limits table.
+     */
+    @Scheduled(fixedDelayString = "${quota.flush-interval-ms:1000}")
+    @Transactional
+    public void flush() {
+        companyQuotas.flush();
+        if (dirtyKeys.isEmpty()) {
+            return;
+        }
+        if (leases.enabled()) {
+            List<QuotaSlot> dirty = new ArrayList<>();
+            for (SlotKey key : dirtyKeys) {
+                dirtyKeys.remove(key);
+                QuotaSlot slot = slots.get(key);
+                if (slot != null) {
+                    dirty.add(slot);
+                }
+            }
+            leases.commit(dirty, false);
+            return;
+        }
+
+        Map<Long, QuotaSnapshot> pending = new HashMap<>();
+        for (SlotKey key : dirtyKeys) {
+            // Remove before reading so an admission racing with the flush re-marks the key
+            dirtyKeys.remove(key);
+            QuotaSlot slot = slots.get(key);
+            if (slot != null) {
+                pending.put(slot.limitId, slot.snapshot(slot.state.get()));
+            }
+        }
+
+        List<Limit> limits = new ArrayList<>();
+        for (Limit limit : limitRepository.findAllById(pending.keySet())) {
+            QuotaSnapshot snapshot = pending.get(limit.getId());
+            // The window type was changed since the slot was loaded; the row's reset usage stands
+            if (!limit.getWindowType().equalsIgnoreCase(snapshot.getWindowType())) {
+                continue;
+            }
+            snapshot.applyTo(limit);
+            // Windows rolled over in memory end later than the reset scheduler knows
+            expiryWheel.register(snapshot.getWindowEndTime());
+            limits.add(limit);
+        }
+        limitRepository.saveAll(limits);
+        log.debug("Flushed {} quota slots to the limits table", limits.size());
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        try {
+            if (leases.enabled()) {
+                // Give the unused leases back so the other nodes can use them
+                dirtyKeys.clear();
+                leases.commit(new ArrayList<>(slots.values()), true);
+            } else {
+                flush();
+            }
+            companyQuotas.shutdown();
+        } catch (Exception e) {
+            log.error("Error flushing quota slots on shutdown: {}", e.getMessage(), e);
+        }
+    }
+
+    private void rollWindowIfExpired(QuotaSlot slot, LocalDateTime now) {
+        if (leases.enabled()) {
+            leases.rollWindowIfExpired(slot, now);
+        } else {
+            slot.rollWindowIfExpired(now);
+        }
+    }
+
+    /**
+     * Applies a correction to the slot a reservation was taken from. Corrections are dropped
+     * when the window has rolled over since the reservation, because the original charge was
+     * already wiped by the reset.
+     */
+    private QuotaSnapshot adjust(Reservation reservation, int requestsDelta, int tokensDelta) {
+        CompanyBucket bucket = reservation.companyBucket;
+        if (bucket != null) {
+            bucket.lock.lock();
+            try {
+                if (bucket.windowEndTime.equals(reservation.companyWindowEndTime)) {
+                    bucket.charge(requestsDelta, tokensDelta);
+                }
+            } finally {
+                bucket.lock.unlock();
+            }
+        }
+
+        SlotKey key = new SlotKey(reservation.getUserId(), reservation.getModelId());
+        QuotaSlot slot = slots.get(key);
+        // Rate windows keep usage across periods, so their corrections always apply
+        if (slot != null && slot.rate != null) {
+            slot.rate.adjust(System.nanoTime(), requestsDelta, tokensDelta);
+        }
+        if (slot == null || !slot.windowEndTime.equals(reservation.getSnapshot().getWindowEndTime())) {
+            return slot == null ? reservation.getSnapshot() : slot.snapshot(slot.state.get());
+        }
+
+        while (true) {
+            long current = slot.state.get();
+            int usedRequests = Math.max(0, QuotaSlot.requestsOf(current) + requestsDelta);
+            int usedTokens = Math.max(0, QuotaSlot.tokensOf(current) + tokensDelta);
+            long updated = QuotaSlot.pack(usedRequests, usedTokens);
+            if (slot.state.compareAndSet(current, updated)) {
+                dirtyKeys.add(key);
+                return slot.snapshot(updated);
+            }
+        }
+    }
+
+    private QuotaSlot getOrLoadSlot(SlotKey key) {
+        QuotaSlot slot = slots.get(key);
+        if (slot != null) {
+            return slot;
+        }
+
+        Limit limit = limitRepository.findByUserIdAndModelId(key.userId(), key.modelId())
+                .orElseThrow(() -> new RuntimeException("User does not have a limit for this model"));
+        QuotaSlot loaded = new QuotaSlot(limit, leases.enabled());
+        QuotaSlot existing = slots.putIfAbsent(key, loaded);
+        return existing != null ? existing : loaded;
+    }
+
+    private record SlotKey(Long userId, Long modelId) {
+    }
+
+    private record Admission(QuotaSnapshot snapshot, CompanyBucket bucket, LocalDateTime companyWindowEndTime) {
+    }
+
+    /**
+     * Quota held for an in-flight upstream call.
+     */
+    @Getter
+    public static class Reservation {
+        private final String id;
+        private final Long userId;
+        private final Long modelId;
+        private final int estimatedTokens;
+        private final QuotaSnapshot snapshot;
+        private final LocalDateTime expiresAt;
+        @Getter(AccessLevel.NONE)
+        private final AtomicInteger chargedTokens;
+        // Company bucket charged on admission and its window end at the time, if any
+        @Getter(AccessLevel.NONE)
+        private CompanyBucket companyBucket;
+        @Getter(AccessLevel.NONE)
+        private LocalDateTime companyWindowEndTime;
+
+        public Reservation(String id, Long userId, Long modelId, int estimatedTokens,
+                           QuotaSnapshot snapshot, LocalDateTime expiresAt) {
+            this.id = id;
+            this.userId = userId;
+            this.modelId = modelId;
+            this.estimatedTokens = estimatedTokens;
+            this.snapshot = snapshot;
+            this.expiresAt = expiresAt;
+            this.chargedTokens = new AtomicInteger(estimatedTokens);
+        }
+
+        /**
+         * Tokens currently held by this reservation: the estimate plus any {@link #extend} charges.
+         */
+        public int getChargedTokens() {
+            return chargedTokens.get();
+        }
+    }
+
+    /**
+     * Immutable view of a limit's usage at a point in time.
+     */
+    @Getter
+    @AllArgsConstructor
+    public static class QuotaSnapshot {
+        private final int usedRequests;
+        private final int maxRequests;
+        private final int usedTokens;
+        private final int maxTokens;
+        private final String windowType;
+        private final LocalDateTime windowStartTime;
+        private final LocalDateTime windowEndTime;
+
+        public void applyTo(Limit limit) {
+            limit.setUsedRequests(usedRequests);
+            limit.setUsedTokens(usedTokens);
+            limit.setWindowStartTime(windowStartTime);
+            limit.setWindowEndTime(windowEndTime);
+        }
+
+        public void applyTo(Restriction restriction) {
+            restriction.setUsedRequests(usedRequests);
+            restriction.setUsedTokens(usedTokens);
+            restriction.setWindowStartTime(windowStartTime);
+            restriction.setWindowEndTime(windowEndTime);
+        }
+    }
+}
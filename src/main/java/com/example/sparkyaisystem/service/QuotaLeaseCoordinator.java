@@ -0,0 +1,55 @@
+package com.example.sparkyaisystem.service;
+
+import java.time.LocalDateTime;
+import java.util.List;
+
+/**
+ * Hands out slices of each limit's quota to the nodes sharing it, so a node can admit requests
+ * locally and only talks to the coordinator to top up its slice or record usage. Company
+ * restrictions, which cap all users of a company on a model together, are leased the same way.
+ * <p>
+ * The coordinator never leases more than a limit or restriction has left in its window: its used
+ * plus leased counters stay within its maximum, whatever the number of nodes.
+ */
+public interface QuotaLeaseCoordinator {
+
+    /**
+     * Leases up to the given number of requests and tokens from what is left of the limit's
+     * current window, first starting a new window if the stored one has ended.
+     * The lease may be smaller than asked for, or empty.
+     */
+    Lease acquire(Long limitId, String windowType, int requests, int tokens);
+
+    /**
+     * Adds usage to the limits' used counters and takes leased quota off their leased counters,
+     * either because it was consumed or because it is given back. Usage of a window that has
+     * since ended is dropped.
+     */
+    void commit(List<Usage> usage);
+
+    /**
+     * As {@link #acquire}, from what is left of a company restriction's current window. Restriction
+     * windows are counted from the restriction's creation.
+     */
+    Lease acquireCompany(Long restrictionId, int requests, int tokens);
+
+    /**
+     * As {@link #commit}, for usage of company restrictions.
+     */
+    void commitCompany(List<Usage> usage);
+
+    /**
+     * @param allocatedRequests requests of the window used or leased to any node after this lease
+     * @param allocatedTokens   tokens of the window used or leased to any node after this lease
+     */
+    record Lease(int requests, int tokens, int allocatedRequests, int allocatedTokens,
+                 LocalDateTime windowStartTime, LocalDateTime windowEndTime) {
+    }
+
+    /**
+     * @param id the id of the limit, or of the restriction for company usage
+     */
+    record Usage(Long id, LocalDateTime windowEndTime, int usedRequests, int usedTokens,
+                 int leasedRequests, int leasedTokens) {
+    }
+}
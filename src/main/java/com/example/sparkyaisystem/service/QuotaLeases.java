@@ -0,0 +1,254 @@
+package com.example.sparkyaisystem.service;
+
+import jakarta.annotation.PreDestroy;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Leasing of quota from the {@link QuotaLeaseCoordinator} for {@link QuotaEngine}, with
+ * {@code quota.backend=leased}.
+ * <p>
+ * Slots and company buckets admit against slices of their limit leased from the coordinator. A slot
+ * tops up in the background when its slice runs low and on the request path when it runs out; a
+ * company bucket takes a larger slice ({@code quota.lease.company-*}) on the request path only.
+ * Limits and restrictions the coordinator had nothing left of are not asked again for
+ * {@code quota.lease.retry-ms}, so rejections do not reach the database. Flushes commit the usage
+ * since the last one, and dropped slots and buckets give back the rest of their leases.
+ */
+@Component
+@Slf4j
+public class QuotaLeases {
+
+    private final QuotaLeaseCoordinator leaseCoordinator;
+    private final ExecutorService leaseRenewals = Executors.newSingleThreadExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "quota-lease-renewal");
+        thread.setDaemon(true);
+        return thread;
+    });
+    // Commits read and advance each slot's flushed state, so two at once would commit the same usage twice
+    private final ReentrantLock commitLock = new ReentrantLock();
+
+    // local: this node owns the limits; leased: quota is leased from the coordinator
+    @Value("${quota.backend:local}")
+    private String backend = "local";
+
+    @Value("${quota.lease.requests:20}")
+    private int leaseRequests = 20;
+
+    @Value("${quota.lease.tokens:20000}")
+    private int leaseTokens = 20_000;
+
+    // A company restriction is shared by all its users, so a node leases more of it at once
+    @Value("${quota.lease.company-requests:200}")
+    private int companyLeaseRequests = 200;
+
+    @Value("${quota.lease.company-tokens:200000}")
+    private int companyLeaseTokens = 200_000;
+
+    // Fraction of a lease left at which the next one is requested in the background
+    @Value("${quota.lease.renew-below:0.25}")
+    private double renewBelow = 0.25;
+
+    // How long a node waits before asking again for a limit the coordinator had nothing left of
+    @Value("${quota.lease.retry-ms:1000}")
+    private long leaseRetryMs = 1000;
+
+    public QuotaLeases(QuotaLeaseCoordinator leaseCoordinator) {
+        this.leaseCoordinator = leaseCoordinator;
+    }
+
+    /**
+     * Whether quota is leased from the coordinator rather than owned by this node.
+     */
+    public boolean enabled() {
+        return "leased".equalsIgnoreCase(backend);
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        leaseRenewals.shutdownNow();
+    }
+
+    /**
+     * Moves a slot whose window has ended to the current one: the coordinator starts the stored
+     * window over, and the lease moves the slot to it.
+     */
+    void rollWindowIfExpired(QuotaSlot slot, LocalDateTime now) {
+        if (!now.isAfter(slot.windowEndTime)) {
+            return;
+        }
+        slot.leaseLock.lock();
+        try {
+            if (now.isAfter(slot.windowEndTime)) {
+                takeLease(slot, 0, 0);
+            }
+        } finally {
+            slot.leaseLock.unlock();
+        }
+    }
+
+    /**
+     * Leases more quota for a slot that cannot admit the given usage from what it holds.
+     * Returns whether the slot can admit it now.
+     */
+    boolean renew(QuotaSlot slot, int requests, int tokens) {
+        if (!enabled()) {
+            return false;
+        }
+        slot.leaseLock.lock();
+        try {
+            if (slot.fits(requests, tokens)) {
+                return true;
+            }
+            if (System.currentTimeMillis() < slot.leaseRetryAt) {
+                return false;
+            }
+            takeLease(slot, requests, tokens);
+            if (slot.fits(requests, tokens)) {
+                return true;
+            }
+            slot.leaseRetryAt = System.currentTimeMillis() + leaseRetryMs;
+            return false;
+        } finally {
+            slot.leaseLock.unlock();
+        }
+    }
+
+    /**
+     * Requests the next lease in the background once less than {@code quota.lease.renew-below}
+     * of a lease is left, so admissions rarely wait for the coordinator.
+     */
+    void renewIfLow(QuotaSlot slot, long state) {
+        if (!enabled() || !slot.isLow(state, leaseRequests * renewBelow, leaseTokens * renewBelow)
+                || System.currentTimeMillis() < slot.leaseRetryAt || !slot.renewing.compareAndSet(false, true)) {
+            return;
+        }
+        try {
+            leaseRenewals.execute(() -> {
+                slot.leaseLock.lock();
+                try {
+                    if (slot.isLow(slot.state.get(), leaseRequests * renewBelow, leaseTokens * renewBelow)) {
+                        takeLease(slot, 0, 0);
+                    }
+                } catch (Exception e) {
+                    log.warn("Error renewing quota lease of limit {}: {}", slot.limitId, e.getMessage());
+                } finally {
+                    slot.renewing.set(false);
+                    slot.leaseLock.unlock();
+                }
+            });
+        } catch (RuntimeException e) {
+            slot.renewing.set(false);
+            log.warn("Quota lease renewal rejected for limit {}: {}", slot.limitId, e.getMessage());
+        }
+    }
+
+    /**
+     * Adds a lease of at least one slice to the slot. Must hold the slot's lease lock.
+     */
+    private void takeLease(QuotaSlot slot, int requests, int tokens) {
+        QuotaLeaseCoordinator.Lease lease = leaseCoordinator.acquire(slot.limitId, slot.windowType,
+                Math.max(leaseRequests, requests), Math.max(leaseTokens, tokens));
+        slot.apply(lease);
+        if (lease.requests() == 0 && lease.tokens() == 0) {
+            slot.leaseRetryAt = System.currentTimeMillis() + leaseRetryMs;
+        }
+    }
+
+    /**
+     * Moves a company bucket whose window has ended to the current one, as for slots.
+     * Must hold the bucket's lock.
+     */
+    void rollWindowIfExpired(CompanyBucket bucket, LocalDateTime now) {
+        if (now.isAfter(bucket.windowEndTime)) {
+            takeLease(bucket, 0, 0);
+        }
+    }
+
+    /**
+     * Leases more of the restriction for a company bucket that cannot admit the given usage from
+     * what it holds. Must hold the bucket's lock.
+     */
+    void renew(CompanyBucket bucket, int requests, int tokens) {
+        if (!bucket.fits(requests, tokens) && System.currentTimeMillis() >= bucket.leaseRetryAt) {
+            takeLease(bucket, requests, tokens);
+            if (!bucket.fits(requests, tokens)) {
+                bucket.leaseRetryAt = System.currentTimeMillis() + leaseRetryMs;
+            }
+        }
+    }
+
+    /**
+     * Adds a lease of at least one company slice to the bucket. Must hold the bucket's lock.
+     */
+    private void takeLease(CompanyBucket bucket, int requests, int tokens) {
+        QuotaLeaseCoordinator.Lease lease = leaseCoordinator.acquireCompany(bucket.restrictionId,
+                Math.max(companyLeaseRequests, requests), Math.max(companyLeaseTokens, tokens));
+        bucket.apply(lease);
+        if (lease.requests() == 0 && lease.tokens() == 0) {
+            bucket.leaseRetryAt = System.currentTimeMillis() + leaseRetryMs;
+        }
+    }
+
+    /**
+     * Commits the usage of the given slots since their last flush, giving back the rest of their
+     * leases when they are being dropped.
+     */
+    void commit(List<QuotaSlot> slots, boolean giveBack) {
+        commitLock.lock();
+        try {
+            List<QuotaLeaseCoordinator.Usage> usage = new ArrayList<>(slots.size());
+            List<Long> states = new ArrayList<>(slots.size());
+            for (QuotaSlot slot : slots) {
+                long state = slot.state.get();
+                usage.add(slot.usageSinceFlush(state, giveBack));
+                states.add(state);
+            }
+            leaseCoordinator.commit(usage);
+            // A flush that picked up a dropped slot before it was dropped has nothing left to commit
+            for (int i = 0; i < slots.size(); i++) {
+                slots.get(i).flushed(usage.get(i).windowEndTime(), states.get(i));
+            }
+            log.debug("Committed usage of {} quota slots", usage.size());
+        } finally {
+            commitLock.unlock();
+        }
+    }
+
+    /**
+     * Commits the usage of company buckets since their last flush, giving back the rest of their
+     * leases when they are being dropped.
+     */
+    void commitCompany(List<CompanyBucket> buckets, boolean giveBack) {
+        commitLock.lock();
+        try {
+            List<CompanyBucket> committed = new ArrayList<>(buckets.size());
+            List<QuotaLeaseCoordinator.Usage> usage = new ArrayList<>(buckets.size());
+            for (CompanyBucket bucket : buckets) {
+                QuotaLeaseCoordinator.Usage since = bucket.usageSinceFlush(giveBack);
+                if (since != null) {
+                    committed.add(bucket);
+                    usage.add(since);
+                }
+            }
+            if (usage.isEmpty()) {
+                return;
+            }
+            leaseCoordinator.commitCompany(usage);
+            for (int i = 0; i < committed.size(); i++) {
+                committed.get(i).flushed(usage.get(i));
+            }
+            log.debug("Committed usage of {} company buckets", usage.size());
+        } finally {
+            commitLock.unlock();
+        }
+    }
+}
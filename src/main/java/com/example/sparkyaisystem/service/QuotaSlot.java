@@ -0,0 +1,168 @@
+package com.example.sparkyaisystem.service;
+
+import com.example.sparkyaisystem.model.entity.Limit;
+import lombok.extern.slf4j.Slf4j;
+
+import java.time.LocalDateTime;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Counters for a single limit. Requests and tokens are packed into one long
+ * so both limits are checked and updated by the same CAS.
+ * <p>
+ * Admissions are checked against the ceiling: the limit's maximum when this node owns the limit,
+ * the quota leased so far in the window otherwise. With leased quota the state only counts this
+ * node's usage, and {@code others} what the rest of the nodes held at the last lease.
+ */
+@Slf4j
+final class QuotaSlot {
+    final Long limitId;
+    final Long companyId;
+    volatile int maxRequests;
+    volatile int maxTokens;
+    final String windowType;
+    volatile RateWindow rate;
+    final AtomicLong state;
+    volatile long ceiling;
+    volatile long others;
+    private volatile LocalDateTime windowStartTime;
+    volatile LocalDateTime windowEndTime;
+    // Leasing and committing, guarded by leaseLock
+    final ReentrantLock leaseLock = new ReentrantLock();
+    final AtomicBoolean renewing = new AtomicBoolean();
+    volatile long leaseRetryAt;
+    private long flushed;
+
+    QuotaSlot(Limit limit, boolean leased) {
+        this.limitId = limit.getId();
+        this.companyId = limit.getUser().getCompany() != null ? limit.getUser().getCompany().getId() : null;
+        this.maxRequests = limit.getMaxRequestsPerWindow();
+        this.maxTokens = limit.getMaxTokensPerWindow();
+        this.windowType = limit.getWindowType();
+        this.rate = RateWindow.of(windowType, maxRequests, maxTokens, System.nanoTime());
+        this.state = new AtomicLong(leased ? 0L : pack(limit.getUsedRequests(), limit.getUsedTokens()));
+        // The rate window admits rate based limits, the counters of a period may add up to more
+        this.ceiling = leased ? 0L : rate != null ? pack(Integer.MAX_VALUE, Integer.MAX_VALUE) : pack(maxRequests, maxTokens);
+        this.windowStartTime = limit.getWindowStartTime();
+        this.windowEndTime = limit.getWindowEndTime();
+        if (rate != null && !leased && windowEndTime.isAfter(LocalDateTime.now())) {
+            // Usage of the period from before the slot was loaded, counted as just now to stay on the safe side
+            rate.adjust(System.nanoTime(), limit.getUsedRequests(), limit.getUsedTokens());
+        }
+    }
+
+    /**
+     * Applies new maxima of the same window type, keeping the usage counted so far.
+     */
+    synchronized void resize(Limit limit, boolean leased) {
+        maxRequests = limit.getMaxRequestsPerWindow();
+        maxTokens = limit.getMaxTokensPerWindow();
+        if (rate != null) {
+            RateWindow resized = RateWindow.of(windowType, maxRequests, maxTokens, System.nanoTime());
+            if (!leased) {
+                // As on loading, the usage of the period is counted as just now
+                long current = state.get();
+                resized.adjust(System.nanoTime(), requestsOf(current), tokensOf(current));
+            }
+            rate = resized;
+        } else if (!leased) {
+            ceiling = pack(maxRequests, maxTokens);
+        }
+    }
+
+    boolean fits(int requests, int tokens) {
+        long current = state.get();
+        return requestsOf(current) + requests <= requestsOf(ceiling)
+                && (long) tokensOf(current) + tokens <= tokensOf(ceiling);
+    }
+
+    boolean isLow(long state, double requests, double tokens) {
+        return requestsOf(ceiling) - requestsOf(state) < requests || tokensOf(ceiling) - tokensOf(state) < tokens;
+    }
+
+    /**
+     * Adds a lease to the ceiling, or starts over from it if the lease is for a later window.
+     */
+    void apply(QuotaLeaseCoordinator.Lease lease) {
+        if (lease.windowEndTime().equals(windowEndTime)) {
+            ceiling = pack(requestsOf(ceiling) + lease.requests(), tokensOf(ceiling) + lease.tokens());
+        } else {
+            log.debug("Limit window has expired, resetting limit {}", limitId);
+            state.set(0L);
+            flushed = 0L;
+            ceiling = pack(lease.requests(), lease.tokens());
+            windowStartTime = lease.windowStartTime();
+            windowEndTime = lease.windowEndTime();
+        }
+        others = pack(Math.max(0, lease.allocatedRequests() - requestsOf(ceiling)),
+                Math.max(0, lease.allocatedTokens() - tokensOf(ceiling)));
+    }
+
+    /**
+     * Usage since the last flush. Of the quota leased, what was used within the ceiling is
+     * consumed; when giving back, everything not consumed before the last flush is returned.
+     */
+    QuotaLeaseCoordinator.Usage usageSinceFlush(long state, boolean giveBack) {
+        leaseLock.lock();
+        try {
+            long ceiling = this.ceiling;
+            int leasedRequests = giveBack
+                    ? requestsOf(ceiling) - Math.min(requestsOf(flushed), requestsOf(ceiling))
+                    : Math.min(requestsOf(state), requestsOf(ceiling)) - Math.min(requestsOf(flushed), requestsOf(ceiling));
+            int leasedTokens = giveBack
+                    ? tokensOf(ceiling) - Math.min(tokensOf(flushed), tokensOf(ceiling))
+                    : Math.min(tokensOf(state), tokensOf(ceiling)) - Math.min(tokensOf(flushed), tokensOf(ceiling));
+            return new QuotaLeaseCoordinator.Usage(limitId, windowEndTime,
+                    requestsOf(state) - requestsOf(flushed), tokensOf(state) - tokensOf(flushed),
+                    leasedRequests, leasedTokens);
+        } finally {
+            leaseLock.unlock();
+        }
+    }
+
+    void flushed(LocalDateTime windowEndTime, long state) {
+        leaseLock.lock();
+        try {
+            // A new window started meanwhile has nothing flushed yet
+            if (windowEndTime.equals(this.windowEndTime)) {
+                flushed = state;
+            }
+        } finally {
+            leaseLock.unlock();
+        }
+    }
+
+    void rollWindowIfExpired(LocalDateTime now) {
+        if (!now.isAfter(windowEndTime)) {
+            return;
+        }
+        synchronized (this) {
+            if (now.isAfter(windowEndTime)) {
+                log.debug("Limit window has expired, resetting limit {}", limitId);
+                state.set(0L);
+                windowStartTime = now;
+                windowEndTime = LimitService.calculateWindowEndTime(now, windowType);
+            }
+        }
+    }
+
+    QuotaEngine.QuotaSnapshot snapshot(long packed) {
+        long others = this.others;
+        return new QuotaEngine.QuotaSnapshot(requestsOf(others) + requestsOf(packed), maxRequests,
+                tokensOf(others) + tokensOf(packed), maxTokens, windowType, windowStartTime, windowEndTime);
+    }
+
+    static long pack(int requests, int tokens) {
+        return ((long) requests << 32) | (tokens & 0xFFFFFFFFL);
+    }
+
+    static int requestsOf(long state) {
+        return (int) (state >>> 32);
+    }
+
+    static int tokensOf(long state) {
+        return (int) state;
+    }
+}
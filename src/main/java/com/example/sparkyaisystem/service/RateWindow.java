@@ -0,0 +1,256 @@
+package com.example.sparkyaisystem.service;
+
+import java.time.Duration;
+import java.util.Arrays;
+import java.util.Locale;
+
+/**
+ * In-memory admission state of the rate based limit types, named after the algorithm and the period:
+ * <ul>
+ *   <li>{@code sliding_<period>}: at most the maximum within any span of one period, counted in
+ *       {@value #SUB_WINDOWS} sub-windows kept in a ring buffer</li>
+ *   <li>{@code token_bucket_<period>}: bursts of up to the maximum, refilled evenly over one period,
+ *       so sustained use is capped at the maximum per period</li>
+ * </ul>
+ * where the period is {@code second}, {@code minute}, {@code hour} or {@code day}.
+ * Unlike the fixed daily, weekly and monthly windows, quota is never handed back all at once,
+ * so a user cannot spend a whole window's quota right after it starts and then wait for the next.
+ * <p>
+ * Each instance is a few dozen bytes of counters behind one lock; callers pass {@link System#nanoTime()}.
+ */
+public abstract class RateWindow {
+
+    static final int SUB_WINDOWS = 20;
+
+    private static final String SLIDING = "sliding_";
+    private static final String TOKEN_BUCKET = "token_bucket_";
+
+    protected final int maxRequests;
+    protected final int maxTokens;
+    protected final long periodNanos;
+
+    private RateWindow(int maxRequests, int maxTokens, Duration period) {
+        this.maxRequests = maxRequests;
+        this.maxTokens = maxTokens;
+        this.periodNanos = period.toNanos();
+    }
+
+    /**
+     * The admission state for a limit of the given type, or null for fixed windows.
+     */
+    public static RateWindow of(String windowType, int maxRequests, int maxTokens, long now) {
+        Duration period = periodOf(windowType);
+        if (period == null) {
+            return null;
+        }
+        return windowType.toLowerCase(Locale.ROOT).startsWith(SLIDING)
+                ? new Sliding(maxRequests, maxTokens, period, now)
+                : new TokenBucket(maxRequests, maxTokens, period, now);
+    }
+
+    /**
+     * The period of a rate based limit type, or null for fixed windows.
+     *
+     * @throws IllegalArgumentException for a rate based type with an unknown period
+     */
+    public static Duration periodOf(String windowType) {
+        String type = windowType.toLowerCase(Locale.ROOT);
+        String unit;
+        if (type.startsWith(SLIDING)) {
+            unit = type.substring(SLIDING.length());
+        } else if (type.startsWith(TOKEN_BUCKET)) {
+            unit = type.substring(TOKEN_BUCKET.length());
+        } else {
+            return null;
+        }
+        return switch (unit) {
+            case "second" -> Duration.ofSeconds(1);
+            case "minute" -> Duration.ofMinutes(1);
+            case "hour" -> Duration.ofHours(1);
+            case "day" -> Duration.ofDays(1);
+            default -> throw new IllegalArgumentException("Invalid window type: " + windowType);
+        };
+    }
+
+    /**
+     * Admits the given usage.
+     *
+     * @return null if admitted, otherwise which limit it would exceed and how long until it would fit
+     */
+    public abstract Rejection tryAcquire(long now, int requests, int tokens);
+
+    /**
+     * Corrects the usage recorded for earlier admissions, e.g. a settled or released reservation.
+     */
+    public abstract void adjust(long now, int requests, int tokens);
+
+    /**
+     * @param waitNanos time until the usage would be admitted, assuming nothing else is
+     */
+    public record Rejection(String limitType, int current, int max, long waitNanos) {
+    }
+
+    /**
+     * Sliding window over a ring of sub-window counters with running totals, so admission is
+     * O(1) apart from clearing the sub-windows that passed since the last call. Usage leaves the
+     * window with the sub-window it was recorded in, a period after that sub-window ended.
+     */
+    private static final class Sliding extends RateWindow {
+        private final long subWindowNanos;
+        // One more than the period, so the window always spans at least a full period
+        private final int[] requests = new int[SUB_WINDOWS + 1];
+        private final int[] tokens = new int[SUB_WINDOWS + 1];
+        private final long origin;
+        private long current;
+        private long totalRequests;
+        private long totalTokens;
+
+        private Sliding(int maxRequests, int maxTokens, Duration period, long now) {
+            super(maxRequests, maxTokens, period);
+            this.subWindowNanos = Math.max(1, periodNanos / SUB_WINDOWS);
+            this.origin = now;
+        }
+
+        @Override
+        public synchronized Rejection tryAcquire(long now, int requests, int tokens) {
+            advance(now);
+            if (totalRequests + requests > maxRequests) {
+                return new Rejection("requests", (int) totalRequests, maxRequests, waitNanos(now, this.requests,
+                        totalRequests + requests - maxRequests));
+            }
+            if (totalTokens + tokens > maxTokens) {
+                return new Rejection("tokens", (int) Math.min(totalTokens, Integer.MAX_VALUE), maxTokens,
+                        waitNanos(now, this.tokens, totalTokens + tokens - maxTokens));
+            }
+            record(requests, tokens);
+            return null;
+        }
+
+        @Override
+        public synchronized void adjust(long now, int requests, int tokens) {
+            advance(now);
+            if (requests >= 0 && tokens >= 0) {
+                record(requests, tokens);
+                return;
+            }
+            // Refunds come out of the newest sub-windows first, where the usage was most likely recorded
+            totalRequests -= refund(this.requests, -Math.min(0, requests));
+            totalTokens -= refund(this.tokens, -Math.min(0, tokens));
+            record(Math.max(0, requests), Math.max(0, tokens));
+        }
+
+        private void record(int requests, int tokens) {
+            int index = (int) (current % this.requests.length);
+            this.requests[index] += requests;
+            this.tokens[index] += tokens;
+            totalRequests += requests;
+            totalTokens += tokens;
+        }
+
+        private long refund(int[] counters, long amount) {
+            long refunded = 0;
+            for (int i = 0; i < counters.length && refunded < amount; i++) {
+                int index = (int) Math.floorMod(current - i, counters.length);
+                int taken = (int) Math.min(counters[index], amount - refunded);
+                counters[index] -= taken;
+                refunded += taken;
+            }
+            return refunded;
+        }
+
+        private void advance(long now) {
+            long target = (now - origin) / subWindowNanos;
+            if (target <= current) {
+                return;
+            }
+            if (target - current >= requests.length) {
+                Arrays.fill(requests, 0);
+                Arrays.fill(tokens, 0);
+                totalRequests = 0;
+                totalTokens = 0;
+            } else {
+                for (long sub = current + 1; sub <= target; sub++) {
+                    int index = (int) (sub % requests.length);
+                    totalRequests -= requests[index];
+                    totalTokens -= tokens[index];
+                    requests[index] = 0;
+                    tokens[index] = 0;
+                }
+            }
+            current = target;
+        }
+
+        /**
+         * Time until the oldest sub-windows holding at least {@code excess} leave the window.
+         */
+        private long waitNanos(long now, int[] counters, long excess) {
+            long freed = 0;
+            for (long sub = current - counters.length + 1; sub <= current; sub++) {
+                freed += counters[(int) Math.floorMod(sub, counters.length)];
+                if (freed >= excess) {
+                    return Math.max(0, origin + (sub + counters.length) * subWindowNanos - now);
+                }
+            }
+            // More than the maximum was asked for
+            return periodNanos;
+        }
+    }
+
+    /**
+     * Token bucket per limit: requests and tokens refill continuously at maximum per period,
+     * up to the maximum. Corrections may take it below empty, which the refill pays back first.
+     */
+    private static final class TokenBucket extends RateWindow {
+        private double availableRequests;
+        private double availableTokens;
+        private long refilledAt;
+
+        private TokenBucket(int maxRequests, int maxTokens, Duration period, long now) {
+            super(maxRequests, maxTokens, period);
+            this.availableRequests = maxRequests;
+            this.availableTokens = maxTokens;
+            this.refilledAt = now;
+        }
+
+        @Override
+        public synchronized Rejection tryAcquire(long now, int requests, int tokens) {
+            refill(now);
+            if (availableRequests < requests) {
+                return new Rejection("requests", used(availableRequests, maxRequests), maxRequests,
+                        waitNanos(requests - availableRequests, maxRequests));
+            }
+            if (availableTokens < tokens) {
+                return new Rejection("tokens", used(availableTokens, maxTokens), maxTokens,
+                        waitNanos(tokens - availableTokens, maxTokens));
+            }
+            availableRequests -= requests;
+            availableTokens -= tokens;
+            return null;
+        }
+
+        @Override
+        public synchronized void adjust(long now, int requests, int tokens) {
+            refill(now);
+            availableRequests = Math.min(maxRequests, availableRequests - requests);
+            availableTokens = Math.min(maxTokens, availableTokens - tokens);
+        }
+
+        private void refill(long now) {
+            long elapsed = now - refilledAt;
+            if (elapsed <= 0) {
+                return;
+            }
+            availableRequests = Math.min(maxRequests, availableRequests + (double) maxRequests * elapsed / periodNanos);
+            availableTokens = Math.min(maxTokens, availableTokens + (double) maxTokens * elapsed / periodNanos);
+            refilledAt = now;
+        }
+
+        private long waitNanos(double missing, int max) {
+            return missing > max ? periodNanos : (long) Math.ceil(missing * periodNanos / max);
+        }
+
+        private static int used(double available, int max) {
+            return (int) Math.min(Integer.MAX_VALUE, Math.ceil(max - available));
+        }
+    }
+}
@@ -0,0 +1,202 @@
+package com.example.sparkyaisystem.service;
+
+import com.example.sparkyaisystem.exception.LimitExceededException;
+import com.example.sparkyaisystem.exception.UpstreamUnavailableException;
+import com.example.sparkyaisystem.model.dto.request.AIResponse;
+import com.example.sparkyaisystem.model.dto.request.ChatRequest;
+import com.example.sparkyaisystem.model.dto.request.CompletionRequest;
+import com.example.sparkyaisystem.model.entity.AIModel;
+import com.example.sparkyaisystem.model.entity.Request;
+import com.example.sparkyaisystem.repository.UserRepository;
+import com.example.sparkyaisystem.security.AuthenticatedUser;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.stereotype.Service;
+import reactor.core.publisher.Mono;
+import reactor.core.scheduler.Scheduler;
+
+import java.time.LocalDateTime;
+import java.time.format.DateTimeFormatter;
+import java.time.temporal.ChronoUnit;
+import java.util.function.Supplier;
+
+/**
+ * Non-blocking counterpart of {@link RequestService} for the /api/ai/reactive endpoints.
+ * Lookups run on the bounded JDBC scheduler, the quota check is the in-memory {@link QuotaEngine},
+ * the upstream call runs on the async inference client and the Request row is written behind by
+ * {@link RequestAuditWriter}, so no thread is held while the model generates its answer.
+ */
+@Service
+@Slf4j
+public class ReactiveRequestService {
+
+    private final ModelCatalog modelCatalog;
+    private final UserRepository userRepository;
+    private final LimitService limitService;
+    private final AIModelService aiModelService;
+    private final GitHubModelsService gitHubModelsService;
+    private final RequestAuditWriter requestAuditWriter;
+    private final ResponseCache responseCache;
+    private final Scheduler jdbcScheduler;
+
+    public ReactiveRequestService(ModelCatalog modelCatalog,
+                                  UserRepository userRepository,
+                                  LimitService limitService,
+                                  AIModelService aiModelService,
+                                  GitHubModelsService gitHubModelsService,
+                                  RequestAuditWriter requestAuditWriter,
+                                  ResponseCache responseCache,
+                                  @Qualifier("jdbcScheduler") Scheduler jdbcScheduler) {
+        this.modelCatalog = modelCatalog;
+        this.userRepository = userRepository;
+        this.limitService = limitService;
+        this.aiModelService = aiModelService;
+        this.gitHubModelsService = gitHubModelsService;
+        this.requestAuditWriter = requestAuditWriter;
+        this.responseCache = responseCache;
+        this.jdbcScheduler = jdbcScheduler;
+    }
+
+    public Mono<AIResponse> processChatRequest(AuthenticatedUser user, ChatRequest chatRequest) {
+        return admit(user, chatRequest.getModelId(), chatRequest.getMessage())
+                .flatMap(admission -> execute(admission,
+                        ResponseCache.isCacheable(chatRequest.getCacheable(), null)
+                                ? responseCache.keyFor(user, admission.model(), "chat",
+                                        chatRequest.getSystemPrompt(), chatRequest.getMessage(), null, null)
+                                : null,
+                        () -> gitHubModelsService.processChatRequestAsync(
+                                admission.model(), chatRequest.getMessage(), chatRequest.getSystemPrompt())));
+    }
+
+    public Mono<AIResponse> processCompletionRequest(AuthenticatedUser user, CompletionRequest completionRequest) {
+        return admit(user, completionRequest.getModelId(), completionRequest.getPrompt())
+                .flatMap(admission -> execute(admission,
+                        ResponseCache.isCacheable(completionRequest.getCacheable(), completionRequest.getTemperature())
+                                ? responseCache.keyFor(user, admission.model(), "completion",
+                                        null, completionRequest.getPrompt(), completionRequest.getTemperature(),
+                                        completionRequest.getMaxTokens())
+                                : null,
+                        () -> gitHubModelsService.processCompletionRequestAsync(admission.model(),
+                                completionRequest.getPrompt(), completionRequest.getMaxTokens(),
+                                completionRequest.getTemperature())));
+    }
+
+    /**
+     * Resolves the model, checks availability and reserves the estimated tokens.
+     * Errors here (unknown model, limit exceeded, ...) are propagated to the exception handler.
+     */
+    private Mono<Admission> admit(AuthenticatedUser user, Long modelId, String prompt) {
+        return Mono.fromCallable(() -> {
+            log.info("Processing reactive request for user: {}, model: {}", user.email(), modelId);
+            AIModel model = modelCatalog.findById(modelId)
+                    .orElseThrow(() -> new RuntimeException("AI Model not found"));
+
+            // Check if model is available for user
+            if (!aiModelService.isModelAvailableForUser(user, model)) {
+                log.warn("Model {} is not available for user {}", model.getName(), user.email());
+                throw new RuntimeException("Model is not available for this user");
+            }
+
+            int estimatedTokens = gitHubModelsService.estimateTokenCount(model, prompt);
+            QuotaEngine.Reservation reservation;
+            try {
+                reservation = limitService.reserve(user, model, estimatedTokens);
+            } catch (LimitExceededException e) {
+                log.warn("User {} has exceeded their limit for model {}: {}", user.email(), model.getName(), e.getMessage());
+                throw e;
+            }
+
+            Request request = new Request();
+            // A reference is enough for the audit row, which only needs the user id
+            request.setUser(userRepository.getReferenceById(user.id()));
+            request.setModel(model);
+            request.setQuery(prompt);
+            request.setRequestTime(LocalDateTime.now());
+            return new Admission(model, reservation, request);
+        }).subscribeOn(jdbcScheduler);
+    }
+
+    /**
+     * Calls the upstream, settles or releases the reservation and queues the Request row.
+     * A cancelled subscription (client went away) releases the reservation.
+     */
+    private Mono<AIResponse> execute(Admission admission, ResponseCache.Key cacheKey,
+                                     Supplier<Mono<GitHubModelsService.CompletionResult>> upstream) {
+        AIModel model = admission.model();
+        QuotaEngine.Reservation reservation = admission.reservation();
+        Request request = admission.request();
+
+        return Mono.defer(() -> responseCache.getOrComputeAsync(cacheKey, upstream))
+                .flatMap(lookup -> {
+                    GitHubModelsService.CompletionResult result = lookup.result();
+                    int actualTokens = result.getTotalTokens() != null ? result.getTotalTokens() : reservation.getEstimatedTokens();
+                    // Cached answers skip the upstream call and are charged at a discount
+                    int chargedTokens = lookup.hit() ? responseCache.discountedTokens(actualTokens) : actualTokens;
+                    QuotaEngine.QuotaSnapshot quota = limitService.settle(reservation, chargedTokens);
+
+                    request.setResponse(result.getContent());
+                    request.setSuccessful(true);
+                    request.setTokensConsumed(chargedTokens);
+                    request.setResponseTime(LocalDateTime.now());
+
+                    return save(request).map(saved -> {
+                        log.info("Reactive request processed successfully, request ID: {}", saved.getId());
+                        return AIResponse.builder()
+                                .requestId(saved.getId())
+                                .modelName(model.getName())
+                                .modelProvider(model.getProvider())
+                                .response(result.getContent())
+                                .tokensConsumed(chargedTokens)
+                                .cached(lookup.hit())
+                                .successful(true)
+                                .processingTimeMs(ChronoUnit.MILLIS.between(saved.getRequestTime(), saved.getResponseTime()))
+                                .limitStatus(buildLimitStatus(quota))
+                                .build();
+                    });
+                })
+                .onErrorResume(e -> {
+                    limitService.release(reservation);
+                    if (e instanceof UpstreamUnavailableException) {
+                        // Not sent to the upstream: nothing was used, the client is told when to retry
+                        return Mono.error(e);
+                    }
+                    log.error("Error processing reactive request: {}", e.getMessage(), e);
+                    request.setSuccessful(false);
+                    request.setErrorMessage(e.getMessage());
+                    request.setTokensConsumed(0);
+                    request.setResponseTime(LocalDateTime.now());
+
+                    return save(request).map(saved -> AIResponse.builder()
+                            .requestId(saved.getId())
+                            .modelName(model.getName())
+                            .modelProvider(model.getProvider())
+                            .successful(false)
+                            .errorMessage(e.getMessage())
+                            .processingTimeMs(ChronoUnit.MILLIS.between(saved.getRequestTime(), saved.getResponseTime()))
+                            .build());
+                })
+                .doOnCancel(() -> limitService.release(reservation));
+    }
+
+    /**
+     * Queues the audit row. Submitting only blocks when the audit queue is saturated,
+     * which must not happen on the upstream client's I/O threads.
+     */
+    private Mono<Request> save(Request request) {
+        return Mono.fromCallable(() -> requestAuditWriter.submit(request)).subscribeOn(jdbcScheduler);
+    }
+
+    private AIResponse.LimitStatus buildLimitStatus(QuotaEngine.QuotaSnapshot quota) {
+        return AIResponse.LimitStatus.builder()
+                .usedRequests(quota.getUsedRequests())
+                .maxRequests(quota.getMaxRequests())
+                .usedTokens(quota.getUsedTokens())
+                .maxTokens(quota.getMaxTokens())
+                .windowType(quota.getWindowType())
+                .windowEndsAt(quota.getWindowEndTime().format(DateTimeFormatter.ISO_DATE_TIME))
+                .build();
+    }
+
+    private record Admission(AIModel model, QuotaEngine.Reservation reservation, Request request) {
+    }
+}
@@ -0,0 +1,302 @@
+package com.example.sparkyaisystem.service;
+
+import com.example.sparkyaisystem.model.entity.Request;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.stereotype.Service;
+import org.springframework.transaction.support.TransactionOperations;
+
+import java.sql.Timestamp;
+import java.sql.Types;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Write-behind persistence of Request audit rows.
+ * Callers get the row id immediately; the row is queued and inserted by a single writer
+ * thread in JDBC batches, flushed when a batch is full or the flush interval elapses.
+ * Ids come from the pooled request_seq sequence, so no round trip is needed per row.
+ * When the queue is full the caller waits briefly and then inserts the row itself,
+ * so rows are not dropped for lack of room. The queue is drained on shutdown.
+ * Each batch is added to the consumption rollups in the transaction that inserts it.
+ * A batch that fails is retried row by row, each row in its own transaction, so one bad row
+ * does not take the rest of its batch with it; only rows that fail on their own are dropped
+ * (counted in {@code audit.rows.failed}).
+ * Query and response bodies are put in the {@link ContentStore} first; rows only hold their references.
+ */
+@Service
+@Slf4j
+public class RequestAuditWriter {
+
+    static final String SEQUENCE_SQL = "select nextval('request_seq')";
+    static final String INSERT_SQL = "insert into requests (id, user_id, model_id, query_ref, query_size, response_ref, "
+            + "response_size, error_message, successful, tokens_consumed, file_name, request_time, response_time) "
+            + "values (?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?)";
+    // Must match the allocationSize of the request_seq generator on Request
+    static final int ID_ALLOCATION_SIZE = 50;
+    // Queued on shutdown to wake the writer without interrupting an in-flight insert
+    private static final Request WAKE_UP = new Request();
+
+    private final JdbcTemplate jdbcTemplate;
+    private final ContentStore contentStore;
+    private final ConsumptionRollupService rollupService;
+    private final TransactionOperations transactionOperations;
+    private final BlockingQueue<Request> queue;
+    private final int batchSize;
+    private final long flushIntervalMs;
+    private final long offerTimeoutMs;
+
+    // Not synchronized: the sequence call may block and must not pin a virtual thread
+    private final ReentrantLock idLock = new ReentrantLock();
+    private long nextId;
+    private long maxId = -1;
+
+    private final Counter rowsWritten;
+    private final Counter batchesWritten;
+    private final Counter writeFailures;
+    private final Counter blockedOffers;
+    private final Counter callerInserts;
+
+    private volatile boolean running;
+    private Thread writerThread;
+
+    public RequestAuditWriter(JdbcTemplate jdbcTemplate,
+                              ContentStore contentStore,
+                              ConsumptionRollupService rollupService,
+                              TransactionOperations transactionOperations,
+                              MeterRegistry meterRegistry,
+                              @Value("${audit.queue-capacity:10000}") int queueCapacity,
+                              @Value("${audit.batch-size:50}") int batchSize,
+                              @Value("${audit.flush-interval-ms:200}") long flushIntervalMs,
+                              @Value("${audit.offer-timeout-ms:50}") long offerTimeoutMs) {
+        this.jdbcTemplate = jdbcTemplate;
+        this.contentStore = contentStore;
+        this.rollupService = rollupService;
+        this.transactionOperations = transactionOperations;
+        this.queue = new ArrayBlockingQueue<>(queueCapacity);
+        this.batchSize = batchSize;
+        this.flushIntervalMs = flushIntervalMs;
+        this.offerTimeoutMs = offerTimeoutMs;
+
+        Gauge.builder("audit.queue.size", queue, BlockingQueue::size)
+                .description("Request audit rows waiting to be written")
+                .register(meterRegistry);
+        Gauge.builder("audit.queue.remaining", queue, BlockingQueue::remainingCapacity)
+                .description("Free slots in the request audit queue")
+                .register(meterRegistry);
+        this.rowsWritten = meterRegistry.counter("audit.rows.written");
+        this.batchesWritten = meterRegistry.counter("audit.batches.written");
+        this.writeFailures = meterRegistry.counter("audit.rows.failed");
+        this.blockedOffers = meterRegistry.counter("audit.queue.blocked");
+        this.callerInserts = meterRegistry.counter("audit.queue.caller_inserts");
+    }
+
+    @PostConstruct
+    public void start() {
+        running = true;
+        writerThread = new Thread(this::runWriter, "request-audit-writer");
+        writerThread.setDaemon(true);
+        writerThread.start();
+    }
+
+    /**
+     * Assigns an id to the request and queues it for insertion.
+     *
+     * @return the same request, with its id set
+     */
+    public Request submit(Request request) {
+        if (request.getId() == null) {
+            request.setId(nextId());
+        }
+        if (queue.offer(request)) {
+            return request;
+        }
+
+        blockedOffers.increment();
+        try {
+            if (queue.offer(request, offerTimeoutMs, TimeUnit.MILLISECONDS)) {
+                return request;
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+
+        // Queue saturated: apply backpressure by writing on the caller's thread
+        log.warn("Request audit queue is full ({} rows); inserting request {} synchronously", queue.size(), request.getId());
+        callerInserts.increment();
+        write(List.of(request));
+        return request;
+    }
+
+    public int pending() {
+        return queue.size();
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        running = false;
+        if (writerThread == null) {
+            return;
+        }
+        queue.offer(WAKE_UP);
+        try {
+            writerThread.join(TimeUnit.SECONDS.toMillis(30));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        if (!queue.isEmpty()) {
+            log.warn("Writing {} queued request audit rows on shutdown", queue.size());
+            List<Request> remaining = new ArrayList<>();
+            queue.drainTo(remaining);
+            remaining.removeIf(request -> request == WAKE_UP);
+            write(remaining);
+        }
+    }
+
+    private void runWriter() {
+        while (running || !queue.isEmpty()) {
+            List<Request> batch = new ArrayList<>(batchSize);
+            try {
+                Request first = queue.poll(flushIntervalMs, TimeUnit.MILLISECONDS);
+                if (first == null || first == WAKE_UP) {
+                    continue;
+                }
+                batch.add(first);
+
+                // Fill the batch until it is full or the flush interval elapses
+                long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(flushIntervalMs);
+                while (batch.size() < batchSize) {
+                    queue.drainTo(batch, batchSize - batch.size());
+                    long remaining = deadline - System.nanoTime();
+                    if (batch.size() >= batchSize || remaining <= 0 || !running) {
+                        break;
+                    }
+                    Request next = queue.poll(remaining, TimeUnit.NANOSECONDS);
+                    if (next == null) {
+                        break;
+                    }
+                    batch.add(next);
+                }
+
+                batch.removeIf(request -> request == WAKE_UP);
+                write(batch);
+            } catch (InterruptedException e) {
+                log.warn("Request audit writer interrupted with {} queued rows", queue.size());
+                batch.removeIf(request -> request == WAKE_UP);
+                write(batch);
+                Thread.currentThread().interrupt();
+                return;
+            } catch (Exception e) {
+                log.error("Unexpected error in request audit writer: {}", e.getMessage(), e);
+            }
+        }
+    }
+
+    private void write(List<Request> batch) {
+        if (batch.isEmpty()) {
+            return;
+        }
+        try {
+            writeBatch(batch);
+            batchesWritten.increment();
+            log.debug("Wrote {} request audit rows", batch.size());
+            return;
+        } catch (Exception e) {
+            if (batch.size() == 1) {
+                log.error("Error writing request audit row {}: {}", batch.get(0).getId(), e.getMessage(), e);
+                writeFailures.increment();
+                return;
+            }
+            log.warn("Error writing {} request audit rows, retrying them one by one: {}", batch.size(), e.getMessage());
+        }
+
+        for (Request request : batch) {
+            try {
+                writeBatch(List.of(request));
+            } catch (Exception e) {
+                log.error("Error writing request audit row {}: {}", request.getId(), e.getMessage(), e);
+                writeFailures.increment();
+            }
+        }
+    }
+
+    private void writeBatch(List<Request> batch) {
+        // Content is immutable and deduplicated, so bodies of a batch that fails to insert are harmless
+        batch.forEach(this::storeBodies);
+        transactionOperations.executeWithoutResult(status -> {
+            insert(batch);
+            rollupService.record(batch);
+        });
+        rowsWritten.increment(batch.size());
+    }
+
+    private void insert(List<Request> batch) {
+        jdbcTemplate.batchUpdate(INSERT_SQL, batch, batch.size(), (ps, request) -> {
+            ps.setLong(1, request.getId());
+            ps.setLong(2, request.getUser().getId());
+            ps.setLong(3, request.getModel().getId());
+            ps.setString(4, request.getQueryRef());
+            ps.setInt(5, request.getQuerySize());
+            ps.setString(6, request.getResponseRef());
+            if (request.getResponseSize() != null) {
+                ps.setInt(7, request.getResponseSize());
+            } else {
+                ps.setNull(7, Types.INTEGER);
+            }
+            ps.setString(8, request.getErrorMessage());
+            ps.setBoolean(9, request.isSuccessful());
+            ps.setInt(10, request.getTokensConsumed());
+            ps.setString(11, request.getFileName());
+            ps.setTimestamp(12, Timestamp.valueOf(request.getRequestTime()));
+            if (request.getResponseTime() != null) {
+                ps.setTimestamp(13, Timestamp.valueOf(request.getResponseTime()));
+            } else {
+                ps.setNull(13, Types.TIMESTAMP);
+            }
+        });
+    }
+
+    private void storeBodies(Request request) {
+        if (request.getQueryRef() == null && request.getQuery() != null) {
+            ContentStore.Ref query = contentStore.put(request.getQuery());
+            request.setQueryRef(query.key());
+            request.setQuerySize(query.size());
+        }
+        if (request.getResponseRef() == null && request.getResponse() != null) {
+            ContentStore.Ref response = contentStore.put(request.getResponse());
+            request.setResponseRef(response.key());
+            request.setResponseSize(response.size());
+        }
+    }
+
+    /**
+     * Hands out ids from blocks reserved on request_seq. Like Hibernate's pooled optimizer,
+     * a sequence value v reserves the ids (v - allocationSize, v], so both can share the sequence.
+     */
+    private long nextId() {
+        idLock.lock();
+        try {
+            if (nextId > maxId) {
+                Long hi = jdbcTemplate.queryForObject(SEQUENCE_SQL, Long.class);
+                if (hi == null) {
+                    throw new RuntimeException("Could not allocate request ids");
+                }
+                maxId = hi;
+                nextId = Math.max(1, hi - ID_ALLOCATION_SIZE + 1);
+            }
+            return nextId++;
+        } finally {
+            idLock.unlock();
+        }
+    }
+}
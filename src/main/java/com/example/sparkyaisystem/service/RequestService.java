@@ -1,82 +1,137 @@
 package com.example.sparkyaisystem.service;
 
+import com.example.sparkyaisystem.exception.InvalidCursorException;
 import com.example.sparkyaisystem.exception.LimitExceededException;
+import com.example.sparkyaisystem.exception.UnsupportedModelRequestException;
+import com.example.sparkyaisystem.exception.UpstreamUnavailableException;
 import com.example.sparkyaisystem.model.dto.request.AIResponse;
 import com.example.sparkyaisystem.model.dto.request.ChatRequest;
 import com.example.sparkyaisystem.model.dto.request.CompletionRequest;
 import com.example.sparkyaisystem.model.dto.request.MultimodalRequest;
+import com.example.sparkyaisystem.model.dto.request.RequestHistoryPage;
 import com.example.sparkyaisystem.model.dto.request.RequestResponse;
 import com.example.sparkyaisystem.model.entity.AIModel;
 import com.example.sparkyaisystem.model.entity.Limit;
 import com.example.sparkyaisystem.model.entity.Request;
 import com.example.sparkyaisystem.model.entity.User;
-import com.example.sparkyaisystem.repository.AIModelRepository;
 import com.example.sparkyaisystem.repository.LimitRepository;
 import com.example.sparkyaisystem.repository.RequestRepository;
+import com.example.sparkyaisystem.repository.UserRepository;
+import com.example.sparkyaisystem.security.AuthenticatedUser;
 import lombok.extern.slf4j.Slf4j;
+import org.springframework.data.domain.PageRequest;
+import org.springframework.data.domain.Pageable;
+import org.springframework.http.codec.ServerSentEvent;
 import org.springframework.stereotype.Service;
 import org.springframework.transaction.annotation.Transactional;
 import org.springframework.web.multipart.MultipartFile;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+import reactor.core.scheduler.Schedulers;
 
+import java.nio.charset.StandardCharsets;
 import java.time.LocalDateTime;
 import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
 import java.time.temporal.ChronoUnit;
+import java.util.Base64;
 import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Consumer;
 import java.util.stream.Collectors;
+import java.util.stream.Stream;
 
 @Service
 @Slf4j
 public class RequestService {
 
+    /**
+     * Filters for the request history. Null bounds and a null model id match everything;
+     * without bodies the query and response text are neither read nor returned.
+     */
+    public record HistoryFilter(LocalDateTime from, LocalDateTime to, Long modelId, boolean includeBodies) {
+
+        public static final HistoryFilter ALL = new HistoryFilter(null, null, null, true);
+
+        LocalDateTime fromOrEarliest() {
+            return from != null ? from : HISTORY_EARLIEST;
+        }
+
+        LocalDateTime toOrLatest() {
+            return to != null ? to : HISTORY_LATEST;
+        }
+    }
+
+    public static final int DEFAULT_HISTORY_PAGE_SIZE = 50;
+    public static final int MAX_HISTORY_PAGE_SIZE = 500;
+    // Stand-ins for an open end of the history range
+    private static final LocalDateTime HISTORY_EARLIEST = LocalDateTime.of(1970, 1, 1, 0, 0);
+    private static final LocalDateTime HISTORY_LATEST = LocalDateTime.of(9999, 1, 1, 0, 0);
+
     private final RequestRepository requestRepository;
-    private final AIModelRepository aiModelRepository;
+    private final ContentStore contentStore;
+    private final ModelCatalog modelCatalog;
     private final LimitRepository limitRepository;
+    private final UserRepository userRepository;
     private final LimitService limitService;
     private final AIModelService aiModelService;
     private final GitHubModelsService gitHubModelsService;
+    private final RequestAuditWriter requestAuditWriter;
+    private final ResponseCache responseCache;
 
     public RequestService(RequestRepository requestRepository,
-                          AIModelRepository aiModelRepository,
+                          ContentStore contentStore,
+                          ModelCatalog modelCatalog,
                           LimitRepository limitRepository,
+                          UserRepository userRepository,
                           LimitService limitService,
                           AIModelService aiModelService,
-                          GitHubModelsService gitHubModelsService) {
+                          GitHubModelsService gitHubModelsService,
+                          RequestAuditWriter requestAuditWriter,
+                          ResponseCache responseCache) {
         this.requestRepository = requestRepository;
-        this.aiModelRepository = aiModelRepository;
+        this.contentStore = contentStore;
+        this.modelCatalog = modelCatalog;
         this.limitRepository = limitRepository;
+        this.userRepository = userRepository;
         this.limitService = limitService;
         this.aiModelService = aiModelService;
         this.gitHubModelsService = gitHubModelsService;
+        this.requestAuditWriter = requestAuditWriter;
+        this.responseCache = responseCache;
     }
 
-    @Transactional
-    public AIResponse processChatRequest(User user, ChatRequest chatRequest) {
-        log.info("Processing chat request for user: {}, model: {}", user.getEmail(), chatRequest.getModelId());
-        AIModel model = aiModelRepository.findById(chatRequest.getModelId())
+    public AIResponse processChatRequest(AuthenticatedUser user, ChatRequest chatRequest) {
+        log.info("Processing chat request for user: {}, model: {}", user.email(), chatRequest.getModelId());
+        AIModel model = modelCatalog.findById(chatRequest.getModelId())
                 .orElseThrow(() -> new RuntimeException("AI Model not found"));
 
         // Check if model is available for user
         if (!aiModelService.isModelAvailableForUser(user, model)) {
-            log.warn("Model {} is not available for user {}", model.getName(), user.getEmail());
+            log.warn("Model {} is not available for user {}", model.getName(), user.email());
             throw new RuntimeException("Model is not available for this user");
         }
 
         // Estimate tokens to be consumed
-        int estimatedTokens = gitHubModelsService.estimateTokenCount(chatRequest.getMessage());
+        int estimatedTokens = gitHubModelsService.estimateTokenCount(model, chatRequest.getMessage());
         log.debug("Estimated tokens for chat request: {}", estimatedTokens);
 
-        // Check if user has enough limit and update it
+        // Reserve the estimated tokens; settled with the actual usage or released on failure
         // This will throw LimitExceededException if limit is exceeded
+        QuotaEngine.Reservation reservation;
         try {
-            limitService.checkAndUpdateLimit(user, model, estimatedTokens);
+            reservation = limitService.reserve(user, model, estimatedTokens);
         } catch (LimitExceededException e) {
-            log.warn("User {} has exceeded their limit for model {}: {}", user.getEmail(), model.getName(), e.getMessage());
+            log.warn("User {} has exceeded their limit for model {}: {}", user.email(), model.getName(), e.getMessage());
             throw e; // Re-throw the exception to be handled by the global exception handler
         }
 
         // Create request record
         Request request = new Request();
-        request.setUser(user);
+        // A reference is enough for the audit row, which only needs the user id
+        request.setUser(userRepository.getReferenceById(user.id()));
         request.setModel(model);
         request.setQuery(chatRequest.getMessage());
         request.setRequestTime(LocalDateTime.now());
@@ -84,8 +139,19 @@ public class RequestService {
         try {
             // Call GitHub Models service
             log.debug("Calling GitHub Models service for chat request");
-            String response = gitHubModelsService.processChatRequest(model, chatRequest.getMessage(), chatRequest.getSystemPrompt());
-            int actualTokens = estimatedTokens; // In a real app, this would be more accurately calculated
+            ResponseCache.Key cacheKey = ResponseCache.isCacheable(chatRequest.getCacheable(), null)
+                    ? responseCache.keyFor(user, model, "chat", chatRequest.getSystemPrompt(), chatRequest.getMessage(), null, null)
+                    : null;
+            ResponseCache.Lookup lookup = responseCache.getOrCompute(cacheKey, () -> gitHubModelsService.processChatRequest(
+                    model, chatRequest.getMessage(), chatRequest.getSystemPrompt()));
+            GitHubModelsService.CompletionResult result = lookup.result();
+            String response = result.getContent();
+            int actualTokens = result.getTotalTokens() != null ? result.getTotalTokens() : estimatedTokens;
+            if (lookup.hit()) {
+                // Cached answers skip the upstream call and are charged at a discount
+                actualTokens = responseCache.discountedTokens(actualTokens);
+            }
+            QuotaEngine.QuotaSnapshot quota = limitService.settle(reservation, actualTokens);
 
             // Update request with response
             request.setResponse(response);
@@ -93,14 +159,9 @@ public class RequestService {
             request.setTokensConsumed(actualTokens);
             request.setResponseTime(LocalDateTime.now());
 
-            // Save request
-            request = requestRepository.save(request);
+            // Queue the audit row; the response does not wait for the insert
+            request = requestAuditWriter.submit(request);
             log.info("Chat request processed successfully, request ID: {}", request.getId());
-
-            // Get user's limit for this modele
-            Limit limit = limitRepository.findByUserAndModel(user, model)
-                    .orElseThrow(() -> new RuntimeException("User does not have a limit for this model"));
-
             // Build response
             return AIResponse.builder()
                     .requestId(request.getId())
@@ -108,21 +169,27 @@ public class RequestService {
                     .modelProvider(model.getProvider())
                     .response(response)
                     .tokensConsumed(actualTokens)
+                    .cached(lookup.hit())
                     .successful(true)
                     .processingTimeMs(ChronoUnit.MILLIS.between(request.getRequestTime(), request.getResponseTime()))
-                    .limitStatus(buildLimitStatus(limit))
+                    .limitStatus(buildLimitStatus(quota))
                     .build();
 
+        } catch (UpstreamUnavailableException e) {
+            // Not sent to the upstream: nothing was used, the client is told when to retry
+            limitService.release(reservation);
+            throw e;
         } catch (Exception e) {
             // Handle error
             log.error("Error processing chat request: {}", e.getMessage(), e);
+            limitService.release(reservation);
             request.setSuccessful(false);
             request.setErrorMessage(e.getMessage());
             request.setTokensConsumed(0);
             request.setResponseTime(LocalDateTime.now());
 
-            // Save request
-            request = requestRepository.save(request);
+            // Queue the audit row; the response does not wait for the insert
+            request = requestAuditWriter.submit(request);
 
             // Return error response
             return AIResponse.builder()
@@ -136,6 +203,143 @@ public class RequestService {
         }
     }
 
+    /**
+     * Streams a chat response as Server-Sent Events: one "delta" event per content chunk,
+     * followed by a "done" event carrying the final {@link AIResponse}, or an "error" event.
+     * Tokens are charged against the reservation as chunks arrive, and the Request row is
+     * persisted once the stream ends, is cancelled or fails.
+     */
+    public Flux<ServerSentEvent<Object>> streamChatRequest(AuthenticatedUser user, ChatRequest chatRequest) {
+        log.info("Processing streaming chat request for user: {}, model: {}", user.email(), chatRequest.getModelId());
+        AIModel model = modelCatalog.findById(chatRequest.getModelId())
+                .orElseThrow(() -> new RuntimeException("AI Model not found"));
+
+        // Check if model is available for user
+        if (!aiModelService.isModelAvailableForUser(user, model)) {
+            log.warn("Model {} is not available for user {}", model.getName(), user.email());
+            throw new RuntimeException("Model is not available for this user");
+        }
+
+        // Estimate tokens to be consumed by the prompt; generated tokens are charged while streaming
+        int estimatedTokens = gitHubModelsService.estimateTokenCount(model, chatRequest.getMessage());
+        log.debug("Estimated tokens for streaming chat request: {}", estimatedTokens);
+
+        // This will throw LimitExceededException if limit is exceeded
+        QuotaEngine.Reservation reservation;
+        try {
+            reservation = limitService.reserve(user, model, estimatedTokens);
+        } catch (LimitExceededException e) {
+            log.warn("User {} has exceeded their limit for model {}: {}", user.email(), model.getName(), e.getMessage());
+            throw e; // Re-throw the exception to be handled by the global exception handler
+        }
+
+        // Create request record
+        Request request = new Request();
+        request.setUser(userRepository.getReferenceById(user.id()));
+        request.setModel(model);
+        request.setQuery(chatRequest.getMessage());
+        request.setRequestTime(LocalDateTime.now());
+
+        // Appended on the I/O thread driving the stream, read on the thread that finishes it
+        StringBuffer content = new StringBuffer();
+        AtomicReference<Integer> reportedTokens = new AtomicReference<>();
+        // Completion, failure and cancellation can race; only the first one settles and persists
+        AtomicBoolean finished = new AtomicBoolean();
+
+        Flux<ServerSentEvent<Object>> deltas = gitHubModelsService
+                .streamChatRequest(model, chatRequest.getMessage(), chatRequest.getSystemPrompt())
+                .doOnNext(chunk -> {
+                    if (chunk.getTotalTokens() != null) {
+                        reportedTokens.set(chunk.getTotalTokens());
+                    }
+                })
+                .filter(chunk -> chunk.getContent() != null && !chunk.getContent().isEmpty())
+                .map(chunk -> {
+                    content.append(chunk.getContent());
+                    limitService.extend(reservation, gitHubModelsService.estimateTokenCount(model, chunk.getContent()));
+                    return ServerSentEvent.<Object>builder(chunk.getContent()).event("delta").build();
+                });
+
+        // Settling and persisting block on JDBC, so they run off the I/O threads driving the stream
+        Mono<ServerSentEvent<Object>> done = Mono.fromCallable(() -> {
+                    // A cancel racing the last chunk has already settled the request; emit nothing
+                    if (!finished.compareAndSet(false, true)) {
+                        return null;
+                    }
+                    return ServerSentEvent.<Object>builder(
+                            finishStreamedRequest(request, model, reservation, content.toString(), reportedTokens.get(), null))
+                            .event("done").build();
+                })
+                .subscribeOn(Schedulers.boundedElastic());
+
+        return deltas.concatWith(done)
+                .onErrorResume(e -> Mono.fromCallable(() -> {
+                            log.error("Error processing streaming chat request: {}", e.getMessage(), e);
+                            Object payload = finished.compareAndSet(false, true)
+                                    ? finishStreamedRequest(request, model, reservation, content.toString(), reportedTokens.get(), e)
+                                    : AIResponse.builder().successful(false).errorMessage(e.getMessage()).build();
+                            return ServerSentEvent.builder(payload).event("error").build();
+                        })
+                        .subscribeOn(Schedulers.boundedElastic()))
+                .doOnCancel(() -> {
+                    if (finished.compareAndSet(false, true)) {
+                        Schedulers.boundedElastic().schedule(() -> {
+                            log.info("Streaming chat request cancelled by client after {} chars", content.length());
+                            finishStreamedRequest(request, model, reservation, content.toString(), reportedTokens.get(),
+                                    new RuntimeException("Stream cancelled by client"));
+                        });
+                    }
+                });
+    }
+
+    /**
+     * Settles the reservation of a streamed request and persists its Request row.
+     * A failed stream that produced no content is refunded; otherwise the tokens
+     * already generated are charged.
+     */
+    private AIResponse finishStreamedRequest(Request request, AIModel model, QuotaEngine.Reservation reservation,
+                                             String content, Integer reportedTokens, Throwable error) {
+        request.setResponseTime(LocalDateTime.now());
+        request.setResponse(content);
+
+        if (error != null && content.isEmpty()) {
+            limitService.release(reservation);
+            request.setSuccessful(false);
+            request.setErrorMessage(error.getMessage());
+            request.setTokensConsumed(0);
+            Request saved = requestAuditWriter.submit(request);
+            return AIResponse.builder()
+                    .requestId(saved.getId())
+                    .modelName(model.getName())
+                    .modelProvider(model.getProvider())
+                    .successful(false)
+                    .errorMessage(error.getMessage())
+                    .processingTimeMs(ChronoUnit.MILLIS.between(saved.getRequestTime(), saved.getResponseTime()))
+                    .build();
+        }
+
+        int actualTokens = reportedTokens != null ? reportedTokens : reservation.getChargedTokens();
+        QuotaEngine.QuotaSnapshot quota = limitService.settle(reservation, actualTokens);
+
+        request.setSuccessful(error == null);
+        request.setErrorMessage(error != null ? error.getMessage() : null);
+        request.setTokensConsumed(actualTokens);
+        Request saved = requestAuditWriter.submit(request);
+        log.info("Streaming chat request finished, request ID: {}", saved.getId());
+
+        return AIResponse.builder()
+                .requestId(saved.getId())
+                .modelName(model.getName())
+                .modelProvider(model.getProvider())
+                .response(content)
+                .tokensConsumed(actualTokens)
+                .successful(error == null)
+                .errorMessage(error != null ? error.getMessage() : null)
+                .processingTimeMs(ChronoUnit.MILLIS.between(saved.getRequestTime(), saved.getResponseTime()))
+                .limitStatus(buildLimitStatus(quota))
+                .build();
+    }
+
     public Limit getOrCreateDefaultLimit(User user, AIModel model) {
         return limitRepository.findByUserAndModel(user, model)
                 .orElseGet(() -> {
@@ -157,34 +361,34 @@ public class RequestService {
     }
 
 
-    @Transactional
-    public AIResponse processCompletionRequest(User user, CompletionRequest completionRequest) {
-        log.info("Processing completion request for user: {}, model: {}", user.getEmail(), completionRequest.getModelId());
-        AIModel model = aiModelRepository.findById(completionRequest.getModelId())
+    public AIResponse processCompletionRequest(AuthenticatedUser user, CompletionRequest completionRequest) {
+        log.info("Processing completion request for user: {}, model: {}", user.email(), completionRequest.getModelId());
+        AIModel model = modelCatalog.findById(completionRequest.getModelId())
                 .orElseThrow(() -> new RuntimeException("AI Model not found"));
 
         // Check if model is available for user
         if (!aiModelService.isModelAvailableForUser(user, model)) {
-            log.warn("Model {} is not available for user {}", model.getName(), user.getEmail());
+            log.warn("Model {} is not available for user {}", model.getName(), user.email());
             throw new RuntimeException("Model is not available for this user");
         }
 
         // Estimate tokens to be consumed
-        int estimatedTokens = gitHubModelsService.estimateTokenCount(completionRequest.getPrompt());
+        int estimatedTokens = gitHubModelsService.estimateTokenCount(model, completionRequest.getPrompt());
         log.debug("Estimated tokens for completion request: {}", estimatedTokens);
 
-        // Check if user has enough limit and update it
+        // Reserve the estimated tokens; settled with the actual usage or released on failure
         // This will throw LimitExceededException if limit is exceeded
+        QuotaEngine.Reservation reservation;
         try {
-            limitService.checkAndUpdateLimit(user, model, estimatedTokens);
+            reservation = limitService.reserve(user, model, estimatedTokens);
         } catch (LimitExceededException e) {
-            log.warn("User {} has exceeded their limit for model {}: {}", user.getEmail(), model.getName(), e.getMessage());
+            log.warn("User {} has exceeded their limit for model {}: {}", user.email(), model.getName(), e.getMessage());
             throw e; // Re-throw the exception to be handled by the global exception handler
         }
 
         // Create request record
         Request request = new Request();
-        request.setUser(user);
+        request.setUser(userRepository.getReferenceById(user.id()));
         request.setModel(model);
         request.setQuery(completionRequest.getPrompt());
         request.setRequestTime(LocalDateTime.now());
@@ -192,12 +396,23 @@ public class RequestService {
         try {
             // Call GitHub Models service
             log.debug("Calling GitHub Models service for completion request");
-            String response = gitHubModelsService.processCompletionRequest(
+            ResponseCache.Key cacheKey = ResponseCache.isCacheable(completionRequest.getCacheable(), completionRequest.getTemperature())
+                    ? responseCache.keyFor(user, model, "completion", null, completionRequest.getPrompt(),
+                            completionRequest.getTemperature(), completionRequest.getMaxTokens())
+                    : null;
+            ResponseCache.Lookup lookup = responseCache.getOrCompute(cacheKey, () -> gitHubModelsService.processCompletionRequest(
                     model, 
                     completionRequest.getPrompt(), 
                     completionRequest.getMaxTokens(), 
-                    completionRequest.getTemperature());
-            int actualTokens = estimatedTokens; // In a real app, this would be more accurately calculated
+                    completionRequest.getTemperature()));
+            GitHubModelsService.CompletionResult result = lookup.result();
+            String response = result.getContent();
+            int actualTokens = result.getTotalTokens() != null ? result.getTotalTokens() : estimatedTokens;
+            if (lookup.hit()) {
+                // Cached answers skip the upstream call and are charged at a discount
+                actualTokens = responseCache.discountedTokens(actualTokens);
+            }
+            QuotaEngine.QuotaSnapshot quota = limitService.settle(reservation, actualTokens);
 
             // Update request with response
             request.setResponse(response);
@@ -205,14 +420,9 @@ public class RequestService {
             request.setTokensConsumed(actualTokens);
             request.setResponseTime(LocalDateTime.now());
 
-            // Save request
-            request = requestRepository.save(request);
+            // Queue the audit row; the response does not wait for the insert
+            request = requestAuditWriter.submit(request);
             log.info("Completion request processed successfully, request ID: {}", request.getId());
-
-            // Get user's limit for this model
-            Limit limit = limitRepository.findByUserAndModel(user, model)
-                    .orElseThrow(() -> new RuntimeException("User does not have a limit for this model"));
-
             // Build response
             return AIResponse.builder()
                     .requestId(request.getId())
@@ -220,21 +430,27 @@ public class RequestService {
                     .modelProvider(model.getProvider())
                     .response(response)
                     .tokensConsumed(actualTokens)
+                    .cached(lookup.hit())
                     .successful(true)
                     .processingTimeMs(ChronoUnit.MILLIS.between(request.getRequestTime(), request.getResponseTime()))
-                    .limitStatus(buildLimitStatus(limit))
+                    .limitStatus(buildLimitStatus(quota))
                     .build();
 
+        } catch (UpstreamUnavailableException e) {
+            // Not sent to the upstream: nothing was used, the client is told when to retry
+            limitService.release(reservation);
+            throw e;
         } catch (Exception e) {
             // Handle error
             log.error("Error processing completion request: {}", e.getMessage(), e);
+            limitService.release(reservation);
             request.setSuccessful(false);
             request.setErrorMessage(e.getMessage());
             request.setTokensConsumed(0);
             request.setResponseTime(LocalDateTime.now());
 
-            // Save request
-            request = requestRepository.save(request);
+            // Queue the audit row; the response does not wait for the insert
+            request = requestAuditWriter.submit(request);
 
             // Return error response
             return AIResponse.builder()
@@ -248,34 +464,34 @@ public class RequestService {
         }
     }
 
-    @Transactional
-    public AIResponse processMultimodalRequest(User user, MultimodalRequest multimodalRequest) {
-        log.info("Processing multimodal request for user: {}, model: {}", user.getEmail(), multimodalRequest.getModelId());
-        AIModel model = aiModelRepository.findById(multimodalRequest.getModelId())
+    public AIResponse processMultimodalRequest(AuthenticatedUser user, MultimodalRequest multimodalRequest) {
+        log.info("Processing multimodal request for user: {}, model: {}", user.email(), multimodalRequest.getModelId());
+        AIModel model = modelCatalog.findById(multimodalRequest.getModelId())
                 .orElseThrow(() -> new RuntimeException("AI Model not found"));
 
         // Check if model is available for user
         if (!aiModelService.isModelAvailableForUser(user, model)) {
-            log.warn("Model {} is not available for user {}", model.getName(), user.getEmail());
+            log.warn("Model {} is not available for user {}", model.getName(), user.email());
             throw new RuntimeException("Model is not available for this user");
         }
 
         // Check if model type is multimodal
         if (!"multimodal".equalsIgnoreCase(model.getType())) {
             log.warn("Model {} does not support multimodal requests", model.getName());
-            throw new RuntimeException("Selected model does not support multimodal requests");
+            throw new UnsupportedModelRequestException("Selected model does not support multimodal requests");
         }
 
         // Estimate tokens to be consumed (multimodal requests typically consume more tokens)
-        int estimatedTokens = gitHubModelsService.estimateTokenCount(multimodalRequest.getMessage()) * 2;
+        int estimatedTokens = gitHubModelsService.estimateTokenCount(model, multimodalRequest.getMessage()) * 2;
         log.debug("Estimated tokens for multimodal request: {}", estimatedTokens);
 
-        // Check if user has enough limit and update it
+        // Reserve the estimated tokens; settled with the actual usage or released on failure
         // This will throw LimitExceededException if limit is exceeded
+        QuotaEngine.Reservation reservation;
         try {
-            limitService.checkAndUpdateLimit(user, model, estimatedTokens);
+            reservation = limitService.reserve(user, model, estimatedTokens);
         } catch (LimitExceededException e) {
-            log.warn("User {} has exceeded their limit for model {}: {}", user.getEmail(), model.getName(), e.getMessage());
+            log.warn("User {} has exceeded their limit for model {}: {}", user.email(), model.getName(), e.getMessage());
             throw e; // Re-throw the exception to be handled by the global exception handler
         }
 
@@ -286,7 +502,7 @@ public class RequestService {
 
         // Create request record
         Request request = new Request();
-        request.setUser(user);
+        request.setUser(userRepository.getReferenceById(user.id()));
         request.setModel(model);
         request.setQuery(multimodalRequest.getMessage());
         request.setFileName(fileName);
@@ -295,8 +511,11 @@ public class RequestService {
         try {
             // Call GitHub Models service
             log.debug("Calling GitHub Models service for multimodal request");
-            String response = gitHubModelsService.processMultimodalRequest(model, multimodalRequest.getMessage(), imageFile);
-            int actualTokens = estimatedTokens; // In a real app, this would be more accurately calculated
+            GitHubModelsService.CompletionResult result = gitHubModelsService.processMultimodalRequest(
+                    model, multimodalRequest.getMessage(), imageFile);
+            String response = result.getContent();
+            int actualTokens = result.getTotalTokens() != null ? result.getTotalTokens() : estimatedTokens;
+            QuotaEngine.QuotaSnapshot quota = limitService.settle(reservation, actualTokens);
 
             // Update request with response
             request.setResponse(response);
@@ -304,15 +523,10 @@ public class RequestService {
             request.setTokensConsumed(actualTokens);
             request.setResponseTime(LocalDateTime.now());
 
-            // Save request
-            request = requestRepository.save(request);
+            // Queue the audit row; the response does not wait for the insert
+            request = requestAuditWriter.submit(request);
             log.info("Multimodal request processed successfully, request ID: {}", request.getId());
 
-            // Get user's limit for this model
-            Limit limit = limitRepository.findByUserAndModel(user, model)
-                    .orElseThrow(() -> new RuntimeException("User does not have a limit for this model"));
-
-
             // Build response
             return AIResponse.builder()
                     .requestId(request.getId())
@@ -322,19 +536,29 @@ public class RequestService {
                     .tokensConsumed(actualTokens)
                     .successful(true)
                     .processingTimeMs(ChronoUnit.MILLIS.between(request.getRequestTime(), request.getResponseTime()))
-                    .limitStatus(buildLimitStatus(limit))
+                    .limitStatus(buildLimitStatus(quota))
                     .build();
 
+        } catch (UpstreamUnavailableException e) {
+            // Not sent to the upstream: nothing was used, the client is told when to retry
+            limitService.release(reservation);
+            throw e;
+        } catch (UnsupportedModelRequestException e) {
+            // Not sent to the upstream either: nothing was used, the client has to pick another model
+            log.warn("Model {} does not take images: {}", model.getName(), e.getMessage());
+            limitService.release(reservation);
+            throw e;
         } catch (Exception e) {
             // Handle error
             log.error("Error processing multimodal request: {}", e.getMessage(), e);
+            limitService.release(reservation);
             request.setSuccessful(false);
             request.setErrorMessage(e.getMessage());
             request.setTokensConsumed(0);
             request.setResponseTime(LocalDateTime.now());
 
-            // Save request
-            request = requestRepository.save(request);
+            // Queue the audit row; the response does not wait for the insert
+            request = requestAuditWriter.submit(request);
 
             // Return error response
             return AIResponse.builder()
@@ -348,43 +572,130 @@ public class RequestService {
         }
     }
 
-    public List<RequestResponse> getUserRequestHistory(User user) {
-        List<Request> requests = requestRepository.findByUser(user);
-        return requests.stream()
-                .map(this::mapToRequestResponse)
+    /**
+     * One page of the user's requests, newest first. Pages are keyset-paginated on (requestTime, id),
+     * so a deep page costs the same as the first and requests made meanwhile do not shift them.
+     *
+     * @param cursor the nextCursor of the previous page, or null for the first page
+     */
+    public RequestHistoryPage getUserRequestHistory(AuthenticatedUser user, String cursor, int limit, HistoryFilter filter) {
+        int pageSize = Math.max(1, Math.min(limit, MAX_HISTORY_PAGE_SIZE));
+        LocalDateTime beforeTime = HISTORY_LATEST;
+        long beforeId = Long.MAX_VALUE;
+        if (cursor != null) {
+            String[] position = decodeCursor(cursor);
+            beforeTime = LocalDateTime.parse(position[0]);
+            beforeId = Long.parseLong(position[1]);
+        }
+
+        // One extra row tells whether there is a next page
+        Pageable page = PageRequest.of(0, pageSize + 1);
+        List<RequestRepository.HistoryEntry> rows = requestRepository.findHistory(user.id(), filter.fromOrEarliest(),
+                filter.toOrLatest(), filter.modelId(), beforeTime, beforeId, page);
+
+        boolean hasNext = rows.size() > pageSize;
+        List<RequestRepository.HistoryEntry> pageRows = hasNext ? rows.subList(0, pageSize) : rows;
+        String userName = userName(user);
+        List<RequestResponse> items = pageRows.stream()
+                .map(row -> mapToRequestResponse(row, user.id(), userName, filter.includeBodies()))
                 .collect(Collectors.toList());
+
+        RequestRepository.HistoryEntry last = hasNext ? pageRows.get(pageRows.size() - 1) : null;
+        return RequestHistoryPage.builder()
+                .items(items)
+                .nextCursor(last != null ? encodeCursor(last.getRequestTime(), last.getId()) : null)
+                .build();
+    }
+
+    /**
+     * Hands every matching request, newest first, to {@code sink} while reading them from a database
+     * cursor, so the history is never held in memory as a whole.
+     */
+    @Transactional(readOnly = true)
+    public void exportUserRequestHistory(AuthenticatedUser user, HistoryFilter filter, Consumer<RequestResponse> sink) {
+        String userName = userName(user);
+        try (Stream<RequestRepository.HistoryEntry> rows = requestRepository.streamHistory(user.id(),
+                filter.fromOrEarliest(), filter.toOrLatest(), filter.modelId())) {
+            rows.forEach(row -> sink.accept(mapToRequestResponse(row, user.id(), userName, filter.includeBodies())));
+        }
+    }
+
+    private String userName(AuthenticatedUser user) {
+        // Only the name is read, not the user entity with its company
+        return userRepository.findFullNameById(user.id()).orElse(null);
+    }
+
+    static String encodeCursor(LocalDateTime requestTime, Long id) {
+        return Base64.getUrlEncoder().withoutPadding()
+                .encodeToString((requestTime + "_" + id).getBytes(StandardCharsets.UTF_8));
     }
 
-    private RequestResponse mapToRequestResponse(Request request) {
+    private static String[] decodeCursor(String cursor) {
+        try {
+            String[] position = new String(Base64.getUrlDecoder().decode(cursor), StandardCharsets.UTF_8).split("_");
+            if (position.length != 2) {
+                throw new IllegalArgumentException(cursor);
+            }
+            LocalDateTime.parse(position[0]);
+            Long.parseLong(position[1]);
+            return position;
+        } catch (IllegalArgumentException | DateTimeParseException e) {
+            throw new InvalidCursorException("Invalid history cursor");
+        }
+    }
+
+    /**
+     * Query and response text are read from the content store only if {@code includeBodies}.
+     */
+    private RequestResponse mapToRequestResponse(RequestRepository.HistoryEntry row, Long userId, String userName,
+                                                 boolean includeBodies) {
+        Optional<AIModel> model = modelCatalog.findById(row.getModelId());
         return RequestResponse.builder()
-                .id(request.getId())
-                .userId(request.getUser().getId())
-                .userName(request.getUser().getFirstName() + " " + request.getUser().getLastName())
-                .modelId(request.getModel().getId())
-                .modelName(request.getModel().getName())
-                .modelProvider(request.getModel().getProvider())
-                .modelType(request.getModel().getType())
-                .query(request.getQuery())
-                .response(request.getResponse())
-                .errorMessage(request.getErrorMessage())
-                .successful(request.isSuccessful())
-                .tokensConsumed(request.getTokensConsumed())
-                .fileName(request.getFileName())
-                .requestTime(request.getRequestTime())
-                .responseTime(request.getResponseTime())
-                .processingTimeMs(request.getResponseTime() != null ? 
-                        ChronoUnit.MILLIS.between(request.getRequestTime(), request.getResponseTime()) : null)
+                .id(row.getId())
+                .userId(userId)
+                .userName(userName)
+                .modelId(row.getModelId())
+                .modelName(model.map(AIModel::getName).orElse(null))
+                .modelProvider(model.map(AIModel::getProvider).orElse(null))
+                .modelType(model.map(AIModel::getType).orElse(null))
+                .query(includeBodies ? loadBody(row.getQueryRef()) : null)
+                .response(includeBodies ? loadBody(row.getResponseRef()) : null)
+                .querySize(row.getQuerySize())
+                .responseSize(row.getResponseSize())
+                .errorMessage(row.getErrorMessage())
+                .successful(Boolean.TRUE.equals(row.getSuccessful()))
+                .tokensConsumed(row.getTokensConsumed() != null ? row.getTokensConsumed() : 0)
+                .fileName(row.getFileName())
+                .requestTime(row.getRequestTime())
+                .responseTime(row.getResponseTime())
+                .processingTimeMs(row.getResponseTime() != null ?
+                        ChronoUnit.MILLIS.between(row.getRequestTime(), row.getResponseTime()) : null)
                 .build();
     }
 
-    private AIResponse.LimitStatus buildLimitStatus(Limit limit) {
+    /**
+     * A body that cannot be read is left out of its row rather than failing the whole page or export.
+     */
+    private String loadBody(String ref) {
+        if (ref == null) {
+            return null;
+        }
+        try {
+            return contentStore.get(ref);
+        } catch (RuntimeException e) {
+            log.warn("Could not read request body {}: {}", ref, e.getMessage());
+            return null;
+        }
+    }
+
+    private AIResponse.LimitStatus buildLimitStatus(QuotaEngine.QuotaSnapshot quota) {
         return AIResponse.LimitStatus.builder()
-                .usedRequests(limit.getUsedRequests())
-                .maxRequests(limit.getMaxRequestsPerWindow())
-                .usedTokens(limit.getUsedTokens())
-                .maxTokens(limit.getMaxTokensPerWindow())
-                .windowType(limit.getWindowType())
-                .windowEndsAt(limit.getWindowEndTime().format(DateTimeFormatter.ISO_DATE_TIME))
+                .usedRequests(quota.getUsedRequests())
+                .maxRequests(quota.getMaxRequests())
+                .usedTokens(quota.getUsedTokens())
+                .maxTokens(quota.getMaxTokens())
+                .windowType(quota.getWindowType())
+                .windowEndsAt(quota.getWindowEndTime().format(DateTimeFormatter.ISO_DATE_TIME))
                 .build();
     }
 
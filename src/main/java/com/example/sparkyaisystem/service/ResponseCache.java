@@ -0,0 +1,154 @@
+package com.example.sparkyaisystem.service;
+
+import com.example.sparkyaisystem.model.entity.AIModel;
+import com.example.sparkyaisystem.security.AuthenticatedUser;
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.binder.cache.CaffeineCacheMetrics;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+import reactor.core.publisher.Mono;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.time.Duration;
+import java.util.HexFormat;
+import java.util.function.Supplier;
+
+/**
+ * Cache of model answers for deterministic prompts.
+ * Entries are keyed by a SHA-256 hash of the model, prompts and generation options, and scoped
+ * to the caller's company so answers are never shared across companies. Only requests with
+ * temperature 0 or an explicit cacheable flag are cached, and only answers for which the
+ * upstream reported token usage (errors are returned as content without usage).
+ */
+@Service
+@Slf4j
+public class ResponseCache {
+
+    private final boolean enabled;
+    private final double tokenDiscount;
+    private final Cache<Key, GitHubModelsService.CompletionResult> cache;
+
+    public ResponseCache(MeterRegistry meterRegistry,
+                         @Value("${cache.responses.enabled:true}") boolean enabled,
+                         @Value("${cache.responses.max-entries:10000}") long maxEntries,
+                         @Value("${cache.responses.ttl-seconds:3600}") long ttlSeconds,
+                         @Value("${cache.responses.token-discount:0.9}") double tokenDiscount) {
+        this.enabled = enabled;
+        this.tokenDiscount = tokenDiscount;
+        this.cache = Caffeine.newBuilder()
+                .maximumSize(maxEntries)
+                .expireAfterWrite(Duration.ofSeconds(ttlSeconds))
+                .recordStats()
+                .build();
+
+        CaffeineCacheMetrics.monitor(meterRegistry, cache, "ai.responses");
+        Gauge.builder("ai.responses.cache.hit.ratio", cache, c -> c.stats().hitRate())
+                .description("Share of cacheable AI requests served from the response cache")
+                .register(meterRegistry);
+    }
+
+    /**
+     * An explicit cacheable flag wins; otherwise only temperature 0 requests are cacheable.
+     */
+    public static boolean isCacheable(Boolean cacheable, Float temperature) {
+        if (cacheable != null) {
+            return cacheable;
+        }
+        return temperature != null && temperature == 0f;
+    }
+
+    /**
+     * Builds the cache key for a request, scoped to the user's company.
+     *
+     * @param kind the kind of request (chat, completion), as they are sent upstream differently
+     */
+    public Key keyFor(AuthenticatedUser user, AIModel model, String kind, String systemPrompt, String message,
+                      Float temperature, Integer maxTokens) {
+        String scope = user.hasCompany()
+                ? "company:" + user.companyId()
+                : "user:" + user.id();
+
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            for (Object part : new Object[]{kind, model.getId(), systemPrompt, message, temperature, maxTokens}) {
+                // Length-prefix each part so different splits of the same text never collide
+                byte[] bytes = String.valueOf(part).getBytes(StandardCharsets.UTF_8);
+                digest.update((bytes.length + ":").getBytes(StandardCharsets.UTF_8));
+                digest.update(bytes);
+            }
+            return new Key(scope, HexFormat.of().formatHex(digest.digest()));
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 not available", e);
+        }
+    }
+
+    /**
+     * Returns the cached answer for the key, or calls the upstream and caches its answer.
+     * A null key bypasses the cache.
+     */
+    public Lookup getOrCompute(Key key, Supplier<GitHubModelsService.CompletionResult> upstream) {
+        GitHubModelsService.CompletionResult cached = lookup(key);
+        if (cached != null) {
+            return new Lookup(cached, true);
+        }
+        GitHubModelsService.CompletionResult result = upstream.get();
+        put(key, result);
+        return new Lookup(result, false);
+    }
+
+    /**
+     * Non-blocking variant of {@link #getOrCompute}.
+     */
+    public Mono<Lookup> getOrComputeAsync(Key key, Supplier<Mono<GitHubModelsService.CompletionResult>> upstream) {
+        GitHubModelsService.CompletionResult cached = lookup(key);
+        if (cached != null) {
+            return Mono.just(new Lookup(cached, true));
+        }
+        return upstream.get()
+                .doOnNext(result -> put(key, result))
+                .map(result -> new Lookup(result, false));
+    }
+
+    /**
+     * Tokens charged to the limit for an answer served from the cache.
+     */
+    public int discountedTokens(int tokens) {
+        return (int) Math.ceil(tokens * (1 - tokenDiscount));
+    }
+
+    public long size() {
+        return cache.estimatedSize();
+    }
+
+    private GitHubModelsService.CompletionResult lookup(Key key) {
+        if (!enabled || key == null) {
+            return null;
+        }
+        GitHubModelsService.CompletionResult cached = cache.getIfPresent(key);
+        if (cached != null) {
+            log.debug("Response cache hit for {}", key.scope());
+        }
+        return cached;
+    }
+
+    private void put(Key key, GitHubModelsService.CompletionResult result) {
+        if (enabled && key != null && result.getContent() != null && result.getTotalTokens() != null) {
+            cache.put(key, result);
+        }
+    }
+
+    public record Key(String scope, String digest) {
+    }
+
+    /**
+     * An answer and whether it was served from the cache.
+     */
+    public record Lookup(GitHubModelsService.CompletionResult result, boolean hit) {
+    }
+}
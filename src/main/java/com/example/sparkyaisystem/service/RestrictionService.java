@@ -8,6 +8,7 @@ import com.example.sparkyaisystem.model.entity.Restriction;
 import com.example.sparkyaisystem.repository.AIModelRepository;
 import com.example.sparkyaisystem.repository.CompanyRepository;
 import com.example.sparkyaisystem.repository.RestrictionRepository;
+import org.springframework.context.ApplicationEventPublisher;
 import org.springframework.stereotype.Service;
 import org.springframework.transaction.annotation.Transactional;
 
@@ -20,13 +21,16 @@ public class RestrictionService {
     private final RestrictionRepository restrictionRepository;
     private final CompanyRepository companyRepository;
     private final AIModelRepository aiModelRepository;
+    private final ApplicationEventPublisher eventPublisher;
 
     public RestrictionService(RestrictionRepository restrictionRepository,
                               CompanyRepository companyRepository,
-                              AIModelRepository aiModelRepository) {
+                              AIModelRepository aiModelRepository,
+                              ApplicationEventPublisher eventPublisher) {
         this.restrictionRepository = restrictionRepository;
         this.companyRepository = companyRepository;
         this.aiModelRepository = aiModelRepository;
+        this.eventPublisher = eventPublisher;
     }
 
     @Transactional
@@ -50,8 +54,11 @@ public class RestrictionService {
         restriction.setWindowType(restrictionRequest.getWindowType());
 
         company.addRestriction(restriction);
-        
-        return mapToRestrictionResponse(restrictionRepository.save(restriction));
+
+        Restriction saved = restrictionRepository.save(restriction);
+        eventPublisher.publishEvent(new ModelAvailabilityIndex.Changed(companyId, model.getId()));
+        eventPublisher.publishEvent(new QuotaEngine.RestrictionChanged(companyId, model.getId()));
+        return mapToRestrictionResponse(saved);
     }
 
     public List<RestrictionResponse> getRestrictionsByCompany(Long companyId) {
@@ -100,12 +107,29 @@ public class RestrictionService {
             throw new RuntimeException("Restriction already exists for this company and model");
         }
 
+        Long previousModelId = restriction.getModel().getId();
+        boolean modelChanged = !previousModelId.equals(model.getId());
         restriction.setModel(model);
         restriction.setMaxRequestsPerWindow(restrictionRequest.getMaxRequestsPerWindow());
         restriction.setMaxTokensPerWindow(restrictionRequest.getMaxTokensPerWindow());
-        restriction.setWindowType(restrictionRequest.getWindowType());
+        if (modelChanged || !restriction.getWindowType().equals(restrictionRequest.getWindowType())) {
+            restriction.setWindowType(restrictionRequest.getWindowType());
+            // Reset the leased usage; the next lease starts the window of the new settings
+            restriction.setUsedRequests(0);
+            restriction.setUsedTokens(0);
+            restriction.setLeasedRequests(0);
+            restriction.setLeasedTokens(0);
+            restriction.setWindowStartTime(null);
+            restriction.setWindowEndTime(null);
+        }
 
-        return mapToRestrictionResponse(restrictionRepository.save(restriction));
+        Restriction saved = restrictionRepository.save(restriction);
+        if (modelChanged) {
+            eventPublisher.publishEvent(new ModelAvailabilityIndex.Changed(companyId, model.getId()));
+            eventPublisher.publishEvent(new QuotaEngine.RestrictionChanged(companyId, previousModelId));
+        }
+        eventPublisher.publishEvent(new QuotaEngine.RestrictionChanged(companyId, model.getId()));
+        return mapToRestrictionResponse(saved);
     }
 
     @Transactional
@@ -123,6 +147,8 @@ public class RestrictionService {
 
         company.removeRestriction(restriction);
         restrictionRepository.delete(restriction);
+        eventPublisher.publishEvent(new ModelAvailabilityIndex.Changed(companyId, restriction.getModel().getId()));
+        eventPublisher.publishEvent(new QuotaEngine.RestrictionChanged(companyId, restriction.getModel().getId()));
     }
 
     private RestrictionResponse mapToRestrictionResponse(Restriction restriction) {
@@ -0,0 +1,78 @@
+package com.example.sparkyaisystem.service;
+
+import com.knuddels.jtokkit.Encodings;
+import com.knuddels.jtokkit.api.Encoding;
+import com.knuddels.jtokkit.api.EncodingRegistry;
+import com.knuddels.jtokkit.api.EncodingType;
+
+/**
+ * Local byte-level BPE tokenizer used to estimate the tokens a request will consume.
+ * Vocabularies are the BPE rank files bundled with jtokkit and are loaded lazily, the first
+ * time a model family is used. Encoders are thread-safe and shared.
+ * <p>
+ * User input is encoded as ordinary text: special tokens such as {@code <|endoftext|>}
+ * are counted as the characters they contain instead of being rejected.
+ */
+public final class Tokenizer {
+
+    private static final EncodingRegistry REGISTRY = Encodings.newLazyEncodingRegistry();
+
+    private Tokenizer() {
+    }
+
+    /**
+     * Tokenizer families of the models we route to, each with the closest bundled vocabulary.
+     */
+    public enum Family {
+        // gpt-4o uses o200k_base
+        GPT_4O(EncodingType.O200K_BASE),
+        // Llama 4 ships a ~200k tiktoken-style BPE vocabulary; o200k_base is the closest match
+        LLAMA(EncodingType.O200K_BASE),
+        // DeepSeek-V3 uses a 128k byte-level BPE vocabulary; cl100k_base is the closest match
+        DEEPSEEK(EncodingType.CL100K_BASE);
+
+        private final EncodingType encodingType;
+
+        Family(EncodingType encodingType) {
+            this.encodingType = encodingType;
+        }
+
+        private Encoding encoding() {
+            return REGISTRY.getEncoding(encodingType);
+        }
+
+        /**
+         * Resolves the family of an upstream model id such as {@code openai/gpt-4o} from its publisher,
+         * falling back to DeepSeek.
+         */
+        public static Family of(String upstreamModel) {
+            String publisher = upstreamModel != null && upstreamModel.contains("/")
+                    ? upstreamModel.substring(0, upstreamModel.indexOf('/')).toLowerCase() : "";
+            return switch (publisher) {
+                case "openai" -> GPT_4O;
+                case "meta" -> LLAMA;
+                default -> DEEPSEEK;
+            };
+        }
+    }
+
+    /**
+     * Counts tokens without materializing them.
+     */
+    public static int countTokens(Family family, String text) {
+        if (text == null || text.isEmpty()) {
+            return 0;
+        }
+        return family.encoding().countTokensOrdinary(text);
+    }
+
+    /**
+     * Encodes the text into token ids.
+     */
+    public static int[] encode(Family family, String text) {
+        if (text == null || text.isEmpty()) {
+            return new int[0];
+        }
+        return family.encoding().encodeOrdinary(text).toArray();
+    }
+}
@@ -0,0 +1,281 @@
+package com.example.sparkyaisystem.service;
+
+import com.example.sparkyaisystem.exception.UpstreamOverloadedException;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.LongSupplier;
+
+/**
+ * Bulkhead per upstream model, so a slow model can only tie up its own share of request threads.
+ * <p>
+ * Each model's concurrency limit adapts to the latency observed (AIMD): a call slower than
+ * {@code upstream.concurrency.latency-tolerance} times the model's baseline latency shrinks the
+ * limit by {@code backoff-ratio}, a call within it while the bulkhead is at least half busy grows the
+ * limit by one per limit's worth of calls. The baseline is the lowest latency of the last two windows
+ * of {@value #RTT_WINDOW} calls, so it follows the upstream as it changes.
+ * <p>
+ * Calls over the limit wait in a FIFO queue of at most {@code max-queue} for up to
+ * {@code queue-timeout-ms}; beyond that they are shed with {@link UpstreamOverloadedException}.
+ * <p>
+ * Calls made through the async client ({@link #tryAcquireAsync}) hold no thread while they wait on the
+ * upstream, so they get a bulkhead of their own with the fixed {@code async-limit}, which only bounds the
+ * connections and buffered responses one model can pile up; they never queue and are shed beyond it.
+ * Limit, calls in flight and queue depth are published per model and caller ({@code blocking} or
+ * {@code async}) as gauges.
+ */
+@Component
+@Slf4j
+public class UpstreamConcurrencyLimiter {
+
+    static final int RTT_WINDOW = 100;
+
+    private final MeterRegistry meterRegistry;
+    private final int initialLimit;
+    private final int minLimit;
+    private final int maxLimit;
+    private final int asyncLimit;
+    private final int maxQueue;
+    private final long queueTimeoutNanos;
+    private final double latencyTolerance;
+    private final double backoffRatio;
+    private final LongSupplier clock;
+    private final ConcurrentHashMap<String, Bulkhead> bulkheads = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<String, Bulkhead> asyncBulkheads = new ConcurrentHashMap<>();
+
+    @Autowired
+    public UpstreamConcurrencyLimiter(MeterRegistry meterRegistry,
+                                      @Value("${upstream.concurrency.initial-limit:10}") int initialLimit,
+                                      @Value("${upstream.concurrency.min-limit:2}") int minLimit,
+                                      @Value("${upstream.concurrency.max-limit:100}") int maxLimit,
+                                      @Value("${upstream.concurrency.async-limit:10000}") int asyncLimit,
+                                      @Value("${upstream.concurrency.max-queue:50}") int maxQueue,
+                                      @Value("${upstream.concurrency.queue-timeout-ms:2000}") long queueTimeoutMs,
+                                      @Value("${upstream.concurrency.latency-tolerance:2.0}") double latencyTolerance,
+                                      @Value("${upstream.concurrency.backoff-ratio:0.9}") double backoffRatio) {
+        this(meterRegistry, initialLimit, minLimit, maxLimit, asyncLimit, maxQueue, queueTimeoutMs, latencyTolerance,
+                backoffRatio, System::nanoTime);
+    }
+
+    UpstreamConcurrencyLimiter(MeterRegistry meterRegistry, int initialLimit, int minLimit, int maxLimit, int asyncLimit,
+                               int maxQueue, long queueTimeoutMs, double latencyTolerance, double backoffRatio,
+                               LongSupplier clock) {
+        this.meterRegistry = meterRegistry;
+        this.initialLimit = initialLimit;
+        this.minLimit = minLimit;
+        this.maxLimit = maxLimit;
+        this.asyncLimit = asyncLimit;
+        this.maxQueue = maxQueue;
+        this.queueTimeoutNanos = TimeUnit.MILLISECONDS.toNanos(queueTimeoutMs);
+        this.latencyTolerance = latencyTolerance;
+        this.backoffRatio = backoffRatio;
+        this.clock = clock;
+    }
+
+    /**
+     * Takes a slot for a call to the model, waiting in the model's queue if all slots are taken.
+     *
+     * @throws UpstreamOverloadedException if the queue is full or the wait times out
+     */
+    public Permit acquire(String model) {
+        return bulkhead(model).acquire(queueTimeoutNanos);
+    }
+
+    /**
+     * Takes a slot for a call to the model without waiting, for blocking callers that must not block.
+     *
+     * @throws UpstreamOverloadedException if all slots are taken
+     */
+    public Permit tryAcquire(String model) {
+        return bulkhead(model).acquire(0);
+    }
+
+    /**
+     * Takes a slot of the model's async bulkhead, for calls that hold no thread until the upstream answers.
+     *
+     * @throws UpstreamOverloadedException if {@code async-limit} calls to the model are already in flight
+     */
+    public Permit tryAcquireAsync(String model) {
+        return asyncBulkheads.computeIfAbsent(model, m -> new Bulkhead(m, "async", asyncLimit, false)).acquire(0);
+    }
+
+    public int limit(String model) {
+        return (int) bulkhead(model).limit;
+    }
+
+    public int queueDepth(String model) {
+        return bulkhead(model).waiting;
+    }
+
+    public int inFlight(String model) {
+        return bulkhead(model).inFlight;
+    }
+
+    public int asyncInFlight(String model) {
+        Bulkhead bulkhead = asyncBulkheads.get(model);
+        return bulkhead != null ? bulkhead.inFlight : 0;
+    }
+
+    private Bulkhead bulkhead(String model) {
+        return bulkheads.computeIfAbsent(model, m -> new Bulkhead(m, "blocking", initialLimit, true));
+    }
+
+    /**
+     * A slot taken from a model's bulkhead. Closing it frees the slot and, unless
+     * {@link #skipLatency()} was called, feeds the call's latency to the limit.
+     */
+    public final class Permit implements AutoCloseable {
+        private final Bulkhead bulkhead;
+        private final long startedAt = clock.getAsLong();
+        private final int inFlightAtStart;
+        private boolean sampled = true;
+        private boolean closed;
+
+        private Permit(Bulkhead bulkhead, int inFlightAtStart) {
+            this.bulkhead = bulkhead;
+            this.inFlightAtStart = inFlightAtStart;
+        }
+
+        /**
+         * For calls whose duration says nothing about the upstream's load, e.g. streams.
+         */
+        public Permit skipLatency() {
+            sampled = false;
+            return this;
+        }
+
+        @Override
+        public void close() {
+            synchronized (this) {
+                if (closed) {
+                    return;
+                }
+                closed = true;
+            }
+            bulkhead.release(sampled ? clock.getAsLong() - startedAt : -1, inFlightAtStart);
+        }
+    }
+
+    /**
+     * Limit state of one model and caller. Fields are written under the lock; the volatile ones are also read
+     * by gauges.
+     */
+    private final class Bulkhead {
+        private final String model;
+        private final boolean adaptive;
+        private final ReentrantLock lock = new ReentrantLock(true);
+        private final Condition available = lock.newCondition();
+        private final Counter shed;
+        private volatile double limit;
+        private volatile int inFlight;
+        private volatile int waiting;
+        private long baselineNanos = Long.MAX_VALUE;
+        private long windowMinNanos = Long.MAX_VALUE;
+        private long previousWindowMinNanos = Long.MAX_VALUE;
+        private int windowSamples;
+        private double smoothedNanos;
+
+        private Bulkhead(String model, String caller, int limit, boolean adaptive) {
+            this.model = model;
+            this.limit = limit;
+            this.adaptive = adaptive;
+            Gauge.builder("upstream.concurrency.limit", this, b -> b.limit)
+                    .tag("model", model).tag("caller", caller).register(meterRegistry);
+            Gauge.builder("upstream.in_flight", this, b -> b.inFlight)
+                    .tag("model", model).tag("caller", caller).register(meterRegistry);
+            Gauge.builder("upstream.queue.depth", this, b -> b.waiting)
+                    .tag("model", model).tag("caller", caller).register(meterRegistry);
+            this.shed = Counter.builder("upstream.shed").tag("model", model).tag("caller", caller).register(meterRegistry);
+        }
+
+        private Permit acquire(long timeoutNanos) {
+            lock.lock();
+            try {
+                if (inFlight < (int) limit) {
+                    return take();
+                }
+                if (timeoutNanos <= 0 || waiting >= maxQueue) {
+                    throw shed();
+                }
+                waiting++;
+                try {
+                    long remaining = timeoutNanos;
+                    while (inFlight >= (int) limit) {
+                        if (remaining <= 0) {
+                            throw shed();
+                        }
+                        remaining = available.awaitNanos(remaining);
+                    }
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw shed();
+                } finally {
+                    waiting--;
+                }
+                return take();
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        private Permit take() {
+            inFlight++;
+            return new Permit(this, inFlight);
+        }
+
+        private UpstreamOverloadedException shed() {
+            shed.increment();
+            // Roughly how long until the calls ahead have gone through
+            double drainNanos = smoothedNanos * (waiting + 1) / limit;
+            long retryAfter = Math.max(1, (long) Math.ceil(drainNanos / TimeUnit.SECONDS.toNanos(1)));
+            log.warn("Shedding request to {}: {} in flight, {} queued, limit {}", model, inFlight, waiting, (int) limit);
+            return new UpstreamOverloadedException(model, retryAfter);
+        }
+
+        private void release(long latencyNanos, int inFlightAtStart) {
+            lock.lock();
+            try {
+                inFlight--;
+                if (latencyNanos >= 0) {
+                    int before = (int) limit;
+                    adapt(latencyNanos, inFlightAtStart);
+                    if ((int) limit > before) {
+                        available.signalAll();
+                    }
+                }
+                available.signal();
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        private void adapt(long latencyNanos, int inFlightAtStart) {
+            smoothedNanos = smoothedNanos == 0 ? latencyNanos : smoothedNanos * 0.9 + latencyNanos * 0.1;
+            windowMinNanos = Math.min(windowMinNanos, latencyNanos);
+            if (++windowSamples == RTT_WINDOW) {
+                previousWindowMinNanos = windowMinNanos;
+                windowMinNanos = Long.MAX_VALUE;
+                windowSamples = 0;
+            }
+            baselineNanos = Math.min(previousWindowMinNanos, windowMinNanos);
+
+            if (!adaptive) {
+                return;
+            }
+            if (latencyNanos > baselineNanos * latencyTolerance) {
+                limit = Math.max(minLimit, limit * backoffRatio);
+            } else if (inFlightAtStart * 2 >= limit) {
+                limit = Math.min(maxLimit, limit + 1 / limit);
+            }
+        }
+    }
+}
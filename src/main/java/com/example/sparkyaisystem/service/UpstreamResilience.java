@@ -0,0 +1,394 @@
+package com.example.sparkyaisystem.service;
+
+import com.azure.core.exception.HttpResponseException;
+import com.example.sparkyaisystem.exception.UpstreamUnavailableException;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+import reactor.util.retry.Retry;
+
+import java.io.IOException;
+import java.time.Duration;
+import java.util.Arrays;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.LongSupplier;
+import java.util.function.Supplier;
+
+/**
+ * Timeouts, retries, circuit breaking and hedging for the calls to the AI upstream, per model.
+ * <ul>
+ *   <li>Each attempt is given up after {@code upstream.resilience.timeout-ms}.</li>
+ *   <li>Timeouts, I/O errors and the statuses in {@link #RETRYABLE_STATUSES} are retried up to
+ *       {@code max-retries} times, with exponential backoff and jitter; other errors fail at once.</li>
+ *   <li>When at least {@code breaker.failure-rate} of the last {@code breaker.window} calls to a model
+ *       failed in a retryable way, its breaker opens and calls fail fast with
+ *       {@link UpstreamUnavailableException} for {@code breaker.open-ms}. Then one trial call is let
+ *       through, which closes the breaker again or reopens it.</li>
+ *   <li>With {@code hedge.enabled}, an attempt still unanswered after the model's
+ *       {@code hedge.percentile} latency is raced by a second one and the first answer wins. Hedges
+ *       must not queue for a bulkhead slot, so they only go out while the model has spare capacity.</li>
+ * </ul>
+ * Errors are always signalled, so callers release the reservation and audit the failure.
+ * Breaker state, retries and hedges are published per model.
+ */
+@Component
+@Slf4j
+public class UpstreamResilience {
+
+    static final Set<Integer> RETRYABLE_STATUSES = Set.of(408, 429, 500, 502, 503, 504);
+    static final int LATENCY_SAMPLES = 200;
+    static final int MIN_LATENCY_SAMPLES = 20;
+    // The hedge delay is recomputed after this many samples, not on every call
+    private static final int PERCENTILE_REFRESH = 20;
+
+    private final MeterRegistry meterRegistry;
+    private final Executor callExecutor;
+    private final Duration timeout;
+    private final int maxRetries;
+    private final Duration backoffInitial;
+    private final Duration backoffMax;
+    private final int breakerWindow;
+    private final int breakerMinimumCalls;
+    private final double breakerFailureRate;
+    private final long breakerOpenNanos;
+    private final boolean hedgeEnabled;
+    private final double hedgePercentile;
+    private final LongSupplier clock;
+    private final ConcurrentHashMap<String, ModelState> models = new ConcurrentHashMap<>();
+
+    @Autowired
+    public UpstreamResilience(MeterRegistry meterRegistry,
+                              @Qualifier("upstreamCallExecutor") Executor callExecutor,
+                              @Value("${upstream.resilience.timeout-ms:60000}") long timeoutMs,
+                              @Value("${upstream.resilience.max-retries:2}") int maxRetries,
+                              @Value("${upstream.resilience.backoff-initial-ms:200}") long backoffInitialMs,
+                              @Value("${upstream.resilience.backoff-max-ms:2000}") long backoffMaxMs,
+                              @Value("${upstream.resilience.breaker.window:20}") int breakerWindow,
+                              @Value("${upstream.resilience.breaker.minimum-calls:10}") int breakerMinimumCalls,
+                              @Value("${upstream.resilience.breaker.failure-rate:0.5}") double breakerFailureRate,
+                              @Value("${upstream.resilience.breaker.open-ms:30000}") long breakerOpenMs,
+                              @Value("${upstream.resilience.hedge.enabled:false}") boolean hedgeEnabled,
+                              @Value("${upstream.resilience.hedge.percentile:0.95}") double hedgePercentile) {
+        this(meterRegistry, callExecutor, timeoutMs, maxRetries, backoffInitialMs, backoffMaxMs, breakerWindow,
+                breakerMinimumCalls, breakerFailureRate, breakerOpenMs, hedgeEnabled, hedgePercentile, System::nanoTime);
+    }
+
+    UpstreamResilience(MeterRegistry meterRegistry, Executor callExecutor, long timeoutMs, int maxRetries,
+                       long backoffInitialMs, long backoffMaxMs, int breakerWindow, int breakerMinimumCalls,
+                       double breakerFailureRate, long breakerOpenMs, boolean hedgeEnabled, double hedgePercentile,
+                       LongSupplier clock) {
+        this.meterRegistry = meterRegistry;
+        this.callExecutor = callExecutor;
+        this.timeout = Duration.ofMillis(timeoutMs);
+        this.maxRetries = maxRetries;
+        this.backoffInitial = Duration.ofMillis(backoffInitialMs);
+        this.backoffMax = Duration.ofMillis(backoffMaxMs);
+        this.breakerWindow = breakerWindow;
+        this.breakerMinimumCalls = breakerMinimumCalls;
+        this.breakerFailureRate = breakerFailureRate;
+        this.breakerOpenNanos = TimeUnit.MILLISECONDS.toNanos(breakerOpenMs);
+        this.hedgeEnabled = hedgeEnabled;
+        this.hedgePercentile = hedgePercentile;
+        this.clock = clock;
+    }
+
+    /**
+     * One try of an upstream call. {@code hedge} is true for the racing copy of a slow attempt.
+     */
+    @FunctionalInterface
+    public interface Attempt<T> {
+        Mono<T> call(boolean hedge);
+    }
+
+    /**
+     * Blocking variant of {@link Attempt}, run on the upstream call executor.
+     */
+    @FunctionalInterface
+    public interface BlockingAttempt<T> {
+        T call(boolean hedge) throws Exception;
+    }
+
+    /**
+     * Runs a non-blocking upstream call for the model with timeouts, retries, the breaker and hedging.
+     *
+     * @return the first answer, or the error of the last attempt
+     */
+    public <T> Mono<T> execute(String model, Attempt<T> attempt) {
+        ModelState state = models.computeIfAbsent(model, ModelState::new);
+        return Mono.defer(() -> hedged(state, attempt))
+                .retryWhen(Retry.backoff(maxRetries, backoffInitial)
+                        .maxBackoff(backoffMax)
+                        .jitter(0.5)
+                        .filter(UpstreamResilience::isRetryable)
+                        .doBeforeRetry(signal -> {
+                            state.retries.increment();
+                            log.warn("Retrying call to {} after attempt {} failed: {}", model,
+                                    signal.totalRetries() + 1, signal.failure().getMessage());
+                        })
+                        .onRetryExhaustedThrow((spec, signal) -> signal.failure()));
+    }
+
+    /**
+     * Runs a blocking upstream call like {@link #execute}, waiting for the outcome on the calling thread.
+     */
+    public <T> T call(String model, BlockingAttempt<T> attempt) {
+        return execute(model, hedge -> Mono.fromFuture(() -> new CompletableFuture<T>().completeAsync(() -> {
+            try {
+                return attempt.call(hedge);
+            } catch (Exception e) {
+                throw new CompletionException(e);
+            }
+        }, callExecutor))).block();
+    }
+
+    /**
+     * Runs a streaming upstream call behind the model's breaker. Streams are neither retried nor hedged,
+     * as part of the answer may already be on its way to the client; the first chunk counts as success.
+     */
+    public <T> Flux<T> stream(String model, Supplier<Flux<T>> call) {
+        ModelState state = models.computeIfAbsent(model, ModelState::new);
+        return Flux.defer(() -> {
+            boolean trial = state.permit();
+            AtomicBoolean answered = new AtomicBoolean();
+            return call.get()
+                    .doOnNext(chunk -> {
+                        if (answered.compareAndSet(false, true)) {
+                            state.succeeded(trial, -1);
+                        }
+                    })
+                    .doOnComplete(() -> {
+                        if (answered.compareAndSet(false, true)) {
+                            state.succeeded(trial, -1);
+                        }
+                    })
+                    .doOnError(e -> {
+                        if (!answered.get()) {
+                            state.failed(trial, isRetryable(e));
+                        }
+                    })
+                    .doOnCancel(() -> {
+                        if (!answered.get()) {
+                            state.abandoned(trial);
+                        }
+                    });
+        });
+    }
+
+    /**
+     * Whether an upstream error is worth another attempt, and counts against the breaker.
+     */
+    static boolean isRetryable(Throwable error) {
+        for (Throwable e = error; e != null; e = e.getCause() != e ? e.getCause() : null) {
+            if (e instanceof HttpResponseException http && http.getResponse() != null) {
+                return RETRYABLE_STATUSES.contains(http.getResponse().getStatusCode());
+            }
+            if (e instanceof TimeoutException || e instanceof IOException) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    public CircuitState circuitState(String model) {
+        ModelState state = models.get(model);
+        return state != null ? state.circuit : CircuitState.CLOSED;
+    }
+
+    /**
+     * Delay after which a call to the model is hedged, or -1 while it is not.
+     */
+    public long hedgeAfterNanos(String model) {
+        ModelState state = models.get(model);
+        return state != null && hedgeEnabled ? state.hedgeAfterNanos : -1;
+    }
+
+    private <T> Mono<T> hedged(ModelState state, Attempt<T> attempt) {
+        Mono<T> primary = guarded(state, attempt, false);
+        long hedgeAfter = hedgeEnabled ? state.hedgeAfterNanos : -1;
+        if (hedgeAfter < 0) {
+            return primary;
+        }
+        Mono<T> hedge = Mono.delay(Duration.ofNanos(hedgeAfter))
+                .then(Mono.defer(() -> {
+                    state.hedges.increment();
+                    return guarded(state, attempt, true);
+                }))
+                // A failed hedge leaves the outcome to the primary attempt
+                .onErrorResume(e -> Mono.never());
+        return Mono.firstWithSignal(primary, hedge);
+    }
+
+    /**
+     * One attempt, admitted by the breaker and timed out; its outcome is fed back to the model's state.
+     */
+    private <T> Mono<T> guarded(ModelState state, Attempt<T> attempt, boolean hedge) {
+        return Mono.defer(() -> {
+            boolean trial = state.permit();
+            long startedAt = clock.getAsLong();
+            return attempt.call(hedge)
+                    .timeout(timeout)
+                    .doOnSuccess(result -> state.succeeded(trial, clock.getAsLong() - startedAt))
+                    .doOnError(e -> state.failed(trial, isRetryable(e)))
+                    .doOnCancel(() -> state.abandoned(trial));
+        });
+    }
+
+    /**
+     * Circuit breaker states, published as the ordinal (0 closed, 1 half open, 2 open).
+     */
+    public enum CircuitState {
+        CLOSED, HALF_OPEN, OPEN
+    }
+
+    /**
+     * Breaker and latency state of one model. Fields are written under the monitor;
+     * the volatile ones are also read without it.
+     */
+    private final class ModelState {
+        private final String model;
+        private final Counter retries;
+        private final Counter hedges;
+        // Outcomes of the last breakerWindow calls while closed, true for failures
+        private final boolean[] outcomes = new boolean[breakerWindow];
+        private int calls;
+        private int failures;
+        private int nextOutcome;
+        private volatile CircuitState circuit = CircuitState.CLOSED;
+        private long openedAt;
+        private boolean trialInFlight;
+        private final long[] latencies = new long[LATENCY_SAMPLES];
+        private int latencyCount;
+        private int nextLatency;
+        private int sinceRefresh;
+        private volatile long hedgeAfterNanos = -1;
+
+        private ModelState(String model) {
+            this.model = model;
+            Gauge.builder("upstream.circuit.state", this, s -> s.circuit.ordinal()).tag("model", model)
+                    .register(meterRegistry);
+            this.retries = Counter.builder("upstream.retries").tag("model", model).register(meterRegistry);
+            this.hedges = Counter.builder("upstream.hedges").tag("model", model).register(meterRegistry);
+        }
+
+        /**
+         * Admits an attempt and returns whether it is the trial call of a half open breaker.
+         *
+         * @throws UpstreamUnavailableException while the breaker is open or the trial call is running
+         */
+        private synchronized boolean permit() {
+            if (circuit == CircuitState.OPEN) {
+                long remaining = openedAt + breakerOpenNanos - clock.getAsLong();
+                if (remaining > 0) {
+                    throw unavailable(remaining);
+                }
+                circuit = CircuitState.HALF_OPEN;
+            }
+            if (circuit == CircuitState.HALF_OPEN) {
+                if (trialInFlight) {
+                    throw unavailable(0);
+                }
+                trialInFlight = true;
+                return true;
+            }
+            return false;
+        }
+
+        /**
+         * @param latencyNanos the call's latency, or -1 if it is not a latency sample
+         */
+        private synchronized void succeeded(boolean trial, long latencyNanos) {
+            record(trial, false);
+            if (latencyNanos < 0) {
+                return;
+            }
+            latencies[nextLatency] = latencyNanos;
+            nextLatency = (nextLatency + 1) % latencies.length;
+            latencyCount = Math.min(latencyCount + 1, latencies.length);
+            if (++sinceRefresh >= PERCENTILE_REFRESH && latencyCount >= MIN_LATENCY_SAMPLES) {
+                sinceRefresh = 0;
+                long[] sorted = Arrays.copyOf(latencies, latencyCount);
+                Arrays.sort(sorted);
+                hedgeAfterNanos = sorted[Math.max(0, (int) Math.ceil(hedgePercentile * latencyCount) - 1)];
+            }
+        }
+
+        /**
+         * Errors that are not the upstream's fault, e.g. a rejected request, say nothing about its health.
+         */
+        private synchronized void failed(boolean trial, boolean upstreamFault) {
+            if (upstreamFault) {
+                record(trial, true);
+            } else {
+                abandoned(trial);
+            }
+        }
+
+        private synchronized void abandoned(boolean trial) {
+            if (trial) {
+                trialInFlight = false;
+            }
+        }
+
+        private void record(boolean trial, boolean failure) {
+            if (trial) {
+                trialInFlight = false;
+                if (failure) {
+                    log.warn("Trial call to {} failed, keeping its circuit breaker open", model);
+                    open();
+                } else {
+                    close();
+                }
+                return;
+            }
+            // Calls admitted before the breaker opened do not count towards the next decision
+            if (circuit != CircuitState.CLOSED) {
+                return;
+            }
+            if (calls == outcomes.length) {
+                failures -= outcomes[nextOutcome] ? 1 : 0;
+            } else {
+                calls++;
+            }
+            outcomes[nextOutcome] = failure;
+            failures += failure ? 1 : 0;
+            nextOutcome = (nextOutcome + 1) % outcomes.length;
+            if (calls >= breakerMinimumCalls && failures >= breakerFailureRate * calls) {
+                log.warn("Opening circuit breaker for {}: {} of the last {} calls failed", model, failures, calls);
+                open();
+            }
+        }
+
+        private void open() {
+            circuit = CircuitState.OPEN;
+            openedAt = clock.getAsLong();
+        }
+
+        private void close() {
+            log.info("Closing circuit breaker for {}", model);
+            circuit = CircuitState.CLOSED;
+            Arrays.fill(outcomes, false);
+            calls = 0;
+            failures = 0;
+            nextOutcome = 0;
+        }
+
+        private UpstreamUnavailableException unavailable(long remainingNanos) {
+            long retryAfter = Math.max(1, (long) Math.ceil((double) remainingNanos / TimeUnit.SECONDS.toNanos(1)));
+            return new UpstreamUnavailableException(model, retryAfter);
+        }
+    }
+}
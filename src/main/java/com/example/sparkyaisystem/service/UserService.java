@@ -7,9 +7,9 @@ import com.example.sparkyaisystem.model.dto.user.UserResponse;
 import com.example.sparkyaisystem.model.entity.AIModel;
 import com.example.sparkyaisystem.model.entity.Company;
 import com.example.sparkyaisystem.model.entity.Limit;
-import com.example.sparkyaisystem.model.entity.Request;
 import com.example.sparkyaisystem.model.entity.User;
 import com.example.sparkyaisystem.repository.CompanyRepository;
+import com.example.sparkyaisystem.repository.ConsumptionRollupRepository;
 import com.example.sparkyaisystem.repository.LimitRepository;
 import com.example.sparkyaisystem.repository.RequestRepository;
 import com.example.sparkyaisystem.repository.UserRepository;
@@ -17,9 +17,11 @@ import org.springframework.security.access.AccessDeniedException;
 import org.springframework.stereotype.Service;
 import org.springframework.transaction.annotation.Transactional;
 
-import java.util.HashMap;
+import java.time.LocalDateTime;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Optional;
 import java.util.stream.Collectors;
 
 @Service
@@ -29,14 +31,19 @@ public class UserService {
     private final CompanyRepository companyRepository;
     private final RequestRepository requestRepository;
     private final LimitRepository limitRepository;
+    private final ConsumptionRollupService rollupService;
+    private final ModelCatalog modelCatalog;
     private final AuthService authService;
 
     public UserService(UserRepository userRepository, CompanyRepository companyRepository,
                        RequestRepository requestRepository, LimitRepository limitRepository,
+                       ConsumptionRollupService rollupService, ModelCatalog modelCatalog,
                        AuthService authService) {
         this.userRepository = userRepository;
         this.companyRepository = companyRepository;
         this.requestRepository = requestRepository;
+        this.rollupService = rollupService;
+        this.modelCatalog = modelCatalog;
         this.limitRepository = limitRepository;
         this.authService = authService;
     }
@@ -62,8 +69,13 @@ public class UserService {
         Company company = companyRepository.findById(companyId)
                 .orElseThrow(() -> new RuntimeException("Company not found"));
 
+        // One grouped count for the whole company instead of loading every user's requests
+        Map<Long, Long> requestCounts = requestRepository.countByUserInCompany(company).stream()
+                .collect(Collectors.toMap(RequestRepository.UserRequestCount::getUserId,
+                        RequestRepository.UserRequestCount::getRequestCount));
+
         return userRepository.findByCompany(company).stream()
-                .map(this::mapToUserResponse)
+                .map(user -> mapToUserResponse(user, requestCounts.getOrDefault(user.getId(), 0L)))
                 .collect(Collectors.toList());
     }
 
@@ -96,51 +108,57 @@ public class UserService {
         return mapToUserResponse(userRepository.save(user));
     }
 
-    public UserConsumptionResponse getUserConsumption(Long companyId, Long userId) {
+    /**
+     * Requests, tokens and mean latency per model between {@code from} and {@code to}, read from the hourly and
+     * daily rollups, next to the user's limits. Either end may be null; the range is widened to whole hours.
+     */
+    public UserConsumptionResponse getUserConsumption(Long companyId, Long userId, LocalDateTime from, LocalDateTime to) {
         User user = userRepository.findByCompanyAndId(
                 companyRepository.findById(companyId)
                         .orElseThrow(() -> new RuntimeException("Company not found")),
                 userId)
                 .orElseThrow(() -> new RuntimeException("User not found"));
 
-        List<Request> requests = requestRepository.findByUser(user);
         List<Limit> limits = limitRepository.findByUser(user);
 
-        int totalRequests = requests.size();
-        int totalTokensConsumed = 0;
+        long totalRequests = 0;
+        long totalTokensConsumed = 0;
 
-        Map<AIModel, ModelConsumptionData> modelConsumptionMap = new HashMap<>();
+        Map<Long, ModelConsumptionData> modelConsumptionMap = new LinkedHashMap<>();
 
         // Initialize with limits
         for (Limit limit : limits) {
-            AIModel model = limit.getModel();
-            ModelConsumptionData data = new ModelConsumptionData(model);
+            ModelConsumptionData data = new ModelConsumptionData(limit.getModel().getId());
             data.maxRequestsAllowed = limit.getMaxRequestsPerWindow();
             data.maxTokensAllowed = limit.getMaxTokensPerWindow();
-            modelConsumptionMap.put(model, data);
+            modelConsumptionMap.put(data.modelId, data);
         }
 
-        // Add request data
-        for (Request request : requests) {
-            totalTokensConsumed += request.getTokensConsumed();
+        // Add rolled-up request data
+        for (ConsumptionRollupRepository.ModelTotals totals : rollupService.userTotals(user.getId(), from, to)) {
+            totalRequests += totals.getRequestCount();
+            totalTokensConsumed += totals.getTokensConsumed();
 
-            AIModel model = request.getModel();
-            ModelConsumptionData consumptionData = modelConsumptionMap.getOrDefault(model, new ModelConsumptionData(model));
-            consumptionData.requestsCount++;
-            consumptionData.tokensConsumed += request.getTokensConsumed();
-            modelConsumptionMap.put(model, consumptionData);
+            ModelConsumptionData consumptionData = modelConsumptionMap.computeIfAbsent(totals.getModelId(), ModelConsumptionData::new);
+            consumptionData.requestsCount = totals.getRequestCount();
+            consumptionData.tokensConsumed = totals.getTokensConsumed();
+            consumptionData.averageLatencyMs = totals.getAverageLatencyMs();
         }
 
         List<UserConsumptionResponse.ModelConsumption> modelConsumptions = modelConsumptionMap.values().stream()
-                .map(data -> UserConsumptionResponse.ModelConsumption.builder()
-                        .modelId(data.model.getId())
-                        .modelName(data.model.getName())
-                        .modelProvider(data.model.getProvider())
-                        .requestsCount(data.requestsCount)
-                        .tokensConsumed(data.tokensConsumed)
-                        .maxRequestsAllowed(data.maxRequestsAllowed)
-                        .maxTokensAllowed(data.maxTokensAllowed)
-                        .build())
+                .map(data -> {
+                    Optional<AIModel> model = modelCatalog.findById(data.modelId);
+                    return UserConsumptionResponse.ModelConsumption.builder()
+                            .modelId(data.modelId)
+                            .modelName(model.map(AIModel::getName).orElse(null))
+                            .modelProvider(model.map(AIModel::getProvider).orElse(null))
+                            .requestsCount(data.requestsCount)
+                            .tokensConsumed(data.tokensConsumed)
+                            .averageLatencyMs(data.averageLatencyMs)
+                            .maxRequestsAllowed(data.maxRequestsAllowed)
+                            .maxTokensAllowed(data.maxTokensAllowed)
+                            .build();
+                })
                 .collect(Collectors.toList());
 
         return UserConsumptionResponse.builder()
@@ -156,6 +174,10 @@ public class UserService {
     }
 
     private UserResponse mapToUserResponse(User user) {
+        return mapToUserResponse(user, user.getId() != null ? requestRepository.countByUserId(user.getId()) : 0);
+    }
+
+    private UserResponse mapToUserResponse(User user, long requestsCount) {
         return UserResponse.builder()
                 .id(user.getId())
                 .firstName(user.getFirstName())
@@ -165,20 +187,21 @@ public class UserService {
                 .companyId(user.getCompany() != null ? user.getCompany().getId() : null)
                 .companyName(user.getCompany() != null ? user.getCompany().getName() : null)
                 .limitsCount(user.getLimits().size())
-                .requestsCount(user.getRequests().size())
+                .requestsCount(requestsCount)
                 .build();
     }
 
     // Helper class for aggregating model consumption data
     private static class ModelConsumptionData {
-        private final AIModel model;
-        private int requestsCount;
-        private int tokensConsumed;
+        private final Long modelId;
+        private long requestsCount;
+        private long tokensConsumed;
+        private Double averageLatencyMs;
         private int maxRequestsAllowed;
         private int maxTokensAllowed;
 
-        public ModelConsumptionData(AIModel model) {
-            this.model = model;
+        public ModelConsumptionData(Long modelId) {
+            this.modelId = modelId;
             this.requestsCount = 0;
             this.tokensConsumed = 0;
             this.maxRequestsAllowed = 0;
@@ -0,0 +1,42 @@
+package com.example.sparkyaisystem.config;
+
+import org.junit.jupiter.api.Test;
+import org.springframework.boot.test.context.runner.ApplicationContextRunner;
+import org.springframework.core.task.SimpleAsyncTaskExecutor;
+
+import java.util.concurrent.CompletableFuture;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class SchedulerConfigTest {
+
+    private final ApplicationContextRunner contextRunner = new ApplicationContextRunner()
+            .withUserConfiguration(SchedulerConfig.class);
+
+    @Test
+    void upstreamCallsRunOnVirtualThreadsOnlyWhereTheJdkHasThem() {
+        contextRunner.withPropertyValues("spring.threads.virtual.enabled=true").run(context -> {
+            assertNull(context.getStartupFailure());
+            SimpleAsyncTaskExecutor executor = context.getBean("upstreamCallExecutor", SimpleAsyncTaskExecutor.class);
+
+            Thread thread = CompletableFuture.supplyAsync(Thread::currentThread, executor).get();
+
+            assertEquals(Runtime.version().feature() >= 21, isVirtual(thread));
+        });
+    }
+
+    @Test
+    void upstreamCallsRunOnPlatformThreadsByDefault() {
+        contextRunner.run(context -> {
+            SimpleAsyncTaskExecutor executor = context.getBean("upstreamCallExecutor", SimpleAsyncTaskExecutor.class);
+
+            assertFalse(isVirtual(CompletableFuture.supplyAsync(Thread::currentThread, executor).get()));
+        });
+    }
+
+    // Thread.isVirtual() only exists from JDK 21 on
+    private static boolean isVirtual(Thread thread) throws ReflectiveOperationException {
+        return Runtime.version().feature() >= 21
+                && (boolean) Thread.class.getMethod("isVirtual").invoke(thread);
+    }
+}
@@ -2,46 +2,52 @@ package com.example.sparkyaisystem.controller;
 
 import com.example.sparkyaisystem.model.dto.aimodel.AIModelResponse;
 import com.example.sparkyaisystem.model.dto.request.*;
-import com.example.sparkyaisystem.model.entity.User;
-import com.example.sparkyaisystem.repository.UserRepository;
-import com.example.sparkyaisystem.security.JwtTokenProvider;
+import com.example.sparkyaisystem.security.AuthenticatedUser;
+import com.example.sparkyaisystem.security.JwtPrincipal;
 import com.example.sparkyaisystem.service.AIModelService;
+import com.example.sparkyaisystem.service.AuthenticatedUserService;
 import com.example.sparkyaisystem.service.RequestService;
-import jakarta.servlet.http.HttpServletRequest;
+import com.fasterxml.jackson.databind.ObjectMapper;
 import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
 import org.mockito.*;
+import org.springframework.http.MediaType;
 import org.springframework.http.ResponseEntity;
+import org.springframework.http.codec.ServerSentEvent;
 import org.springframework.mock.web.MockMultipartFile;
+import org.springframework.web.servlet.mvc.method.annotation.StreamingResponseBody;
+import reactor.core.publisher.Flux;
 
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
 import java.util.List;
-import java.util.Optional;
 
 import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.eq;
 import static org.mockito.Mockito.*;
 
 class AIControllerTest {
 
     @Mock private RequestService requestService;
     @Mock private AIModelService aiModelService;
-    @Mock private UserRepository userRepository;
-    @Mock private JwtTokenProvider jwtTokenProvider;
-    @Mock private HttpServletRequest httpRequest;
+    @Mock private AuthenticatedUserService authenticatedUserService;
+    @Spy private ObjectMapper objectMapper = new ObjectMapper().findAndRegisterModules();
 
     @InjectMocks private AIController aiController;
 
-    private User mockUser;
+    private AuthenticatedUser mockUser;
+    private JwtPrincipal principal;
 
     @BeforeEach
     void setUp() {
         MockitoAnnotations.openMocks(this);
-        mockUser = new User();
-        mockUser.setId(1L);
-        mockUser.setEmail("test@example.com");
+        mockUser = new AuthenticatedUser(1L, "test@example.com", 3L, true, List.of("ROLE_USER"));
 
-        when(jwtTokenProvider.resolveToken(httpRequest)).thenReturn("token123");
-        when(jwtTokenProvider.getUserId("token123")).thenReturn(1L);
-        when(userRepository.findById(1L)).thenReturn(Optional.of(mockUser));
+        principal = new JwtPrincipal("test@example.com", 1L, 3L, List.of("ROLE_USER"),
+                Instant.now().plusSeconds(3600));
+        when(authenticatedUserService.resolve(principal)).thenReturn(mockUser);
     }
 
     @Test
@@ -54,10 +60,12 @@ class AIControllerTest {
                 .active(true)
                 .build();
         when(aiModelService.getAvailableModelsForUser(mockUser)).thenReturn(List.of(model));
+        when(aiModelService.getModelsETag(List.of(model))).thenReturn("\"models-1-20\"");
 
-        ResponseEntity<List<AIModelResponse>> response = aiController.getAvailableModels(httpRequest);
+        ResponseEntity<List<AIModelResponse>> response = aiController.getAvailableModels(principal);
 
         assertEquals(200, response.getStatusCodeValue());
+        assertEquals("\"models-1-20\"", response.getHeaders().getETag());
         assertEquals("gpt-4", response.getBody().get(0).getName());
     }
 
@@ -70,12 +78,25 @@ class AIControllerTest {
 
         when(requestService.processChatRequest(mockUser, chatRequest)).thenReturn(expected);
 
-        ResponseEntity<AIResponse> response = aiController.processChatRequest(httpRequest, chatRequest);
+        ResponseEntity<AIResponse> response = aiController.processChatRequest(principal, chatRequest);
 
         assertEquals(200, response.getStatusCodeValue());
         assertEquals("respuesta generada", response.getBody().getResponse());
     }
 
+    @Test
+    void shouldStreamChatRequest() {
+        ChatRequest chatRequest = new ChatRequest();
+        ServerSentEvent<Object> delta = ServerSentEvent.<Object>builder("hola").event("delta").build();
+
+        when(requestService.streamChatRequest(mockUser, chatRequest)).thenReturn(Flux.just(delta));
+
+        List<ServerSentEvent<Object>> events = aiController.streamChatRequest(principal, chatRequest).collectList().block();
+
+        assertEquals(1, events.size());
+        assertEquals("hola", events.get(0).data());
+    }
+
     @Test
     void shouldProcessCompletionRequest() {
         CompletionRequest completionRequest = new CompletionRequest();
@@ -85,7 +106,7 @@ class AIControllerTest {
 
         when(requestService.processCompletionRequest(mockUser, completionRequest)).thenReturn(expected);
 
-        ResponseEntity<AIResponse> response = aiController.processCompletionRequest(httpRequest, completionRequest);
+        ResponseEntity<AIResponse> response = aiController.processCompletionRequest(principal, completionRequest);
 
         assertEquals(200, response.getStatusCodeValue());
         assertEquals("texto completado", response.getBody().getResponse());
@@ -104,7 +125,7 @@ class AIControllerTest {
 
         when(requestService.processMultimodalRequest(mockUser, multimodalRequest)).thenReturn(expected);
 
-        ResponseEntity<AIResponse> response = aiController.processMultimodalRequest(httpRequest, multimodalRequest);
+        ResponseEntity<AIResponse> response = aiController.processMultimodalRequest(principal, multimodalRequest);
 
         assertEquals(200, response.getStatusCodeValue());
         assertEquals("respuesta multimodal", response.getBody().getResponse());
@@ -114,12 +135,40 @@ class AIControllerTest {
     void shouldReturnUserRequestHistory() {
         RequestResponse request1 = new RequestResponse();
         request1.setId(1L);
+        RequestHistoryPage page = new RequestHistoryPage(List.of(request1), "next");
+        RequestService.HistoryFilter filter = new RequestService.HistoryFilter(null, null, 2L, false);
 
-        when(requestService.getUserRequestHistory(mockUser)).thenReturn(List.of(request1));
+        when(requestService.getUserRequestHistory(mockUser, "cursor", 20, filter)).thenReturn(page);
 
-        ResponseEntity<List<RequestResponse>> response = aiController.getRequestHistory(httpRequest);
+        ResponseEntity<RequestHistoryPage> response = aiController.getRequestHistory(principal, "cursor", 20,
+                null, null, 2L, false);
 
         assertEquals(200, response.getStatusCodeValue());
-        assertEquals(1L, response.getBody().get(0).getId());
+        assertEquals(1L, response.getBody().getItems().get(0).getId());
+        assertEquals("next", response.getBody().getNextCursor());
+    }
+
+    @Test
+    void shouldExportUserRequestHistoryAsNdjson() throws Exception {
+        RequestResponse first = new RequestResponse();
+        first.setId(2L);
+        RequestResponse second = new RequestResponse();
+        second.setId(1L);
+        doAnswer(invocation -> {
+            java.util.function.Consumer<RequestResponse> sink = invocation.getArgument(2);
+            sink.accept(first);
+            sink.accept(second);
+            return null;
+        }).when(requestService).exportUserRequestHistory(eq(mockUser), eq(RequestService.HistoryFilter.ALL), any());
+
+        ResponseEntity<StreamingResponseBody> response = aiController.exportRequestHistory(principal, null, null, null, true);
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        response.getBody().writeTo(out);
+
+        assertEquals(MediaType.APPLICATION_NDJSON, response.getHeaders().getContentType());
+        String[] lines = out.toString(StandardCharsets.UTF_8).split("\n");
+        assertEquals(2, lines.length);
+        assertTrue(lines[0].startsWith("{\"id\":2,"));
+        assertTrue(lines[1].startsWith("{\"id\":1,"));
     }
 }
@@ -126,9 +126,9 @@ class AdminControllerTest {
                 .modelConsumptions(List.of())
                 .build();
 
-        when(companyService.getCompanyConsumption(1L)).thenReturn(consumption);
+        when(companyService.getCompanyConsumption(1L, null, null)).thenReturn(consumption);
 
-        var response = adminController.getCompanyConsumption(1L);
+        var response = adminController.getCompanyConsumption(1L, null, null);
 
         assertEquals(200, response.getStatusCodeValue());
         assertEquals("Acme", response.getBody().getCompanyName());
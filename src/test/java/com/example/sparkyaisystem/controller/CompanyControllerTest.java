@@ -7,16 +7,16 @@ import com.example.sparkyaisystem.model.dto.restriction.RestrictionResponse;
 import com.example.sparkyaisystem.model.dto.user.UserConsumptionResponse;
 import com.example.sparkyaisystem.model.dto.user.UserRequest;
 import com.example.sparkyaisystem.model.dto.user.UserResponse;
-import com.example.sparkyaisystem.security.JwtTokenProvider;
+import com.example.sparkyaisystem.security.JwtPrincipal;
 import com.example.sparkyaisystem.service.LimitService;
 import com.example.sparkyaisystem.service.RestrictionService;
 import com.example.sparkyaisystem.service.UserService;
-import jakarta.servlet.http.HttpServletRequest;
 import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
 import org.mockito.*;
 import org.springframework.http.ResponseEntity;
 
+import java.time.Instant;
 import java.util.List;
 
 import static org.junit.jupiter.api.Assertions.*;
@@ -27,18 +27,17 @@ class CompanyControllerTest {
     @Mock private RestrictionService restrictionService;
     @Mock private UserService userService;
     @Mock private LimitService limitService;
-    @Mock private JwtTokenProvider jwtTokenProvider;
-    @Mock private HttpServletRequest request;
 
     @InjectMocks private CompanyController controller;
 
     private final Long companyId = 10L;
+    private JwtPrincipal principal;
 
     @BeforeEach
     void setup() {
         MockitoAnnotations.openMocks(this);
-        when(jwtTokenProvider.resolveToken(request)).thenReturn("token");
-        when(jwtTokenProvider.getCompanyId("token")).thenReturn(companyId);
+        principal = new JwtPrincipal("admin@company.com", 2L, companyId, List.of("ROLE_COMPANY_ADMIN"),
+                Instant.now().plusSeconds(3600));
     }
 
     // --- Restricciones ---
@@ -48,7 +47,7 @@ class CompanyControllerTest {
         RestrictionResponse res = new RestrictionResponse();
         when(restrictionService.createRestriction(eq(companyId), any())).thenReturn(res);
 
-        var response = controller.createRestriction(request, req);
+        var response = controller.createRestriction(principal, req);
         assertEquals(200, response.getStatusCodeValue());
     }
 
@@ -56,7 +55,7 @@ class CompanyControllerTest {
     void shouldGetAllRestrictions() {
         when(restrictionService.getRestrictionsByCompany(companyId)).thenReturn(List.of(new RestrictionResponse()));
 
-        var response = controller.getAllRestrictions(request);
+        var response = controller.getAllRestrictions(principal);
         assertEquals(200, response.getStatusCodeValue());
         assertEquals(1, response.getBody().size());
     }
@@ -67,13 +66,13 @@ class CompanyControllerTest {
         RestrictionResponse res = new RestrictionResponse();
         when(restrictionService.updateRestriction(companyId, 5L, req)).thenReturn(res);
 
-        var response = controller.updateRestriction(request, 5L, req);
+        var response = controller.updateRestriction(principal, 5L, req);
         assertEquals(200, response.getStatusCodeValue());
     }
 
     @Test
     void shouldDeleteRestriction() {
-        var response = controller.deleteRestriction(request, 3L);
+        var response = controller.deleteRestriction(principal, 3L);
         verify(restrictionService).deleteRestriction(companyId, 3L);
         assertEquals(204, response.getStatusCodeValue());
     }
@@ -85,7 +84,7 @@ class CompanyControllerTest {
         UserResponse res = new UserResponse();
         when(userService.createUser(req, companyId)).thenReturn(res);
 
-        var response = controller.createUser(request, req);
+        var response = controller.createUser(principal, req);
         assertEquals(200, response.getStatusCodeValue());
     }
 
@@ -93,7 +92,7 @@ class CompanyControllerTest {
     void shouldGetAllUsers() {
         when(userService.getAllUsersByCompany(companyId)).thenReturn(List.of(new UserResponse()));
 
-        var response = controller.getAllUsers(request);
+        var response = controller.getAllUsers(principal);
         assertEquals(1, response.getBody().size());
     }
 
@@ -102,7 +101,7 @@ class CompanyControllerTest {
         UserResponse res = new UserResponse();
         when(userService.getUserById(companyId, 7L)).thenReturn(res);
 
-        var response = controller.getUserById(request, 7L);
+        var response = controller.getUserById(principal, 7L);
         assertEquals(200, response.getStatusCodeValue());
     }
 
@@ -112,16 +111,16 @@ class CompanyControllerTest {
         UserResponse res = new UserResponse();
         when(userService.updateUser(companyId, 4L, req)).thenReturn(res);
 
-        var response = controller.updateUser(request, 4L, req);
+        var response = controller.updateUser(principal, 4L, req);
         assertEquals(200, response.getStatusCodeValue());
     }
 
     @Test
     void shouldGetUserConsumption() {
         UserConsumptionResponse res = new UserConsumptionResponse();
-        when(userService.getUserConsumption(companyId, 8L)).thenReturn(res);
+        when(userService.getUserConsumption(companyId, 8L, null, null)).thenReturn(res);
 
-        var response = controller.getUserConsumption(request, 8L);
+        var response = controller.getUserConsumption(principal, 8L, null, null);
         assertEquals(200, response.getStatusCodeValue());
     }
 
@@ -134,7 +133,7 @@ class CompanyControllerTest {
         LimitResponse res = new LimitResponse();
         when(limitService.createLimit(companyId, req)).thenReturn(res);
 
-        var response = controller.createLimit(request, 5L, req);
+        var response = controller.createLimit(principal, 5L, req);
         assertEquals(200, response.getStatusCodeValue());
     }
 
@@ -142,7 +141,7 @@ class CompanyControllerTest {
     void shouldGetUserLimits() {
         when(limitService.getLimitsByUser(companyId, 6L)).thenReturn(List.of(new LimitResponse()));
 
-        var response = controller.getUserLimits(request, 6L);
+        var response = controller.getUserLimits(principal, 6L);
         assertEquals(1, response.getBody().size());
     }
 
@@ -153,13 +152,13 @@ class CompanyControllerTest {
         LimitResponse res = new LimitResponse();
         when(limitService.updateLimit(companyId, 77L, req)).thenReturn(res);
 
-        var response = controller.updateLimit(request, 7L, 77L, req);
+        var response = controller.updateLimit(principal, 7L, 77L, req);
         assertEquals(200, response.getStatusCodeValue());
     }
 
     @Test
     void shouldDeleteLimit() {
-        var response = controller.deleteLimit(request, 9L, 88L);
+        var response = controller.deleteLimit(principal, 9L, 88L);
         verify(limitService).deleteLimit(companyId, 88L);
         assertEquals(204, response.getStatusCodeValue());
     }
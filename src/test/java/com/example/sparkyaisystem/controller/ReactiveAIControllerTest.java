@@ -0,0 +1,66 @@
+package com.example.sparkyaisystem.controller;
+
+import com.example.sparkyaisystem.model.dto.request.AIResponse;
+import com.example.sparkyaisystem.model.dto.request.ChatRequest;
+import com.example.sparkyaisystem.model.dto.request.CompletionRequest;
+import com.example.sparkyaisystem.security.AuthenticatedUser;
+import com.example.sparkyaisystem.security.JwtPrincipal;
+import com.example.sparkyaisystem.service.AuthenticatedUserService;
+import com.example.sparkyaisystem.service.ReactiveRequestService;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.mockito.*;
+import org.springframework.http.ResponseEntity;
+import reactor.core.publisher.Mono;
+
+import java.time.Instant;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.Mockito.*;
+
+class ReactiveAIControllerTest {
+
+    @Mock private ReactiveRequestService reactiveRequestService;
+    @Mock private AuthenticatedUserService authenticatedUserService;
+
+    @InjectMocks private ReactiveAIController reactiveAIController;
+
+    private JwtPrincipal principal;
+    private AuthenticatedUser user;
+
+    @BeforeEach
+    void setUp() {
+        MockitoAnnotations.openMocks(this);
+        principal = new JwtPrincipal("test@example.com", 1L, 3L, List.of("ROLE_USER"),
+                Instant.now().plusSeconds(3600));
+        user = new AuthenticatedUser(1L, "test@example.com", 3L, true, List.of("ROLE_USER"));
+        when(authenticatedUserService.resolve(principal)).thenReturn(user);
+    }
+
+    @Test
+    void shouldProcessChatRequest() {
+        ChatRequest chatRequest = new ChatRequest();
+        AIResponse expected = AIResponse.builder().response("respuesta generada").build();
+        when(reactiveRequestService.processChatRequest(user, chatRequest)).thenReturn(Mono.just(expected));
+
+        ResponseEntity<AIResponse> response = reactiveAIController.processChatRequest(principal, chatRequest).block();
+
+        assertNotNull(response);
+        assertEquals(200, response.getStatusCodeValue());
+        assertEquals("respuesta generada", response.getBody().getResponse());
+    }
+
+    @Test
+    void shouldProcessCompletionRequest() {
+        CompletionRequest completionRequest = new CompletionRequest();
+        AIResponse expected = AIResponse.builder().response("completado").build();
+        when(reactiveRequestService.processCompletionRequest(user, completionRequest)).thenReturn(Mono.just(expected));
+
+        ResponseEntity<AIResponse> response = reactiveAIController.processCompletionRequest(principal, completionRequest).block();
+
+        assertNotNull(response);
+        assertEquals(200, response.getStatusCodeValue());
+        assertEquals("completado", response.getBody().getResponse());
+    }
+}
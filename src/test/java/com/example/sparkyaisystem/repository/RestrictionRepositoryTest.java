@@ -26,7 +26,7 @@ class RestrictionRepositoryMockitoTest {
     void whenFindByCompany_thenReturnList() {
         Company c = new Company(1L, "X","R", LocalDateTime.now(), true, null, null, null, null, null);
         AIModel m = new AIModel(2L, "M","DeepSpeak","multimodal",true,null);
-        Restriction r = new Restriction(1L, c, m, 10, 100, "hourly", null, null);
+        Restriction r = new Restriction(1L, c, m, 10, 100, "hourly", 0, 0, 0, 0, null, null, null, null);
         when(repo.findByCompany(c)).thenReturn(List.of(r));
 
         var list = repo.findByCompany(c);
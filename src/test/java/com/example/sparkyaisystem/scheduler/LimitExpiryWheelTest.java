@@ -0,0 +1,90 @@
+package com.example.sparkyaisystem.scheduler;
+
+import org.junit.jupiter.api.Test;
+
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class LimitExpiryWheelTest {
+
+    private static final long DAY = 86_400;
+
+    // Midnight UTC plus 10 seconds
+    private static final long START = 20_000 * DAY + 10;
+
+    private final LimitExpiryWheel wheel = new LimitExpiryWheel(START);
+
+    /**
+     * Advances one second at a time and returns the first second that fired, or -1.
+     */
+    private long firstFiring(long until) {
+        for (long now = START + 1; now <= until; now++) {
+            if (wheel.advance(now)) {
+                return now;
+            }
+        }
+        return -1;
+    }
+
+    @Test
+    void firesExactlyAtEachLevel() {
+        long[] deadlines = {START + 5, START + 125, START + 2 * 3600 + 7, START + 3 * DAY + 42};
+        for (long deadline : deadlines) {
+            assertTrue(wheel.register(deadline));
+        }
+
+        long previous = START;
+        for (long deadline : deadlines) {
+            assertEquals(deadline, firstFiring(deadline + 1));
+            assertTrue(deadline > previous);
+            previous = deadline;
+        }
+    }
+
+    @Test
+    void limitsEndingInTheSameSecondShareOneFiring() {
+        wheel.register(START + 90);
+        wheel.register(START + 90);
+
+        assertFalse(wheel.advance(START + 89));
+        assertTrue(wheel.advance(START + 90));
+        assertFalse(wheel.advance(START + 91));
+    }
+
+    @Test
+    void catchesUpAfterMissedTicks() {
+        wheel.register(START + 3 * 3600);
+
+        assertTrue(wheel.advance(START + DAY));
+        assertFalse(wheel.advance(START + DAY + 1));
+    }
+
+    @Test
+    void pastDeadlinesFireOnNextTick() {
+        wheel.advance(START + 100);
+        wheel.register(START + 50);
+
+        assertTrue(wheel.advance(START + 101));
+    }
+
+    @Test
+    void deadlinesBeyondHorizonAreRejected() {
+        assertTrue(wheel.register(START + LimitExpiryWheel.HORIZON_DAYS * DAY));
+        assertFalse(wheel.register(START + (LimitExpiryWheel.HORIZON_DAYS + 1) * DAY));
+    }
+
+    @Test
+    void windowEndsAreRoundedUpToTheNextSecond() {
+        LimitExpiryWheel live = new LimitExpiryWheel();
+        LocalDateTime now = LocalDateTime.now().withNano(0);
+        long second = now.atZone(ZoneId.systemDefault()).toEpochSecond();
+        live.advance(now);
+
+        live.register(now.plusSeconds(2).plusNanos(1));
+
+        assertFalse(live.advance(second + 2));
+        assertTrue(live.advance(second + 3));
+    }
+}
@@ -0,0 +1,98 @@
+package com.example.sparkyaisystem.security;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.security.core.Authentication;
+import org.springframework.security.core.GrantedAuthority;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class JwtTokenProviderTest {
+
+    private static final String SECRET = "test-secret-key-with-at-least-256-bits-of-entropy";
+
+    private JwtTokenProvider jwtTokenProvider;
+
+    private static JwtTokenProvider provider(String secret, long validityMs, long cacheEntries) {
+        JwtTokenProvider provider = new JwtTokenProvider();
+        ReflectionTestUtils.setField(provider, "secretKey", secret);
+        ReflectionTestUtils.setField(provider, "validityInMilliseconds", validityMs);
+        ReflectionTestUtils.setField(provider, "verifiedCacheMaxEntries", cacheEntries);
+        ReflectionTestUtils.setField(provider, "verifiedCacheTtlSeconds", 300L);
+        provider.init();
+        return provider;
+    }
+
+    @BeforeEach
+    void setUp() {
+        jwtTokenProvider = provider(SECRET, 3_600_000L, 100);
+    }
+
+    @Test
+    void parsesClaimsIntoPrincipal() {
+        String token = jwtTokenProvider.createToken("ana@acme.com", List.of("ROLE_COMPANY_ADMIN"), 5L, 9L);
+
+        JwtPrincipal principal = jwtTokenProvider.parse(token);
+
+        assertEquals("ana@acme.com", principal.getName());
+        assertEquals(5L, principal.userId());
+        assertEquals(9L, principal.companyId());
+        assertEquals(List.of("ROLE_COMPANY_ADMIN"), principal.roles());
+        assertEquals(5L, jwtTokenProvider.getUserId(token));
+        assertEquals(9L, jwtTokenProvider.getCompanyId(token));
+    }
+
+    @Test
+    void authenticationCarriesPrincipalAndRoles() {
+        String token = jwtTokenProvider.createToken("admin@sparky.com", List.of("ROLE_SPARKY_ADMIN"), 1L, null);
+
+        Authentication auth = jwtTokenProvider.getAuthentication(token);
+
+        JwtPrincipal principal = assertInstanceOf(JwtPrincipal.class, auth.getPrincipal());
+        assertNull(principal.companyId());
+        assertEquals("admin@sparky.com", auth.getName());
+        assertEquals(List.of("ROLE_SPARKY_ADMIN"),
+                auth.getAuthorities().stream().map(GrantedAuthority::getAuthority).toList());
+    }
+
+    @Test
+    void tamperedOrForeignTokensAreRejected() {
+        String token = jwtTokenProvider.createToken("ana@acme.com", List.of("ROLE_USER"), 5L, 9L);
+        // The first signature character carries six significant bits; the last one may carry only four
+        int signature = token.lastIndexOf('.') + 1;
+        char first = token.charAt(signature);
+        String tampered = token.substring(0, signature) + (first == 'A' ? 'B' : 'A') + token.substring(signature + 1);
+        String foreign = provider("another-secret-key-with-at-least-256-bits-of-entropy", 3_600_000L, 100)
+                .createToken("ana@acme.com", List.of("ROLE_SPARKY_ADMIN"), 5L, 9L);
+
+        assertTrue(jwtTokenProvider.validateToken(token));
+        assertFalse(jwtTokenProvider.validateToken(tampered));
+        assertFalse(jwtTokenProvider.validateToken(foreign));
+        assertNull(jwtTokenProvider.verify("not-a-jwt"));
+    }
+
+    @Test
+    void verifiedTokensAreServedFromTheCache() {
+        String token = jwtTokenProvider.createToken("ana@acme.com", List.of("ROLE_USER"), 5L, 9L);
+        JwtTokenProvider uncached = provider(SECRET, 3_600_000L, 0);
+
+        assertSame(jwtTokenProvider.parse(token), jwtTokenProvider.parse(token));
+        assertNotSame(uncached.parse(token), uncached.parse(token));
+        assertEquals(uncached.parse(token), jwtTokenProvider.parse(token));
+    }
+
+    @Test
+    void cachedTokensStillExpire() throws InterruptedException {
+        // exp has second precision, so a 2s validity leaves between 1 and 2 seconds
+        JwtTokenProvider shortLived = provider(SECRET, 2_000L, 100);
+        String token = shortLived.createToken("ana@acme.com", List.of("ROLE_USER"), 5L, 9L);
+
+        assertTrue(shortLived.validateToken(token));
+        Thread.sleep(2_100);
+
+        assertFalse(shortLived.validateToken(token));
+    }
+}
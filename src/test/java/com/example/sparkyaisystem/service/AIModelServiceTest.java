@@ -2,21 +2,20 @@ package com.example.sparkyaisystem.service;
 
 import com.example.sparkyaisystem.model.dto.aimodel.AIModelResponse;
 import com.example.sparkyaisystem.model.entity.AIModel;
-import com.example.sparkyaisystem.model.entity.Company;
-import com.example.sparkyaisystem.model.entity.Restriction;
-import com.example.sparkyaisystem.model.entity.User;
 import com.example.sparkyaisystem.repository.AIModelRepository;
-import com.example.sparkyaisystem.repository.RestrictionRepository;
+import com.example.sparkyaisystem.security.AuthenticatedUser;
 import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
 import org.junit.jupiter.api.extension.ExtendWith;
 import org.mockito.InjectMocks;
 import org.mockito.Mock;
 import org.mockito.junit.jupiter.MockitoExtension;
+import org.springframework.context.ApplicationEventPublisher;
 
 import java.util.Collections;
 import java.util.List;
 import java.util.Optional;
+import java.util.stream.Collectors;
 
 import static org.junit.jupiter.api.Assertions.*;
 import static org.mockito.ArgumentMatchers.*;
@@ -29,14 +28,25 @@ class AIModelServiceTest {
     private AIModelRepository aiModelRepository;
 
     @Mock
-    private RestrictionRepository restrictionRepository;
+    private ModelCatalog modelCatalog;
+
+    @Mock
+    private ModelAvailabilityIndex availabilityIndex;
+
+    @Mock
+    private ApplicationEventPublisher eventPublisher;
 
     @InjectMocks
     private AIModelService service;
 
     private AIModel sampleModel;
-    private Company sampleCompany;
-    private User sampleUser;
+    private AuthenticatedUser sampleUser;
+
+    private static ModelCatalog.Snapshot catalogOf(AIModel... models) {
+        List<AIModel> all = List.of(models);
+        return new ModelCatalog.Snapshot(1, all, all.stream().filter(AIModel::isActive).toList(),
+                all.stream().collect(Collectors.toMap(AIModel::getId, model -> model)), System.nanoTime());
+    }
 
     @BeforeEach
     void setUp() {
@@ -48,12 +58,7 @@ class AIModelServiceTest {
         sampleModel.setActive(true);
         sampleModel.setDescription("A test model");
 
-        sampleCompany = new Company();
-        sampleCompany.setId(100L);
-
-        sampleUser = new User();
-        sampleUser.setId(50L);
-        sampleUser.setCompany(sampleCompany);
+        sampleUser = new AuthenticatedUser(50L, "user@test.com", 100L, true, List.of("ROLE_USER"));
     }
 
     @Test
@@ -88,7 +93,7 @@ class AIModelServiceTest {
     @Test
     void getAllModelsShouldReturnMappedResponses() {
         // Arrange
-        when(aiModelRepository.findAll()).thenReturn(List.of(sampleModel));
+        when(modelCatalog.snapshot()).thenReturn(catalogOf(sampleModel));
 
         // Act
         List<AIModelResponse> results = service.getAllModels();
@@ -96,33 +101,35 @@ class AIModelServiceTest {
         // Assert
         assertEquals(1, results.size());
         assertEquals(sampleModel.getName(), results.get(0).getName());
-        verify(aiModelRepository).findAll();
+        verifyNoInteractions(aiModelRepository);
     }
 
     @Test
     void getActiveModelsShouldFilterByActiveFlag() {
         // Arrange
-        when(aiModelRepository.findByActive(eq(true))).thenReturn(List.of(sampleModel));
+        AIModel inactive = new AIModel();
+        inactive.setId(2L);
+        inactive.setName("Retired");
+        when(modelCatalog.snapshot()).thenReturn(catalogOf(sampleModel, inactive));
 
         // Act
         List<AIModelResponse> results = service.getActiveModels();
 
         // Assert
-        assertNotNull(results);
+        assertEquals(1, results.size());
         assertTrue(results.stream().allMatch(AIModelResponse::isActive));
-        verify(aiModelRepository).findByActive(true);
     }
 
     @Test
     void getModelByIdThrowsWhenNotFound() {
         // Arrange
-        when(aiModelRepository.findById(eq(999L))).thenReturn(Optional.empty());
+        when(modelCatalog.findById(eq(999L))).thenReturn(Optional.empty());
 
         // Act & Assert
         RuntimeException exception = assertThrows(RuntimeException.class,
                 () -> service.getModelById(999L));
         assertEquals("AI Model not found", exception.getMessage());
-        verify(aiModelRepository).findById(999L);
+        verify(modelCatalog).findById(999L);
     }
 
     @Test
@@ -138,17 +145,13 @@ class AIModelServiceTest {
         assertFalse(response.isActive());
         verify(aiModelRepository).findById(sampleModel.getId());
         verify(aiModelRepository).save(sampleModel);
+        verify(eventPublisher).publishEvent(new ModelCatalog.Changed(sampleModel.getId()));
     }
 
     @Test
     void getAvailableModelsForUserShouldReturnRestrictedModels() {
         // Arrange
-        Restriction restriction = new Restriction();
-        restriction.setCompany(sampleCompany);
-        restriction.setModel(sampleModel);
-
-        when(restrictionRepository.findByCompany(eq(sampleCompany))).thenReturn(List.of(restriction));
-        when(aiModelRepository.findByActive(eq(true))).thenReturn(List.of(sampleModel));
+        when(availabilityIndex.availableModels(eq(100L))).thenReturn(List.of(sampleModel));
 
         // Act
         List<AIModelResponse> available = service.getAvailableModelsForUser(sampleUser);
@@ -156,21 +159,45 @@ class AIModelServiceTest {
         // Assert
         assertEquals(1, available.size());
         assertTrue(available.get(0).isAvailable());
-        verify(restrictionRepository).findByCompany(sampleCompany);
-        verify(aiModelRepository).findByActive(true);
+        verify(availabilityIndex).availableModels(100L);
+        verifyNoInteractions(aiModelRepository);
     }
 
     @Test
     void isModelAvailableForUserShouldCheckExistence() {
         // Arrange
-        when(restrictionRepository.existsByCompanyAndModel(eq(sampleCompany), eq(sampleModel)))
-                .thenReturn(true);
+        when(availabilityIndex.isAvailable(eq(100L), eq(1L))).thenReturn(true);
 
         // Act
         boolean available = service.isModelAvailableForUser(sampleUser, sampleModel);
 
         // Assert
         assertTrue(available);
-        verify(restrictionRepository).existsByCompanyAndModel(sampleCompany, sampleModel);
+        verify(availabilityIndex).isAvailable(100L, 1L);
+    }
+
+    @Test
+    void modelsETagFollowsTheContentOfTheModels() {
+        List<AIModelResponse> one = List.of(AIModelResponse.builder().id(1L).name("gpt-4o").active(true).build());
+        List<AIModelResponse> same = List.of(AIModelResponse.builder().id(1L).name("gpt-4o").active(true).build());
+        List<AIModelResponse> two = List.of(AIModelResponse.builder().id(1L).name("gpt-4o").active(true).build(),
+                AIModelResponse.builder().id(2L).build());
+        List<AIModelResponse> renamed = List.of(AIModelResponse.builder().id(1L).name("gpt-4o-mini").active(true).build());
+
+        String etag = service.getModelsETag(one);
+
+        assertEquals(etag, service.getModelsETag(same));
+        assertNotEquals(etag, service.getModelsETag(two));
+        assertNotEquals(etag, service.getModelsETag(renamed));
+        verifyNoInteractions(modelCatalog);
+    }
+
+    @Test
+    void modelsAreNotAvailableToUsersOfInactiveCompanies() {
+        AuthenticatedUser inactive = new AuthenticatedUser(50L, "user@test.com", 100L, false, List.of("ROLE_USER"));
+
+        assertFalse(service.isModelAvailableForUser(inactive, sampleModel));
+        assertTrue(service.getAvailableModelsForUser(inactive).isEmpty());
+        verifyNoInteractions(availabilityIndex);
     }
 }
@@ -0,0 +1,72 @@
+package com.example.sparkyaisystem.service;
+
+import com.example.sparkyaisystem.repository.CompanyRepository;
+import com.example.sparkyaisystem.security.AuthenticatedUser;
+import com.example.sparkyaisystem.security.JwtPrincipal;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.ExtendWith;
+import org.mockito.Mock;
+import org.mockito.junit.jupiter.MockitoExtension;
+
+import java.time.Instant;
+import java.util.List;
+import java.util.Optional;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.*;
+
+@ExtendWith(MockitoExtension.class)
+class AuthenticatedUserServiceTest {
+
+    @Mock
+    private CompanyRepository companyRepository;
+
+    private AuthenticatedUserService authenticatedUserService;
+
+    private static JwtPrincipal principal(Long userId, Long companyId) {
+        return new JwtPrincipal("user" + userId + "@acme.com", userId, companyId, List.of("ROLE_USER"),
+                Instant.now().plusSeconds(3600));
+    }
+
+    @BeforeEach
+    void setUp() {
+        authenticatedUserService = new AuthenticatedUserService(companyRepository, 100, 60);
+    }
+
+    @Test
+    void resolvesClaimsAndCachesCompanyStatus() {
+        when(companyRepository.findActiveById(9L)).thenReturn(Optional.of(true));
+
+        AuthenticatedUser first = authenticatedUserService.resolve(principal(5L, 9L));
+        AuthenticatedUser second = authenticatedUserService.resolve(principal(6L, 9L));
+
+        assertEquals(5L, first.id());
+        assertEquals("user5@acme.com", first.email());
+        assertEquals(9L, first.companyId());
+        assertTrue(first.companyActive());
+        assertTrue(second.companyActive());
+        verify(companyRepository, times(1)).findActiveById(9L);
+    }
+
+    @Test
+    void companyChangeReloadsCompanyStatus() {
+        when(companyRepository.findActiveById(9L)).thenReturn(Optional.of(true), Optional.of(false));
+
+        assertTrue(authenticatedUserService.resolve(principal(5L, 9L)).companyActive());
+        authenticatedUserService.onCompanyChanged(new AuthenticatedUserService.CompanyChanged(9L));
+
+        assertFalse(authenticatedUserService.resolve(principal(5L, 9L)).companyActive());
+        verify(companyRepository, times(2)).findActiveById(9L);
+    }
+
+    @Test
+    void usersWithoutCompanyAreNotLookedUp() {
+        AuthenticatedUser user = authenticatedUserService.resolve(principal(1L, null));
+
+        assertFalse(user.hasCompany());
+        assertFalse(user.companyActive());
+        verify(companyRepository, never()).findActiveById(any());
+    }
+}
@@ -0,0 +1,327 @@
+package com.example.sparkyaisystem.service;
+
+import com.example.sparkyaisystem.exception.LimitExceededException;
+import com.example.sparkyaisystem.model.entity.AIModel;
+import com.example.sparkyaisystem.model.entity.Company;
+import com.example.sparkyaisystem.model.entity.Limit;
+import com.example.sparkyaisystem.model.entity.Restriction;
+import com.example.sparkyaisystem.model.entity.User;
+import com.example.sparkyaisystem.repository.LimitRepository;
+import com.example.sparkyaisystem.repository.RestrictionRepository;
+import com.example.sparkyaisystem.scheduler.LimitExpiryWheel;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.ExtendWith;
+import org.mockito.Mock;
+import org.mockito.junit.jupiter.MockitoExtension;
+
+import java.time.LocalDateTime;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.ArgumentMatchers.*;
+import static org.mockito.Mockito.*;
+
+@ExtendWith(MockitoExtension.class)
+class CompanyQuotasTest {
+
+    @Mock
+    private LimitRepository limitRepository;
+
+    @Mock
+    private LimitExpiryWheel expiryWheel;
+
+    @Mock
+    private RestrictionRepository restrictionRepository;
+
+    @Mock
+    private ConsumptionRollupService rollupService;
+
+    private CompanyQuotas companyQuotas;
+    private QuotaEngine quotaEngine;
+
+    private User user;
+    private AIModel model;
+    private Limit limit;
+
+    @BeforeEach
+    void setUp() {
+        user = new User();
+        user.setId(2L);
+        user.setEmail("user@test.com");
+
+        model = new AIModel();
+        model.setId(3L);
+        model.setName("TestModel");
+
+        limit = new Limit();
+        limit.setId(10L);
+        limit.setUser(user);
+        limit.setModel(model);
+        limit.setMaxRequestsPerWindow(4);
+        limit.setMaxTokensPerWindow(50);
+        limit.setWindowType("daily");
+        limit.setUsedRequests(0);
+        limit.setUsedTokens(0);
+        limit.setWindowStartTime(LocalDateTime.now().minusHours(1));
+        limit.setWindowEndTime(LocalDateTime.now().plusHours(23));
+
+        QuotaLeases leases = new QuotaLeases(null);
+        companyQuotas = new CompanyQuotas(restrictionRepository, rollupService, leases);
+        quotaEngine = new QuotaEngine(limitRepository, expiryWheel, companyQuotas, leases);
+    }
+
+    private Company company;
+    private Restriction restriction;
+
+    /**
+     * Puts users in a company whose restriction for the model allows the given totals,
+     * and gives every user id the same limit as {@link #limit}.
+     */
+    private void restrictCompany(int maxRequests, int maxTokens) {
+        company = new Company();
+        company.setId(7L);
+        user.setCompany(company);
+
+        restriction = new Restriction();
+        restriction.setId(70L);
+        restriction.setCompany(company);
+        restriction.setModel(model);
+        restriction.setMaxRequestsPerWindow(maxRequests);
+        restriction.setMaxTokensPerWindow(maxTokens);
+        restriction.setWindowType("daily");
+        restriction.setCreatedAt(LocalDateTime.now().minusDays(3).minusHours(2));
+        when(restrictionRepository.findByCompanyIdAndModelId(7L, 3L)).thenReturn(Optional.of(restriction));
+
+        Map<Long, Limit> limits = new ConcurrentHashMap<>();
+        lenient().when(limitRepository.findByUserIdAndModelId(anyLong(), eq(3L))).thenAnswer(inv ->
+                Optional.of(limits.computeIfAbsent(inv.getArgument(0), this::limitFor)));
+    }
+
+    private Limit limitFor(Long userId) {
+        User member = new User();
+        member.setId(userId);
+        member.setCompany(company);
+        Limit copy = new Limit();
+        copy.setId(100 + userId);
+        copy.setUser(member);
+        copy.setModel(model);
+        copy.setMaxRequestsPerWindow(limit.getMaxRequestsPerWindow());
+        copy.setMaxTokensPerWindow(limit.getMaxTokensPerWindow());
+        copy.setWindowType("daily");
+        copy.setWindowStartTime(limit.getWindowStartTime());
+        copy.setWindowEndTime(limit.getWindowEndTime());
+        return copy;
+    }
+
+    @Test
+    void companyRestrictionCapsUsersTogether() {
+        restrictCompany(5, 1_000);
+
+        for (long userId = 1; userId <= 5; userId++) {
+            quotaEngine.tryAcquire(userId, model, 1);
+        }
+        LimitExceededException ex = assertThrows(LimitExceededException.class,
+                () -> quotaEngine.tryAcquire(6L, model, 1));
+
+        assertEquals("company requests", ex.getLimitType());
+        // The rejected request was charged to neither level
+        assertTrue(quotaEngine.peek(6L, model.getId()).isPresent());
+        assertEquals(0, quotaEngine.peek(6L, model.getId()).orElseThrow().getUsedRequests());
+        assertEquals(5, companyQuotas.peek(7L, 3L).orElseThrow().getUsedRequests());
+    }
+
+    @Test
+    void companyWindowFollowsRestrictionAndStartsFromRollups() {
+        restrictCompany(100, 50);
+        when(rollupService.companyTotals(eq(7L), any(), isNull()))
+                .thenReturn(List.of(CompanyServiceTest.totals(3L, 3, 40, 0)));
+
+        LimitExceededException ex = assertThrows(LimitExceededException.class,
+                () -> quotaEngine.tryAcquire(1L, model, 11));
+        quotaEngine.tryAcquire(1L, model, 10);
+
+        assertEquals("company tokens", ex.getLimitType());
+        QuotaEngine.QuotaSnapshot company = companyQuotas.peek(7L, 3L).orElseThrow();
+        assertEquals(4, company.getUsedRequests());
+        assertEquals(50, company.getUsedTokens());
+        // Daily windows counted from the restriction's creation
+        assertEquals(restriction.getCreatedAt().plusDays(3), company.getWindowStartTime());
+        assertEquals(restriction.getCreatedAt().plusDays(4), company.getWindowEndTime());
+        verify(rollupService).companyTotals(7L, restriction.getCreatedAt().plusDays(3), null);
+    }
+
+    @Test
+    void companyUsageIsFlushedAndReloadedWithoutRollups() {
+        restrictCompany(100, 1_000);
+        when(restrictionRepository.findAllById(anyIterable())).thenReturn(List.of(restriction));
+        quotaEngine.tryAcquire(1L, model, 10);
+        quotaEngine.tryAcquire(2L, model, 10);
+
+        companyQuotas.flush();
+        // Nothing charged since, so nothing to write
+        companyQuotas.flush();
+
+        verify(restrictionRepository).saveAll(List.of(restriction));
+        assertEquals(2, restriction.getUsedRequests());
+        assertEquals(20, restriction.getUsedTokens());
+        assertEquals(restriction.getCreatedAt().plusDays(3), restriction.getWindowStartTime());
+        assertEquals(restriction.getCreatedAt().plusDays(4), restriction.getWindowEndTime());
+
+        // After a restart the bucket carries on from the flushed usage
+        clearInvocations(rollupService);
+        QuotaLeases leases = new QuotaLeases(null);
+        companyQuotas = new CompanyQuotas(restrictionRepository, rollupService, leases);
+        quotaEngine = new QuotaEngine(limitRepository, expiryWheel, companyQuotas, leases);
+        quotaEngine.tryAcquire(3L, model, 10);
+
+        QuotaEngine.QuotaSnapshot company = companyQuotas.peek(7L, 3L).orElseThrow();
+        assertEquals(3, company.getUsedRequests());
+        assertEquals(30, company.getUsedTokens());
+        verifyNoInteractions(rollupService);
+    }
+
+    @Test
+    void usageFlushedInAnEarlierWindowIsNotCarriedOver() {
+        restrictCompany(100, 1_000);
+        restriction.setUsedRequests(90);
+        restriction.setUsedTokens(900);
+        restriction.setWindowStartTime(restriction.getCreatedAt().plusDays(2));
+        restriction.setWindowEndTime(restriction.getCreatedAt().plusDays(3));
+
+        quotaEngine.tryAcquire(1L, model, 10);
+
+        QuotaEngine.QuotaSnapshot company = companyQuotas.peek(7L, 3L).orElseThrow();
+        assertEquals(1, company.getUsedRequests());
+        assertEquals(10, company.getUsedTokens());
+        verifyNoInteractions(rollupService);
+    }
+
+    @Test
+    void flushSkipsRestrictionsWhoseWindowTypeChanged() {
+        restrictCompany(100, 1_000);
+        quotaEngine.tryAcquire(1L, model, 10);
+        Restriction reset = new Restriction();
+        reset.setId(70L);
+        reset.setWindowType("hourly");
+        when(restrictionRepository.findAllById(anyIterable())).thenReturn(List.of(reset));
+
+        companyQuotas.flush();
+
+        verify(restrictionRepository).saveAll(List.of());
+        assertEquals(0, reset.getUsedRequests());
+        assertNull(reset.getWindowEndTime());
+    }
+
+    @Test
+    void reservationsSettleAndReleaseAgainstTheCompany() {
+        restrictCompany(100, 1_000);
+
+        QuotaEngine.Reservation settled = quotaEngine.reserve(1L, model, 10);
+        QuotaEngine.Reservation released = quotaEngine.reserve(2L, model, 10);
+        quotaEngine.settle(settled, 4);
+        quotaEngine.release(released);
+
+        QuotaEngine.QuotaSnapshot company = companyQuotas.peek(7L, 3L).orElseThrow();
+        assertEquals(1, company.getUsedRequests());
+        assertEquals(4, company.getUsedTokens());
+    }
+
+    @Test
+    void extendIsCappedByTheCompany() {
+        limit.setMaxTokensPerWindow(1_000);
+        restrictCompany(100, 30);
+        QuotaEngine.Reservation reservation = quotaEngine.reserve(1L, model, 10);
+        quotaEngine.reserve(2L, model, 10);
+
+        quotaEngine.extend(reservation, 10);
+        LimitExceededException ex = assertThrows(LimitExceededException.class,
+                () -> quotaEngine.extend(reservation, 1));
+
+        assertEquals("company tokens", ex.getLimitType());
+        assertEquals(20, quotaEngine.peek(1L, model.getId()).orElseThrow().getUsedTokens());
+    }
+
+    @Test
+    void restrictionChangeKeepsCompanyUsage() {
+        restrictCompany(2, 1_000);
+        quotaEngine.tryAcquire(1L, model, 1);
+        quotaEngine.tryAcquire(2L, model, 1);
+        assertThrows(LimitExceededException.class, () -> quotaEngine.tryAcquire(3L, model, 1));
+
+        restriction.setMaxRequestsPerWindow(3);
+        quotaEngine.onRestrictionChanged(new QuotaEngine.RestrictionChanged(7L, 3L));
+        quotaEngine.tryAcquire(3L, model, 1);
+        assertThrows(LimitExceededException.class, () -> quotaEngine.tryAcquire(4L, model, 1));
+
+        // Without a restriction the company is no longer capped
+        when(restrictionRepository.findByCompanyIdAndModelId(7L, 3L)).thenReturn(Optional.empty());
+        quotaEngine.onRestrictionChanged(new QuotaEngine.RestrictionChanged(7L, 3L));
+        quotaEngine.tryAcquire(4L, model, 1);
+        assertTrue(companyQuotas.peek(7L, 3L).isEmpty());
+    }
+
+    @Test
+    void concurrentAcquireNeverOverspendsUserOrCompany() throws InterruptedException {
+        limit.setMaxRequestsPerWindow(60);
+        limit.setMaxTokensPerWindow(400);
+        restrictCompany(1_000, 5_003);
+
+        int users = 25;
+        int threads = 200;
+        Map<Long, AtomicInteger> admittedRequests = new ConcurrentHashMap<>();
+        Map<Long, AtomicInteger> admittedTokens = new ConcurrentHashMap<>();
+        CountDownLatch start = new CountDownLatch(1);
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+
+        for (int i = 0; i < threads; i++) {
+            int thread = i;
+            executor.submit(() -> {
+                start.await();
+                for (int j = 0; j < 50; j++) {
+                    long userId = 1 + (thread + j) % users;
+                    int tokens = 1 + (thread * 7 + j) % 11;
+                    try {
+                        quotaEngine.tryAcquire(userId, model, tokens);
+                        admittedRequests.computeIfAbsent(userId, id -> new AtomicInteger()).incrementAndGet();
+                        admittedTokens.computeIfAbsent(userId, id -> new AtomicInteger()).addAndGet(tokens);
+                    } catch (LimitExceededException ignored) {
+                        // expected once either level is spent
+                    }
+                }
+                return null;
+            });
+        }
+        start.countDown();
+        executor.shutdown();
+        assertTrue(executor.awaitTermination(30, TimeUnit.SECONDS));
+
+        int totalRequests = 0;
+        int totalTokens = 0;
+        for (long userId = 1; userId <= users; userId++) {
+            QuotaEngine.QuotaSnapshot snapshot = quotaEngine.peek(userId, model.getId()).orElseThrow();
+            int requests = admittedRequests.getOrDefault(userId, new AtomicInteger()).get();
+            int tokens = admittedTokens.getOrDefault(userId, new AtomicInteger()).get();
+            assertTrue(requests <= 60 && tokens <= 400);
+            assertEquals(requests, snapshot.getUsedRequests());
+            assertEquals(tokens, snapshot.getUsedTokens());
+            totalRequests += requests;
+            totalTokens += tokens;
+        }
+        QuotaEngine.QuotaSnapshot company = companyQuotas.peek(7L, 3L).orElseThrow();
+        assertTrue(totalRequests <= 1_000);
+        assertTrue(totalTokens <= 5_003);
+        assertEquals(totalRequests, company.getUsedRequests());
+        assertEquals(totalTokens, company.getUsedTokens());
+        // The company ran out before its users did
+        assertTrue(totalTokens > 5_003 - 11);
+    }
+}
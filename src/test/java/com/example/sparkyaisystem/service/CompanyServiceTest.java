@@ -8,16 +8,16 @@ import com.example.sparkyaisystem.model.dto.company.CompanyStatusRequest;
 import com.example.sparkyaisystem.model.dto.auth.RegisterRequest;
 import com.example.sparkyaisystem.model.entity.AIModel;
 import com.example.sparkyaisystem.model.entity.Company;
-import com.example.sparkyaisystem.model.entity.Request;
 import com.example.sparkyaisystem.model.entity.User;
 import com.example.sparkyaisystem.repository.CompanyRepository;
-import com.example.sparkyaisystem.repository.RequestRepository;
+import com.example.sparkyaisystem.repository.ConsumptionRollupRepository;
 import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
 import org.junit.jupiter.api.extension.ExtendWith;
 import org.mockito.InjectMocks;
 import org.mockito.Mock;
 import org.mockito.junit.jupiter.MockitoExtension;
+import org.springframework.context.ApplicationEventPublisher;
 
 import java.time.LocalDateTime;
 import java.util.List;
@@ -34,11 +34,17 @@ class CompanyServiceTest {
     private CompanyRepository companyRepository;
 
     @Mock
-    private RequestRepository requestRepository;
+    private ConsumptionRollupService rollupService;
+
+    @Mock
+    private ModelCatalog modelCatalog;
 
     @Mock
     private AuthService authService;
 
+    @Mock
+    private ApplicationEventPublisher eventPublisher;
+
     @InjectMocks
     private CompanyService companyService;
 
@@ -168,6 +174,7 @@ class CompanyServiceTest {
         assertFalse(resp.isActive());
         verify(companyRepository).findById(sampleCompany.getId());
         verify(companyRepository).save(any(Company.class));
+        verify(eventPublisher).publishEvent(new AuthenticatedUserService.CompanyChanged(sampleCompany.getId()));
     }
 
     @Test
@@ -181,25 +188,65 @@ class CompanyServiceTest {
         assertFalse(resp.isActive());
         verify(companyRepository).findById(sampleCompany.getId());
         verify(companyRepository).save(sampleCompany);
+        verify(eventPublisher).publishEvent(new AuthenticatedUserService.CompanyChanged(sampleCompany.getId()));
     }
 
     @Test
-    void getCompanyConsumptionAggregatesData() {
+    void getCompanyConsumptionReadsRollups() {
         // Arrange
-        Request r1 = new Request(); r1.setTokensConsumed(10);
-        AIModel m1 = new AIModel(); m1.setId(100L); m1.setName("M1"); m1.setProvider("P1"); r1.setModel(m1);
-        Request r2 = new Request(); r2.setTokensConsumed(20); r2.setModel(m1);
+        AIModel m1 = new AIModel(); m1.setId(100L); m1.setName("M1"); m1.setProvider("P1");
+        LocalDateTime from = LocalDateTime.of(2025, 5, 1, 0, 0);
+        LocalDateTime to = LocalDateTime.of(2025, 6, 1, 0, 0);
         when(companyRepository.findById(eq(sampleCompany.getId()))).thenReturn(Optional.of(sampleCompany));
-        when(requestRepository.findByCompany(eq(sampleCompany))).thenReturn(List.of(r1, r2));
+        when(rollupService.companyTotals(sampleCompany.getId(), from, to))
+                .thenReturn(List.of(totals(100L, 2, 30, 900), totals(200L, 1, 5, 0)));
+        when(modelCatalog.findById(100L)).thenReturn(Optional.of(m1));
+        when(modelCatalog.findById(200L)).thenReturn(Optional.empty());
         // Act
-        CompanyConsumptionResponse report = companyService.getCompanyConsumption(sampleCompany.getId());
+        CompanyConsumptionResponse report = companyService.getCompanyConsumption(sampleCompany.getId(), from, to);
         // Assert
         assertEquals(sampleCompany.getId(), report.getCompanyId());
-        assertEquals(2, report.getTotalRequests());
-        assertEquals(30, report.getTotalTokensConsumed());
-        assertEquals(1, report.getModelConsumptions().size());
+        assertEquals(3, report.getTotalRequests());
+        assertEquals(35, report.getTotalTokensConsumed());
+        assertEquals(2, report.getModelConsumptions().size());
         assertEquals(m1.getId(), report.getModelConsumptions().get(0).getModelId());
+        assertEquals("M1", report.getModelConsumptions().get(0).getModelName());
+        assertEquals(30, report.getModelConsumptions().get(0).getTokensConsumed());
+        assertEquals(450.0, report.getModelConsumptions().get(0).getAverageLatencyMs());
+        assertNull(report.getModelConsumptions().get(1).getModelName());
+        assertNull(report.getModelConsumptions().get(1).getAverageLatencyMs());
         verify(companyRepository).findById(sampleCompany.getId());
-        verify(requestRepository).findByCompany(sampleCompany);
+    }
+
+    /**
+     * Totals where every request completed, except that a latency of 0 means none did.
+     */
+    static ConsumptionRollupRepository.ModelTotals totals(Long modelId, long requests, long tokens, long latencyMs) {
+        return new ConsumptionRollupRepository.ModelTotals() {
+            @Override
+            public Long getModelId() {
+                return modelId;
+            }
+
+            @Override
+            public Long getRequestCount() {
+                return requests;
+            }
+
+            @Override
+            public Long getTokensConsumed() {
+                return tokens;
+            }
+
+            @Override
+            public Long getLatencyMs() {
+                return latencyMs;
+            }
+
+            @Override
+            public Long getLatencySamples() {
+                return latencyMs > 0 ? requests : 0;
+            }
+        };
     }
 }
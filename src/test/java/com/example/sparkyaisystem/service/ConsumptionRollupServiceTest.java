@@ -0,0 +1,142 @@
+package com.example.sparkyaisystem.service;
+
+import com.example.sparkyaisystem.model.entity.AIModel;
+import com.example.sparkyaisystem.model.entity.Request;
+import com.example.sparkyaisystem.model.entity.RollupGranularity;
+import com.example.sparkyaisystem.model.entity.User;
+import com.example.sparkyaisystem.repository.ConsumptionRollupRepository;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.ExtendWith;
+import org.mockito.ArgumentCaptor;
+import org.mockito.Captor;
+import org.mockito.Mock;
+import org.mockito.junit.jupiter.MockitoExtension;
+import org.springframework.jdbc.core.ConnectionCallback;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.core.ParameterizedPreparedStatementSetter;
+
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.ArgumentMatchers.*;
+import static org.mockito.Mockito.*;
+
+@ExtendWith(MockitoExtension.class)
+class ConsumptionRollupServiceTest {
+
+    @Mock
+    private JdbcTemplate jdbcTemplate;
+
+    @Mock
+    private ConsumptionRollupRepository rollupRepository;
+
+    @Captor
+    private ArgumentCaptor<Collection<Map.Entry<ConsumptionRollupService.Bucket, long[]>>> rows;
+
+    private ConsumptionRollupService rollupService;
+    private User user;
+    private AIModel model;
+
+    @BeforeEach
+    void setUp() {
+        rollupService = new ConsumptionRollupService(jdbcTemplate, rollupRepository);
+
+        user = new User();
+        user.setId(1L);
+        model = new AIModel();
+        model.setId(2L);
+    }
+
+    private Request request(LocalDateTime requestTime, int tokens) {
+        Request request = new Request();
+        request.setUser(user);
+        request.setModel(model);
+        request.setRequestTime(requestTime);
+        request.setTokensConsumed(tokens);
+        return request;
+    }
+
+    private static LocalDateTime at(int day, int hour, int minute) {
+        return LocalDateTime.of(2025, 5, day, hour, minute);
+    }
+
+    @Test
+    @SuppressWarnings("unchecked")
+    void recordSumsBatchIntoHourlyAndDailyBuckets() {
+        when(jdbcTemplate.execute(any(ConnectionCallback.class))).thenReturn("PostgreSQL");
+
+        rollupService.record(List.of(request(at(1, 10, 15), 5), request(at(1, 10, 45), 7), request(at(1, 11, 5), 1)));
+
+        verify(jdbcTemplate).batchUpdate(eq(ConsumptionRollupService.POSTGRES_UPSERT_SQL), rows.capture(), eq(3),
+                any(ParameterizedPreparedStatementSetter.class));
+        List<Map.Entry<ConsumptionRollupService.Bucket, long[]>> written = new ArrayList<>(rows.getValue());
+        assertEquals(new ConsumptionRollupService.Bucket(RollupGranularity.HOUR, at(1, 10, 0), 1L, 2L), written.get(0).getKey());
+        assertArrayEquals(new long[]{2, 12, 0, 0}, written.get(0).getValue());
+        assertEquals(new ConsumptionRollupService.Bucket(RollupGranularity.HOUR, at(1, 11, 0), 1L, 2L), written.get(1).getKey());
+        assertArrayEquals(new long[]{1, 1, 0, 0}, written.get(1).getValue());
+        assertEquals(new ConsumptionRollupService.Bucket(RollupGranularity.DAY, at(1, 0, 0), 1L, 2L), written.get(2).getKey());
+        assertArrayEquals(new long[]{3, 13, 0, 0}, written.get(2).getValue());
+    }
+
+    @Test
+    @SuppressWarnings("unchecked")
+    void recordSumsLatencyOfCompletedRequests() {
+        when(jdbcTemplate.execute(any(ConnectionCallback.class))).thenReturn("PostgreSQL");
+        Request completed = request(at(1, 10, 15), 5);
+        completed.setResponseTime(completed.getRequestTime().plusNanos(250_000_000));
+        Request pending = request(at(1, 10, 20), 0);
+
+        rollupService.record(List.of(completed, pending));
+
+        verify(jdbcTemplate).batchUpdate(anyString(), rows.capture(), eq(2), any(ParameterizedPreparedStatementSetter.class));
+        for (Map.Entry<ConsumptionRollupService.Bucket, long[]> row : rows.getValue()) {
+            assertArrayEquals(new long[]{2, 5, 250, 1}, row.getValue());
+        }
+    }
+
+    @Test
+    @SuppressWarnings("unchecked")
+    void otherDatabasesUseStandardMerge() {
+        when(jdbcTemplate.execute(any(ConnectionCallback.class))).thenReturn("H2");
+
+        rollupService.record(List.of(request(at(1, 10, 15), 5)));
+        rollupService.record(List.of(request(at(1, 10, 20), 5)));
+
+        verify(jdbcTemplate, times(2)).batchUpdate(eq(ConsumptionRollupService.MERGE_SQL), anyCollection(), eq(2),
+                any(ParameterizedPreparedStatementSetter.class));
+        verify(jdbcTemplate, times(1)).execute(any(ConnectionCallback.class));
+    }
+
+    @Test
+    void rangeReadsDailyBucketsForWholeDays() {
+        rollupService.companyTotals(10L, at(1, 10, 30), at(4, 2, 0));
+
+        verify(rollupRepository).sumByCompany(10L, at(1, 10, 0), at(2, 0, 0), at(4, 0, 0), at(4, 2, 0));
+    }
+
+    @Test
+    void rangeWithinOneDayReadsHourlyBuckets() {
+        rollupService.userTotals(1L, at(1, 10, 30), at(1, 12, 10));
+
+        verify(rollupRepository).sumByUser(1L, at(1, 10, 0), at(1, 13, 0), at(1, 13, 0), at(1, 13, 0));
+    }
+
+    @Test
+    void openRangeCoversAllBuckets() {
+        rollupService.companyTotals(10L, null, null);
+
+        verify(rollupRepository).sumByCompany(10L, ConsumptionRollupService.EARLIEST, ConsumptionRollupService.EARLIEST,
+                ConsumptionRollupService.LATEST, ConsumptionRollupService.LATEST);
+    }
+
+    @Test
+    void invertedRangeIsRejected() {
+        assertThrows(RuntimeException.class, () -> rollupService.userTotals(1L, at(2, 0, 0), at(1, 0, 0)));
+        verifyNoInteractions(rollupRepository);
+    }
+}
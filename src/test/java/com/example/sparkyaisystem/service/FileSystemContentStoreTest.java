@@ -0,0 +1,68 @@
+package com.example.sparkyaisystem.service;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.stream.Stream;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class FileSystemContentStoreTest {
+
+    @TempDir
+    Path root;
+
+    private FileSystemContentStore store;
+
+    @BeforeEach
+    void setUp() {
+        store = new FileSystemContentStore(root.toString(), 6);
+    }
+
+    @Test
+    void storedContentIsReadBack() {
+        String body = "¿Dónde está mi pedido? 🚚";
+
+        ContentStore.Ref ref = store.put(body);
+
+        assertEquals(64, ref.key().length());
+        assertEquals(body.getBytes(StandardCharsets.UTF_8).length, ref.size());
+        assertEquals(body, store.get(ref.key()));
+        assertEquals("", store.get(store.put("").key()));
+    }
+
+    @Test
+    void identicalContentIsStoredOnce() throws IOException {
+        ContentStore.Ref first = store.put("Your order ships within two business days.");
+        ContentStore.Ref second = store.put("Your order ships within two business days.");
+        ContentStore.Ref other = store.put("Your order has shipped.");
+
+        assertEquals(first, second);
+        assertNotEquals(first.key(), other.key());
+        try (Stream<Path> files = Files.walk(root)) {
+            assertEquals(2, files.filter(Files::isRegularFile).count());
+        }
+    }
+
+    @Test
+    void contentIsCompressedOnDisk() throws IOException {
+        String body = "Where is my order? ".repeat(500);
+
+        ContentStore.Ref ref = store.put(body);
+
+        assertTrue(Files.size(store.pathOf(ref.key())) < ref.size() / 10);
+    }
+
+    @Test
+    void invalidReferencesAreRejectedAndUnknownOnesAreMissing() {
+        RuntimeException invalid = assertThrows(RuntimeException.class, () -> store.get("../../etc/passwd"));
+        assertEquals("Invalid content reference: ../../etc/passwd", invalid.getMessage());
+
+        assertNull(store.get("0".repeat(64)));
+    }
+}
@@ -1,18 +1,34 @@
 package com.example.sparkyaisystem.service;
 
+import com.azure.ai.inference.ChatCompletionsClient;
+import com.azure.ai.inference.models.ChatCompletions;
+import com.azure.ai.inference.models.ChatCompletionsOptions;
+import com.azure.core.util.BinaryData;
+import com.example.sparkyaisystem.exception.UnsupportedModelRequestException;
+import com.example.sparkyaisystem.exception.UpstreamOverloadedException;
 import com.example.sparkyaisystem.model.entity.AIModel;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
 import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
+import org.mockito.ArgumentCaptor;
+import org.springframework.core.task.SimpleAsyncTaskExecutor;
 import org.springframework.mock.web.MockMultipartFile;
+import org.springframework.test.util.ReflectionTestUtils;
 import org.springframework.web.multipart.MultipartFile;
 
+import java.io.File;
 import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.Base64;
+import java.util.Set;
 
 import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.Mockito.*;
 
 class GitHubModelsServiceTest {
 
     private GitHubModelsService service;
+    private ChatCompletionsClient client;
     private AIModel openAiModel;
     private AIModel metaModel;
     private AIModel genericModel;
@@ -20,6 +36,13 @@ class GitHubModelsServiceTest {
     @BeforeEach
     void setUp() {
         service = new GitHubModelsService();
+        client = mock(ChatCompletionsClient.class);
+        ReflectionTestUtils.setField(service, "chatCompletionsClient", client);
+        ReflectionTestUtils.setField(service, "concurrencyLimiter", limiter(10));
+        ReflectionTestUtils.setField(service, "resilience", resilience());
+        ReflectionTestUtils.setField(service, "deepseekModel", "deepseek/DeepSeek-V3-0324");
+        ReflectionTestUtils.setField(service, "openaiModel", "openai/gpt-4o");
+        ReflectionTestUtils.setField(service, "llamaModel", "meta/Llama-4-Scout-17B-16E-Instruct");
 
         openAiModel = new AIModel();
         openAiModel.setProvider("OpenAI");
@@ -35,43 +58,127 @@ class GitHubModelsServiceTest {
     }
 
     @Test
-    void processChatRequest_WithSystemPrompt_ShouldIncludeContext() {
-        String prompt = "Explain AI.";
-        String context = "System instructions";
-        String response = service.processChatRequest(openAiModel, prompt, context);
+    void processChatRequest_WithSystemPrompt_ShouldSendItAndReturnTheAnswer() {
+        when(client.complete(any(ChatCompletionsOptions.class))).thenReturn(completions("Hello.", 12));
 
-        assertTrue(response.contains("Using context: " + context));
-        assertTrue(response.contains("GPT-4:"));
+        GitHubModelsService.CompletionResult result = service.processChatRequest(openAiModel, "Explain AI.",
+                "System instructions");
+
+        assertEquals("Hello.", result.getContent());
+        assertEquals(12, result.getTotalTokens());
+        ChatCompletionsOptions options = sentOptions();
+        assertEquals("openai/gpt-4o", options.getModel());
+        assertTrue(BinaryData.fromObject(options).toString().contains("System instructions"));
+    }
+
+    @Test
+    void processChatRequest_WithoutSystemPrompt_ShouldSendTheDefaultOne() {
+        when(client.complete(any(ChatCompletionsOptions.class))).thenReturn(completions("Hello.", 12));
+
+        assertEquals("Hello.", service.processChatRequest(openAiModel, "Tell me about machine learning.", null)
+                .getContent());
+
+        assertTrue(BinaryData.fromObject(sentOptions()).toString().contains("You are a helpful assistant."));
     }
 
     @Test
-    void processChatRequest_WithoutSystemPrompt_ShouldNotIncludeContext() {
-        String prompt = "Tell me about machine learning.";
-        String response = service.processChatRequest(openAiModel, prompt, null);
+    void processChatRequest_UpstreamFailure_ShouldThrowAfterRetries() {
+        when(client.complete(any(ChatCompletionsOptions.class)))
+                .thenThrow(new UncheckedIOException(new IOException("Connection reset")));
 
-        assertFalse(response.startsWith("Using context:"));
-        assertTrue(response.contains("GPT-4:"));
+        assertThrows(UncheckedIOException.class, () -> service.processChatRequest(openAiModel, "Hello", null));
+        verify(client, times(3)).complete(any(ChatCompletionsOptions.class));
     }
 
     @Test
-    void processCompletionRequest_GeneratesContinuationAndRespectsMaxTokens() {
-        String prompt = "Hello world";
-        // Set maxTokens small to trigger truncation logic
-        String response = service.processCompletionRequest(openAiModel, prompt, 1, 0.5f);
+    void processCompletionRequest_ShouldSendMaxTokensAndTemperature() {
+        when(client.complete(any(ChatCompletionsOptions.class))).thenReturn(completions("world", 3));
 
-        // Since maxTokens=1, output length should not exceed maxTokens*4 + ellipsis
-        assertTrue(response.length() <= 4 + 3);
-        assertTrue(response.endsWith("..."));
+        GitHubModelsService.CompletionResult result = service.processCompletionRequest(openAiModel, "Hello", 1, 0.5f);
+
+        assertEquals("world", result.getContent());
+        assertEquals(3, result.getTotalTokens());
+        ChatCompletionsOptions options = sentOptions();
+        assertEquals(1, options.getMaxTokens());
+        assertEquals(0.5, options.getTemperature());
     }
 
     @Test
-    void processMultimodalRequest_ValidImage_ShouldReturnAnalysis() throws IOException {
-        String text = "Analyze this image.";
+    void processCompletionRequest_RejectedRequest_ShouldThrowWithoutRetrying() {
+        when(client.complete(any(ChatCompletionsOptions.class)))
+                .thenThrow(new IllegalArgumentException("max_tokens is too large"));
+
+        assertThrows(IllegalArgumentException.class,
+                () -> service.processCompletionRequest(openAiModel, "Hello", 1_000_000, null));
+        verify(client).complete(any(ChatCompletionsOptions.class));
+    }
+
+    @Test
+    void processMultimodalRequest_ModelWithoutImageInput_ShouldBeRejected() {
         byte[] content = new byte[]{1, 2, 3};
         MultipartFile file = new MockMultipartFile("image", "pic.png", "image/png", content);
-        String response = service.processMultimodalRequest(openAiModel, text, file);
 
-        assertTrue(response.contains("I've analyzed the image 'pic.png'"));
+        assertThrows(UnsupportedModelRequestException.class,
+                () -> service.processMultimodalRequest(openAiModel, "Analyze this image.", file));
+        verifyNoInteractions(client);
+    }
+
+    @Test
+    void processMultimodalRequest_SendsDataUrlWithoutTempFiles() throws IOException {
+        when(client.complete(any(ChatCompletionsOptions.class))).thenReturn(completions("A cat.", 63));
+        ImageDataUrlEncoder encoder = new ImageDataUrlEncoder(new SimpleMeterRegistry(), 1 << 20, 0);
+        ReflectionTestUtils.setField(service, "imageDataUrlEncoder", encoder);
+        AIModel gpt4o = new AIModel();
+        gpt4o.setProvider("OpenAI");
+        gpt4o.setName("gpt-4o");
+        byte[] content = new byte[]{(byte) 0x89, 'P', 'N', 'G', 1, 2, 3};
+        File tmpDir = new File(System.getProperty("java.io.tmpdir"));
+        Set<String> before = Set.of(tmpDir.list());
+
+        GitHubModelsService.CompletionResult result = service.processMultimodalRequest(gpt4o, "What is this?",
+                new MockMultipartFile("image", "pic.png", "image/png", content));
+
+        assertEquals("A cat.", result.getContent());
+        assertEquals(63, result.getTotalTokens());
+        assertEquals(before, Set.of(tmpDir.list()));
+        assertEquals(0, encoder.inFlightBytes());
+        assertTrue(BinaryData.fromObject(sentOptions()).toString()
+                .contains("data:image/png;base64," + Base64.getEncoder().encodeToString(content)));
+    }
+
+    private static ChatCompletions completions(String content, int totalTokens) {
+        return BinaryData.fromString("""
+                {"id":"test","created":1700000000,"model":"gpt-4o",
+                 "choices":[{"index":0,"finish_reason":"stop","message":{"role":"assistant","content":"%s"}}],
+                 "usage":{"prompt_tokens":%d,"completion_tokens":3,"total_tokens":%d}}
+                """.formatted(content, totalTokens - 3, totalTokens)).toObject(ChatCompletions.class);
+    }
+
+    private ChatCompletionsOptions sentOptions() {
+        ArgumentCaptor<ChatCompletionsOptions> options = ArgumentCaptor.forClass(ChatCompletionsOptions.class);
+        verify(client).complete(options.capture());
+        return options.getValue();
+    }
+
+    private static UpstreamConcurrencyLimiter limiter(int limit) {
+        return new UpstreamConcurrencyLimiter(new SimpleMeterRegistry(), limit, 1, limit, limit, 0, 0, 2.0, 0.9);
+    }
+
+    private static UpstreamResilience resilience() {
+        return new UpstreamResilience(new SimpleMeterRegistry(), new SimpleAsyncTaskExecutor("test-upstream-"), 5000, 2, 10, 50,
+                20, 10, 0.5, 30000, false, 0.95);
+    }
+
+    @Test
+    void processChatRequest_SaturatedModelIsShedInsteadOfAnswered() {
+        UpstreamConcurrencyLimiter limiter = limiter(1);
+        ReflectionTestUtils.setField(service, "concurrencyLimiter", limiter);
+        UpstreamConcurrencyLimiter.Permit busy = limiter.acquire("openai/gpt-4o");
+
+        assertThrows(UpstreamOverloadedException.class,
+                () -> service.processChatRequest(openAiModel, "Hello", null));
+        verifyNoInteractions(client);
+        busy.close();
     }
 
     @Test
@@ -99,16 +206,30 @@ class GitHubModelsServiceTest {
     }
 
     @Test
-    void processChatRequest_MetaProvider_ShouldUseMetaResponse() {
-        String prompt = "Hello";
-        String response = service.processChatRequest(metaModel, prompt, "");
-        assertTrue(response.contains("Llama AI:"));
+    void estimateTokenCount_UsesTheVocabularyOfTheMappedUpstreamModel() {
+        String text = "Résumé des ventes trimestrielles: 売上は前年比で増加しました。";
+
+        assertEquals(Tokenizer.countTokens(Tokenizer.Family.GPT_4O, text), service.estimateTokenCount(openAiModel, text));
+        assertEquals(Tokenizer.countTokens(Tokenizer.Family.LLAMA, text), service.estimateTokenCount(metaModel, text));
+        assertEquals(Tokenizer.countTokens(Tokenizer.Family.DEEPSEEK, text),
+                service.estimateTokenCount(genericModel, text));
+        assertNotEquals(Tokenizer.countTokens(Tokenizer.Family.GPT_4O, text),
+                Tokenizer.countTokens(Tokenizer.Family.DEEPSEEK, text));
     }
 
     @Test
-    void processChatRequest_GenericProvider_ShouldUseFallback() {
-        String prompt = "Hi there";
-        String response = service.processChatRequest(genericModel, prompt, "");
-        assertTrue(response.contains("AI Assistant:"));
+    void processChatRequest_MetaProvider_ShouldUseTheLlamaModel() {
+        when(client.complete(any(ChatCompletionsOptions.class))).thenReturn(completions("Hi!", 8));
+
+        assertEquals("Hi!", service.processChatRequest(metaModel, "Hello", "").getContent());
+        assertEquals("meta/Llama-4-Scout-17B-16E-Instruct", sentOptions().getModel());
+    }
+
+    @Test
+    void processChatRequest_GenericProvider_ShouldFallBackToDeepSeek() {
+        when(client.complete(any(ChatCompletionsOptions.class))).thenReturn(completions("Hi!", 8));
+
+        assertEquals("Hi!", service.processChatRequest(genericModel, "Hi there", "").getContent());
+        assertEquals("deepseek/DeepSeek-V3-0324", sentOptions().getModel());
     }
 }
@@ -0,0 +1,80 @@
+package com.example.sparkyaisystem.service;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.Test;
+import org.springframework.mock.web.MockMultipartFile;
+
+import java.io.IOException;
+import java.util.Base64;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class ImageDataUrlEncoderTest {
+
+    private final SimpleMeterRegistry meterRegistry = new SimpleMeterRegistry();
+
+    private static MockMultipartFile image(int size) {
+        byte[] content = new byte[size];
+        new Random(size).nextBytes(content);
+        return new MockMultipartFile("image", "pic.png", "image/png", content);
+    }
+
+    @Test
+    void encodesUploadAsDataUrl() throws IOException {
+        ImageDataUrlEncoder encoder = new ImageDataUrlEncoder(meterRegistry, 1 << 20, 0);
+        for (int size : new int[]{1, 2, 3, 4, 8191, 8192, 100_000}) {
+            MockMultipartFile image = image(size);
+
+            try (ImageDataUrlEncoder.DataUrl url = encoder.encode(image)) {
+                assertEquals("data:image/png;base64," + Base64.getEncoder().encodeToString(image.getBytes()), url.url());
+            }
+        }
+    }
+
+    @Test
+    void dataUrlsHoldTheBudgetUntilClosed() throws IOException {
+        // Each data URL of a 3000 byte image is 22 + 4000 bytes long
+        ImageDataUrlEncoder encoder = new ImageDataUrlEncoder(meterRegistry, 9_000, 0);
+
+        ImageDataUrlEncoder.DataUrl first = encoder.encode(image(3000));
+        ImageDataUrlEncoder.DataUrl second = encoder.encode(image(3000));
+        assertEquals(8044, encoder.inFlightBytes());
+
+        IOException rejected = assertThrows(IOException.class, () -> encoder.encode(image(3000)));
+        assertEquals("Too many images are being processed, try again later", rejected.getMessage());
+
+        first.close();
+        first.close();
+        encoder.encode(image(3000)).close();
+        second.close();
+        assertEquals(0, encoder.inFlightBytes());
+        assertEquals(0.0, meterRegistry.get("multimodal.images.in_flight_bytes").gauge().value());
+    }
+
+    @Test
+    void imagesLargerThanTheBudgetAreRejected() {
+        ImageDataUrlEncoder encoder = new ImageDataUrlEncoder(meterRegistry, 1_000, 0);
+
+        IOException rejected = assertThrows(IOException.class, () -> encoder.encode(image(3000)));
+
+        assertEquals("Image file is too large to process", rejected.getMessage());
+        assertEquals(0, encoder.inFlightBytes());
+    }
+
+    @Test
+    void uploadLongerThanDeclaredReleasesTheBudget() {
+        ImageDataUrlEncoder encoder = new ImageDataUrlEncoder(meterRegistry, 1 << 20, 0);
+        MockMultipartFile image = new MockMultipartFile("image", "pic.png", "image/png", new byte[3000]) {
+            @Override
+            public long getSize() {
+                return 300;
+            }
+        };
+
+        IOException failed = assertThrows(IOException.class, () -> encoder.encode(image));
+
+        assertEquals("Image upload is larger than its declared size", failed.getMessage());
+        assertEquals(0, encoder.inFlightBytes());
+    }
+}
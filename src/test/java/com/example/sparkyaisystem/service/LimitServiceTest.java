@@ -13,12 +13,20 @@ import com.example.sparkyaisystem.repository.CompanyRepository;
 import com.example.sparkyaisystem.repository.LimitRepository;
 import com.example.sparkyaisystem.repository.RestrictionRepository;
 import com.example.sparkyaisystem.repository.UserRepository;
+import com.example.sparkyaisystem.scheduler.LimitExpiryWheel;
+import com.example.sparkyaisystem.security.AuthenticatedUser;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
 import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
 import org.junit.jupiter.api.extension.ExtendWith;
 import org.mockito.InjectMocks;
 import org.mockito.Mock;
+import org.mockito.Spy;
 import org.mockito.junit.jupiter.MockitoExtension;
+import org.springframework.context.ApplicationEventPublisher;
+import org.springframework.data.domain.PageRequest;
+import org.springframework.test.util.ReflectionTestUtils;
 
 import java.time.LocalDateTime;
 import java.util.List;
@@ -41,6 +49,14 @@ class LimitServiceTest {
     private CompanyRepository companyRepository;
     @Mock
     private RestrictionRepository restrictionRepository;
+    @Mock
+    private QuotaEngine quotaEngine;
+    @Mock
+    private LimitExpiryWheel expiryWheel;
+    @Mock
+    private ApplicationEventPublisher eventPublisher;
+    @Spy
+    private MeterRegistry meterRegistry = new SimpleMeterRegistry();
 
     @InjectMocks
     private LimitService limitService;
@@ -120,6 +136,24 @@ class LimitServiceTest {
         assertTrue(ex.getMessage().contains("Company not found"));
     }
 
+    @Test
+    void updateLimitLeavesTheCachedSlotUntilCommit() {
+        when(companyRepository.findById(eq(company.getId()))).thenReturn(Optional.of(company));
+        when(limitRepository.findById(eq(limit.getId()))).thenReturn(Optional.of(limit));
+        when(userRepository.findByCompanyAndId(eq(company), eq(user.getId()))).thenReturn(Optional.of(user));
+        when(aiModelRepository.findById(eq(model.getId()))).thenReturn(Optional.of(model));
+        when(restrictionRepository.findByCompanyAndModel(eq(company), eq(model)))
+                .thenReturn(Optional.of(restriction));
+        when(limitRepository.save(any(Limit.class))).thenReturn(limit);
+        request.setMaxRequestsPerWindow(5);
+
+        limitService.updateLimit(company.getId(), limit.getId(), request);
+
+        verify(eventPublisher).publishEvent(new QuotaEngine.LimitChanged(user.getId(), model.getId()));
+        verify(quotaEngine, never()).evict(anyLong(), anyLong());
+        assertEquals(5, limit.getMaxRequestsPerWindow());
+    }
+
     @Test
     void getLimitsByUserSuccess() {
         when(companyRepository.findById(eq(company.getId()))).thenReturn(Optional.of(company));
@@ -153,43 +187,82 @@ class LimitServiceTest {
         assertTrue(ex.getMessage().contains("does not belong"));
     }
 
+    private AuthenticatedUser caller() {
+        return new AuthenticatedUser(user.getId(), "user@test.com", company.getId(), true, List.of("ROLE_USER"));
+    }
+
     @Test
-    void checkAndUpdateLimitSuccess() {
-        limit.setUsedRequests(1);
-        limit.setUsedTokens(10);
-        when(limitRepository.findByUserAndModel(eq(user), eq(model)))
-                .thenReturn(Optional.of(limit));
+    void checkAndUpdateLimitDelegatesToQuotaEngine() {
+        QuotaEngine.QuotaSnapshot snapshot = new QuotaEngine.QuotaSnapshot(
+                2, 4, 15, 50, "daily", limit.getWindowStartTime(), limit.getWindowEndTime());
+        when(quotaEngine.tryAcquire(eq(user.getId()), eq(model), eq(5))).thenReturn(snapshot);
 
-        // Act: consume 5 tokens
-        limitService.checkAndUpdateLimit(user, model, 5);
+        QuotaEngine.QuotaSnapshot result = limitService.checkAndUpdateLimit(caller(), model, 5);
 
-        // Assert
-        assertEquals(2, limit.getUsedRequests());
-        assertEquals(15, limit.getUsedTokens());
-        verify(limitRepository).save(limit);
+        assertSame(snapshot, result);
+        verify(limitRepository, never()).save(any(Limit.class));
     }
 
     @Test
-    void checkAndUpdateLimitThrowsWhenRequestsExceeded() {
-        limit.setUsedRequests(5); // at max
-        limit.setWindowEndTime(LocalDateTime.now().plusHours(1));
-        when(limitRepository.findByUserAndModel(eq(user), eq(model)))
-                .thenReturn(Optional.of(limit));
+    void checkAndUpdateLimitPropagatesLimitExceeded() {
+        when(quotaEngine.tryAcquire(eq(user.getId()), eq(model), eq(1)))
+                .thenThrow(new LimitExceededException("requests", 5, 5, "daily", limit.getWindowEndTime()));
 
         LimitExceededException ex = assertThrows(LimitExceededException.class,
-                () -> limitService.checkAndUpdateLimit(user, model, 1));
+                () -> limitService.checkAndUpdateLimit(caller(), model, 1));
         assertEquals("requests", ex.getLimitType());
     }
 
+    private static LimitRepository.ExpiredWindow expired(Long id, String windowType, LocalDateTime windowEndTime) {
+        return new LimitRepository.ExpiredWindow() {
+            @Override
+            public Long getId() {
+                return id;
+            }
+
+            @Override
+            public String getWindowType() {
+                return windowType;
+            }
+
+            @Override
+            public LocalDateTime getWindowEndTime() {
+                return windowEndTime;
+            }
+        };
+    }
+
     @Test
-    void checkAndUpdateLimitThrowsWhenTokensExceeded() {
-        limit.setUsedRequests(1);
-        limit.setUsedTokens(100);
-        when(limitRepository.findByUserAndModel(eq(user), eq(model)))
-                .thenReturn(Optional.of(limit));
+    void resetExpiredLimitsWalksExpiredRowsInChunks() {
+        ReflectionTestUtils.setField(limitService, "resetChunkSize", 2);
+        LocalDateTime ended = LocalDateTime.now().minusHours(2);
+        when(limitRepository.findExpiredWindows(any(), eq(PageRequest.of(0, 2))))
+                .thenReturn(List.of(expired(5L, "weekly", ended.minusHours(1)), expired(3L, "daily", ended)));
+        when(limitRepository.findExpiredWindowsAfter(any(), eq(ended), eq(3L), eq(PageRequest.of(0, 2))))
+                .thenReturn(List.of(expired(8L, "daily", ended)));
+        when(limitRepository.resetWindows(anyList(), any(), any()))
+                .thenAnswer(invocation -> invocation.getArgument(0, List.class).size());
 
-        LimitExceededException ex = assertThrows(LimitExceededException.class,
-                () -> limitService.checkAndUpdateLimit(user, model, 1));
-        assertEquals("tokens", ex.getLimitType());
+        int reset = limitService.resetExpiredLimits();
+
+        assertEquals(3, reset);
+        verify(limitRepository).resetWindows(eq(List.of(3L)), any(), any());
+        verify(limitRepository).resetWindows(eq(List.of(5L)), any(), any());
+        verify(limitRepository).resetWindows(eq(List.of(8L)), any(), any());
+        verify(limitRepository, never()).findAll();
+        verify(expiryWheel, times(3)).register(any(LocalDateTime.class));
+        assertEquals(3, meterRegistry.counter("limits.reset.rows").count());
+        assertEquals(2, meterRegistry.counter("limits.reset.chunks").count());
+    }
+
+    @Test
+    void resetExpiredLimitsSkipsUnknownWindowTypes() {
+        LocalDateTime ended = LocalDateTime.now().minusHours(1);
+        when(limitRepository.findExpiredWindows(any(), any()))
+                .thenReturn(List.of(expired(1L, "hourly", ended), expired(2L, "monthly", ended)));
+        when(limitRepository.resetWindows(eq(List.of(2L)), any(), any())).thenReturn(1);
+
+        assertEquals(1, limitService.resetExpiredLimits());
+        verify(limitRepository, times(1)).resetWindows(anyList(), any(), any());
     }
 }
@@ -0,0 +1,108 @@
+package com.example.sparkyaisystem.service;
+
+import com.example.sparkyaisystem.model.entity.AIModel;
+import com.example.sparkyaisystem.repository.AIModelRepository;
+import com.example.sparkyaisystem.repository.RestrictionRepository;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.ExtendWith;
+import org.mockito.Mock;
+import org.mockito.junit.jupiter.MockitoExtension;
+import org.springframework.data.domain.Sort;
+
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.*;
+
+@ExtendWith(MockitoExtension.class)
+class ModelAvailabilityIndexTest {
+
+    @Mock
+    private AIModelRepository aiModelRepository;
+
+    @Mock
+    private RestrictionRepository restrictionRepository;
+
+    private ModelAvailabilityIndex index;
+    private AIModel gpt;
+    private AIModel llama;
+
+    private static AIModel model(Long id, String name) {
+        AIModel model = new AIModel();
+        model.setId(id);
+        model.setName(name);
+        model.setActive(true);
+        return model;
+    }
+
+    private static RestrictionRepository.CompanyModel pair(Long companyId, Long modelId) {
+        return new RestrictionRepository.CompanyModel() {
+            @Override
+            public Long getCompanyId() {
+                return companyId;
+            }
+
+            @Override
+            public Long getModelId() {
+                return modelId;
+            }
+        };
+    }
+
+    @BeforeEach
+    void setUp() {
+        index = new ModelAvailabilityIndex(new ModelCatalog(aiModelRepository, 300), restrictionRepository, 300);
+        gpt = model(1L, "gpt-4o");
+        llama = model(2L, "Llama-4-Scout");
+    }
+
+    @Test
+    void answersFromOneLoad() {
+        // Company 10 may use both models, company 20 only Llama, model 3 is inactive
+        AIModel inactive = model(3L, "DeepSeek-V3");
+        inactive.setActive(false);
+        when(aiModelRepository.findAll(any(Sort.class))).thenReturn(List.of(gpt, llama, inactive));
+        when(restrictionRepository.findAllCompanyModels())
+                .thenReturn(List.of(pair(10L, 1L), pair(10L, 2L), pair(20L, 2L), pair(20L, 3L)));
+
+        assertTrue(index.isAvailable(10L, 1L));
+        assertTrue(index.isAvailable(20L, 2L));
+        assertFalse(index.isAvailable(20L, 1L));
+        assertFalse(index.isAvailable(20L, 3L));
+        assertFalse(index.isAvailable(30L, 1L));
+        assertEquals(List.of(gpt, llama), index.availableModels(10L));
+        assertEquals(List.of(llama), index.availableModels(20L));
+        assertEquals(List.of(), index.availableModels(30L));
+
+        verify(aiModelRepository, times(1)).findAll(any(Sort.class));
+        verify(restrictionRepository, times(1)).findAllCompanyModels();
+    }
+
+    @Test
+    void changeEventReloadsTheIndex() {
+        when(aiModelRepository.findAll(any(Sort.class))).thenReturn(List.of(gpt, llama));
+        when(restrictionRepository.findAllCompanyModels())
+                .thenReturn(List.of(pair(10L, 1L), pair(10L, 2L)), List.of(pair(10L, 2L)));
+
+        assertTrue(index.isAvailable(10L, 1L));
+        index.onChanged(new ModelAvailabilityIndex.Changed(10L, 1L));
+
+        assertFalse(index.isAvailable(10L, 1L));
+        assertEquals(List.of(llama), index.availableModels(10L));
+        verify(restrictionRepository, times(2)).findAllCompanyModels();
+    }
+
+    @Test
+    void expiredIndexIsReloaded() {
+        index = new ModelAvailabilityIndex(new ModelCatalog(aiModelRepository, 300), restrictionRepository, 0);
+        when(aiModelRepository.findAll(any(Sort.class))).thenReturn(List.of(gpt));
+        when(restrictionRepository.findAllCompanyModels()).thenReturn(List.of(pair(10L, 1L)));
+
+        index.isAvailable(10L, 1L);
+        index.isAvailable(10L, 1L);
+
+        verify(restrictionRepository, times(2)).findAllCompanyModels();
+    }
+}
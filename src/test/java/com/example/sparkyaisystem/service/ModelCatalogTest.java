@@ -0,0 +1,79 @@
+package com.example.sparkyaisystem.service;
+
+import com.example.sparkyaisystem.model.entity.AIModel;
+import com.example.sparkyaisystem.repository.AIModelRepository;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.ExtendWith;
+import org.mockito.Mock;
+import org.mockito.junit.jupiter.MockitoExtension;
+import org.springframework.data.domain.Sort;
+
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.*;
+
+@ExtendWith(MockitoExtension.class)
+class ModelCatalogTest {
+
+    @Mock
+    private AIModelRepository aiModelRepository;
+
+    private ModelCatalog catalog;
+    private AIModel gpt;
+
+    private static AIModel model(Long id, String name, boolean active) {
+        AIModel model = new AIModel();
+        model.setId(id);
+        model.setName(name);
+        model.setActive(active);
+        return model;
+    }
+
+    @BeforeEach
+    void setUp() {
+        catalog = new ModelCatalog(aiModelRepository, 300);
+        gpt = model(1L, "gpt-4o", true);
+    }
+
+    @Test
+    void servesLookupsFromOneLoad() {
+        AIModel retired = model(2L, "gpt-3.5", false);
+        when(aiModelRepository.findAll(any(Sort.class))).thenReturn(List.of(gpt, retired));
+
+        assertSame(gpt, catalog.findById(1L).orElseThrow());
+        assertTrue(catalog.findById(3L).isEmpty());
+        assertEquals(List.of(gpt, retired), catalog.snapshot().models());
+        assertEquals(List.of(gpt), catalog.snapshot().activeModels());
+        assertEquals(1L, catalog.version());
+
+        verify(aiModelRepository, times(1)).findAll(any(Sort.class));
+    }
+
+    @Test
+    void changeEventSwapsInNewVersion() {
+        AIModel renamed = model(1L, "gpt-4o-2024", true);
+        when(aiModelRepository.findAll(any(Sort.class))).thenReturn(List.of(gpt), List.of(renamed));
+        ModelCatalog.Snapshot before = catalog.snapshot();
+
+        catalog.onChanged(new ModelCatalog.Changed(1L));
+
+        assertEquals("gpt-4o", before.findById(1L).orElseThrow().getName());
+        assertEquals("gpt-4o-2024", catalog.findById(1L).orElseThrow().getName());
+        assertEquals(before.version() + 1, catalog.version());
+    }
+
+    @Test
+    void reloadWithoutChangesKeepsVersion() {
+        catalog = new ModelCatalog(aiModelRepository, 0);
+        when(aiModelRepository.findAll(any(Sort.class)))
+                .thenReturn(List.of(gpt), List.of(model(1L, "gpt-4o", true)));
+
+        long version = catalog.version();
+
+        assertEquals(version, catalog.version());
+        verify(aiModelRepository, times(2)).findAll(any(Sort.class));
+    }
+}
@@ -0,0 +1,335 @@
+package com.example.sparkyaisystem.service;
+
+import com.example.sparkyaisystem.exception.LimitExceededException;
+import com.example.sparkyaisystem.model.entity.AIModel;
+import com.example.sparkyaisystem.model.entity.Limit;
+import com.example.sparkyaisystem.model.entity.User;
+import com.example.sparkyaisystem.repository.LimitRepository;
+import com.example.sparkyaisystem.repository.RestrictionRepository;
+import com.example.sparkyaisystem.scheduler.LimitExpiryWheel;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.ExtendWith;
+import org.mockito.Mock;
+import org.mockito.junit.jupiter.MockitoExtension;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.time.LocalDateTime;
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.ArgumentMatchers.*;
+import static org.mockito.Mockito.*;
+
+@ExtendWith(MockitoExtension.class)
+class QuotaEngineTest {
+
+    @Mock
+    private LimitRepository limitRepository;
+
+    @Mock
+    private LimitExpiryWheel expiryWheel;
+
+    @Mock
+    private RestrictionRepository restrictionRepository;
+
+    @Mock
+    private ConsumptionRollupService rollupService;
+
+    private CompanyQuotas companyQuotas;
+    private QuotaEngine quotaEngine;
+
+    private User user;
+    private AIModel model;
+    private Limit limit;
+
+    @BeforeEach
+    void setUp() {
+        user = new User();
+        user.setId(2L);
+        user.setEmail("user@test.com");
+
+        model = new AIModel();
+        model.setId(3L);
+        model.setName("TestModel");
+
+        limit = new Limit();
+        limit.setId(10L);
+        limit.setUser(user);
+        limit.setModel(model);
+        limit.setMaxRequestsPerWindow(4);
+        limit.setMaxTokensPerWindow(50);
+        limit.setWindowType("daily");
+        limit.setUsedRequests(0);
+        limit.setUsedTokens(0);
+        limit.setWindowStartTime(LocalDateTime.now().minusHours(1));
+        limit.setWindowEndTime(LocalDateTime.now().plusHours(23));
+
+        QuotaLeases leases = new QuotaLeases(null);
+        companyQuotas = new CompanyQuotas(restrictionRepository, rollupService, leases);
+        quotaEngine = new QuotaEngine(limitRepository, expiryWheel, companyQuotas, leases);
+    }
+
+    @Test
+    void tryAcquireSuccessUpdatesCounters() {
+        limit.setUsedRequests(1);
+        limit.setUsedTokens(10);
+        when(limitRepository.findByUserIdAndModelId(2L, 3L)).thenReturn(Optional.of(limit));
+
+        QuotaEngine.QuotaSnapshot snapshot = quotaEngine.tryAcquire(user.getId(), model, 5);
+
+        assertEquals(2, snapshot.getUsedRequests());
+        assertEquals(15, snapshot.getUsedTokens());
+        verify(limitRepository, never()).save(any(Limit.class));
+    }
+
+    @Test
+    void tryAcquireLoadsSlotOnlyOnce() {
+        when(limitRepository.findByUserIdAndModelId(2L, 3L)).thenReturn(Optional.of(limit));
+
+        quotaEngine.tryAcquire(user.getId(), model, 1);
+        quotaEngine.tryAcquire(user.getId(), model, 1);
+
+        verify(limitRepository, times(1)).findByUserIdAndModelId(2L, 3L);
+    }
+
+    @Test
+    void tryAcquireThrowsWhenRequestsExceeded() {
+        limit.setUsedRequests(4); // at max
+        when(limitRepository.findByUserIdAndModelId(2L, 3L)).thenReturn(Optional.of(limit));
+
+        LimitExceededException ex = assertThrows(LimitExceededException.class,
+                () -> quotaEngine.tryAcquire(user.getId(), model, 1));
+        assertEquals("requests", ex.getLimitType());
+    }
+
+    @Test
+    void tryAcquireThrowsWhenTokensExceeded() {
+        limit.setUsedRequests(1);
+        limit.setUsedTokens(50);
+        when(limitRepository.findByUserIdAndModelId(2L, 3L)).thenReturn(Optional.of(limit));
+
+        LimitExceededException ex = assertThrows(LimitExceededException.class,
+                () -> quotaEngine.tryAcquire(user.getId(), model, 1));
+        assertEquals("tokens", ex.getLimitType());
+    }
+
+    @Test
+    void tryAcquireResetsExpiredWindow() {
+        limit.setUsedRequests(4);
+        limit.setUsedTokens(50);
+        limit.setWindowEndTime(LocalDateTime.now().minusMinutes(1));
+        when(limitRepository.findByUserIdAndModelId(2L, 3L)).thenReturn(Optional.of(limit));
+
+        QuotaEngine.QuotaSnapshot snapshot = quotaEngine.tryAcquire(user.getId(), model, 5);
+
+        assertEquals(1, snapshot.getUsedRequests());
+        assertEquals(5, snapshot.getUsedTokens());
+        assertTrue(snapshot.getWindowEndTime().isAfter(LocalDateTime.now()));
+    }
+
+    @Test
+    void slidingLimitSpreadsQuotaInsteadOfResettingIt() {
+        limit.setWindowType("sliding_minute");
+        limit.setUsedRequests(3); // flushed usage of the current period counts against the window
+        limit.setWindowEndTime(LocalDateTime.now().plusSeconds(30));
+        when(limitRepository.findByUserIdAndModelId(2L, 3L)).thenReturn(Optional.of(limit));
+
+        quotaEngine.tryAcquire(user.getId(), model, 5);
+        LimitExceededException ex = assertThrows(LimitExceededException.class,
+                () -> quotaEngine.tryAcquire(user.getId(), model, 5));
+
+        assertEquals("requests", ex.getLimitType());
+        assertEquals("sliding_minute", ex.getWindowType());
+        assertTrue(ex.getWindowResetTime().isBefore(LocalDateTime.now().plusMinutes(2)));
+        assertEquals(4, quotaEngine.peek(user.getId(), model.getId()).orElseThrow().getUsedRequests());
+    }
+
+    @Test
+    void tokenBucketRefundsReleasedReservations() {
+        limit.setWindowType("token_bucket_hour");
+        when(limitRepository.findByUserIdAndModelId(2L, 3L)).thenReturn(Optional.of(limit));
+
+        QuotaEngine.Reservation reservation = quotaEngine.reserve(user.getId(), model, 50);
+        assertThrows(LimitExceededException.class, () -> quotaEngine.tryAcquire(user.getId(), model, 1));
+        quotaEngine.release(reservation);
+
+        assertEquals(1, quotaEngine.tryAcquire(user.getId(), model, 50).getUsedRequests());
+    }
+
+    @Test
+    void tryAcquireThrowsWhenNoLimit() {
+        when(limitRepository.findByUserIdAndModelId(2L, 3L)).thenReturn(Optional.empty());
+
+        RuntimeException ex = assertThrows(RuntimeException.class,
+                () -> quotaEngine.tryAcquire(user.getId(), model, 1));
+        assertEquals("User does not have a limit for this model", ex.getMessage());
+    }
+
+    @Test
+    void flushWritesDirtySlotsInOneBatch() {
+        when(limitRepository.findByUserIdAndModelId(2L, 3L)).thenReturn(Optional.of(limit));
+        Limit persisted = new Limit();
+        persisted.setId(limit.getId());
+        persisted.setWindowType(limit.getWindowType());
+        when(limitRepository.findAllById(anyIterable())).thenReturn(List.of(persisted));
+
+        quotaEngine.tryAcquire(user.getId(), model, 7);
+        quotaEngine.tryAcquire(user.getId(), model, 3);
+        quotaEngine.flush();
+
+        assertEquals(2, persisted.getUsedRequests());
+        assertEquals(10, persisted.getUsedTokens());
+        verify(limitRepository).saveAll(List.of(persisted));
+        verify(expiryWheel).register(limit.getWindowEndTime());
+
+        // Nothing changed since the last flush
+        quotaEngine.flush();
+        verify(limitRepository, times(1)).saveAll(anyIterable());
+    }
+
+    @Test
+    void settleReplacesEstimateWithActualUsage() {
+        when(limitRepository.findByUserIdAndModelId(2L, 3L)).thenReturn(Optional.of(limit));
+
+        QuotaEngine.Reservation reservation = quotaEngine.reserve(user.getId(), model, 10);
+        QuotaEngine.QuotaSnapshot snapshot = quotaEngine.settle(reservation, 4);
+
+        assertEquals(1, snapshot.getUsedRequests());
+        assertEquals(4, snapshot.getUsedTokens());
+        assertEquals(0, quotaEngine.pendingReservations());
+    }
+
+    @Test
+    void releaseRefundsRequestAndTokens() {
+        limit.setUsedRequests(1);
+        limit.setUsedTokens(20);
+        when(limitRepository.findByUserIdAndModelId(2L, 3L)).thenReturn(Optional.of(limit));
+
+        QuotaEngine.Reservation reservation = quotaEngine.reserve(user.getId(), model, 10);
+        quotaEngine.release(reservation);
+        // A second release must not refund twice
+        quotaEngine.release(reservation);
+
+        QuotaEngine.QuotaSnapshot snapshot = quotaEngine.peek(user.getId(), model.getId()).orElseThrow();
+        assertEquals(1, snapshot.getUsedRequests());
+        assertEquals(20, snapshot.getUsedTokens());
+    }
+
+    @Test
+    void expiredReservationsAreReleased() {
+        ReflectionTestUtils.setField(quotaEngine, "reservationTtlMs", -1L);
+        when(limitRepository.findByUserIdAndModelId(2L, 3L)).thenReturn(Optional.of(limit));
+
+        QuotaEngine.Reservation reservation = quotaEngine.reserve(user.getId(), model, 10);
+
+        assertEquals(1, quotaEngine.releaseExpiredReservations());
+        QuotaEngine.QuotaSnapshot snapshot = quotaEngine.peek(user.getId(), model.getId()).orElseThrow();
+        assertEquals(0, snapshot.getUsedRequests());
+        assertEquals(0, snapshot.getUsedTokens());
+
+        // A late settle after the reservation was reaped charges the request in full
+        snapshot = quotaEngine.settle(reservation, 6);
+        assertEquals(1, snapshot.getUsedRequests());
+        assertEquals(6, snapshot.getUsedTokens());
+    }
+
+    @Test
+    void concurrentAcquireNeverOverAdmits() throws InterruptedException {
+        limit.setMaxRequestsPerWindow(1_000);
+        limit.setMaxTokensPerWindow(1_000_000);
+        when(limitRepository.findByUserIdAndModelId(2L, 3L)).thenReturn(Optional.of(limit));
+
+        int threads = 400;
+        int attemptsPerThread = 50;
+        AtomicInteger admitted = new AtomicInteger();
+        AtomicInteger rejected = new AtomicInteger();
+        CountDownLatch start = new CountDownLatch(1);
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+
+        for (int i = 0; i < threads; i++) {
+            executor.submit(() -> {
+                start.await();
+                for (int j = 0; j < attemptsPerThread; j++) {
+                    try {
+                        quotaEngine.tryAcquire(user.getId(), model, 3);
+                        admitted.incrementAndGet();
+                    } catch (LimitExceededException e) {
+                        rejected.incrementAndGet();
+                    }
+                }
+                return null;
+            });
+        }
+        start.countDown();
+        executor.shutdown();
+        assertTrue(executor.awaitTermination(30, TimeUnit.SECONDS));
+
+        QuotaEngine.QuotaSnapshot snapshot = quotaEngine.peek(user.getId(), model.getId()).orElseThrow();
+        assertEquals(1_000, admitted.get());
+        assertEquals(threads * attemptsPerThread - 1_000, rejected.get());
+        assertEquals(1_000, snapshot.getUsedRequests());
+        assertEquals(3_000, snapshot.getUsedTokens());
+    }
+
+    @Test
+    void concurrentAcquireNeverOverspendsTokens() throws InterruptedException {
+        limit.setMaxRequestsPerWindow(1_000_000);
+        limit.setMaxTokensPerWindow(10_007);
+        when(limitRepository.findByUserIdAndModelId(2L, 3L)).thenReturn(Optional.of(limit));
+
+        int threads = 300;
+        AtomicInteger admittedTokens = new AtomicInteger();
+        CountDownLatch start = new CountDownLatch(1);
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+
+        for (int i = 0; i < threads; i++) {
+            int tokens = 1 + (i % 13);
+            executor.submit(() -> {
+                start.await();
+                for (int j = 0; j < 100; j++) {
+                    try {
+                        quotaEngine.tryAcquire(user.getId(), model, tokens);
+                        admittedTokens.addAndGet(tokens);
+                    } catch (LimitExceededException ignored) {
+                        // expected once the budget is spent
+                    }
+                }
+                return null;
+            });
+        }
+        start.countDown();
+        executor.shutdown();
+        assertTrue(executor.awaitTermination(30, TimeUnit.SECONDS));
+
+        QuotaEngine.QuotaSnapshot snapshot = quotaEngine.peek(user.getId(), model.getId()).orElseThrow();
+        assertTrue(admittedTokens.get() <= 10_007);
+        assertEquals(admittedTokens.get(), snapshot.getUsedTokens());
+    }
+
+    @Test
+    void limitChangeKeepsUsageOfTheSameWindowType() {
+        when(limitRepository.findByUserIdAndModelId(2L, 3L)).thenReturn(Optional.of(limit));
+        for (int i = 0; i < 4; i++) {
+            quotaEngine.tryAcquire(user.getId(), model, 1);
+        }
+        assertThrows(LimitExceededException.class, () -> quotaEngine.tryAcquire(user.getId(), model, 1));
+
+        limit.setMaxRequestsPerWindow(5);
+        quotaEngine.onLimitChanged(new QuotaEngine.LimitChanged(2L, 3L));
+        assertEquals(5, quotaEngine.tryAcquire(user.getId(), model, 1).getUsedRequests());
+        assertThrows(LimitExceededException.class, () -> quotaEngine.tryAcquire(user.getId(), model, 1));
+
+        // A new window type starts over from the committed row
+        limit.setWindowType("weekly");
+        quotaEngine.onLimitChanged(new QuotaEngine.LimitChanged(2L, 3L));
+        assertTrue(quotaEngine.peek(2L, 3L).isEmpty());
+        assertEquals(1, quotaEngine.tryAcquire(user.getId(), model, 1).getUsedRequests());
+    }
+}
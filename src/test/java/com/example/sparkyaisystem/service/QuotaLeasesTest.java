@@ -0,0 +1,358 @@
+package com.example.sparkyaisystem.service;
+
+import com.example.sparkyaisystem.exception.LimitExceededException;
+import com.example.sparkyaisystem.model.entity.AIModel;
+import com.example.sparkyaisystem.model.entity.Company;
+import com.example.sparkyaisystem.model.entity.Limit;
+import com.example.sparkyaisystem.model.entity.Restriction;
+import com.example.sparkyaisystem.model.entity.User;
+import com.example.sparkyaisystem.repository.LimitRepository;
+import com.example.sparkyaisystem.repository.RestrictionRepository;
+import com.example.sparkyaisystem.scheduler.LimitExpiryWheel;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.ExtendWith;
+import org.mockito.Mock;
+import org.mockito.junit.jupiter.MockitoExtension;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.ArgumentMatchers.*;
+import static org.mockito.Mockito.*;
+
+@ExtendWith(MockitoExtension.class)
+class QuotaLeasesTest {
+
+    @Mock
+    private LimitRepository limitRepository;
+
+    @Mock
+    private LimitExpiryWheel expiryWheel;
+
+    @Mock
+    private RestrictionRepository restrictionRepository;
+
+    @Mock
+    private ConsumptionRollupService rollupService;
+
+    private User user;
+    private AIModel model;
+    private Limit limit;
+
+    @BeforeEach
+    void setUp() {
+        user = new User();
+        user.setId(2L);
+        user.setEmail("user@test.com");
+
+        model = new AIModel();
+        model.setId(3L);
+        model.setName("TestModel");
+
+        limit = new Limit();
+        limit.setId(10L);
+        limit.setUser(user);
+        limit.setModel(model);
+        limit.setMaxRequestsPerWindow(4);
+        limit.setMaxTokensPerWindow(50);
+        limit.setWindowType("daily");
+        limit.setUsedRequests(0);
+        limit.setUsedTokens(0);
+        limit.setWindowStartTime(LocalDateTime.now().minusHours(1));
+        limit.setWindowEndTime(LocalDateTime.now().plusHours(23));
+    }
+
+    private Company company;
+    private Restriction restriction;
+
+    /**
+     * Puts users in a company whose restriction for the model allows the given totals,
+     * and gives every user id the same limit as {@link #limit}.
+     */
+    private void restrictCompany(int maxRequests, int maxTokens) {
+        company = new Company();
+        company.setId(7L);
+        user.setCompany(company);
+
+        restriction = new Restriction();
+        restriction.setId(70L);
+        restriction.setCompany(company);
+        restriction.setModel(model);
+        restriction.setMaxRequestsPerWindow(maxRequests);
+        restriction.setMaxTokensPerWindow(maxTokens);
+        restriction.setWindowType("daily");
+        restriction.setCreatedAt(LocalDateTime.now().minusDays(3).minusHours(2));
+        when(restrictionRepository.findByCompanyIdAndModelId(7L, 3L)).thenReturn(Optional.of(restriction));
+
+        Map<Long, Limit> limits = new ConcurrentHashMap<>();
+        lenient().when(limitRepository.findByUserIdAndModelId(anyLong(), eq(3L))).thenAnswer(inv ->
+                Optional.of(limits.computeIfAbsent(inv.getArgument(0), this::limitFor)));
+    }
+
+    private Limit limitFor(Long userId) {
+        User member = new User();
+        member.setId(userId);
+        member.setCompany(company);
+        Limit copy = new Limit();
+        copy.setId(100 + userId);
+        copy.setUser(member);
+        copy.setModel(model);
+        copy.setMaxRequestsPerWindow(limit.getMaxRequestsPerWindow());
+        copy.setMaxTokensPerWindow(limit.getMaxTokensPerWindow());
+        copy.setWindowType("daily");
+        copy.setWindowStartTime(limit.getWindowStartTime());
+        copy.setWindowEndTime(limit.getWindowEndTime());
+        return copy;
+    }
+
+    /**
+     * The limits table row of {@link #limit} as the JDBC coordinator would update it, and the
+     * restrictions table row of {@link #restriction} if given.
+     */
+    private static final class SharedLimit implements QuotaLeaseCoordinator {
+        private final Limit limit;
+        private final Restriction restriction;
+        private final AtomicInteger leases = new AtomicInteger();
+        private int usedRequests;
+        private int usedTokens;
+        private int leasedRequests;
+        private int leasedTokens;
+        private final AtomicInteger companyLeases = new AtomicInteger();
+        private int companyUsedRequests;
+        private int companyUsedTokens;
+        private int companyLeasedRequests;
+        private int companyLeasedTokens;
+
+        private SharedLimit(Limit limit) {
+            this(limit, null);
+        }
+
+        private SharedLimit(Limit limit, Restriction restriction) {
+            this.limit = limit;
+            this.restriction = restriction;
+        }
+
+        @Override
+        public synchronized Lease acquire(Long limitId, String windowType, int requests, int tokens) {
+            leases.incrementAndGet();
+            int grantedRequests = Math.max(0, Math.min(requests, limit.getMaxRequestsPerWindow() - usedRequests - leasedRequests));
+            int grantedTokens = Math.max(0, Math.min(tokens, limit.getMaxTokensPerWindow() - usedTokens - leasedTokens));
+            leasedRequests += grantedRequests;
+            leasedTokens += grantedTokens;
+            return new Lease(grantedRequests, grantedTokens, usedRequests + leasedRequests, usedTokens + leasedTokens,
+                    limit.getWindowStartTime(), limit.getWindowEndTime());
+        }
+
+        @Override
+        public synchronized void commit(List<Usage> usage) {
+            for (Usage u : usage) {
+                usedRequests += u.usedRequests();
+                usedTokens += u.usedTokens();
+                leasedRequests = Math.max(0, leasedRequests - u.leasedRequests());
+                leasedTokens = Math.max(0, leasedTokens - u.leasedTokens());
+            }
+        }
+
+        @Override
+        public synchronized Lease acquireCompany(Long restrictionId, int requests, int tokens) {
+            companyLeases.incrementAndGet();
+            int grantedRequests = Math.max(0, Math.min(requests,
+                    restriction.getMaxRequestsPerWindow() - companyUsedRequests - companyLeasedRequests));
+            int grantedTokens = Math.max(0, Math.min(tokens,
+                    restriction.getMaxTokensPerWindow() - companyUsedTokens - companyLeasedTokens));
+            companyLeasedRequests += grantedRequests;
+            companyLeasedTokens += grantedTokens;
+            return new Lease(grantedRequests, grantedTokens, companyUsedRequests + companyLeasedRequests,
+                    companyUsedTokens + companyLeasedTokens, limit.getWindowStartTime(), limit.getWindowEndTime());
+        }
+
+        @Override
+        public synchronized void commitCompany(List<Usage> usage) {
+            for (Usage u : usage) {
+                companyUsedRequests += u.usedRequests();
+                companyUsedTokens += u.usedTokens();
+                companyLeasedRequests = Math.max(0, companyLeasedRequests - u.leasedRequests());
+                companyLeasedTokens = Math.max(0, companyLeasedTokens - u.leasedTokens());
+            }
+        }
+    }
+
+    private QuotaLeases leases(SharedLimit shared, int leaseRequests, int leaseTokens, double renewBelow) {
+        QuotaLeases leases = new QuotaLeases(shared);
+        ReflectionTestUtils.setField(leases, "backend", "leased");
+        ReflectionTestUtils.setField(leases, "leaseRequests", leaseRequests);
+        ReflectionTestUtils.setField(leases, "leaseTokens", leaseTokens);
+        ReflectionTestUtils.setField(leases, "renewBelow", renewBelow);
+        return leases;
+    }
+
+    private QuotaEngine leasedNode(QuotaLeases leases) {
+        return new QuotaEngine(limitRepository, expiryWheel,
+                new CompanyQuotas(restrictionRepository, rollupService, leases), leases);
+    }
+
+    private QuotaEngine leasedNode(SharedLimit shared, int leaseRequests, int leaseTokens, double renewBelow) {
+        return leasedNode(leases(shared, leaseRequests, leaseTokens, renewBelow));
+    }
+
+    @Test
+    void leasedNodeAdmitsLocallyBetweenLeases() {
+        limit.setMaxRequestsPerWindow(100);
+        limit.setMaxTokensPerWindow(10_000);
+        when(limitRepository.findByUserIdAndModelId(2L, 3L)).thenReturn(Optional.of(limit));
+        SharedLimit shared = new SharedLimit(limit);
+        QuotaEngine node = leasedNode(shared, 10, 1_000, 0);
+
+        for (int i = 0; i < 25; i++) {
+            node.tryAcquire(user.getId(), model, 4);
+        }
+        assertEquals(3, shared.leases.get());
+        assertEquals(0, shared.usedRequests);
+
+        node.flush();
+        assertEquals(25, shared.usedRequests);
+        assertEquals(100, shared.usedTokens);
+        assertEquals(5, shared.leasedRequests);
+
+        node.evict(user.getId(), model.getId());
+        assertEquals(0, shared.leasedRequests);
+        assertEquals(0, shared.leasedTokens);
+        verify(limitRepository, never()).saveAll(any());
+    }
+
+    @Test
+    void leasedNodesTogetherStayWithinTheLimit() throws InterruptedException {
+        limit.setMaxRequestsPerWindow(1_000_000);
+        limit.setMaxTokensPerWindow(10_007);
+        lenient().when(limitRepository.findByUserIdAndModelId(2L, 3L)).thenReturn(Optional.of(limit));
+        SharedLimit shared = new SharedLimit(limit);
+        List<QuotaEngine> nodes = List.of(leasedNode(shared, 50, 400, 0.25), leasedNode(shared, 50, 400, 0.25),
+                leasedNode(shared, 50, 400, 0.25), leasedNode(shared, 50, 400, 0.25));
+
+        int threads = 200;
+        AtomicInteger admittedRequests = new AtomicInteger();
+        AtomicInteger admittedTokens = new AtomicInteger();
+        CountDownLatch start = new CountDownLatch(1);
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+
+        for (int i = 0; i < threads; i++) {
+            QuotaEngine node = nodes.get(i % nodes.size());
+            int tokens = 1 + (i % 13);
+            executor.submit(() -> {
+                start.await();
+                for (int j = 0; j < 100; j++) {
+                    try {
+                        node.tryAcquire(user.getId(), model, tokens);
+                        admittedRequests.incrementAndGet();
+                        admittedTokens.addAndGet(tokens);
+                    } catch (LimitExceededException ignored) {
+                        // expected once the budget is spent
+                    }
+                    if (j % 10 == 0) {
+                        node.flush();
+                    }
+                }
+                return null;
+            });
+        }
+        start.countDown();
+        executor.shutdown();
+        assertTrue(executor.awaitTermination(30, TimeUnit.SECONDS));
+        nodes.forEach(QuotaEngine::shutdown);
+
+        assertTrue(admittedTokens.get() <= 10_007);
+        assertEquals(admittedRequests.get(), shared.usedRequests);
+        assertEquals(admittedTokens.get(), shared.usedTokens);
+        assertEquals(0, shared.leasedRequests);
+        assertEquals(0, shared.leasedTokens);
+        // What nodes held but did not use is at most a lease and a half each
+        assertTrue(admittedTokens.get() >= 10_007 - nodes.size() * 600);
+        assertTrue(shared.leases.get() < admittedRequests.get() / 10);
+    }
+
+    @Test
+    void leasedNodesTogetherStayWithinTheCompanyRestriction() throws InterruptedException {
+        limit.setMaxRequestsPerWindow(1_000_000);
+        limit.setMaxTokensPerWindow(1_000_000);
+        restrictCompany(1_000_000, 5_003);
+        SharedLimit shared = new SharedLimit(limit, restriction);
+        List<QuotaEngine> nodes = new ArrayList<>();
+        for (int i = 0; i < 4; i++) {
+            QuotaLeases leases = leases(shared, 50, 400, 0.25);
+            ReflectionTestUtils.setField(leases, "companyLeaseTokens", 300);
+            nodes.add(leasedNode(leases));
+        }
+
+        int users = 25;
+        int threads = 200;
+        AtomicInteger admittedRequests = new AtomicInteger();
+        AtomicInteger admittedTokens = new AtomicInteger();
+        CountDownLatch start = new CountDownLatch(1);
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+
+        for (int i = 0; i < threads; i++) {
+            int thread = i;
+            QuotaEngine node = nodes.get(i % nodes.size());
+            executor.submit(() -> {
+                start.await();
+                for (int j = 0; j < 50; j++) {
+                    long userId = 1 + (thread + j) % users;
+                    int tokens = 1 + (thread * 7 + j) % 11;
+                    try {
+                        node.tryAcquire(userId, model, tokens);
+                        admittedRequests.incrementAndGet();
+                        admittedTokens.addAndGet(tokens);
+                    } catch (LimitExceededException ignored) {
+                        // expected once the restriction is spent
+                    }
+                    if (j % 10 == 0) {
+                        node.flush();
+                    }
+                }
+                return null;
+            });
+        }
+        start.countDown();
+        executor.shutdown();
+        assertTrue(executor.awaitTermination(30, TimeUnit.SECONDS));
+        nodes.forEach(QuotaEngine::shutdown);
+
+        // Each node alone would have admitted up to the whole restriction
+        assertTrue(admittedTokens.get() <= 5_003);
+        assertEquals(admittedRequests.get(), shared.companyUsedRequests);
+        assertEquals(admittedTokens.get(), shared.companyUsedTokens);
+        assertEquals(0, shared.companyLeasedRequests);
+        assertEquals(0, shared.companyLeasedTokens);
+        assertTrue(admittedTokens.get() >= 5_003 - nodes.size() * 300);
+        assertTrue(shared.companyLeases.get() < admittedRequests.get() / 10);
+    }
+
+    @Test
+    void leasedSettleAboveTheEstimateIsTheOnlyOvershoot() {
+        limit.setMaxTokensPerWindow(100);
+        when(limitRepository.findByUserIdAndModelId(2L, 3L)).thenReturn(Optional.of(limit));
+        SharedLimit shared = new SharedLimit(limit);
+        QuotaEngine node = leasedNode(shared, 2, 100, 0);
+
+        QuotaEngine.Reservation reservation = node.reserve(user.getId(), model, 10);
+        node.settle(reservation, 150);
+        node.flush();
+
+        assertEquals(150, shared.usedTokens);
+        assertEquals(0, shared.leasedTokens);
+        assertThrows(LimitExceededException.class, () -> node.tryAcquire(user.getId(), model, 1));
+        assertEquals(1, shared.usedRequests);
+    }
+}
@@ -0,0 +1,98 @@
+package com.example.sparkyaisystem.service;
+
+import org.junit.jupiter.api.Test;
+
+import java.time.Duration;
+import java.time.LocalDateTime;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class RateWindowTest {
+
+    private static final long SECOND = 1_000_000_000L;
+    private static final long MINUTE = 60 * SECOND;
+    // Arbitrary nanoTime origin
+    private static final long T0 = 123_456_789L;
+
+    @Test
+    void fixedWindowTypesHaveNoRateWindow() {
+        assertNull(RateWindow.of("daily", 10, 100, T0));
+        assertNull(RateWindow.periodOf("monthly"));
+        assertEquals(Duration.ofSeconds(1), RateWindow.periodOf("sliding_second"));
+        assertEquals(Duration.ofMinutes(1), RateWindow.periodOf("TOKEN_BUCKET_MINUTE"));
+        assertThrows(IllegalArgumentException.class, () -> RateWindow.periodOf("sliding_fortnight"));
+        assertEquals(LocalDateTime.of(2025, 1, 1, 0, 1),
+                LimitService.calculateWindowEndTime(LocalDateTime.of(2025, 1, 1, 0, 0), "token_bucket_minute"));
+    }
+
+    @Test
+    void slidingWindowNeverAdmitsMoreThanTheMaximumWithinAPeriod() {
+        RateWindow window = RateWindow.of("sliding_minute", 10, 1_000, T0);
+
+        // Admissions spread over the first half minute fill the window
+        for (int i = 0; i < 10; i++) {
+            assertNull(window.tryAcquire(T0 + i * 3 * SECOND, 1, 10));
+        }
+        RateWindow.Rejection rejection = window.tryAcquire(T0 + 40 * SECOND, 1, 10);
+        assertEquals("requests", rejection.limitType());
+        assertEquals(10, rejection.current());
+        // The first admission leaves a period after its sub-window ends
+        assertEquals(63 * SECOND - 40 * SECOND, rejection.waitNanos());
+
+        assertNotNull(window.tryAcquire(T0 + 62 * SECOND, 1, 10));
+        assertNull(window.tryAcquire(T0 + 63 * SECOND, 1, 10));
+        assertNotNull(window.tryAcquire(T0 + 63 * SECOND, 1, 10));
+    }
+
+    @Test
+    void slidingWindowRejectsTokensAndTakesRefunds() {
+        RateWindow window = RateWindow.of("sliding_second", 100, 50, T0);
+
+        assertNull(window.tryAcquire(T0, 1, 40));
+        RateWindow.Rejection rejection = window.tryAcquire(T0, 1, 20);
+        assertEquals("tokens", rejection.limitType());
+        assertEquals(40, rejection.current());
+
+        window.adjust(T0, -1, -30);
+        assertNull(window.tryAcquire(T0, 1, 40));
+        // Usage older than a period is gone
+        assertNull(window.tryAcquire(T0 + 2 * SECOND, 1, 50));
+    }
+
+    @Test
+    void tokenBucketAllowsBurstsAndRefillsAtTheRate() {
+        RateWindow bucket = RateWindow.of("token_bucket_minute", 60, 6_000, T0);
+
+        for (int i = 0; i < 60; i++) {
+            assertNull(bucket.tryAcquire(T0, 1, 10));
+        }
+        RateWindow.Rejection rejection = bucket.tryAcquire(T0, 1, 10);
+        assertEquals("requests", rejection.limitType());
+        assertEquals(SECOND, rejection.waitNanos());
+
+        // One request per second comes back
+        assertNull(bucket.tryAcquire(T0 + SECOND, 1, 10));
+        assertNotNull(bucket.tryAcquire(T0 + SECOND, 1, 10));
+        assertNull(bucket.tryAcquire(T0 + 4 * SECOND, 3, 10));
+        // Refills never exceed the burst
+        for (int i = 0; i < 60; i++) {
+            assertNull(bucket.tryAcquire(T0 + 10 * MINUTE, 1, 1));
+        }
+        assertNotNull(bucket.tryAcquire(T0 + 10 * MINUTE, 1, 1));
+    }
+
+    @Test
+    void tokenBucketCorrectionsCanRunIntoDebt() {
+        RateWindow bucket = RateWindow.of("token_bucket_second", 10, 100, T0);
+
+        assertNull(bucket.tryAcquire(T0, 1, 50));
+        // Settled at 250 tokens instead of the estimated 50
+        bucket.adjust(T0, 0, 200);
+
+        RateWindow.Rejection rejection = bucket.tryAcquire(T0, 1, 1);
+        assertEquals("tokens", rejection.limitType());
+        assertEquals(250, rejection.current());
+        assertNotNull(bucket.tryAcquire(T0 + SECOND, 1, 1));
+        assertNull(bucket.tryAcquire(T0 + 2 * SECOND, 1, 1));
+    }
+}
@@ -0,0 +1,285 @@
+package com.example.sparkyaisystem.service;
+
+import com.azure.ai.inference.ChatCompletionsAsyncClient;
+import com.azure.ai.inference.models.ChatCompletions;
+import com.azure.ai.inference.models.ChatCompletionsOptions;
+import com.azure.core.util.BinaryData;
+import com.example.sparkyaisystem.exception.LimitExceededException;
+import com.example.sparkyaisystem.exception.UpstreamOverloadedException;
+import com.example.sparkyaisystem.model.dto.request.AIResponse;
+import com.example.sparkyaisystem.model.dto.request.ChatRequest;
+import com.example.sparkyaisystem.model.dto.request.CompletionRequest;
+import com.example.sparkyaisystem.model.entity.AIModel;
+import com.example.sparkyaisystem.model.entity.Request;
+import com.example.sparkyaisystem.repository.UserRepository;
+import com.example.sparkyaisystem.security.AuthenticatedUser;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.ExtendWith;
+import org.mockito.Mock;
+import org.mockito.junit.jupiter.MockitoExtension;
+import org.springframework.core.task.SimpleAsyncTaskExecutor;
+import org.springframework.test.util.ReflectionTestUtils;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+import reactor.core.scheduler.Scheduler;
+import reactor.core.scheduler.Schedulers;
+
+import java.time.Duration;
+import java.time.LocalDateTime;
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.ArgumentMatchers.*;
+import static org.mockito.Mockito.*;
+
+@ExtendWith(MockitoExtension.class)
+class ReactiveRequestServiceTest {
+
+    @Mock private RequestAuditWriter requestAuditWriter;
+    @Mock private ModelCatalog modelCatalog;
+    @Mock private UserRepository userRepository;
+    @Mock private LimitService limitService;
+    @Mock private AIModelService aiModelService;
+    @Mock private GitHubModelsService gitHubModelsService;
+
+    private Scheduler jdbcScheduler;
+    private ReactiveRequestService reactiveRequestService;
+
+    private AuthenticatedUser user;
+    private AIModel model;
+    private QuotaEngine.QuotaSnapshot snapshot;
+
+    @BeforeEach
+    void setUp() {
+        jdbcScheduler = Schedulers.newBoundedElastic(4, 100_000, "test-jdbc");
+        reactiveRequestService = new ReactiveRequestService(modelCatalog, userRepository,
+                limitService, aiModelService, gitHubModelsService, requestAuditWriter,
+                new ResponseCache(new SimpleMeterRegistry(), true, 100, 3600, 0.9), jdbcScheduler);
+
+        user = new AuthenticatedUser(1L, "user@test.com", 7L, true, List.of("ROLE_USER"));
+
+        model = new AIModel();
+        model.setId(2L);
+        model.setName("gpt-4o");
+        model.setProvider("OpenAI");
+
+        snapshot = new QuotaEngine.QuotaSnapshot(1, 10, 4, 100, "daily",
+                LocalDateTime.now().minusMinutes(10), LocalDateTime.now().plusHours(14));
+    }
+
+    @AfterEach
+    void tearDown() {
+        jdbcScheduler.dispose();
+    }
+
+    private void stubAdmission(String prompt) {
+        when(modelCatalog.findById(model.getId())).thenReturn(Optional.of(model));
+        when(aiModelService.isModelAvailableForUser(user, model)).thenReturn(true);
+        when(gitHubModelsService.estimateTokenCount(model, prompt)).thenReturn(4);
+    }
+
+    private QuotaEngine.Reservation reservationOf(int tokens) {
+        return new QuotaEngine.Reservation("res-1", user.id(), model.getId(), tokens, snapshot,
+                LocalDateTime.now().plusMinutes(5));
+    }
+
+    private ChatRequest chatRequest() {
+        ChatRequest chatRequest = new ChatRequest();
+        chatRequest.setModelId(model.getId());
+        chatRequest.setMessage("Hello World");
+        chatRequest.setSystemPrompt("ctx");
+        return chatRequest;
+    }
+
+    @Test
+    void processChatRequestSettlesAndPersists() {
+        ChatRequest chatRequest = chatRequest();
+        stubAdmission(chatRequest.getMessage());
+        QuotaEngine.Reservation reservation = reservationOf(4);
+        when(limitService.reserve(user, model, 4)).thenReturn(reservation);
+        when(limitService.settle(reservation, 9)).thenReturn(snapshot);
+        when(gitHubModelsService.processChatRequestAsync(model, "Hello World", "ctx"))
+                .thenReturn(Mono.just(new GitHubModelsService.CompletionResult("response text", 9)));
+        when(requestAuditWriter.submit(any(Request.class))).thenAnswer(inv -> {
+            Request request = inv.getArgument(0);
+            request.setId(5L);
+            return request;
+        });
+
+        AIResponse response = reactiveRequestService.processChatRequest(user, chatRequest).block();
+
+        assertNotNull(response);
+        assertTrue(response.isSuccessful());
+        assertEquals(5L, response.getRequestId());
+        assertEquals("response text", response.getResponse());
+        assertEquals(9, response.getTokensConsumed());
+        assertEquals(4, response.getLimitStatus().getUsedTokens());
+        verify(limitService, never()).release(any());
+        verify(userRepository, never()).findById(any());
+    }
+
+    @Test
+    void processCompletionRequestFallsBackToEstimateWithoutUsage() {
+        CompletionRequest completionRequest = new CompletionRequest();
+        completionRequest.setModelId(model.getId());
+        completionRequest.setPrompt("Once upon a time");
+        completionRequest.setMaxTokens(50);
+        stubAdmission(completionRequest.getPrompt());
+        QuotaEngine.Reservation reservation = reservationOf(4);
+        when(limitService.reserve(user, model, 4)).thenReturn(reservation);
+        when(limitService.settle(reservation, 4)).thenReturn(snapshot);
+        when(gitHubModelsService.processCompletionRequestAsync(model, "Once upon a time", 50, null))
+                .thenReturn(Mono.just(new GitHubModelsService.CompletionResult("there was", null)));
+        when(requestAuditWriter.submit(any(Request.class))).thenAnswer(inv -> inv.getArgument(0));
+
+        AIResponse response = reactiveRequestService.processCompletionRequest(user, completionRequest).block();
+
+        assertNotNull(response);
+        assertTrue(response.isSuccessful());
+        assertEquals(4, response.getTokensConsumed());
+    }
+
+    @Test
+    void temperatureZeroCompletionIsServedFromCache() {
+        CompletionRequest completionRequest = new CompletionRequest();
+        completionRequest.setModelId(model.getId());
+        completionRequest.setPrompt("Translate: hola");
+        completionRequest.setTemperature(0f);
+        stubAdmission(completionRequest.getPrompt());
+        when(limitService.reserve(user, model, 4)).thenAnswer(inv -> reservationOf(4));
+        when(limitService.settle(any(), anyInt())).thenReturn(snapshot);
+        when(gitHubModelsService.processCompletionRequestAsync(model, "Translate: hola", null, 0f))
+                .thenReturn(Mono.just(new GitHubModelsService.CompletionResult("hello", 20)));
+        when(requestAuditWriter.submit(any(Request.class))).thenAnswer(inv -> inv.getArgument(0));
+
+        AIResponse first = reactiveRequestService.processCompletionRequest(user, completionRequest).block();
+        AIResponse second = reactiveRequestService.processCompletionRequest(user, completionRequest).block();
+
+        assertFalse(first.isCached());
+        assertTrue(second.isCached());
+        assertEquals("hello", second.getResponse());
+        assertEquals(2, second.getTokensConsumed());
+        verify(gitHubModelsService, times(1)).processCompletionRequestAsync(any(), any(), any(), any());
+    }
+
+    @Test
+    void upstreamFailureReleasesReservation() {
+        ChatRequest chatRequest = chatRequest();
+        stubAdmission(chatRequest.getMessage());
+        QuotaEngine.Reservation reservation = reservationOf(4);
+        when(limitService.reserve(user, model, 4)).thenReturn(reservation);
+        when(gitHubModelsService.processChatRequestAsync(model, "Hello World", "ctx"))
+                .thenReturn(Mono.error(new RuntimeException("upstream unavailable")));
+        when(requestAuditWriter.submit(any(Request.class))).thenAnswer(inv -> inv.getArgument(0));
+
+        AIResponse response = reactiveRequestService.processChatRequest(user, chatRequest).block();
+
+        assertNotNull(response);
+        assertFalse(response.isSuccessful());
+        assertEquals("upstream unavailable", response.getErrorMessage());
+        verify(limitService).release(reservation);
+        verify(limitService, never()).settle(any(), anyInt());
+    }
+
+    @Test
+    void shedCallIsRefundedAndPropagated() {
+        ChatRequest chatRequest = chatRequest();
+        stubAdmission(chatRequest.getMessage());
+        QuotaEngine.Reservation reservation = reservationOf(4);
+        when(limitService.reserve(user, model, 4)).thenReturn(reservation);
+        when(gitHubModelsService.processChatRequestAsync(model, "Hello World", "ctx"))
+                .thenReturn(Mono.error(new UpstreamOverloadedException("openai/gpt-4o", 3)));
+
+        UpstreamOverloadedException ex = assertThrows(UpstreamOverloadedException.class,
+                () -> reactiveRequestService.processChatRequest(user, chatRequest).block());
+
+        assertEquals(3, ex.getRetryAfterSeconds());
+        verify(limitService, times(1)).release(reservation);
+        verify(limitService, never()).settle(any(), anyInt());
+        verify(requestAuditWriter, never()).submit(any());
+    }
+
+    @Test
+    void limitExceededIsPropagated() {
+        ChatRequest chatRequest = chatRequest();
+        stubAdmission(chatRequest.getMessage());
+        when(limitService.reserve(user, model, 4)).thenThrow(
+                new LimitExceededException("requests", 10, 10, "daily", LocalDateTime.now().plusHours(1)));
+
+        Mono<AIResponse> response = reactiveRequestService.processChatRequest(user, chatRequest);
+
+        assertThrows(LimitExceededException.class, response::block);
+        verify(gitHubModelsService, never()).processChatRequestAsync(any(), any(), any());
+        verify(requestAuditWriter, never()).submit(any());
+    }
+
+    @Test
+    void unavailableModelIsRejected() {
+        when(modelCatalog.findById(model.getId())).thenReturn(Optional.of(model));
+        when(aiModelService.isModelAvailableForUser(user, model)).thenReturn(false);
+
+        RuntimeException ex = assertThrows(RuntimeException.class,
+                () -> reactiveRequestService.processChatRequest(user, chatRequest()).block());
+        assertEquals("Model is not available for this user", ex.getMessage());
+    }
+
+    @Test
+    void holdsThousandsOfSlowCallsWithFewThreads() {
+        int clients = 10_000;
+        ChatRequest chatRequest = chatRequest();
+        when(modelCatalog.findById(model.getId())).thenReturn(Optional.of(model));
+        when(aiModelService.isModelAvailableForUser(user, model)).thenReturn(true);
+        when(limitService.reserve(eq(user), eq(model), anyInt())).thenAnswer(inv -> reservationOf(inv.getArgument(2)));
+        when(limitService.settle(any(), anyInt())).thenReturn(snapshot);
+        when(requestAuditWriter.submit(any(Request.class))).thenAnswer(inv -> inv.getArgument(0));
+
+        // The real upstream path, bulkhead included, with the default limits; only the wire is stubbed
+        AtomicInteger inFlight = new AtomicInteger();
+        AtomicInteger peakInFlight = new AtomicInteger();
+        ChatCompletionsAsyncClient asyncClient = mock(ChatCompletionsAsyncClient.class);
+        when(asyncClient.complete(any(ChatCompletionsOptions.class))).thenAnswer(inv ->
+                Mono.delay(Duration.ofSeconds(2))
+                        .doOnSubscribe(s -> peakInFlight.accumulateAndGet(inFlight.incrementAndGet(), Math::max))
+                        .doOnTerminate(inFlight::decrementAndGet)
+                        .map(tick -> completions("ok", 12)));
+        UpstreamConcurrencyLimiter limiter = new UpstreamConcurrencyLimiter(new SimpleMeterRegistry(),
+                10, 2, 100, 10_000, 50, 2000, 2.0, 0.9);
+        GitHubModelsService upstream = new GitHubModelsService();
+        ReflectionTestUtils.setField(upstream, "chatCompletionsAsyncClient", asyncClient);
+        ReflectionTestUtils.setField(upstream, "concurrencyLimiter", limiter);
+        ReflectionTestUtils.setField(upstream, "resilience", new UpstreamResilience(new SimpleMeterRegistry(),
+                new SimpleAsyncTaskExecutor("test-upstream-"), 60000, 2, 200, 2000, 20, 10, 0.5, 30000, false, 0.95));
+        ReflectionTestUtils.setField(upstream, "openaiModel", "openai/gpt-4o");
+        ReactiveRequestService service = new ReactiveRequestService(modelCatalog, userRepository,
+                limitService, aiModelService, upstream, requestAuditWriter,
+                new ResponseCache(new SimpleMeterRegistry(), true, 100, 3600, 0.9), jdbcScheduler);
+        int threadsBefore = Thread.activeCount();
+
+        List<AIResponse> responses = Flux.range(0, clients)
+                .flatMap(i -> service.processChatRequest(user, chatRequest), clients)
+                .collectList()
+                .block(Duration.ofSeconds(60));
+
+        assertNotNull(responses);
+        assertEquals(clients, responses.size());
+        assertTrue(responses.stream().allMatch(AIResponse::isSuccessful));
+        // Far more slow calls were waiting at the same time than a servlet thread pool could hold
+        assertTrue(peakInFlight.get() > 1_000, "peak in-flight: " + peakInFlight.get());
+        assertTrue(Thread.activeCount() - threadsBefore < 50);
+        assertEquals(0, limiter.asyncInFlight("openai/gpt-4o"));
+        verify(limitService, never()).release(any());
+    }
+
+    private static ChatCompletions completions(String content, int totalTokens) {
+        return BinaryData.fromString("""
+                {"id":"test","created":1700000000,"model":"gpt-4o",
+                 "choices":[{"index":0,"finish_reason":"stop","message":{"role":"assistant","content":"%s"}}],
+                 "usage":{"prompt_tokens":%d,"completion_tokens":3,"total_tokens":%d}}
+                """.formatted(content, totalTokens - 3, totalTokens)).toObject(ChatCompletions.class);
+    }
+}
@@ -0,0 +1,253 @@
+package com.example.sparkyaisystem.service;
+
+import com.example.sparkyaisystem.model.entity.AIModel;
+import com.example.sparkyaisystem.model.entity.Request;
+import com.example.sparkyaisystem.model.entity.User;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.ExtendWith;
+import org.mockito.Mock;
+import org.mockito.junit.jupiter.MockitoExtension;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.core.ParameterizedPreparedStatementSetter;
+import org.springframework.transaction.support.TransactionOperations;
+
+import java.time.LocalDateTime;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.ArgumentMatchers.*;
+import static org.mockito.Mockito.*;
+
+@ExtendWith(MockitoExtension.class)
+class RequestAuditWriterTest {
+
+    @Mock
+    private JdbcTemplate jdbcTemplate;
+
+    @Mock
+    private ContentStore contentStore;
+
+    @Mock
+    private ConsumptionRollupService rollupService;
+
+    private SimpleMeterRegistry meterRegistry;
+    private RequestAuditWriter writer;
+
+    private User user;
+    private AIModel model;
+
+    @BeforeEach
+    void setUp() {
+        meterRegistry = new SimpleMeterRegistry();
+
+        user = new User();
+        user.setId(1L);
+        model = new AIModel();
+        model.setId(2L);
+
+        lenient().when(jdbcTemplate.queryForObject(RequestAuditWriter.SEQUENCE_SQL, Long.class))
+                .thenReturn(50L, 100L, 150L);
+        lenient().when(contentStore.put(anyString())).thenAnswer(inv -> {
+            String content = inv.getArgument(0);
+            return new ContentStore.Ref("ref-" + content, content.length());
+        });
+    }
+
+    @AfterEach
+    void tearDown() {
+        if (writer != null) {
+            writer.shutdown();
+        }
+    }
+
+    private Request newRequest() {
+        Request request = new Request();
+        request.setUser(user);
+        request.setModel(model);
+        request.setQuery("hello");
+        request.setSuccessful(true);
+        request.setTokensConsumed(3);
+        request.setRequestTime(LocalDateTime.now());
+        request.setResponseTime(LocalDateTime.now());
+        return request;
+    }
+
+    @SuppressWarnings("unchecked")
+    private void verifyBatchWritten(int size, long timeoutMs) {
+        verify(jdbcTemplate, timeout(timeoutMs)).batchUpdate(eq(RequestAuditWriter.INSERT_SQL),
+                argThat((Collection<Request> batch) -> batch.size() == size), eq(size),
+                any(ParameterizedPreparedStatementSetter.class));
+    }
+
+    @Test
+    void submitAssignsIdsFromPooledSequenceBlocks() {
+        writer = new RequestAuditWriter(jdbcTemplate, contentStore, rollupService, TransactionOperations.withoutTransaction(), meterRegistry, 1_000, 50, 10_000, 10);
+
+        Set<Long> ids = new HashSet<>();
+        for (int i = 0; i < 120; i++) {
+            ids.add(writer.submit(newRequest()).getId());
+        }
+
+        assertEquals(120, ids.size());
+        assertTrue(ids.contains(1L));
+        assertTrue(ids.contains(120L));
+        // One sequence round trip per 50 ids
+        verify(jdbcTemplate, times(3)).queryForObject(RequestAuditWriter.SEQUENCE_SQL, Long.class);
+        assertEquals(120, writer.pending());
+    }
+
+    @Test
+    void fullBatchIsWrittenWithoutWaitingForTheInterval() {
+        writer = new RequestAuditWriter(jdbcTemplate, contentStore, rollupService, TransactionOperations.withoutTransaction(), meterRegistry, 1_000, 10, 10_000, 10);
+        writer.start();
+
+        for (int i = 0; i < 10; i++) {
+            writer.submit(newRequest());
+        }
+
+        verifyBatchWritten(10, 2_000);
+    }
+
+    @Test
+    void partialBatchIsWrittenAfterTheInterval() {
+        writer = new RequestAuditWriter(jdbcTemplate, contentStore, rollupService, TransactionOperations.withoutTransaction(), meterRegistry, 1_000, 50, 100, 10);
+        writer.start();
+
+        for (int i = 0; i < 3; i++) {
+            writer.submit(newRequest());
+        }
+
+        verifyBatchWritten(3, 2_000);
+        assertEquals(0, writer.pending());
+    }
+
+    @Test
+    void saturatedQueueInsertsOnCallerThread() {
+        // Writer not started, so the queue fills up
+        writer = new RequestAuditWriter(jdbcTemplate, contentStore, rollupService, TransactionOperations.withoutTransaction(), meterRegistry, 2, 50, 10_000, 10);
+
+        writer.submit(newRequest());
+        writer.submit(newRequest());
+        writer.submit(newRequest());
+
+        verifyBatchWritten(1, 0);
+        assertEquals(2, writer.pending());
+        assertEquals(1.0, meterRegistry.counter("audit.queue.blocked").count());
+        assertEquals(1.0, meterRegistry.counter("audit.queue.caller_inserts").count());
+        assertEquals(2.0, meterRegistry.get("audit.queue.size").gauge().value());
+    }
+
+    @Test
+    void shutdownDrainsQueuedRows() {
+        writer = new RequestAuditWriter(jdbcTemplate, contentStore, rollupService, TransactionOperations.withoutTransaction(), meterRegistry, 1_000, 50, 10_000, 10);
+        writer.start();
+
+        for (int i = 0; i < 5; i++) {
+            writer.submit(newRequest());
+        }
+        writer.shutdown();
+
+        verifyBatchWritten(5, 0);
+        verify(rollupService).record(argThat((List<Request> batch) -> batch.size() == 5));
+        assertEquals(0, writer.pending());
+        assertEquals(5.0, meterRegistry.counter("audit.rows.written").count());
+    }
+
+    @Test
+    void failedBatchIsCounted() {
+        when(jdbcTemplate.batchUpdate(anyString(), anyCollection(), anyInt(), any(ParameterizedPreparedStatementSetter.class)))
+                .thenThrow(new RuntimeException("db down"));
+        writer = new RequestAuditWriter(jdbcTemplate, contentStore, rollupService, TransactionOperations.withoutTransaction(), meterRegistry, 1_000, 2, 10_000, 10);
+        writer.start();
+
+        writer.submit(newRequest());
+        writer.submit(newRequest());
+        writer.shutdown();
+
+        assertEquals(2.0, meterRegistry.counter("audit.rows.failed").count());
+        assertEquals(0.0, meterRegistry.counter("audit.rows.written").count());
+        verify(rollupService, never()).record(anyList());
+    }
+
+    @Test
+    @SuppressWarnings("unchecked")
+    void failedBatchIsRetriedRowByRowAndOnlyTheBadRowIsDropped() {
+        Request bad = newRequest();
+        bad.setTokensConsumed(-1);
+        when(jdbcTemplate.batchUpdate(anyString(), anyCollection(), anyInt(), any(ParameterizedPreparedStatementSetter.class)))
+                .thenAnswer(inv -> {
+                    if (inv.<Collection<Request>>getArgument(1).contains(bad)) {
+                        throw new RuntimeException("check constraint violated");
+                    }
+                    return new int[0][];
+                });
+        writer = new RequestAuditWriter(jdbcTemplate, contentStore, rollupService, TransactionOperations.withoutTransaction(), meterRegistry, 1_000, 3, 10_000, 10);
+        writer.start();
+
+        writer.submit(newRequest());
+        writer.submit(bad);
+        writer.submit(newRequest());
+        writer.shutdown();
+
+        verifyBatchWritten(3, 0);
+        verify(jdbcTemplate, times(3)).batchUpdate(eq(RequestAuditWriter.INSERT_SQL),
+                argThat((Collection<Request> batch) -> batch.size() == 1), eq(1),
+                any(ParameterizedPreparedStatementSetter.class));
+        // Only the rows that went in are added to the rollups
+        verify(rollupService, times(2)).record(argThat((List<Request> batch) -> batch.size() == 1 && !batch.contains(bad)));
+        verify(rollupService, never()).record(argThat((List<Request> batch) -> batch.contains(bad)));
+        assertEquals(2.0, meterRegistry.counter("audit.rows.written").count());
+        assertEquals(1.0, meterRegistry.counter("audit.rows.failed").count());
+    }
+
+    @Test
+    void failedRollupFailsTheBatch() {
+        doThrow(new RuntimeException("deadlock")).when(rollupService).record(anyList());
+        writer = new RequestAuditWriter(jdbcTemplate, contentStore, rollupService, TransactionOperations.withoutTransaction(), meterRegistry, 1_000, 2, 10_000, 10);
+        writer.start();
+
+        writer.submit(newRequest());
+        writer.submit(newRequest());
+        writer.shutdown();
+
+        verifyBatchWritten(2, 0);
+        assertEquals(2.0, meterRegistry.counter("audit.rows.failed").count());
+        assertEquals(0.0, meterRegistry.counter("audit.rows.written").count());
+    }
+
+    @Test
+    void bodiesAreStoredAndRowsKeepReferences() {
+        writer = new RequestAuditWriter(jdbcTemplate, contentStore, rollupService, TransactionOperations.withoutTransaction(), meterRegistry, 1_000, 50, 10_000, 10);
+        writer.start();
+        Request request = newRequest();
+        request.setResponse("hi there");
+
+        writer.submit(request);
+        writer.shutdown();
+
+        verifyBatchWritten(1, 0);
+        assertEquals("ref-hello", request.getQueryRef());
+        assertEquals(5, request.getQuerySize());
+        assertEquals("ref-hi there", request.getResponseRef());
+        assertEquals(8, request.getResponseSize());
+    }
+
+    @Test
+    void failedContentStoreFailsTheBatch() {
+        when(contentStore.put(anyString())).thenThrow(new RuntimeException("disk full"));
+        writer = new RequestAuditWriter(jdbcTemplate, contentStore, rollupService, TransactionOperations.withoutTransaction(), meterRegistry, 1_000, 50, 10_000, 10);
+        writer.start();
+
+        writer.submit(newRequest());
+        writer.shutdown();
+
+        verify(jdbcTemplate, never()).batchUpdate(anyString(), anyCollection(), anyInt(), any(ParameterizedPreparedStatementSetter.class));
+        assertEquals(1.0, meterRegistry.counter("audit.rows.failed").count());
+    }
+}
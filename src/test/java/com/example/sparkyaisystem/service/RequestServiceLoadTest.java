@@ -0,0 +1,240 @@
+package com.example.sparkyaisystem.service;
+
+import com.example.sparkyaisystem.controller.AIController;
+import com.example.sparkyaisystem.model.entity.AIModel;
+import com.example.sparkyaisystem.model.entity.Request;
+import com.example.sparkyaisystem.repository.LimitRepository;
+import com.example.sparkyaisystem.repository.RequestRepository;
+import com.example.sparkyaisystem.repository.UserRepository;
+import com.example.sparkyaisystem.security.AuthenticatedUser;
+import com.example.sparkyaisystem.security.JwtPrincipal;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Nested;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.autoconfigure.ImportAutoConfiguration;
+import org.springframework.boot.autoconfigure.http.HttpMessageConvertersAutoConfiguration;
+import org.springframework.boot.autoconfigure.jackson.JacksonAutoConfiguration;
+import org.springframework.boot.autoconfigure.web.embedded.EmbeddedWebServerFactoryCustomizerAutoConfiguration;
+import org.springframework.boot.autoconfigure.web.servlet.DispatcherServletAutoConfiguration;
+import org.springframework.boot.autoconfigure.web.servlet.ServletWebServerFactoryAutoConfiguration;
+import org.springframework.boot.autoconfigure.web.servlet.WebMvcAutoConfiguration;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.boot.test.web.server.LocalServerPort;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.context.annotation.Import;
+import org.springframework.core.MethodParameter;
+import org.springframework.web.bind.support.WebDataBinderFactory;
+import org.springframework.web.context.request.NativeWebRequest;
+import org.springframework.web.method.support.HandlerMethodArgumentResolver;
+import org.springframework.web.method.support.ModelAndViewContainer;
+import org.springframework.web.servlet.config.annotation.WebMvcConfigurer;
+
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.time.Instant;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.junit.jupiter.api.Assumptions.assumeTrue;
+import static org.mockito.ArgumentMatchers.*;
+import static org.mockito.Mockito.*;
+
+/**
+ * Load test for the blocking inference path with a slow, stubbed upstream, driven through the
+ * embedded Tomcat. It checks how many AI calls can be in flight at once with the Tomcat platform
+ * pool and with spring.threads.virtual.enabled=true, which needs JDK 21+.
+ */
+class RequestServiceLoadTest {
+
+    private static final int CLIENTS = 400;
+    private static final int TOMCAT_MAX_THREADS = 100;
+    private static final long UPSTREAM_LATENCY_MS = 300;
+
+    @Nested
+    @SpringBootTest(classes = LoadTestApplication.class, webEnvironment = SpringBootTest.WebEnvironment.RANDOM_PORT,
+            properties = {"spring.threads.virtual.enabled=false",
+                    "server.tomcat.threads.max=" + TOMCAT_MAX_THREADS})
+    class PlatformThreads {
+
+        @LocalServerPort
+        private int port;
+
+        @Autowired
+        private InFlight upstream;
+
+        @Test
+        void tomcatPoolCapsInFlightRequests() throws Exception {
+            runClients(port);
+
+            assertEquals(TOMCAT_MAX_THREADS, upstream.peak.get());
+        }
+    }
+
+    @Nested
+    @SpringBootTest(classes = LoadTestApplication.class, webEnvironment = SpringBootTest.WebEnvironment.RANDOM_PORT,
+            properties = {"spring.threads.virtual.enabled=true",
+                    "server.tomcat.threads.max=" + TOMCAT_MAX_THREADS})
+    class VirtualThreads {
+
+        @LocalServerPort
+        private int port;
+
+        @Autowired
+        private InFlight upstream;
+
+        @BeforeEach
+        void requireVirtualThreads() {
+            assumeTrue(Runtime.version().feature() >= 21, "Virtual threads require JDK 21+");
+        }
+
+        @Test
+        void everyRequestIsInFlightAtOnce() throws Exception {
+            runClients(port);
+
+            assertTrue(upstream.peak.get() > TOMCAT_MAX_THREADS);
+        }
+    }
+
+    private static void runClients(int port) throws Exception {
+        HttpClient client = HttpClient.newBuilder().version(HttpClient.Version.HTTP_1_1).build();
+        HttpRequest request = HttpRequest.newBuilder(URI.create("http://localhost:" + port + "/api/ai/chat"))
+                .header("Content-Type", "application/json")
+                .POST(HttpRequest.BodyPublishers.ofString(
+                        "{\"modelId\":2,\"message\":\"Summarize the quarterly report in three bullet points.\"}"))
+                .build();
+
+        List<CompletableFuture<HttpResponse<String>>> responses = new ArrayList<>();
+        for (int i = 0; i < CLIENTS; i++) {
+            responses.add(client.sendAsync(request, HttpResponse.BodyHandlers.ofString()));
+        }
+        for (CompletableFuture<HttpResponse<String>> response : responses) {
+            assertEquals(200, response.get().statusCode());
+        }
+    }
+
+    /**
+     * The real {@link AIController} and {@link RequestService} on the embedded Tomcat, with the
+     * upstream, quota and persistence stubbed and no security filter chain.
+     */
+    @Configuration(proxyBeanMethods = false)
+    @ImportAutoConfiguration({ServletWebServerFactoryAutoConfiguration.class,
+            EmbeddedWebServerFactoryCustomizerAutoConfiguration.class, DispatcherServletAutoConfiguration.class,
+            WebMvcAutoConfiguration.class, HttpMessageConvertersAutoConfiguration.class,
+            JacksonAutoConfiguration.class})
+    @Import(AIController.class)
+    static class LoadTestApplication implements WebMvcConfigurer {
+
+        private static final AuthenticatedUser USER =
+                new AuthenticatedUser(1L, "load@test.com", 1L, true, List.of("ROLE_USER"));
+
+        @Bean
+        InFlight upstreamInFlight() {
+            return new InFlight();
+        }
+
+        @Bean
+        AIModelService aiModelService() {
+            AIModelService aiModelService = mock(AIModelService.class);
+            when(aiModelService.isModelAvailableForUser(any(), any())).thenReturn(true);
+            return aiModelService;
+        }
+
+        @Bean
+        AuthenticatedUserService authenticatedUserService() {
+            AuthenticatedUserService authenticatedUserService = mock(AuthenticatedUserService.class);
+            when(authenticatedUserService.resolve(any())).thenReturn(USER);
+            return authenticatedUserService;
+        }
+
+        @Bean
+        RequestService requestService(InFlight upstreamInFlight, AIModelService aiModelService) {
+            AIModel model = new AIModel();
+            model.setId(2L);
+            model.setName("gpt-4o");
+            model.setProvider("OpenAI");
+            model.setActive(true);
+            ModelCatalog modelCatalog = mock(ModelCatalog.class);
+            when(modelCatalog.findById(model.getId())).thenReturn(Optional.of(model));
+
+            QuotaEngine.QuotaSnapshot snapshot = new QuotaEngine.QuotaSnapshot(1, Integer.MAX_VALUE, 1,
+                    Integer.MAX_VALUE, "daily", LocalDateTime.now(), LocalDateTime.now().plusDays(1));
+            LimitService limitService = mock(LimitService.class);
+            when(limitService.reserve(any(), any(), anyInt())).thenAnswer(inv -> new QuotaEngine.Reservation(
+                    "res", 1L, 2L, inv.getArgument(2), snapshot, LocalDateTime.now().plusMinutes(5)));
+            when(limitService.settle(any(), anyInt())).thenReturn(snapshot);
+
+            RequestAuditWriter requestAuditWriter = mock(RequestAuditWriter.class);
+            when(requestAuditWriter.submit(any(Request.class))).thenAnswer(inv -> inv.getArgument(0));
+
+            return new RequestService(mock(RequestRepository.class), mock(ContentStore.class), modelCatalog,
+                    mock(LimitRepository.class), mock(UserRepository.class), limitService, aiModelService,
+                    new SlowUpstream(upstreamInFlight), requestAuditWriter, new ResponseCache(new SimpleMeterRegistry(), true, 100, 3600, 0.9));
+        }
+
+        @Override
+        public void addArgumentResolvers(List<HandlerMethodArgumentResolver> resolvers) {
+            // Stands in for the JWT filter: every request is made by the same user
+            resolvers.add(new HandlerMethodArgumentResolver() {
+                @Override
+                public boolean supportsParameter(MethodParameter parameter) {
+                    return parameter.getParameterType() == JwtPrincipal.class;
+                }
+
+                @Override
+                public Object resolveArgument(MethodParameter parameter, ModelAndViewContainer mavContainer,
+                                              NativeWebRequest webRequest, WebDataBinderFactory binderFactory) {
+                    return new JwtPrincipal(USER.email(), USER.id(), USER.companyId(), USER.roles(),
+                            Instant.now().plusSeconds(3600));
+                }
+            });
+        }
+    }
+
+    /**
+     * Upstream calls in flight and the most seen at once.
+     */
+    static class InFlight {
+        private final AtomicInteger current = new AtomicInteger();
+        private final AtomicInteger peak = new AtomicInteger();
+    }
+
+    /**
+     * Upstream stub that blocks like a long LLM generation and records concurrency.
+     */
+    private static class SlowUpstream extends GitHubModelsService {
+
+        private final InFlight inFlight;
+
+        SlowUpstream(InFlight inFlight) {
+            this.inFlight = inFlight;
+        }
+
+        @Override
+        public CompletionResult processChatRequest(AIModel model, String message, String systemPrompt) {
+            inFlight.peak.accumulateAndGet(inFlight.current.incrementAndGet(), Math::max);
+            try {
+                Thread.sleep(UPSTREAM_LATENCY_MS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } finally {
+                inFlight.current.decrementAndGet();
+            }
+            return new CompletionResult("ok", 42);
+        }
+
+        @Override
+        public int estimateTokenCount(AIModel model, String text) {
+            return text.length() / 4 + 1;
+        }
+    }
+}
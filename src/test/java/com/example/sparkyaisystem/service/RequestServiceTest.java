@@ -1,30 +1,49 @@
 package com.example.sparkyaisystem.service;
 
+import com.example.sparkyaisystem.exception.GlobalExceptionHandler;
+import com.example.sparkyaisystem.exception.GlobalExceptionHandler.ErrorResponse;
+import com.example.sparkyaisystem.exception.InvalidCursorException;
 import com.example.sparkyaisystem.exception.LimitExceededException;
+import com.example.sparkyaisystem.exception.UnsupportedModelRequestException;
+import com.example.sparkyaisystem.exception.UpstreamOverloadedException;
 import com.example.sparkyaisystem.model.dto.request.AIResponse;
 import com.example.sparkyaisystem.model.dto.request.ChatRequest;
 import com.example.sparkyaisystem.model.dto.request.CompletionRequest;
 import com.example.sparkyaisystem.model.dto.request.MultimodalRequest;
+import com.example.sparkyaisystem.model.dto.request.RequestHistoryPage;
 import com.example.sparkyaisystem.model.dto.request.RequestResponse;
 import com.example.sparkyaisystem.model.entity.AIModel;
 import com.example.sparkyaisystem.model.entity.Limit;
 import com.example.sparkyaisystem.model.entity.Request;
 import com.example.sparkyaisystem.model.entity.User;
-import com.example.sparkyaisystem.repository.AIModelRepository;
 import com.example.sparkyaisystem.repository.LimitRepository;
 import com.example.sparkyaisystem.repository.RequestRepository;
+import com.example.sparkyaisystem.repository.UserRepository;
+import com.example.sparkyaisystem.security.AuthenticatedUser;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
 import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
 import org.junit.jupiter.api.extension.ExtendWith;
 import org.mockito.InjectMocks;
 import org.mockito.Mock;
+import org.mockito.Spy;
 import org.mockito.junit.jupiter.MockitoExtension;
+import org.springframework.data.domain.PageRequest;
+import org.springframework.data.domain.Pageable;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.ResponseEntity;
+import org.springframework.http.codec.ServerSentEvent;
+import org.springframework.mock.web.MockHttpServletRequest;
 import org.springframework.mock.web.MockMultipartFile;
+import org.springframework.web.context.request.ServletWebRequest;
 import org.springframework.web.multipart.MultipartFile;
+import reactor.core.publisher.Flux;
 
 import java.time.LocalDateTime;
+import java.util.ArrayList;
 import java.util.List;
 import java.util.Optional;
+import java.util.stream.Stream;
 
 import static org.junit.jupiter.api.Assertions.*;
 import static org.mockito.ArgumentMatchers.*;
@@ -34,15 +53,20 @@ import static org.mockito.Mockito.*;
 class RequestServiceTest {
 
     @Mock private RequestRepository requestRepository;
-    @Mock private AIModelRepository aiModelRepository;
+    @Mock private ContentStore contentStore;
+    @Mock private ModelCatalog modelCatalog;
     @Mock private LimitRepository limitRepository;
+    @Mock private UserRepository userRepository;
     @Mock private LimitService limitService;
     @Mock private AIModelService aiModelService;
     @Mock private GitHubModelsService gitHubModelsService;
+    @Mock private RequestAuditWriter requestAuditWriter;
+    @Spy private ResponseCache responseCache = new ResponseCache(new SimpleMeterRegistry(), true, 100, 3600, 0.9);
 
     @InjectMocks private RequestService requestService;
 
-    private User user;
+    private AuthenticatedUser user;
+    private User userEntity;
     private AIModel model;
     private Limit limit;
     private Request savedRequest;
@@ -50,9 +74,10 @@ class RequestServiceTest {
 
     @BeforeEach
     void setUp() {
-        user = new User();
-        user.setId(1L);
-        user.setEmail("user@test.com");
+        user = new AuthenticatedUser(1L, "user@test.com", null, false, List.of("ROLE_USER"));
+        userEntity = new User();
+        userEntity.setId(1L);
+        userEntity.setEmail("user@test.com");
 
         model = new AIModel();
         model.setId(2L);
@@ -61,7 +86,7 @@ class RequestServiceTest {
         model.setProvider("OpenAI");
 
         limit = new Limit();
-        limit.setUser(user);
+        limit.setUser(userEntity);
         limit.setModel(model);
         limit.setMaxRequestsPerWindow(10);
         limit.setMaxTokensPerWindow(100);
@@ -73,7 +98,7 @@ class RequestServiceTest {
 
         savedRequest = new Request();
         savedRequest.setId(5L);
-        savedRequest.setUser(user);
+        savedRequest.setUser(userEntity);
         savedRequest.setModel(model);
     }
 
@@ -85,32 +110,32 @@ class RequestServiceTest {
         chatReq.setMessage("Hello World");
         chatReq.setSystemPrompt("ctx");
 
-        when(aiModelRepository.findById(eq(model.getId())))
+        when(modelCatalog.findById(eq(model.getId())))
                 .thenReturn(Optional.of(model));
         when(aiModelService.isModelAvailableForUser(user, model))
                 .thenReturn(true);
-        when(gitHubModelsService.estimateTokenCount(chatReq.getMessage()))
+        when(gitHubModelsService.estimateTokenCount(model, chatReq.getMessage()))
                 .thenReturn(4);
 
-        // Aquí simulamos que checkAndUpdateLimit *incrementa* el objeto limit
-        doAnswer(invocation -> {
+        // Aquí simulamos que reserve *incrementa* el objeto limit
+        QuotaEngine.Reservation reservation = reservationOf(4);
+        when(limitService.reserve(user, model, 4)).thenAnswer(invocation -> {
             limit.setUsedRequests(limit.getUsedRequests() + 1);
             limit.setUsedTokens(limit.getUsedTokens() + 4);
-            return null;
-        }).when(limitService).checkAndUpdateLimit(user, model, 4);
+            return reservation;
+        });
+        when(limitService.settle(reservation, 4)).thenAnswer(invocation -> snapshotOf(limit));
 
         // Simulamos el guardado para asignar un ID
-        when(requestRepository.save(any(Request.class))).thenAnswer(inv -> {
+        when(requestAuditWriter.submit(any(Request.class))).thenAnswer(inv -> {
             Request req = inv.getArgument(0);
             req.setId(savedRequest.getId());
             return req;
         });
 
-        when(limitRepository.findByUserAndModel(user, model))
-                .thenReturn(Optional.of(limit));
         when(gitHubModelsService.processChatRequest(
                 eq(model), anyString(), anyString()))
-                .thenReturn("response text");
+                .thenReturn(new GitHubModelsService.CompletionResult("response text", null));
 
         int initialRequests = limit.getUsedRequests();
         int initialTokens   = limit.getUsedTokens();
@@ -133,14 +158,68 @@ class RequestServiceTest {
         assertEquals(limit.getUsedTokens(),   resp.getLimitStatus().getUsedTokens());
 
         // Verificaciones de interacciones
-        verify(aiModelRepository).findById(model.getId());
+        verify(modelCatalog).findById(model.getId());
         verify(aiModelService).isModelAvailableForUser(user, model);
-        verify(gitHubModelsService).estimateTokenCount("Hello World");
-        verify(limitService).checkAndUpdateLimit(user, model, 4);
-        verify(requestRepository).save(any(Request.class));
+        verify(gitHubModelsService).estimateTokenCount(model, "Hello World");
+        verify(limitService).reserve(user, model, 4);
+        verify(limitService).settle(reservation, 4);
+        verify(limitService, never()).release(any());
+        verify(requestAuditWriter).submit(any(Request.class));
     }
 
 
+    @Test
+    void processChatRequestCacheableIsServedFromCacheAtDiscount() {
+        ChatRequest chatReq = new ChatRequest();
+        chatReq.setModelId(model.getId());
+        chatReq.setMessage("Classify: refund request");
+        chatReq.setSystemPrompt("ctx");
+        chatReq.setCacheable(true);
+
+        when(modelCatalog.findById(model.getId())).thenReturn(Optional.of(model));
+        when(aiModelService.isModelAvailableForUser(user, model)).thenReturn(true);
+        when(gitHubModelsService.estimateTokenCount(model, chatReq.getMessage())).thenReturn(4);
+        when(limitService.reserve(user, model, 4)).thenAnswer(invocation -> reservationOf(4));
+        when(limitService.settle(any(), anyInt())).thenAnswer(invocation -> snapshotOf(limit));
+        when(requestAuditWriter.submit(any(Request.class))).thenAnswer(inv -> inv.getArgument(0));
+        when(gitHubModelsService.processChatRequest(model, "Classify: refund request", "ctx"))
+                .thenReturn(new GitHubModelsService.CompletionResult("billing", 40));
+
+        AIResponse first = requestService.processChatRequest(user, chatReq);
+        AIResponse second = requestService.processChatRequest(user, chatReq);
+
+        assertFalse(first.isCached());
+        assertEquals(40, first.getTokensConsumed());
+        assertTrue(second.isCached());
+        assertEquals("billing", second.getResponse());
+        assertEquals(4, second.getTokensConsumed());
+        verify(gitHubModelsService, times(1)).processChatRequest(any(), any(), any());
+        verify(limitService).settle(any(), eq(40));
+        verify(limitService).settle(any(), eq(4));
+    }
+
+    @Test
+    void processChatRequestShedByTheUpstreamLimiterIsRefundedAndRethrown() {
+        ChatRequest chatReq = new ChatRequest();
+        chatReq.setModelId(model.getId());
+        chatReq.setMessage("Hello World");
+
+        when(modelCatalog.findById(model.getId())).thenReturn(Optional.of(model));
+        when(aiModelService.isModelAvailableForUser(user, model)).thenReturn(true);
+        when(gitHubModelsService.estimateTokenCount(model, chatReq.getMessage())).thenReturn(4);
+        QuotaEngine.Reservation reservation = reservationOf(4);
+        when(limitService.reserve(user, model, 4)).thenReturn(reservation);
+        when(gitHubModelsService.processChatRequest(model, "Hello World", null))
+                .thenThrow(new UpstreamOverloadedException("openai/gpt-4o", 3));
+
+        UpstreamOverloadedException ex = assertThrows(UpstreamOverloadedException.class,
+                () -> requestService.processChatRequest(user, chatReq));
+
+        assertEquals(3, ex.getRetryAfterSeconds());
+        verify(limitService).release(reservation);
+        verify(requestAuditWriter, never()).submit(any());
+    }
+
     @Test
     void processChatRequestModelUnavailableThrows() {
         // Arrange
@@ -148,7 +227,7 @@ class RequestServiceTest {
         chatReq.setModelId(model.getId());
         chatReq.setMessage("Hi");
 
-        when(aiModelRepository.findById(model.getId())).thenReturn(Optional.of(model));
+        when(modelCatalog.findById(model.getId())).thenReturn(Optional.of(model));
         when(aiModelService.isModelAvailableForUser(user, model)).thenReturn(false);
 
         // Act & Assert
@@ -164,17 +243,87 @@ class RequestServiceTest {
         chatReq.setModelId(model.getId());
         chatReq.setMessage("msg");
 
-        when(aiModelRepository.findById(model.getId())).thenReturn(Optional.of(model));
+        when(modelCatalog.findById(model.getId())).thenReturn(Optional.of(model));
         when(aiModelService.isModelAvailableForUser(user, model)).thenReturn(true);
-        when(gitHubModelsService.estimateTokenCount(anyString())).thenReturn(1);
+        when(gitHubModelsService.estimateTokenCount(any(AIModel.class), anyString())).thenReturn(1);
         doThrow(new LimitExceededException("requests",0,0,"daily",LocalDateTime.now()))
-                .when(limitService).checkAndUpdateLimit(user, model, 1);
+                .when(limitService).reserve(user, model, 1);
 
         // Act & Assert
         assertThrows(LimitExceededException.class,
                 () -> requestService.processChatRequest(user, chatReq));
     }
 
+    @Test
+    void streamChatRequestEmitsDeltasThenSettlesAndPersists() {
+        // Arrange
+        ChatRequest chatReq = new ChatRequest();
+        chatReq.setModelId(model.getId());
+        chatReq.setMessage("Hello");
+
+        QuotaEngine.Reservation reservation = reservationOf(2);
+        when(modelCatalog.findById(model.getId())).thenReturn(Optional.of(model));
+        when(aiModelService.isModelAvailableForUser(user, model)).thenReturn(true);
+        when(gitHubModelsService.estimateTokenCount(any(AIModel.class), anyString())).thenReturn(2);
+        when(limitService.reserve(user, model, 2)).thenReturn(reservation);
+        when(gitHubModelsService.streamChatRequest(eq(model), eq("Hello"), any()))
+                .thenReturn(Flux.just(
+                        new GitHubModelsService.CompletionResult("Hi ", null),
+                        new GitHubModelsService.CompletionResult("there", null),
+                        new GitHubModelsService.CompletionResult(null, 9)));
+        when(limitService.settle(reservation, 9)).thenReturn(snapshotOf(limit));
+        when(requestAuditWriter.submit(any(Request.class))).thenAnswer(inv -> {
+            Request r = inv.getArgument(0);
+            r.setId(11L);
+            return r;
+        });
+
+        // Act
+        List<ServerSentEvent<Object>> events = requestService.streamChatRequest(user, chatReq).collectList().block();
+
+        // Assert
+        assertEquals(3, events.size());
+        assertEquals("delta", events.get(0).event());
+        assertEquals("Hi ", events.get(0).data());
+        assertEquals("there", events.get(1).data());
+        assertEquals("done", events.get(2).event());
+        AIResponse done = (AIResponse) events.get(2).data();
+        assertTrue(done.isSuccessful());
+        assertEquals(11L, done.getRequestId());
+        assertEquals("Hi there", done.getResponse());
+        assertEquals(9, done.getTokensConsumed());
+        verify(limitService, times(2)).extend(eq(reservation), anyInt());
+        verify(limitService, never()).release(any());
+    }
+
+    @Test
+    void streamChatRequestFailureBeforeContentReleasesReservation() {
+        // Arrange
+        ChatRequest chatReq = new ChatRequest();
+        chatReq.setModelId(model.getId());
+        chatReq.setMessage("Hello");
+
+        QuotaEngine.Reservation reservation = reservationOf(2);
+        when(modelCatalog.findById(model.getId())).thenReturn(Optional.of(model));
+        when(aiModelService.isModelAvailableForUser(user, model)).thenReturn(true);
+        when(gitHubModelsService.estimateTokenCount(any(AIModel.class), anyString())).thenReturn(2);
+        when(limitService.reserve(user, model, 2)).thenReturn(reservation);
+        when(gitHubModelsService.streamChatRequest(eq(model), eq("Hello"), any()))
+                .thenReturn(Flux.error(new RuntimeException("upstream down")));
+        when(requestAuditWriter.submit(any(Request.class))).thenAnswer(inv -> inv.getArgument(0));
+
+        // Act
+        List<ServerSentEvent<Object>> events = requestService.streamChatRequest(user, chatReq).collectList().block();
+
+        // Assert
+        assertEquals(1, events.size());
+        assertEquals("error", events.get(0).event());
+        assertFalse(((AIResponse) events.get(0).data()).isSuccessful());
+        verify(limitService).release(reservation);
+        verify(limitService, never()).settle(any(), anyInt());
+        verify(requestAuditWriter).submit(argThat(r -> !r.isSuccessful() && r.getTokensConsumed() == 0));
+    }
+
     @Test
     void processCompletionRequestSuccess() {
         // Arrange
@@ -184,18 +333,19 @@ class RequestServiceTest {
         compReq.setMaxTokens(10);
         compReq.setTemperature(0.7f);
 
-        when(aiModelRepository.findById(model.getId())).thenReturn(Optional.of(model));
+        when(modelCatalog.findById(model.getId())).thenReturn(Optional.of(model));
         when(aiModelService.isModelAvailableForUser(user, model)).thenReturn(true);
-        when(gitHubModelsService.estimateTokenCount(compReq.getPrompt())).thenReturn(5);
-        doNothing().when(limitService).checkAndUpdateLimit(user, model, 5);
+        when(gitHubModelsService.estimateTokenCount(model, compReq.getPrompt())).thenReturn(5);
+        QuotaEngine.Reservation reservation = reservationOf(5);
+        when(limitService.reserve(user, model, 5)).thenReturn(reservation);
         when(gitHubModelsService.processCompletionRequest(model, compReq.getPrompt(), compReq.getMaxTokens(), compReq.getTemperature()))
-                .thenReturn("completed");
-        when(requestRepository.save(any(Request.class))).thenAnswer(inv -> {
+                .thenReturn(new GitHubModelsService.CompletionResult("completed", 12));
+        when(limitService.settle(reservation, 12)).thenReturn(snapshotOf(limit));
+        when(requestAuditWriter.submit(any(Request.class))).thenAnswer(inv -> {
             Request r = inv.getArgument(0);
             r.setId(7L);
             return r;
         });
-        when(limitRepository.findByUserAndModel(user, model)).thenReturn(Optional.of(limit));
 
         // Act
         AIResponse resp = requestService.processCompletionRequest(user, compReq);
@@ -204,7 +354,34 @@ class RequestServiceTest {
         assertTrue(resp.isSuccessful());
         assertEquals(7L, resp.getRequestId());
         assertEquals("completed", resp.getResponse());
-        verify(requestRepository).save(any(Request.class));
+        assertEquals(12, resp.getTokensConsumed());
+        verify(requestAuditWriter).submit(any(Request.class));
+    }
+
+    @Test
+    void processChatRequestUpstreamFailureReleasesReservation() {
+        // Arrange
+        ChatRequest chatReq = new ChatRequest();
+        chatReq.setModelId(model.getId());
+        chatReq.setMessage("msg");
+
+        QuotaEngine.Reservation reservation = reservationOf(3);
+        when(modelCatalog.findById(model.getId())).thenReturn(Optional.of(model));
+        when(aiModelService.isModelAvailableForUser(user, model)).thenReturn(true);
+        when(gitHubModelsService.estimateTokenCount(any(AIModel.class), anyString())).thenReturn(3);
+        when(limitService.reserve(user, model, 3)).thenReturn(reservation);
+        when(gitHubModelsService.processChatRequest(eq(model), anyString(), any()))
+                .thenThrow(new RuntimeException("upstream down"));
+        when(requestAuditWriter.submit(any(Request.class))).thenAnswer(inv -> inv.getArgument(0));
+
+        // Act
+        AIResponse resp = requestService.processChatRequest(user, chatReq);
+
+        // Assert
+        assertFalse(resp.isSuccessful());
+        assertEquals("upstream down", resp.getErrorMessage());
+        verify(limitService).release(reservation);
+        verify(limitService, never()).settle(any(), anyInt());
     }
 
     @Test
@@ -217,29 +394,168 @@ class RequestServiceTest {
         MultipartFile file = new MockMultipartFile("img","file.png","image/png",new byte[]{1});
         mmReq.setImageFile(file);
 
-        when(aiModelRepository.findById(model.getId())).thenReturn(Optional.of(model));
+        when(modelCatalog.findById(model.getId())).thenReturn(Optional.of(model));
         when(aiModelService.isModelAvailableForUser(user, model)).thenReturn(true);
 
         // Act & Assert
-        RuntimeException ex = assertThrows(RuntimeException.class,
+        UnsupportedModelRequestException ex = assertThrows(UnsupportedModelRequestException.class,
                 () -> requestService.processMultimodalRequest(user, mmReq));
         assertEquals("Selected model does not support multimodal requests", ex.getMessage());
     }
 
     @Test
-    void getUserRequestHistoryReturnsMappedResponses() {
+    void processMultimodalRequestRejectedByTheUpstreamIsRefundedAndRethrown() throws Exception {
+        model.setType("multimodal");
+        MultimodalRequest mmReq = new MultimodalRequest();
+        mmReq.setModelId(model.getId());
+        mmReq.setMessage("msg");
+        MultipartFile file = new MockMultipartFile("img", "file.png", "image/png", new byte[]{1});
+        mmReq.setImageFile(file);
+
+        when(modelCatalog.findById(model.getId())).thenReturn(Optional.of(model));
+        when(aiModelService.isModelAvailableForUser(user, model)).thenReturn(true);
+        when(gitHubModelsService.estimateTokenCount(model, "msg")).thenReturn(2);
+        QuotaEngine.Reservation reservation = reservationOf(4);
+        when(limitService.reserve(user, model, 4)).thenReturn(reservation);
+        when(gitHubModelsService.processMultimodalRequest(model, "msg", file))
+                .thenThrow(new UnsupportedModelRequestException("Multimodal requests are currently only supported for OpenAI gpt-4o model"));
+
+        assertThrows(UnsupportedModelRequestException.class,
+                () -> requestService.processMultimodalRequest(user, mmReq));
+
+        verify(limitService).release(reservation);
+        verify(limitService, never()).settle(any(), anyInt());
+        verify(requestAuditWriter, never()).submit(any());
+    }
+
+    @Test
+    void getUserRequestHistoryPagesWithKeysetCursor() {
         // Arrange
-        Request r = new Request();
-        r.setId(20L);
-        r.setUser(user);
-        r.setModel(model);
-        when(requestRepository.findByUser(user)).thenReturn(List.of(r));
+        LocalDateTime now = LocalDateTime.of(2025, 5, 1, 12, 0);
+        List<RequestRepository.HistoryEntry> rows = List.of(
+                historyRow(30L, now), historyRow(20L, now.minusMinutes(1)), historyRow(10L, now.minusMinutes(2)));
+        when(userRepository.findFullNameById(user.id())).thenReturn(Optional.of("Test User"));
+        when(modelCatalog.findById(model.getId())).thenReturn(Optional.of(model));
+        when(requestRepository.findHistory(eq(user.id()), any(), any(), isNull(), any(), anyLong(), any(Pageable.class)))
+                .thenReturn(rows, List.of(rows.get(2)));
+        when(contentStore.get(anyString())).thenAnswer(inv -> "content of " + inv.getArgument(0));
 
         // Act
-        List<RequestResponse> history = requestService.getUserRequestHistory(user);
+        RequestHistoryPage first = requestService.getUserRequestHistory(user, null, 2, RequestService.HistoryFilter.ALL);
+        RequestHistoryPage second = requestService.getUserRequestHistory(user, first.getNextCursor(), 2,
+                RequestService.HistoryFilter.ALL);
 
         // Assert
-        assertEquals(1, history.size());
-        assertEquals(r.getId(), history.get(0).getId());
+        assertEquals(List.of(30L, 20L), first.getItems().stream().map(RequestResponse::getId).toList());
+        assertEquals("content of query-30", first.getItems().get(0).getQuery());
+        assertEquals("content of response-30", first.getItems().get(0).getResponse());
+        assertEquals(model.getName(), first.getItems().get(0).getModelName());
+        assertEquals("Test User", first.getItems().get(0).getUserName());
+        assertEquals(RequestService.encodeCursor(now.minusMinutes(1), 20L), first.getNextCursor());
+        assertEquals(List.of(10L), second.getItems().stream().map(RequestResponse::getId).toList());
+        assertNull(second.getNextCursor());
+        // One extra row is fetched to detect the next page; the second page starts after the cursor row
+        verify(requestRepository).findHistory(eq(user.id()), any(), any(), isNull(),
+                eq(now.minusMinutes(1)), eq(20L), eq(PageRequest.of(0, 3)));
+    }
+
+    @Test
+    void getUserRequestHistoryWithoutBodiesSkipsContentStore() {
+        // Arrange
+        LocalDateTime from = LocalDateTime.of(2025, 5, 1, 0, 0);
+        RequestService.HistoryFilter filter = new RequestService.HistoryFilter(from, null, model.getId(), false);
+        when(requestRepository.findHistory(eq(user.id()), eq(from), any(), eq(model.getId()), any(), anyLong(),
+                any(Pageable.class))).thenReturn(List.of(historyRow(30L, from.plusHours(1))));
+
+        // Act
+        RequestHistoryPage page = requestService.getUserRequestHistory(user, null, 50, filter);
+
+        // Assert
+        assertEquals(1, page.getItems().size());
+        assertNull(page.getItems().get(0).getQuery());
+        assertNull(page.getItems().get(0).getResponse());
+        assertEquals(8, page.getItems().get(0).getQuerySize());
+        assertEquals(11, page.getItems().get(0).getResponseSize());
+        verifyNoInteractions(contentStore);
+    }
+
+    @Test
+    void getUserRequestHistoryRejectsInvalidCursor() {
+        InvalidCursorException ex = assertThrows(InvalidCursorException.class, () ->
+                requestService.getUserRequestHistory(user, "not-a-cursor", 50, RequestService.HistoryFilter.ALL));
+        assertEquals("Invalid history cursor", ex.getMessage());
+
+        ResponseEntity<ErrorResponse> response = new GlobalExceptionHandler().handleInvalidCursorException(ex,
+                new ServletWebRequest(new MockHttpServletRequest("GET", "/api/ai/history")));
+        assertEquals(HttpStatus.BAD_REQUEST, response.getStatusCode());
+        verifyNoInteractions(requestRepository);
+    }
+
+    @Test
+    void exportUserRequestHistoryStreamsEveryRow() {
+        // Arrange
+        LocalDateTime now = LocalDateTime.now();
+        when(requestRepository.streamHistory(eq(user.id()), any(), any(), isNull()))
+                .thenReturn(Stream.of(historyRow(2L, now), historyRow(1L, now.minusSeconds(1))));
+        List<RequestResponse> exported = new ArrayList<>();
+
+        // Act
+        requestService.exportUserRequestHistory(user, RequestService.HistoryFilter.ALL, exported::add);
+
+        // Assert
+        assertEquals(List.of(2L, 1L), exported.stream().map(RequestResponse::getId).toList());
+        assertEquals(user.id(), exported.get(0).getUserId());
+    }
+
+    @Test
+    void unreadableBodiesAreLeftOutOfTheirRowsOnly() {
+        // Arrange
+        LocalDateTime now = LocalDateTime.now();
+        when(requestRepository.streamHistory(eq(user.id()), any(), any(), isNull()))
+                .thenReturn(Stream.of(historyRow(2L, now), historyRow(1L, now.minusSeconds(1))));
+        when(contentStore.get(anyString())).thenAnswer(inv -> "content of " + inv.getArgument(0));
+        when(contentStore.get("query-2")).thenThrow(new RuntimeException("Could not read content query-2"));
+        when(contentStore.get("response-2")).thenReturn(null);
+        List<RequestResponse> exported = new ArrayList<>();
+
+        // Act
+        requestService.exportUserRequestHistory(user, RequestService.HistoryFilter.ALL, exported::add);
+
+        // Assert
+        assertEquals(List.of(2L, 1L), exported.stream().map(RequestResponse::getId).toList());
+        assertNull(exported.get(0).getQuery());
+        assertNull(exported.get(0).getResponse());
+        assertEquals(8, exported.get(0).getQuerySize());
+        assertEquals("content of query-1", exported.get(1).getQuery());
+        assertEquals("content of response-1", exported.get(1).getResponse());
+    }
+
+    private RequestRepository.HistoryEntry historyRow(Long id, LocalDateTime requestTime) {
+        return new RequestRepository.HistoryEntry() {
+            public Long getId() { return id; }
+            public Long getModelId() { return model.getId(); }
+            public String getErrorMessage() { return null; }
+            public Boolean getSuccessful() { return true; }
+            public Integer getTokensConsumed() { return 72; }
+            public String getFileName() { return null; }
+            public LocalDateTime getRequestTime() { return requestTime; }
+            public LocalDateTime getResponseTime() { return requestTime.plusSeconds(1); }
+            public String getQueryRef() { return "query-" + id; }
+            public Integer getQuerySize() { return 8; }
+            public String getResponseRef() { return "response-" + id; }
+            public Integer getResponseSize() { return 11; }
+        };
+    }
+
+    private QuotaEngine.Reservation reservationOf(int estimatedTokens) {
+        return new QuotaEngine.Reservation("res-1", user.id(), model.getId(), estimatedTokens,
+                snapshotOf(limit), LocalDateTime.now().plusMinutes(5));
+    }
+
+    private QuotaEngine.QuotaSnapshot snapshotOf(Limit limit) {
+        return new QuotaEngine.QuotaSnapshot(
+                limit.getUsedRequests(), limit.getMaxRequestsPerWindow(),
+                limit.getUsedTokens(), limit.getMaxTokensPerWindow(),
+                limit.getWindowType(), limit.getWindowStartTime(), limit.getWindowEndTime());
     }
 }
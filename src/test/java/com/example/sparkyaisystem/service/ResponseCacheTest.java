@@ -0,0 +1,126 @@
+package com.example.sparkyaisystem.service;
+
+import com.example.sparkyaisystem.model.entity.AIModel;
+import com.example.sparkyaisystem.security.AuthenticatedUser;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import reactor.core.publisher.Mono;
+
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class ResponseCacheTest {
+
+    private SimpleMeterRegistry meterRegistry;
+    private ResponseCache responseCache;
+    private AuthenticatedUser user;
+    private AuthenticatedUser colleague;
+    private AuthenticatedUser otherCompanyUser;
+    private AIModel model;
+    private final AtomicInteger upstreamCalls = new AtomicInteger();
+
+    @BeforeEach
+    void setUp() {
+        meterRegistry = new SimpleMeterRegistry();
+        responseCache = new ResponseCache(meterRegistry, true, 100, 3600, 0.9);
+
+        user = new AuthenticatedUser(10L, "ana@acme.com", 1L, true, List.of("ROLE_USER"));
+        colleague = new AuthenticatedUser(11L, "luis@acme.com", 1L, true, List.of("ROLE_USER"));
+        otherCompanyUser = new AuthenticatedUser(20L, "eva@globex.com", 2L, true, List.of("ROLE_USER"));
+
+        model = new AIModel();
+        model.setId(3L);
+    }
+
+    private GitHubModelsService.CompletionResult upstream() {
+        upstreamCalls.incrementAndGet();
+        return new GitHubModelsService.CompletionResult("answer", 30);
+    }
+
+    @Test
+    void onlyDeterministicOrFlaggedRequestsAreCacheable() {
+        assertTrue(ResponseCache.isCacheable(null, 0f));
+        assertTrue(ResponseCache.isCacheable(true, 0.7f));
+        assertFalse(ResponseCache.isCacheable(null, 0.7f));
+        assertFalse(ResponseCache.isCacheable(null, null));
+        assertFalse(ResponseCache.isCacheable(false, 0f));
+    }
+
+    @Test
+    void secondLookupIsAHitWithinTheSameCompany() {
+        ResponseCache.Lookup first = responseCache.getOrCompute(
+                responseCache.keyFor(user, model, "chat", "ctx", "hello", null, null), this::upstream);
+        ResponseCache.Lookup second = responseCache.getOrCompute(
+                responseCache.keyFor(colleague, model, "chat", "ctx", "hello", null, null), this::upstream);
+
+        assertFalse(first.hit());
+        assertTrue(second.hit());
+        assertEquals("answer", second.result().getContent());
+        assertEquals(1, upstreamCalls.get());
+        assertEquals(0.5, meterRegistry.get("ai.responses.cache.hit.ratio").gauge().value());
+    }
+
+    @Test
+    void entriesAreNotSharedAcrossCompanies() {
+        responseCache.getOrCompute(responseCache.keyFor(user, model, "chat", "ctx", "hello", null, null), this::upstream);
+        ResponseCache.Lookup other = responseCache.getOrCompute(
+                responseCache.keyFor(otherCompanyUser, model, "chat", "ctx", "hello", null, null), this::upstream);
+
+        assertFalse(other.hit());
+        assertEquals(2, upstreamCalls.get());
+    }
+
+    @Test
+    void keyDependsOnEveryPart() {
+        ResponseCache.Key key = responseCache.keyFor(user, model, "completion", null, "hello", 0f, 50);
+
+        assertEquals(key, responseCache.keyFor(user, model, "completion", null, "hello", 0f, 50));
+        assertNotEquals(key, responseCache.keyFor(user, model, "completion", null, "hello", 0f, 51));
+        assertNotEquals(key, responseCache.keyFor(user, model, "chat", null, "hello", 0f, 50));
+        assertNotEquals(responseCache.keyFor(user, model, "chat", "ab", "c", null, null),
+                responseCache.keyFor(user, model, "chat", "a", "bc", null, null));
+    }
+
+    @Test
+    void answersWithoutUsageAreNotCached() {
+        ResponseCache.Key key = responseCache.keyFor(user, model, "chat", "ctx", "hello", null, null);
+        responseCache.getOrCompute(key, () -> new GitHubModelsService.CompletionResult("Error processing request: timeout", null));
+
+        assertFalse(responseCache.getOrCompute(key, this::upstream).hit());
+        assertEquals(1, upstreamCalls.get());
+    }
+
+    @Test
+    void nullKeyAndDisabledCacheBypass() {
+        responseCache.getOrCompute(null, this::upstream);
+        assertFalse(responseCache.getOrCompute(null, this::upstream).hit());
+
+        ResponseCache disabled = new ResponseCache(new SimpleMeterRegistry(), false, 100, 3600, 0.9);
+        ResponseCache.Key key = disabled.keyFor(user, model, "chat", "ctx", "hello", null, null);
+        disabled.getOrCompute(key, this::upstream);
+        assertFalse(disabled.getOrCompute(key, this::upstream).hit());
+        assertEquals(4, upstreamCalls.get());
+    }
+
+    @Test
+    void asyncLookupCachesUpstreamAnswer() {
+        ResponseCache.Key key = responseCache.keyFor(user, model, "chat", "ctx", "hello", null, null);
+
+        ResponseCache.Lookup first = responseCache.getOrComputeAsync(key, () -> Mono.fromSupplier(this::upstream)).block();
+        ResponseCache.Lookup second = responseCache.getOrComputeAsync(key, () -> Mono.fromSupplier(this::upstream)).block();
+
+        assertFalse(first.hit());
+        assertTrue(second.hit());
+        assertEquals(1, upstreamCalls.get());
+    }
+
+    @Test
+    void hitsAreChargedAtTheConfiguredDiscount() {
+        assertEquals(3, responseCache.discountedTokens(30));
+        assertEquals(1, responseCache.discountedTokens(1));
+        assertEquals(0, responseCache.discountedTokens(0));
+    }
+}
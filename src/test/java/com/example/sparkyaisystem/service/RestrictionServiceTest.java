@@ -13,7 +13,9 @@ import org.junit.jupiter.api.Test;
 import org.junit.jupiter.api.extension.ExtendWith;
 import org.mockito.*;
 import org.mockito.junit.jupiter.MockitoExtension;
+import org.springframework.context.ApplicationEventPublisher;
 
+import java.time.LocalDateTime;
 import java.util.List;
 import java.util.Optional;
 
@@ -32,6 +34,9 @@ class RestrictionServiceTest {
     @Mock
     private AIModelRepository aiModelRepository;
 
+    @Mock
+    private ApplicationEventPublisher eventPublisher;
+
     @InjectMocks
     private RestrictionService restrictionService;
 
@@ -246,6 +251,9 @@ class RestrictionServiceTest {
         updateReq.setMaxRequestsPerWindow(200);
         updateReq.setMaxTokensPerWindow(2000);
         updateReq.setWindowType("weekly");
+        restriction.setUsedRequests(5);
+        restriction.setLeasedRequests(20);
+        restriction.setWindowEndTime(LocalDateTime.now().plusHours(1));
 
         when(companyRepository.findById(company.getId()))
                 .thenReturn(Optional.of(company));
@@ -269,6 +277,10 @@ class RestrictionServiceTest {
         assertEquals(updateReq.getMaxRequestsPerWindow(), resp.getMaxRequestsPerWindow());
         assertEquals(updateReq.getMaxTokensPerWindow(), resp.getMaxTokensPerWindow());
         assertEquals(updateReq.getWindowType(), resp.getWindowType());
+        // Usage of the old settings is not carried over to the new window
+        assertEquals(0, restriction.getUsedRequests());
+        assertEquals(0, restriction.getLeasedRequests());
+        assertNull(restriction.getWindowEndTime());
 
         verify(restrictionRepository).save(restriction);
     }
@@ -302,6 +314,8 @@ class RestrictionServiceTest {
 
         // Assert: se eliminó del repositorio
         verify(restrictionRepository).delete(restriction);
+        verify(eventPublisher).publishEvent(new ModelAvailabilityIndex.Changed(company.getId(), model.getId()));
+        verify(eventPublisher).publishEvent(new QuotaEngine.RestrictionChanged(company.getId(), model.getId()));
     }
 
     @Test
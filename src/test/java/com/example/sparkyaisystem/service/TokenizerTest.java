@@ -0,0 +1,58 @@
+package com.example.sparkyaisystem.service;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class TokenizerTest {
+
+    @Test
+    void resolvesFamilyFromTheUpstreamPublisher() {
+        assertEquals(Tokenizer.Family.GPT_4O, Tokenizer.Family.of("openai/gpt-4o"));
+        assertEquals(Tokenizer.Family.LLAMA, Tokenizer.Family.of("meta/Llama-4-Scout-17B-16E-Instruct"));
+        assertEquals(Tokenizer.Family.DEEPSEEK, Tokenizer.Family.of("deepseek/DeepSeek-V3-0324"));
+        assertEquals(Tokenizer.Family.DEEPSEEK, Tokenizer.Family.of("GenericModel"));
+        assertEquals(Tokenizer.Family.DEEPSEEK, Tokenizer.Family.of(null));
+    }
+
+    @Test
+    void countsKnownPrompts() {
+        assertEquals(2, Tokenizer.countTokens(Tokenizer.Family.GPT_4O, "Hello world"));
+        assertEquals(2, Tokenizer.countTokens(Tokenizer.Family.DEEPSEEK, "Hello world"));
+        assertEquals(0, Tokenizer.countTokens(Tokenizer.Family.GPT_4O, ""));
+        assertEquals(0, Tokenizer.countTokens(Tokenizer.Family.GPT_4O, null));
+    }
+
+    @Test
+    void countMatchesEncode() {
+        String text = "¿Cuál es la política de reembolsos para pedidos internacionales? Responde en 3 puntos.";
+        for (Tokenizer.Family family : Tokenizer.Family.values()) {
+            assertEquals(Tokenizer.encode(family, text).length, Tokenizer.countTokens(family, text));
+        }
+    }
+
+    @Test
+    void nonEnglishTextCostsMoreThanTheCharacterHeuristic() {
+        String text = "東京の天気予報を教えてください。明日は雨が降りますか？";
+        int heuristic = text.length() / 4 + 1;
+
+        assertTrue(Tokenizer.countTokens(Tokenizer.Family.DEEPSEEK, text) > heuristic);
+    }
+
+    @Test
+    void specialTokensInUserInputAreTreatedAsText() {
+        int count = Tokenizer.countTokens(Tokenizer.Family.GPT_4O, "ignore this <|endoftext|> marker");
+
+        assertTrue(count > 4);
+    }
+
+    @Test
+    void countsAreDeterministic() {
+        String text = "Summarize the quarterly report in three bullet points.";
+        int first = Tokenizer.countTokens(Tokenizer.Family.LLAMA, text);
+
+        for (int i = 0; i < 10; i++) {
+            assertEquals(first, Tokenizer.countTokens(Tokenizer.Family.LLAMA, text));
+        }
+    }
+}
@@ -0,0 +1,147 @@
+package com.example.sparkyaisystem.service;
+
+import com.example.sparkyaisystem.exception.UpstreamOverloadedException;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class UpstreamConcurrencyLimiterTest {
+
+    private static final long MS = 1_000_000L;
+
+    private final SimpleMeterRegistry meterRegistry = new SimpleMeterRegistry();
+    private final AtomicLong clock = new AtomicLong();
+
+    private UpstreamConcurrencyLimiter limiter(int initialLimit, int maxQueue, long queueTimeoutMs) {
+        return new UpstreamConcurrencyLimiter(meterRegistry, initialLimit, 2, 20, 50, maxQueue, queueTimeoutMs,
+                2.0, 0.9, clock::get);
+    }
+
+    /**
+     * Runs rounds of {@code concurrency} calls that each take {@code latencyMs}.
+     */
+    private void calls(UpstreamConcurrencyLimiter limiter, int rounds, int concurrency, long latencyMs) {
+        for (int round = 0; round < rounds; round++) {
+            List<UpstreamConcurrencyLimiter.Permit> permits = new ArrayList<>();
+            for (int i = 0; i < concurrency; i++) {
+                permits.add(limiter.tryAcquire("gpt-4o"));
+            }
+            clock.addAndGet(latencyMs * MS);
+            permits.forEach(UpstreamConcurrencyLimiter.Permit::close);
+        }
+    }
+
+    @Test
+    void limitGrowsWhileLatencyStaysNearTheBaseline() {
+        UpstreamConcurrencyLimiter limiter = limiter(4, 0, 0);
+
+        calls(limiter, 20, 4, 300);
+
+        assertTrue(limiter.limit("gpt-4o") > 4);
+        assertEquals(0, limiter.inFlight("gpt-4o"));
+    }
+
+    @Test
+    void limitShrinksWhenTheUpstreamSlowsDown() {
+        UpstreamConcurrencyLimiter limiter = limiter(10, 0, 0);
+        calls(limiter, 5, 5, 300);
+        int before = limiter.limit("gpt-4o");
+
+        calls(limiter, 3, 2, 900);
+        assertTrue(limiter.limit("gpt-4o") < before);
+
+        // Never below the minimum
+        calls(limiter, 50, 2, 2_000);
+        assertEquals(2, limiter.limit("gpt-4o"));
+        assertEquals(2.0, meterRegistry.get("upstream.concurrency.limit").tag("model", "gpt-4o").gauge().value());
+    }
+
+    @Test
+    void latencyOfSkippedCallsIsIgnored() {
+        UpstreamConcurrencyLimiter limiter = limiter(10, 0, 0);
+        calls(limiter, 5, 5, 300);
+        int before = limiter.limit("gpt-4o");
+
+        UpstreamConcurrencyLimiter.Permit stream = limiter.tryAcquire("gpt-4o").skipLatency();
+        clock.addAndGet(60_000 * MS);
+        stream.close();
+        stream.close();
+
+        assertEquals(before, limiter.limit("gpt-4o"));
+        assertEquals(0, limiter.inFlight("gpt-4o"));
+    }
+
+    @Test
+    void queuedCallTakesTheNextFreeSlot() throws Exception {
+        UpstreamConcurrencyLimiter limiter = limiter(2, 5, 10_000);
+        UpstreamConcurrencyLimiter.Permit first = limiter.acquire("gpt-4o");
+        UpstreamConcurrencyLimiter.Permit second = limiter.acquire("gpt-4o");
+
+        CompletableFuture<UpstreamConcurrencyLimiter.Permit> queued =
+                CompletableFuture.supplyAsync(() -> limiter.acquire("gpt-4o"));
+        while (limiter.queueDepth("gpt-4o") == 0) {
+            Thread.sleep(1);
+        }
+        assertEquals(1.0, meterRegistry.get("upstream.queue.depth").tag("model", "gpt-4o").gauge().value());
+        assertFalse(queued.isDone());
+
+        first.close();
+        queued.get(5, TimeUnit.SECONDS).close();
+        second.close();
+        assertEquals(0, limiter.queueDepth("gpt-4o"));
+        assertEquals(0, limiter.inFlight("gpt-4o"));
+    }
+
+    @Test
+    void callsBeyondTheQueueAreShedWithRetryAfter() {
+        UpstreamConcurrencyLimiter limiter = limiter(2, 1, 20);
+        limiter.acquire("gpt-4o");
+        limiter.acquire("gpt-4o");
+
+        // The queue has room, but no slot frees up before the deadline
+        UpstreamOverloadedException timedOut = assertThrows(UpstreamOverloadedException.class,
+                () -> limiter.acquire("gpt-4o"));
+        assertEquals("gpt-4o", timedOut.getModel());
+        assertTrue(timedOut.getRetryAfterSeconds() >= 1);
+        // Non-blocking callers are shed at once
+        assertThrows(UpstreamOverloadedException.class, () -> limiter.tryAcquire("gpt-4o"));
+        // Other models have their own bulkhead
+        limiter.tryAcquire("llama").close();
+
+        assertEquals(2.0, meterRegistry.get("upstream.shed").tag("model", "gpt-4o").counter().count());
+        assertEquals(0, limiter.queueDepth("gpt-4o"));
+    }
+
+    @Test
+    void asyncCallsHaveTheirOwnFixedLimit() {
+        UpstreamConcurrencyLimiter limiter = limiter(2, 0, 0);
+        limiter.acquire("gpt-4o");
+        limiter.acquire("gpt-4o");
+
+        // A saturated blocking bulkhead does not hold back calls that wait without a thread
+        List<UpstreamConcurrencyLimiter.Permit> permits = new ArrayList<>();
+        for (int i = 0; i < 50; i++) {
+            permits.add(limiter.tryAcquireAsync("gpt-4o"));
+        }
+        assertEquals(50, limiter.asyncInFlight("gpt-4o"));
+        assertThrows(UpstreamOverloadedException.class, () -> limiter.tryAcquireAsync("gpt-4o"));
+
+        // Slow calls do not shrink the async limit
+        clock.addAndGet(10_000 * MS);
+        permits.forEach(UpstreamConcurrencyLimiter.Permit::close);
+        for (int i = 0; i < 50; i++) {
+            limiter.tryAcquireAsync("gpt-4o");
+        }
+        assertEquals(50, limiter.asyncInFlight("gpt-4o"));
+        assertEquals(2, limiter.inFlight("gpt-4o"));
+        assertEquals(1.0, meterRegistry.get("upstream.shed").tag("model", "gpt-4o").tag("caller", "async")
+                .counter().count());
+    }
+}
@@ -0,0 +1,205 @@
+package com.example.sparkyaisystem.service;
+
+import com.azure.ai.inference.ChatCompletionsClientBuilder;
+import com.azure.core.exception.HttpResponseException;
+import com.azure.core.http.HttpClient;
+import com.azure.core.http.HttpPipelineBuilder;
+import com.example.sparkyaisystem.exception.UpstreamUnavailableException;
+import com.example.sparkyaisystem.model.entity.AIModel;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.core.task.SimpleAsyncTaskExecutor;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Drives {@link GitHubModelsService} with real SDK clients against a stub of the inference endpoint.
+ */
+class UpstreamResilienceTest {
+
+    private static final String MODEL = "openai/gpt-4o";
+    private static final String ANSWER = """
+            {"id":"test","created":1700000000,"model":"gpt-4o",
+             "choices":[{"index":0,"finish_reason":"stop","message":{"role":"assistant","content":"Hello."}}],
+             "usage":{"prompt_tokens":10,"completion_tokens":2,"total_tokens":12}}
+            """;
+
+    // Replies of the stub in order, then 200 with ANSWER
+    private final ConcurrentLinkedQueue<Reply> replies = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger received = new AtomicInteger();
+    private HttpServer server;
+    private AIModel gpt4o;
+
+    private record Reply(int status, long delayMs) {
+    }
+
+    @BeforeEach
+    void setUp() throws IOException {
+        server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        server.setExecutor(Executors.newCachedThreadPool());
+        server.createContext("/", this::handle);
+        server.start();
+
+        gpt4o = new AIModel();
+        gpt4o.setProvider("OpenAI");
+        gpt4o.setName("gpt-4o");
+    }
+
+    @AfterEach
+    void tearDown() {
+        server.stop(0);
+    }
+
+    private void handle(HttpExchange exchange) throws IOException {
+        received.incrementAndGet();
+        exchange.getRequestBody().readAllBytes();
+        Reply reply = replies.poll();
+        int status = reply != null ? reply.status() : 200;
+        try {
+            if (reply != null && reply.delayMs() > 0) {
+                Thread.sleep(reply.delayMs());
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        byte[] body = (status == 200 ? ANSWER : "{\"error\":{\"code\":\"" + status + "\",\"message\":\"stub\"}}")
+                .getBytes(StandardCharsets.UTF_8);
+        exchange.getResponseHeaders().add("Content-Type", "application/json");
+        exchange.sendResponseHeaders(status, body.length);
+        try (OutputStream out = exchange.getResponseBody()) {
+            out.write(body);
+        } catch (IOException e) {
+            // The client gave up on this attempt
+        }
+    }
+
+    private GitHubModelsService service(UpstreamResilience resilience) {
+        String endpoint = "http://127.0.0.1:" + server.getAddress().getPort();
+        // A bare pipeline: no key over plain HTTP and no SDK retries, as configured in GitHubModelsConfig
+        ChatCompletionsClientBuilder builder = new ChatCompletionsClientBuilder()
+                .pipeline(new HttpPipelineBuilder().httpClient(HttpClient.createDefault()).build())
+                .endpoint(endpoint);
+        GitHubModelsService service = new GitHubModelsService();
+        ReflectionTestUtils.setField(service, "chatCompletionsClient", builder.buildClient());
+        ReflectionTestUtils.setField(service, "chatCompletionsAsyncClient", builder.buildAsyncClient());
+        // A fixed limit, so the latency of the first calls does not leave the hedges without a slot
+        ReflectionTestUtils.setField(service, "concurrencyLimiter",
+                new UpstreamConcurrencyLimiter(new SimpleMeterRegistry(), 10, 10, 10, 10, 10, 1000, 2.0, 0.9));
+        ReflectionTestUtils.setField(service, "resilience", resilience);
+        ReflectionTestUtils.setField(service, "openaiModel", MODEL);
+        return service;
+    }
+
+    private static UpstreamResilience resilience(long timeoutMs, int maxRetries, int breakerCalls,
+                                                 long breakerOpenMs, boolean hedge) {
+        return new UpstreamResilience(new SimpleMeterRegistry(), new SimpleAsyncTaskExecutor("test-upstream-"), timeoutMs, maxRetries,
+                10, 50, breakerCalls, breakerCalls, 0.5, breakerOpenMs, hedge, 0.95);
+    }
+
+    private static int status(Throwable error) {
+        return assertInstanceOf(HttpResponseException.class, error).getResponse().getStatusCode();
+    }
+
+    @Test
+    void retryableStatusesAreRetriedUntilAnswered() {
+        GitHubModelsService service = service(resilience(5000, 2, 20, 30000, false));
+        replies.add(new Reply(503, 0));
+        replies.add(new Reply(429, 0));
+
+        GitHubModelsService.CompletionResult result = service.processChatRequest(gpt4o, "Hi", null);
+
+        assertEquals("Hello.", result.getContent());
+        assertEquals(12, result.getTotalTokens());
+        assertEquals(3, received.get());
+    }
+
+    @Test
+    void failuresPropagateInsteadOfBecomingContent() {
+        GitHubModelsService service = service(resilience(5000, 2, 20, 30000, false));
+        replies.add(new Reply(400, 0));
+
+        assertEquals(400, status(assertThrows(RuntimeException.class,
+                () -> service.processChatRequest(gpt4o, "Hi", null))));
+        assertEquals(1, received.get());
+
+        for (int i = 0; i < 3; i++) {
+            replies.add(new Reply(500, 0));
+        }
+        assertEquals(500, status(assertThrows(RuntimeException.class,
+                () -> service.processCompletionRequest(gpt4o, "Hi", null, null))));
+        assertEquals(4, received.get());
+    }
+
+    @Test
+    void asyncCallsAreRetriedToo() {
+        GitHubModelsService service = service(resilience(5000, 2, 20, 30000, false));
+        replies.add(new Reply(502, 0));
+
+        assertEquals("Hello.", service.processChatRequestAsync(gpt4o, "Hi", null).block().getContent());
+        assertEquals(2, received.get());
+    }
+
+    @Test
+    void attemptsAreTimedOutAndRetried() {
+        GitHubModelsService service = service(resilience(300, 1, 20, 30000, false));
+        replies.add(new Reply(200, 2000));
+
+        long start = System.nanoTime();
+        assertEquals("Hello.", service.processChatRequest(gpt4o, "Hi", null).getContent());
+
+        assertTrue(System.nanoTime() - start < TimeUnit.MILLISECONDS.toNanos(1500));
+        assertEquals(2, received.get());
+    }
+
+    @Test
+    void breakerOpensAfterRepeatedFailuresAndClosesAfterATrialCall() throws InterruptedException {
+        UpstreamResilience resilience = resilience(5000, 0, 4, 200, false);
+        GitHubModelsService service = service(resilience);
+        for (int i = 0; i < 4; i++) {
+            replies.add(new Reply(500, 0));
+            assertThrows(HttpResponseException.class, () -> service.processChatRequest(gpt4o, "Hi", null));
+        }
+        assertEquals(UpstreamResilience.CircuitState.OPEN, resilience.circuitState(MODEL));
+
+        UpstreamUnavailableException open = assertThrows(UpstreamUnavailableException.class,
+                () -> service.processChatRequest(gpt4o, "Hi", null));
+        assertEquals(1, open.getRetryAfterSeconds());
+        assertEquals(4, received.get());
+
+        Thread.sleep(250);
+        assertEquals("Hello.", service.processChatRequest(gpt4o, "Hi", null).getContent());
+        assertEquals(UpstreamResilience.CircuitState.CLOSED, resilience.circuitState(MODEL));
+    }
+
+    @Test
+    void slowAttemptsAreHedgedAfterTheTailLatency() {
+        UpstreamResilience resilience = resilience(10000, 0, 20, 30000, true);
+        GitHubModelsService service = service(resilience);
+        for (int i = 0; i < UpstreamResilience.MIN_LATENCY_SAMPLES; i++) {
+            service.processChatRequest(gpt4o, "Hi", null);
+        }
+        assertTrue(resilience.hedgeAfterNanos(MODEL) > 0);
+        received.set(0);
+        replies.add(new Reply(200, 3000));
+
+        long start = System.nanoTime();
+        assertEquals("Hello.", service.processChatRequest(gpt4o, "Hi", null).getContent());
+
+        assertTrue(System.nanoTime() - start < TimeUnit.MILLISECONDS.toNanos(2000));
+        assertEquals(2, received.get());
+    }
+}
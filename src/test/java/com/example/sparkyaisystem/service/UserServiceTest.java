@@ -7,7 +7,6 @@ import com.example.sparkyaisystem.model.dto.user.UserResponse;
 import com.example.sparkyaisystem.model.entity.AIModel;
 import com.example.sparkyaisystem.model.entity.Company;
 import com.example.sparkyaisystem.model.entity.Limit;
-import com.example.sparkyaisystem.model.entity.Request;
 import com.example.sparkyaisystem.model.entity.User;
 import com.example.sparkyaisystem.repository.CompanyRepository;
 import com.example.sparkyaisystem.repository.LimitRepository;
@@ -36,6 +35,10 @@ class UserServiceTest {
     @Mock
     private LimitRepository limitRepository;
     @Mock
+    private ConsumptionRollupService rollupService;
+    @Mock
+    private ModelCatalog modelCatalog;
+    @Mock
     private AuthService authService;
 
     @InjectMocks
@@ -134,6 +137,8 @@ class UserServiceTest {
                 .thenReturn(Optional.of(company));
         when(userRepository.findByCompany(company))
                 .thenReturn(List.of(u1, u2));
+        when(requestRepository.countByUserInCompany(company))
+                .thenReturn(List.of(requestCount(2L, 7L)));
 
         // Act
         List<UserResponse> list = userService.getAllUsersByCompany(company.getId());
@@ -141,10 +146,13 @@ class UserServiceTest {
         // Assert
         assertEquals(2, list.size());
         assertEquals(1L, list.get(0).getId());
+        assertEquals(0, list.get(0).getRequestsCount());
         assertEquals(2L, list.get(1).getId());
+        assertEquals(7, list.get(1).getRequestsCount());
 
         verify(companyRepository).findById(company.getId());
         verify(userRepository).findByCompany(company);
+        verify(requestRepository, never()).countByUserId(anyLong());
     }
 
     @Test
@@ -166,6 +174,7 @@ class UserServiceTest {
                 .thenReturn(Optional.of(company));
         when(userRepository.findByCompanyAndId(company, userId))
                 .thenReturn(Optional.of(user));
+        when(requestRepository.countByUserId(user.getId())).thenReturn(12L);
 
         // Act
         UserResponse resp = userService.getUserById(company.getId(), userId);
@@ -173,6 +182,7 @@ class UserServiceTest {
         // Assert
         assertEquals(user.getId(), resp.getId());
         assertEquals("alice@example.com", resp.getEmail());
+        assertEquals(12, resp.getRequestsCount());
 
         verify(companyRepository).findById(company.getId());
         verify(userRepository).findByCompanyAndId(company, userId);
@@ -313,19 +323,14 @@ class UserServiceTest {
         when(userRepository.findByCompanyAndId(company, userId))
                 .thenReturn(Optional.of(user));
 
-        // Prepare requests
+        // Prepare rolled-up requests
         AIModel m1 = new AIModel(); m1.setId(1L); m1.setName("M1");
         AIModel m2 = new AIModel(); m2.setId(2L); m2.setName("M2");
 
-        Request r1 = new Request();
-        r1.setModel(m1);
-        r1.setTokensConsumed(10);
-        Request r2 = new Request();
-        r2.setModel(m2);
-        r2.setTokensConsumed(20);
-
-        when(requestRepository.findByUser(user))
-                .thenReturn(List.of(r1, r2));
+        when(rollupService.userTotals(userId, null, null))
+                .thenReturn(List.of(CompanyServiceTest.totals(1L, 1, 10, 120), CompanyServiceTest.totals(2L, 1, 20, 0)));
+        when(modelCatalog.findById(1L)).thenReturn(Optional.of(m1));
+        when(modelCatalog.findById(2L)).thenReturn(Optional.of(m2));
 
         // Prepare limits
         Limit lim1 = new Limit();
@@ -337,7 +342,7 @@ class UserServiceTest {
                 .thenReturn(List.of(lim1));
 
         // Act
-        UserConsumptionResponse resp = userService.getUserConsumption(company.getId(), userId);
+        UserConsumptionResponse resp = userService.getUserConsumption(company.getId(), userId, null, null);
 
         // Assert totals
         assertEquals(userId, resp.getUserId());
@@ -362,7 +367,7 @@ class UserServiceTest {
         assertEquals(0, mc2.getMaxRequestsAllowed());
         assertEquals(0, mc2.getMaxTokensAllowed());
 
-        verify(requestRepository).findByUser(user);
+        verify(rollupService).userTotals(userId, null, null);
         verify(limitRepository).findByUser(user);
     }
 
@@ -372,7 +377,7 @@ class UserServiceTest {
                 .thenReturn(Optional.empty());
 
         RuntimeException ex = assertThrows(RuntimeException.class, () ->
-                userService.getUserConsumption(company.getId(), 123L)
+                userService.getUserConsumption(company.getId(), 123L, null, null)
         );
         assertEquals("Company not found", ex.getMessage());
     }
@@ -385,8 +390,22 @@ class UserServiceTest {
                 .thenReturn(Optional.empty());
 
         RuntimeException ex = assertThrows(RuntimeException.class, () ->
-                userService.getUserConsumption(company.getId(), 999L)
+                userService.getUserConsumption(company.getId(), 999L, null, null)
         );
         assertEquals("User not found", ex.getMessage());
     }
+
+    private static RequestRepository.UserRequestCount requestCount(Long userId, Long count) {
+        return new RequestRepository.UserRequestCount() {
+            @Override
+            public Long getUserId() {
+                return userId;
+            }
+
+            @Override
+            public Long getRequestCount() {
+                return count;
+            }
+        };
+    }
 }